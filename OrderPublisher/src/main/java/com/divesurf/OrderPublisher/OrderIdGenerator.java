@@ -0,0 +1,64 @@
+package com.divesurf.OrderPublisher;
+
+/**
+ * Order ids unique across publishers and their restarts: the milliseconds since 2020-01-01 (41 bits, good until
+ * 2089), the publisher's node id (10 bits, -DorderPublisher.nodeId, 0 to 1023) and a counter within the
+ * millisecond (12 bits). A publisher hands out at most 4096 ids a millisecond and waits for the next one beyond
+ * that. Ids are unique as long as every running publisher has its own node id and the clock of a restarted
+ * publisher did not go back past the ids of its previous run; within a run, a clock going back is waited out.
+ */
+class OrderIdGenerator {
+
+    static final long EPOCH_MILLIS = 1577836800000L; // 2020-01-01T00:00:00Z
+    static final int NODE_BITS = 10;
+    static final int SEQUENCE_BITS = 12;
+    static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private final long nodeId;
+    private long lastMillis = -1;
+    private long sequence;
+
+    OrderIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        this.nodeId = nodeId;
+    }
+
+    /** Generator of the node -DorderPublisher.nodeId (default 0). */
+    static OrderIdGenerator fromSystemProperties() {
+        return new OrderIdGenerator(Integer.getInteger("orderPublisher.nodeId", 0));
+    }
+
+    synchronized long next() {
+        return next(System.currentTimeMillis());
+    }
+
+    synchronized long next(long nowMillis) {
+        long millis = nowMillis - EPOCH_MILLIS;
+        if (millis < lastMillis) {
+            millis = lastMillis; // the clock went back: keep counting in the last millisecond
+        }
+        if (millis == lastMillis) {
+            if (sequence == MAX_SEQUENCE) {
+                millis = waitForNextMillis();
+                sequence = 0;
+            } else {
+                sequence++;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = millis;
+        return millis << (NODE_BITS + SEQUENCE_BITS) | nodeId << SEQUENCE_BITS | sequence;
+    }
+
+    private long waitForNextMillis() {
+        long millis;
+        while ((millis = System.currentTimeMillis() - EPOCH_MILLIS) <= lastMillis) {
+            Thread.yield();
+        }
+        return millis;
+    }
+}
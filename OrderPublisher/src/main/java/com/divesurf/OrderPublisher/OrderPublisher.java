@@ -6,73 +6,335 @@ import org.apache.camel.Processor;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.camel.*;
 import org.apache.camel.CamelContext;
-import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.jms.JmsComponent;
 import org.apache.camel.impl.DefaultCamelContext;
-import org.apache.camel.processor.aggregate.GroupedBodyAggregationStrategy;
+import org.apache.camel.impl.DefaultExchange;
+import com.divesurf.camel.QuarantineRoutes;
+import com.divesurf.camel.RouteAutoscaler;
+import com.divesurf.camel.RouteMetrics;
+import com.divesurf.camel.TraceInterceptor;
+import com.divesurf.common.AdmissionGate;
+import com.divesurf.common.ConsumerAutoscaler;
+import com.divesurf.common.CustomerProfiles;
+import com.divesurf.common.CustomerSequence;
+import com.divesurf.common.JvmMetrics;
+import com.divesurf.common.LatencyTracker;
+import com.divesurf.common.Lifecycle;
+import com.divesurf.common.MetricsRegistry;
+import com.divesurf.common.MetricsServer;
+import com.divesurf.common.OrderCsv;
+import com.divesurf.common.OrderEnvelope;
+import com.divesurf.common.OrderLane;
+import com.divesurf.common.OrderLog;
+import com.divesurf.common.Quarantine;
+import com.divesurf.common.QueueDepthProbe;
+import com.divesurf.common.Tracer;
+import com.divesurf.common.TransactedBatchConsumer;
+import com.divesurf.common.VirtualThreads;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 
-import java.util.concurrent.atomic.AtomicLong;
+import com.sun.net.httpserver.HttpServer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class OrderPublisher {
 
-    private static AtomicLong orderIdGenerator = new AtomicLong(1);
+    // Order ids of this publisher's node, unique across publishers and restarts (see OrderIdGenerator)
+    private static final OrderIdGenerator orderIdGenerator = OrderIdGenerator.fromSystemProperties();
+    // Exchange property holding System.nanoTime() when the route started processing the message
+    private static final String PROCESSING_STARTED = "processingStarted";
 
     public static void main(String[] args) throws Exception {
+        // Startup time, readiness and the drain on shutdown
+        Lifecycle lifecycle = Lifecycle.fromSystemProperties("orderPublisher");
         CamelContext context = new DefaultCamelContext();
+        // Route, pipeline and JVM statistics for the metrics endpoint
+        MetricsRegistry metrics = new MetricsRegistry("orderPublisher");
+        JvmMetrics.register(metrics);
+        lifecycle.registerMetrics(metrics);
+        context.addRoutePolicyFactory(new RouteMetrics(metrics));
 
         ConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://localhost:61616");
-        context.addComponent("jms", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        JmsComponent jms = JmsComponent.jmsComponentAutoAcknowledge(connectionFactory);
+        if (VirtualThreads.isEnabled()) {
+            // consumers wait in receive most of the time; on virtual threads they do not hold a platform thread each
+            jms.setTaskExecutor(new TaskExecutorAdapter(VirtualThreads.newPerTaskExecutor("JmsConsumer")));
+        }
+        context.addComponent("jms", jms);
+        // In-flight orders get most of the drain timeout to complete when the context stops
+        context.getShutdownStrategy().setTimeUnit(TimeUnit.MILLISECONDS);
+        context.getShutdownStrategy().setTimeout(lifecycle.getDrainTimeoutMillis() * 2 / 3);
+        // Spans of traced orders for every order publisher processor
+        Tracer tracer = Tracer.fromSystemProperties("orderPublisher");
+        if (tracer.isEnabled()) {
+            context.addInterceptStrategy(new TraceInterceptor(tracer));
+            tracer.registerMetrics(metrics);
+        }
+        // Poison messages of all order publisher routes end up in the quarantine queue
+        Quarantine quarantine = new Quarantine("orderPublisher");
+        quarantine.registerMetrics(metrics);
+        context.addRoutes(new QuarantineRoutes(quarantine));
+
+        // Flow control: at most maxInFlight orders between publishing and finalization
+        InFlightTracker inFlight = new InFlightTracker(
+            Integer.getInteger("pipeline.maxInFlight", 500),
+            Long.getLong("pipeline.inFlightTtlMillis", 60000L));
+        long capacityInterval = Long.getLong("pipeline.capacityIntervalMillis", 200L);
+        AtomicInteger entrySystems = new AtomicInteger(1);
+        // Orders the entry systems admitted that still wait in the orders queue are not in flight yet,
+        // but take capacity all the same
+        QueueDepthProbe ordersQueue = new QueueDepthProbe(connectionFactory, "orders", inFlight.getMaxInFlight());
+        AtomicInteger queuedOrders = new AtomicInteger();
+        metrics.gauge("pipeline_orders_inflight", "Orders published but not finalized yet", inFlight::size);
+        metrics.gauge("pipeline_orders_max_inflight", "Maximum number of orders in the pipeline", inFlight::getMaxInFlight);
+        metrics.gauge("pipeline_orders_queued", "Orders waiting in the orders queue at the last capacity announcement",
+            queuedOrders::get);
+        LatencyTracker latency = new LatencyTracker();
+        // Per-order events are sampled and written in the background
+        OrderLog log = OrderLog.fromSystemProperties("orderPublisher");
+        log.registerMetrics(metrics);
+        OrderLog.Route orderLog = log.route("order-processing-route");
+        // Numbers each customer's orders, so the result system can restore their order
+        CustomerSequence customerSequence = new CustomerSequence(Integer.getInteger("order.sequence.maxCustomers", 100000));
+        metrics.gauge("pipeline_sequenced_customers", "Customers with an order sequence counter", customerSequence::size);
+        // Tier and region of the customers, attached to each order once for all later stages
+        CustomerProfiles customerProfiles = CustomerProfiles.fromSystemProperties();
+        customerProfiles.registerMetrics(metrics);
+        // Envelope mode: the orders of a lane leave in envelopes of up to maxOrders orders, at the latest after lingerMillis
+        int envelopeOrders = OrderEnvelope.maxOrdersFromSystemProperties();
+        long envelopeLingerMillis = Long.getLong("pipeline.envelope.lingerMillis", 20L);
+        OrderEnvelope.registerMetrics(metrics);
+        OrderEnricher enricher = new OrderEnricher(inFlight, customerSequence, customerProfiles);
+        TransactedBatchConsumer envelopePublisher = null;
+        if (OrderEnvelope.isEnabled(envelopeOrders)) {
+            // the orders are acknowledged in the transaction that sends their envelopes, so none is lost in a crash
+            envelopePublisher = new TransactedBatchConsumer(connectionFactory, "orders",
+                Integer.getInteger("orderPublisher.batchSize", envelopeOrders), envelopeLingerMillis,
+                new EnvelopePublisher(context, enricher, orderLog, latency, envelopeOrders), quarantine);
+        }
 
         // Route: Consumes orders from queue, translates and enriches them, then publishes to topic
         context.addRoutes(new RouteBuilder() {
             @Override
             public void configure() {
-                from("jms:queue:orders")
-                    .routeId("order-processing-route")
-                    .log("Received raw order: ${body}")
-                    // Message Translator: Unifies order format from different sources
-                    .process(new MessageTranslator())
-                    .log("Translated order: ${body}")
-                    // Content Enricher: Adds orderId, overallItems, validation, etc.
-                    .process(new OrderEnricher())
-                    .log("Enriched order: ${body}")
-                    .to("jms:topic:ordersForProcessing");
+                QuarantineRoutes.applyTo(this);
+
+                // In envelope mode the micro-batch consumer takes the orders instead (see EnvelopePublisher)
+                if (!OrderEnvelope.isEnabled(envelopeOrders)) {
+                    from("jms:queue:orders")
+                        .routeId("order-processing-route")
+                        .process(e -> e.setProperty(PROCESSING_STARTED, System.nanoTime()))
+                        .process(e -> orderLog.log("orderReceived", "body", e.getIn().getBody()))
+                        // Message Translator: Unifies order format from different sources
+                        .process(new MessageTranslator())
+                        // Content Enricher: Adds orderId, overallItems, validation, etc.
+                        .process(enricher)
+                        .process(e -> orderLog.log("orderEnriched", "lane", e.getIn().getHeader("orderLane"),
+                            "body", e.getIn().getBody()))
+                        // Virtual topic: every subscribing system gets its own queue (Consumer.<system>.VirtualTopic.ordersForProcessing.<lane>)
+                        // Content-Based Router: small and large orders travel in separate lanes through every stage
+                        .choice()
+                            .when(header("orderLane").isEqualTo(OrderLane.LARGE.suffix()))
+                                .to("jms:topic:VirtualTopic.ordersForProcessing." + OrderLane.LARGE.suffix())
+                            .otherwise()
+                                .to("jms:topic:VirtualTopic.ordersForProcessing." + OrderLane.SMALL.suffix())
+                        .end()
+                        .process(e -> latency.record(System.nanoTime() - e.getProperty(PROCESSING_STARTED, Long.class)));
+                } else {
+                    from("timer:envelopeStats?period=60000&delay=60000")
+                        .routeId("envelopeStats")
+                        .process(e -> System.out.println(OrderEnvelope.stats()));
+                }
+
+                // Finalized orders leave the pipeline and free their slot
+                from("jms:queue:Consumer.orderPublisher.VirtualTopic.finalizedOrders")
+                    .routeId("pipeline-finalized")
+                    .process(e -> inFlight.finalized(OrderCsv.orderId(e.getIn().getBody(String.class))));
+
+                // Count the entry systems subscribed to the announcements, from the broker's consumer advisories
+                from("jms:topic:ActiveMQ.Advisory.Consumer.Topic.pipelineCapacity")
+                    .routeId("pipeline-entry-systems")
+                    .process(e -> entrySystems.set(Math.max(1, e.getIn().getHeader("consumerCount", 1, Integer.class))));
+
+                // Announce the remaining capacity to the order entry systems, which throttle or reject on zero;
+                // each takes its share, so together they never admit more than the capacity. Orders still waiting
+                // in the orders queue count, so the queue cannot grow beyond the capacity between announcements
+                from("timer:pipelineCapacity?period=" + capacityInterval)
+                    .routeId("pipeline-capacity")
+                    .process(e -> {
+                        int queued = ordersQueue.getAsInt();
+                        queuedOrders.set(Math.max(0, queued));
+                        e.getIn().setBody(String.valueOf(inFlight.capacity(queued)));
+                        e.getIn().setHeader(AdmissionGate.ENTRY_SYSTEMS_HEADER, entrySystems.get());
+                    })
+                    .to("jms:topic:pipelineCapacity?deliveryPersistent=false&timeToLive=5000");
+
+                // Report the customer profile cache hit rate and lookup times once a minute
+                from("timer:customerProfileStats?period=60000&delay=60000")
+                    .routeId("customerProfileStats")
+                    .process(e -> System.out.println(customerProfiles.stats()));
             }
         });
 
+        HttpServer server = MetricsServer.start(metrics, 9103);
+        if (server != null) {
+            lifecycle.serveProbes(server);
+        }
         context.start();
+        if (envelopePublisher != null) {
+            envelopePublisher.start();
+            System.out.println("Order publisher envelope mode: envelopes of up to " + envelopeOrders + " orders, linger="
+                + envelopeLingerMillis + "ms");
+        }
+
+        // Resize the order consumers at runtime from queue depth and processing time
+        if (envelopePublisher == null && Boolean.getBoolean("autoscale.enabled")) {
+            ConsumerAutoscaler autoscaler = RouteAutoscaler.start(context, connectionFactory,
+                "order-processing-route", "orders", latency);
+            autoscaler.registerMetrics(metrics);
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("timer:autoscaleStats?period=60000&delay=60000")
+                        .routeId("autoscaleStats")
+                        .process(e -> System.out.println(autoscaler.stats()));
+                }
+            });
+        }
+
+        // Drain: the orders in flight are published before the context stops
+        TransactedBatchConsumer batchConsumer = envelopePublisher;
+        lifecycle.onDrain("envelopes", () -> {
+            if (batchConsumer != null) {
+                batchConsumer.stop();
+            }
+        });
+        lifecycle.onDrain("camel", context::stop);
+        lifecycle.onDrain("ordersQueue", ordersQueue::close);
+        lifecycle.onDrain("logs", () -> {
+            log.close();
+            tracer.close();
+        });
+        lifecycle.onDrain("customerProfiles", customerProfiles::close);
+        lifecycle.ready();
         System.out.println("OrderPublisher started...");
         System.out.println("Type 'exit' to quit.");
 
         try (Scanner scanner = new Scanner(System.in)) {
-            ProducerTemplate producer = context.createProducerTemplate();
-            while (true) {
-                String input = scanner.nextLine();
-                if ("exit".equalsIgnoreCase(input.trim())) {
+            while (scanner.hasNextLine()) {
+                if ("exit".equalsIgnoreCase(scanner.nextLine().trim())) {
+                    lifecycle.drain();
                     break;
                 }
             }
         }
-        context.stop();
+        // Without a console (stdin closed) the system runs until it is terminated
+        lifecycle.awaitStopped();
     }
 
 
+    // Envelope mode: translates and enriches a micro-batch of orders like the order route and sends them in envelopes
+    // per lane and envelope group, in the consumer's transaction, so an order is only acknowledged with its envelope
+    static class EnvelopePublisher implements TransactedBatchConsumer.BatchHandler {
+        private final CamelContext context;
+        private final Processor translator = new MessageTranslator();
+        private final OrderEnricher enricher;
+        private final OrderLog.Route orderLog;
+        private final LatencyTracker latency;
+        private final int envelopeOrders;
+
+        EnvelopePublisher(CamelContext context, OrderEnricher enricher, OrderLog.Route orderLog, LatencyTracker latency,
+                          int envelopeOrders) {
+            this.context = context;
+            this.enricher = enricher;
+            this.orderLog = orderLog;
+            this.latency = latency;
+            this.envelopeOrders = envelopeOrders;
+        }
+
+        @Override
+        public void handle(List<Message> batch, Session session, MessageProducer producer,
+                           TransactedBatchConsumer.Rejects rejects) throws Exception {
+            OrderEnvelope.Packer outputs = new OrderEnvelope.Packer(session, producer, envelopeOrders);
+            // the customers' numbers count once the batch commits; a rolled back batch hands them out again
+            enricher.customerSequence.beginBatch();
+            for (Message message : batch) {
+                long started = System.nanoTime();
+                Exchange exchange = new DefaultExchange(context);
+                exchange.getIn().setBody(((TextMessage) message).getText());
+                Enumeration<?> names = message.getPropertyNames();
+                while (names.hasMoreElements()) {
+                    String name = (String) names.nextElement();
+                    exchange.getIn().setHeader(name, message.getObjectProperty(name));
+                }
+                orderLog.log("orderReceived", "body", exchange.getIn().getBody());
+                try {
+                    translator.process(exchange);
+                    enricher.process(exchange);
+                } catch (IllegalArgumentException e) {
+                    // same as the route: a malformed order is quarantined, in the batch's transaction
+                    rejects.reject(message, e);
+                    continue;
+                } catch (RuntimeException e) {
+                    // retried on its own, or quarantined if it came in an envelope
+                    rejects.fail(message, e);
+                    continue;
+                }
+                orderLog.log("orderEnriched", "lane", exchange.getIn().getHeader("orderLane"), "body", exchange.getIn().getBody());
+
+                TextMessage order = session.createTextMessage(exchange.getIn().getBody(String.class));
+                for (Map.Entry<String, Object> header : exchange.getIn().getHeaders().entrySet()) {
+                    Object value = header.getValue();
+                    if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                        order.setObjectProperty(header.getKey(), value);
+                    }
+                }
+                outputs.send(session.createTopic("VirtualTopic.ordersForProcessing."
+                    + exchange.getIn().getHeader("orderLane", String.class)), order);
+                latency.record(System.nanoTime() - started);
+            }
+            outputs.flush();
+        }
+
+        @Override
+        public void afterCommit() {
+            enricher.customerSequence.commitBatch();
+        }
+
+        @Override
+        public void afterRollback() {
+            enricher.customerSequence.rollbackBatch();
+        }
+    }
 
     // Message Translator: Takes WebOrders and Callcenter Orders and translates into unified format
     static class MessageTranslator implements Processor {
         @Override
         public void process(Exchange exchange) {
             String body = exchange.getIn().getBody(String.class);
-            String[] parts = body.split(",");
+            // both formats have at least four fields; a malformed order fails with an IllegalArgumentException
+            String[] parts = OrderCsv.split(body, 4);
 
             String customerId, firstName, lastName;
             int divingSuits, surfboards;
 
             if (parts[0].matches("\\d+")) {
+                if (parts.length < 5) {
+                    throw new IllegalArgumentException("Invalid message format: " + body);
+                }
                 //Format WebOrder: <Customer-ID,First Name,Last  Name,Diving Suits,Surfboards>
                 customerId = parts[0].trim();
                 firstName = parts[1].trim();
@@ -82,6 +344,9 @@ public class OrderPublisher {
             } else {
                 //Format CallCenterOrder: <Full Name,Surfboards,Diving Suits,Customer-ID>
                 String[] nameParts = parts[0].trim().split(" ");
+                if (nameParts.length < 2) {
+                    throw new IllegalArgumentException("Invalid customer name: " + parts[0]);
+                }
                 firstName = nameParts[0].trim();
                 lastName = nameParts[1].trim();
                 surfboards = Integer.parseInt(parts[1].trim());
@@ -95,14 +360,61 @@ public class OrderPublisher {
         }
     }
 
-    // Content Enricher: Adds OrderID, OverallItems, valid flag, validationResult
+    // Orders published but not finalized yet; entries without a result expire after ttlMillis
+    static class InFlightTracker {
+        private final ConcurrentHashMap<String, Long> inFlight = new ConcurrentHashMap<>();
+        private final int maxInFlight;
+        private final long ttlMillis;
+
+        InFlightTracker(int maxInFlight, long ttlMillis) {
+            this.maxInFlight = maxInFlight;
+            this.ttlMillis = ttlMillis;
+        }
+
+        void published(long orderId) {
+            inFlight.put(String.valueOf(orderId), System.currentTimeMillis());
+        }
+
+        void finalized(String orderId) {
+            inFlight.remove(orderId);
+        }
+
+        int size() {
+            return inFlight.size();
+        }
+
+        int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        // Orders that may still be admitted while queued orders wait in the orders queue;
+        // none while the queue depth is unknown (negative)
+        long capacity(int queued) {
+            long cutoff = System.currentTimeMillis() - ttlMillis;
+            inFlight.values().removeIf(publishedAt -> publishedAt < cutoff);
+            return queued < 0 ? 0 : Math.max(0, maxInFlight - inFlight.size() - queued);
+        }
+    }
+
+    // Content Enricher: Adds OrderID, OverallItems, valid flag, validationResult, and the customer's tier and region
     static class OrderEnricher implements Processor {
+        private final InFlightTracker inFlight;
+        private final CustomerSequence customerSequence;
+        private final CustomerProfiles customerProfiles;
+
+        OrderEnricher(InFlightTracker inFlight, CustomerSequence customerSequence, CustomerProfiles customerProfiles) {
+            this.inFlight = inFlight;
+            this.customerSequence = customerSequence;
+            this.customerProfiles = customerProfiles;
+        }
+
         @Override
         public void process(Exchange exchange) {
             UnifiedOrder order = exchange.getIn().getBody(UnifiedOrder.class);
 
             int totalItems = order.getDivingSuits() + order.getSurfboards();
-            long orderId = orderIdGenerator.getAndIncrement();
+            long orderId = orderIdGenerator.next();
+            inFlight.published(orderId);
             boolean valid = true;
 
             String validationResult = "";
@@ -120,6 +432,15 @@ public class OrderPublisher {
             );
 
             exchange.getIn().setBody(enriched.toCsv());
+            exchange.getIn().setHeader("overallItems", totalItems);
+            exchange.getIn().setHeader("orderLane", OrderLane.of(totalItems).suffix());
+            // Message groups: all orders of a customer go to the same consumer of each queue, in order
+            exchange.getIn().setHeader(CustomerSequence.GROUP_HEADER, order.getCustomerId());
+            customerSequence.next(order.getCustomerId(), exchange.getIn().getHeaders());
+            // the profile travels as headers, so billing, inventory and result never look the customer up
+            CustomerProfiles.Profile profile = customerProfiles.lookup(order.getCustomerId());
+            exchange.getIn().setHeader(CustomerProfiles.TIER_HEADER, profile.getTier());
+            exchange.getIn().setHeader(CustomerProfiles.REGION_HEADER, profile.getRegion());
         }
     }
 
@@ -0,0 +1,98 @@
+package com.divesurf.OrderPublisher;
+
+import com.divesurf.common.CustomerProfiles;
+import com.divesurf.common.CustomerSequence;
+import com.divesurf.common.LatencyTracker;
+import com.divesurf.common.OrderEnvelope;
+import com.divesurf.common.OrderLog;
+import com.divesurf.common.Quarantine;
+import com.divesurf.common.TransactedBatchConsumer;
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the envelope mode of the order publisher, against an embedded broker.
+ */
+public class EnvelopePublisherTest extends TestCase {
+    private static final String SMALL_ORDERS = "Consumer.billing.VirtualTopic.ordersForProcessing.small";
+
+    private BrokerService broker;
+    private ActiveMQConnectionFactory connectionFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("publisher-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        connectionFactory = new ActiveMQConnectionFactory("vm://publisher-test?create=false");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        broker.stop();
+    }
+
+    public void testOrdersLeaveInEnvelopesAndMalformedOnesAreQuarantined() throws Exception {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            // the virtual topic only forwards to consumer queues that exist
+            MessageConsumer orders = session.createConsumer(session.createQueue(SMALL_ORDERS));
+            MessageProducer producer = session.createProducer(session.createQueue("orders"));
+            producer.send(session.createTextMessage("7,Anna,Meier,1,2"));
+            producer.send(session.createTextMessage("not an order"));
+            producer.send(session.createTextMessage("Bob Kunz,1,0,8"));
+
+            Quarantine quarantine = new Quarantine("orderPublisher");
+            OrderPublisher.OrderEnricher enricher = new OrderPublisher.OrderEnricher(
+                new OrderPublisher.InFlightTracker(100, 60000), new CustomerSequence(100),
+                new CustomerProfiles(new File("target/no-customers.csv"), 10));
+            TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "orders", 10, 200,
+                new OrderPublisher.EnvelopePublisher(new DefaultCamelContext(), enricher,
+                    OrderLog.fromSystemProperties("orderPublisher").route("order-processing-route"),
+                    new LatencyTracker(), 10), quarantine);
+            consumer.start();
+            List<String> published = new ArrayList<>();
+            try {
+                Message envelope;
+                while (published.size() < 2 && (envelope = orders.receive(5000)) != null) {
+                    assertTrue(OrderEnvelope.isEnvelope(envelope));
+                    for (Message order : OrderEnvelope.open(envelope)) {
+                        published.add(((TextMessage) order).getText());
+                        assertEquals(1L, order.getLongProperty(CustomerSequence.SEQUENCE_HEADER));
+                    }
+                }
+            } finally {
+                consumer.stop();
+            }
+            assertEquals(2, published.size());
+            assertTrue(published.get(0).startsWith("7,Anna,Meier,3,1,2,"));
+            assertTrue(published.get(1).startsWith("8,Bob,Kunz,1,0,1,"));
+            assertEquals(0, consumer.getRollbacks());
+            assertEquals(1, consumer.getQuarantined());
+
+            TextMessage malformed = (TextMessage) session.createConsumer(session.createQueue(Quarantine.QUEUE)).receive(2000);
+            assertNotNull(malformed);
+            assertEquals("not an order", malformed.getText());
+            // all orders were acknowledged with their envelopes
+            assertNull(session.createConsumer(session.createQueue("orders")).receive(200));
+        } finally {
+            connection.close();
+        }
+    }
+}
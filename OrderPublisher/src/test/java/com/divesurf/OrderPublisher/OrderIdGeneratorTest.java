@@ -0,0 +1,45 @@
+package com.divesurf.OrderPublisher;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unit tests for the order ids of the publisher nodes.
+ */
+public class OrderIdGeneratorTest extends TestCase {
+
+    private static final long NOW = OrderIdGenerator.EPOCH_MILLIS + 1000;
+
+    public void testNodesAndRestartsHandOutDistinctIds() {
+        Set<Long> ids = new HashSet<>();
+        OrderIdGenerator first = new OrderIdGenerator(1);
+        OrderIdGenerator second = new OrderIdGenerator(2);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ids.add(first.next(NOW)));
+            assertTrue(ids.add(second.next(NOW)));
+        }
+        // node 1 restarted a millisecond later
+        OrderIdGenerator restarted = new OrderIdGenerator(1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ids.add(restarted.next(NOW + 1)));
+        }
+    }
+
+    public void testIdsIncreaseEvenIfTheClockGoesBack() {
+        OrderIdGenerator generator = new OrderIdGenerator(3);
+        long id = generator.next(NOW);
+        long later = generator.next(NOW - 500);
+        assertTrue(later > id);
+        assertEquals(3, later >> OrderIdGenerator.SEQUENCE_BITS & OrderIdGenerator.MAX_NODE_ID);
+    }
+
+    public void testNodeIdOutOfRangeIsRejected() {
+        try {
+            new OrderIdGenerator(OrderIdGenerator.MAX_NODE_ID + 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -1,50 +1,570 @@
 package com.divesurf.BillingSystem;
 
+import org.apache.camel.AsyncCallback;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
-import org.apache.camel.Processor;
+import org.apache.camel.ExtendedCamelContext;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.jms.JmsComponent;
+import org.apache.camel.component.jms.JmsMessage;
 import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQSession;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import com.sun.net.httpserver.HttpServer;
+
+import com.divesurf.camel.QuarantineRoutes;
+import com.divesurf.camel.RouteAutoscaler;
+import com.divesurf.camel.RouteMetrics;
+import com.divesurf.camel.TraceInterceptor;
 //import com.divesurf.common.Order;
 
+import com.divesurf.common.ConsumerAutoscaler;
+import com.divesurf.common.CustomerProfiles;
+import com.divesurf.common.CustomerSequence;
+import com.divesurf.common.JvmMetrics;
+import com.divesurf.common.LatencyTracker;
+import com.divesurf.common.Lifecycle;
+import com.divesurf.common.MetricsRegistry;
+import com.divesurf.common.MetricsServer;
+import com.divesurf.common.OrderCsv;
+import com.divesurf.common.OrderEnvelope;
+import com.divesurf.common.OrderLane;
+import com.divesurf.common.OrderLog;
+import com.divesurf.common.Quarantine;
+import com.divesurf.common.Tracer;
+import com.divesurf.common.VirtualThreads;
+import com.divesurf.common.TransactedBatchConsumer;
+import com.divesurf.common.WeightedFairExecutor;
+
 import javax.jms.ConnectionFactory;
-import java.util.stream.Collectors;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BillingSystem {
 
+    // Exposure limit: a customer may have creditScore * itemsPerScorePoint items in unfinished orders
+    private static final int ITEMS_PER_SCORE_POINT = Integer.getInteger("billing.exposure.itemsPerScorePoint", 10);
+    // Exchange property holding System.nanoTime() when the route started processing the message
+    private static final String PROCESSING_STARTED = "processingStarted";
+
+    // Share of the credit check threads per lane while both lanes have work (indexed by OrderLane ordinal)
+    private static final int[] LANE_WEIGHTS = {
+        Integer.getInteger("billing.smallLane.weight", 4),
+        Integer.getInteger("billing.largeLane.weight", 1)
+    };
+
     public static void main(String[] args) throws Exception {
+        // Startup time, readiness and the drain on shutdown
+        Lifecycle lifecycle = Lifecycle.fromSystemProperties("billing");
         CamelContext context = new DefaultCamelContext();
-        ConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://localhost:61616");
-        context.addComponent("jms", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        // Route, credit and JVM statistics for the metrics endpoint
+        MetricsRegistry metrics = new MetricsRegistry("billing");
+        JvmMetrics.register(metrics);
+        lifecycle.registerMetrics(metrics);
+        context.addRoutePolicyFactory(new RouteMetrics(metrics));
+        ActiveMQConnectionFactory activeMq = new ActiveMQConnectionFactory("tcp://localhost:61616");
+        Quarantine.applyRedeliveryPolicy(activeMq);
+        ConnectionFactory connectionFactory = activeMq;
+        JmsComponent jms = JmsComponent.jmsComponentAutoAcknowledge(connectionFactory);
+        if (VirtualThreads.isEnabled()) {
+            // consumers wait in receive most of the time; on virtual threads they do not hold a platform thread each
+            jms.setTaskExecutor(new TaskExecutorAdapter(VirtualThreads.newPerTaskExecutor("JmsConsumer")));
+        }
+        context.addComponent("jms", jms);
+        // Producers connect on their first message instead of at startup
+        context.getGlobalEndpointConfiguration().setLazyStartProducer(true);
+        // In-flight credit checks get most of the drain timeout to complete when the context stops
+        context.getShutdownStrategy().setTimeUnit(TimeUnit.MILLISECONDS);
+        context.getShutdownStrategy().setTimeout(lifecycle.getDrainTimeoutMillis() * 2 / 3);
+        // Spans of traced orders for every billing processor
+        Tracer tracer = Tracer.fromSystemProperties("billing");
+        if (tracer.isEnabled()) {
+            context.adapt(ExtendedCamelContext.class).addInterceptStrategy(new TraceInterceptor(tracer));
+            tracer.registerMetrics(metrics);
+        }
+        // Poison messages of all billing routes end up in the quarantine queue
+        Quarantine quarantine = new Quarantine("billing");
+        quarantine.registerMetrics(metrics);
+        context.addRoutes(new QuarantineRoutes(quarantine));
+
+        // Credit scores come from the configured backend, fronted by a per-customer cache
+        CachingCreditScoreProvider creditScores = new CachingCreditScoreProvider(
+            createCreditScoreProvider(),
+            Integer.getInteger("billing.creditCache.maxEntries", 10000),
+            Long.getLong("billing.creditCache.ttlMillis", 300000L));
+        creditScores.registerMetrics(metrics);
+
+        // Items of approved, not yet finalized orders per customer, journaled next to stock.properties.
+        // Each instance holds the reservations of the orders it approved, in its own journal
+        String instance = instanceSuffix(System.getProperty("billing.instanceId", ""));
+        String baseDir = System.getProperty("user.dir");
+        CreditExposureLedger exposure = new CreditExposureLedger(new File(baseDir + File.separator + "billing-system"
+            + File.separator + "credit-exposure" + instance + ".journal"));
+        exposure.registerMetrics(metrics);
+        // Per-order events are sampled and written in the background
+        OrderLog log = OrderLog.fromSystemProperties("billing");
+        log.registerMetrics(metrics);
+        metrics.family("billing_decisions_total", "Credit decisions by validation result", "counter",
+            "result", () -> BillingDecision.OUTCOMES);
+
+        int consumers = Integer.getInteger("billing.consumers", 1);
+        // credit checks block on the score lookup and the sends; virtual threads make many concurrent checks cheap
+        int maxInFlight = Integer.getInteger("billing.maxInFlight", VirtualThreads.isEnabled() ? 256 : 16);
+        // Envelopes are opened and packed by the micro-batch consumers, so envelope mode implies micro-batch mode
+        int envelopeOrders = OrderEnvelope.maxOrdersFromSystemProperties();
+        int batchSize = Integer.getInteger("billing.batchSize", OrderEnvelope.isEnabled(envelopeOrders) ? envelopeOrders : 0);
+        if (OrderEnvelope.isEnabled(envelopeOrders) && batchSize <= 0) {
+            throw new IllegalStateException("Envelope mode needs the micro-batch mode (billing.batchSize > 0)");
+        }
+        OrderEnvelope.registerMetrics(metrics);
+        LatencyTracker[] laneLatency = {new LatencyTracker(), new LatencyTracker()};
+        List<TransactedBatchConsumer> batchConsumers = new ArrayList<>();
+        if (batchSize > 0) {
+            // Micro-batch mode: each consumer takes up to batchSize orders (or what arrives within
+            // batchLingerMillis) per local JMS transaction and commits once after sending all results
+            WeightedFairExecutor creditChecks = new WeightedFairExecutor("CreditCheck", maxInFlight, LANE_WEIGHTS);
+            long lingerMillis = Long.getLong("billing.batchLingerMillis", 50L);
+            for (OrderLane lane : OrderLane.values()) {
+                for (int i = 0; i < consumers; i++) {
+                    TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory,
+                        "Consumer.billing.VirtualTopic.ordersForProcessing." + lane.suffix(), batchSize, lingerMillis,
+                        new BatchCreditValidator(creditScores, exposure, creditChecks.lane(lane.ordinal()),
+                            log.route("billing-" + lane.suffix()), envelopeOrders), quarantine);
+                    consumer.registerMetrics(metrics, i);
+                    consumer.start();
+                    batchConsumers.add(consumer);
+                }
+            }
+            System.out.println("Billing micro-batch mode: batchSize=" + batchSize + ", linger=" + lingerMillis + "ms"
+                + (OrderEnvelope.isEnabled(envelopeOrders) ? ", envelopes of up to " + envelopeOrders + " orders" : ""));
+        } else {
+            addBillingRoutes(context, creditScores, exposure, consumers, maxInFlight, laneLatency, log);
+        }
 
         context.addRoutes(new RouteBuilder() {
             @Override
             public void configure() {
-                // Publish-Subscribe Channel: Consumes orders from topic
-                from("jms:topic:ordersForProcessing?clientId=billing&durableSubscriptionName=billing")
-                    .process(new CreditValidator());
-        
+                QuarantineRoutes.applyTo(this);
+
+                // Report credit cache hit/miss metrics and drop expired entries once a minute
+                from("timer:creditCacheStats?period=60000&delay=60000")
+                    .routeId("creditCacheStats")
+                    .process(e -> {
+                        creditScores.purgeExpired();
+                        System.out.println(creditScores.stats());
+                    });
+
+                // Finalized orders no longer count towards the customer's exposure. Every instance gets every
+                // finalized order on its own consumer queue and releases the reservations it holds
+                from("jms:queue:Consumer.billingExposure" + instance + ".VirtualTopic.finalizedOrders")
+                    .routeId("exposureRelease")
+                    .process(e -> exposure.release(OrderCsv.orderId(e.getIn().getBody(String.class))));
+
+                // Persist exposure changes in batches, once per second
+                from("timer:exposureJournal?period=1000")
+                    .routeId("exposureJournal")
+                    .process(e -> exposure.flush());
+
+                // Release reservations of orders whose result never arrived and report exposure metrics
+                from("timer:exposureStats?period=60000&delay=60000")
+                    .routeId("exposureStats")
+                    .process(e -> {
+                        exposure.expireOlderThan(Long.getLong("billing.exposure.reservationTtlMillis", 3600000L));
+                        System.out.println(exposure.stats());
+                    });
             }
         });
 
+        HttpServer server = MetricsServer.start(metrics, 9104);
+        if (server != null) {
+            lifecycle.serveProbes(server);
+        }
         context.start();
+
+        // Resize the lane consumers at runtime from queue depth and processing time
+        if (batchSize <= 0 && Boolean.getBoolean("autoscale.enabled")) {
+            List<ConsumerAutoscaler> autoscalers = new ArrayList<>();
+            for (OrderLane lane : OrderLane.values()) {
+                autoscalers.add(RouteAutoscaler.start(context, connectionFactory, "billing-" + lane.suffix(),
+                    "Consumer.billing.VirtualTopic.ordersForProcessing." + lane.suffix(), laneLatency[lane.ordinal()]));
+            }
+            autoscalers.forEach(a -> a.registerMetrics(metrics));
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("timer:autoscaleStats?period=60000&delay=60000")
+                        .routeId("autoscaleStats")
+                        .process(e -> autoscalers.forEach(a -> System.out.println(a.stats())));
+                }
+            });
+        }
+
+        // Drain: finish the open batches and in-flight credit checks, then persist the exposure
+        lifecycle.onDrain("batchConsumers", () -> {
+            for (TransactedBatchConsumer consumer : batchConsumers) {
+                consumer.stop();
+            }
+        });
+        lifecycle.onDrain("camel", context::stop);
+        lifecycle.onDrain("exposureJournal", () -> {
+            exposure.flush();
+            exposure.close();
+        });
+        lifecycle.onDrain("logs", () -> {
+            log.close();
+            tracer.close();
+        });
+        lifecycle.ready();
         System.out.println("BillingSystem started");
-        Thread.sleep(Long.MAX_VALUE);
+        lifecycle.awaitStopped();
+    }
+
+    /**
+     * Adds the billing routes to the given context, one per order lane.
+     *
+     * @param consumers   number of competing consumers per lane on this instance's virtual topic queues
+     * @param maxInFlight maximum number of credit checks running at the same time, per lane
+     */
+    public static void addBillingRoutes(CamelContext context, CachingCreditScoreProvider creditScores,
+                                        CreditExposureLedger exposure, int consumers, int maxInFlight) throws Exception {
+        addBillingRoutes(context, creditScores, exposure, consumers, maxInFlight,
+            new LatencyTracker[] {new LatencyTracker(), new LatencyTracker()}, OrderLog.fromSystemProperties("billing"));
     }
 
-    private static class CreditValidator implements Processor {
+    /**
+     * Adds the billing routes, recording the processing time of each order in the tracker of its lane
+     * and logging the credit decisions to the given log.
+     */
+    public static void addBillingRoutes(CamelContext context, CachingCreditScoreProvider creditScores,
+                                        CreditExposureLedger exposure, int consumers, int maxInFlight,
+                                        LatencyTracker[] laneLatency, OrderLog orderLog) throws Exception {
+        // Credit checks run off the JMS consumer threads; the lanes share the threads by weight
+        WeightedFairExecutor creditChecks = new WeightedFairExecutor("CreditCheck", maxInFlight, LANE_WEIGHTS);
+        // One shared template for the billing sends instead of creating a new one per order
+        ProducerTemplate producer = context.createProducerTemplate();
+        // The routes' dead letter channel needs the quarantine route
+        if (context.getRoute("quarantine") == null) {
+            context.addRoutes(new QuarantineRoutes(new Quarantine("billing")));
+        }
+
+        context.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                QuarantineRoutes.applyTo(this);
+
+                // Publish-Subscribe Channel: Consumes orders from the virtual topic through billing's own queues,
+                // so any number of consumers and billing instances compete for the orders and each order is billed once
+                // asyncConsumer frees the consumer thread while checks run; each order is acknowledged
+                // individually by the CreditValidator after its billing results have been sent (or it was quarantined)
+                for (OrderLane lane : OrderLane.values()) {
+                    from("jms:queue:Consumer.billing.VirtualTopic.ordersForProcessing." + lane.suffix()
+                            + "?concurrentConsumers=" + consumers
+                            + "&asyncConsumer=true&acknowledgementMode=" + ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE)
+                        .routeId("billing-" + lane.suffix())
+                        .process(e -> e.setProperty(PROCESSING_STARTED, System.nanoTime()))
+                        .process(new CreditValidator(creditScores, exposure, producer,
+                            creditChecks.lane(lane.ordinal()), maxInFlight, orderLog.route("billing-" + lane.suffix())))
+                        .process(e -> laneLatency[lane.ordinal()].record(
+                            System.nanoTime() - e.getProperty(PROCESSING_STARTED, Long.class)));
+                }
+            }
+        });
+    }
+
+    // Suffix of the instance's journal and finalized orders queue: none for a single instance, "-<id>" otherwise
+    static String instanceSuffix(String instanceId) {
+        if (instanceId.isEmpty()) {
+            return "";
+        }
+        if (!instanceId.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("Invalid billing.instanceId: " + instanceId);
+        }
+        return "-" + instanceId;
+    }
+
+    // Selects the credit score backend: "local" (digit-sum rule) or "bureau" (simulated slow external bureau)
+    static CreditScoreProvider createCreditScoreProvider() {
+        String backend = System.getProperty("billing.creditProvider", "local");
+        switch (backend) {
+            case "local":
+                return new DigitSumCreditScoreProvider();
+            case "bureau":
+                return new SimulatedBureauCreditScoreProvider(Long.getLong("billing.bureau.latencyMillis", 200L));
+            default:
+                throw new IllegalArgumentException("Unknown credit score provider: " + backend);
+        }
+    }
+
+    private static class CreditValidator extends AsyncProcessorSupport {
+        private final CreditScoreProvider creditScores;
+        private final CreditExposureLedger exposure;
+        private final CustomerSerialExecutor creditCheckPool;
+        private final Semaphore inFlight;
+        private final ProducerTemplate producer;
+        private final OrderLog.Route log;
+
+        public CreditValidator(CreditScoreProvider creditScores, CreditExposureLedger exposure, ProducerTemplate producer,
+                               Executor creditCheckPool, int maxInFlight, OrderLog.Route log) {
+            this.creditScores = creditScores;
+            this.exposure = exposure;
+            this.producer = producer;
+            // a customer's checks run one after another, so its orders reach inventory in the order they arrived
+            this.creditCheckPool = new CustomerSerialExecutor(creditCheckPool);
+            this.inFlight = new Semaphore(maxInFlight);
+            this.log = log;
+        }
+
         @Override
-        public void process(Exchange exchange) throws Exception {
-            String message = exchange.getIn().getBody(String.class);
-            String[] parts = message.split(",", 9);
+        public boolean process(Exchange exchange, AsyncCallback callback) {
+            acknowledgeWhenDone(exchange);
+            String[] parts;
+            try {
+                parts = BillingDecision.parse(exchange.getIn().getBody(String.class));
+            } catch (IllegalArgumentException e) {
+                exchange.setException(e);
+                callback.done(true);
+                return true;
+            }
+
+            // Backpressure: the consumer thread waits here while maxInFlight checks are running
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.setException(e);
+                callback.done(true);
+                return true;
+            }
+            try {
+                creditCheckPool.execute(parts[0], () -> {
+                    try {
+                        validate(exchange, parts);
+                    } catch (Exception e) {
+                        exchange.setException(e);
+                    } finally {
+                        inFlight.release();
+                        callback.done(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                exchange.setException(e);
+                callback.done(true);
+                return true;
+            }
+            return false;
+        }
+
+        private void validate(Exchange exchange, String[] parts) throws Exception {
+            BillingDecision decision = BillingDecision.decide(parts, creditScores.creditScore(parts[0]), exposure);
+            exchange.getIn().setHeader("overallItems", decision.overallItems);
+            // the fan-out messages continue the order's trace and keep its customer group, sequence number and profile
+            Map<String, Object> headers = forwardedHeaders(exchange);
+
+            // Point-to-Point Channel: Send basic order (no credit score) to the inventory queue of its lane for stock validation
+            producer.sendBodyAndHeaders("jms:queue:billingToInventory." + OrderLane.of(decision.overallItems).suffix(),
+                decision.basicCsv, headers);
+
+            // Publish-Subscribe Channel: Send enriched order (with credit score) to results topic for aggregation
+            producer.sendBodyAndHeaders("jms:topic:VirtualTopic.billingResults", decision.enrichedCsv, headers);
+            // (Content-Based Router and Aggregator patterns are typically implemented in downstream systems)
+            decision.log(log);
+        }
+
+        // The order is acknowledged once the route is done with it: after both sends succeeded, or after the
+        // dead letter channel moved it to the quarantine. If even that failed, a copy of the order is sent back to
+        // its queue and the original acknowledged, so the order is redelivered alone instead of holding a prefetch
+        // slot until the consumer restarts. (The session is not recovered: it belongs to the consumer thread, and
+        // recovering it would also redeliver the session's other orders, including completed ones.) If the copy
+        // cannot be sent either, the order stays unacknowledged until the broker redelivers it to a new connection.
+        private void acknowledgeWhenDone(Exchange exchange) {
+            if (!(exchange.getIn() instanceof JmsMessage)) {
+                return;
+            }
+            // kept now: after the dead letter channel, the exchange holds a copy of the original message
+            Message jmsMessage = ((JmsMessage) exchange.getIn()).getJmsMessage();
+            if (jmsMessage == null) {
+                return;
+            }
+            String body = exchange.getIn().getBody(String.class);
+            Map<String, Object> headers = forwardedHeaders(exchange);
+            exchange.adapt(ExtendedExchange.class).addOnCompletion(new SynchronizationAdapter() {
+                @Override
+                public void onComplete(Exchange done) {
+                    acknowledge(jmsMessage);
+                }
+
+                @Override
+                public void onFailure(Exchange failed) {
+                    try {
+                        producer.sendBodyAndHeaders("jms:queue:" + ((Queue) jmsMessage.getJMSDestination()).getQueueName(),
+                            body, headers);
+                    } catch (Exception e) {
+                        System.err.println("Could not hand a failed order back to its queue: " + e.getMessage());
+                        return;
+                    }
+                    acknowledge(jmsMessage);
+                }
+            });
+        }
+
+        private static void acknowledge(Message jmsMessage) {
+            try {
+                jmsMessage.acknowledge();
+            } catch (JMSException e) {
+                System.err.println("Could not acknowledge order: " + e.getMessage());
+            }
+        }
+
+        // The headers an order's messages carry on: its trace, customer group, sequence number and profile
+        private static Map<String, Object> forwardedHeaders(Exchange exchange) {
+            Map<String, Object> headers = new HashMap<>();
+            for (String header : new String[] {Tracer.TRACE_ID, CustomerSequence.GROUP_HEADER, CustomerSequence.SEQUENCE_HEADER,
+                    CustomerSequence.EPOCH_HEADER, CustomerProfiles.TIER_HEADER, CustomerProfiles.REGION_HEADER}) {
+                Object value = exchange.getIn().getHeader(header);
+                if (value != null) {
+                    headers.put(header, value);
+                }
+            }
+            return headers;
+        }
+    }
+
+    // Micro-batch variant of the CreditValidator: credit checks of a batch run concurrently,
+    // and the outputs of the whole batch are sent in the consumer's transaction (in envelopes, in envelope mode)
+    private static class BatchCreditValidator implements TransactedBatchConsumer.BatchHandler {
+        private final CreditScoreProvider creditScores;
+        private final CreditExposureLedger exposure;
+        private final Executor creditCheckPool;
+        private final OrderLog.Route log;
+        private final int envelopeOrders;
+
+        public BatchCreditValidator(CreditScoreProvider creditScores, CreditExposureLedger exposure,
+                                    Executor creditCheckPool, OrderLog.Route log, int envelopeOrders) {
+            this.creditScores = creditScores;
+            this.exposure = exposure;
+            this.creditCheckPool = creditCheckPool;
+            this.log = log;
+            this.envelopeOrders = envelopeOrders;
+        }
+
+        @Override
+        public void handle(List<Message> batch, Session session, MessageProducer producer,
+                           TransactedBatchConsumer.Rejects rejects) throws Exception {
+            List<String[]> orders = new ArrayList<>(batch.size());
+            List<String> traceIds = new ArrayList<>(batch.size());
+            List<Message> sources = new ArrayList<>(batch.size());
+            List<Future<Integer>> scores = new ArrayList<>(batch.size());
+            for (Message message : batch) {
+                String body = ((TextMessage) message).getText();
+                String[] parts;
+                try {
+                    parts = BillingDecision.parse(body);
+                } catch (IllegalArgumentException e) {
+                    // same as the route: a malformed order is quarantined, in the batch's transaction
+                    rejects.reject(message, e);
+                    continue;
+                }
+                orders.add(parts);
+                traceIds.add(message.getStringProperty(Tracer.TRACE_ID));
+                sources.add(message);
+                FutureTask<Integer> score = new FutureTask<>(() -> creditScores.creditScore(parts[0]));
+                creditCheckPool.execute(score);
+                scores.add(score);
+            }
+
+            Destination resultsTopic = session.createTopic("VirtualTopic.billingResults");
+            OrderEnvelope.Packer outputs = new OrderEnvelope.Packer(session, producer, envelopeOrders);
+            for (int i = 0; i < orders.size(); i++) {
+                BillingDecision decision;
+                try {
+                    decision = BillingDecision.decide(orders.get(i), scores.get(i).get(), exposure);
+                } catch (ExecutionException | RuntimeException e) {
+                    // only this order fails: retried on its own, or quarantined if it came in an envelope
+                    rejects.fail(sources.get(i), e instanceof ExecutionException && e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : e);
+                    continue;
+                }
+                TextMessage basic = session.createTextMessage(decision.basicCsv);
+                basic.setIntProperty("overallItems", decision.overallItems);
+                TextMessage enriched = session.createTextMessage(decision.enrichedCsv);
+                if (traceIds.get(i) != null) {
+                    basic.setStringProperty(Tracer.TRACE_ID, traceIds.get(i));
+                    enriched.setStringProperty(Tracer.TRACE_ID, traceIds.get(i));
+                }
+                CustomerSequence.copy(sources.get(i), basic);
+                CustomerSequence.copy(sources.get(i), enriched);
+                CustomerProfiles.copy(sources.get(i), basic);
+                CustomerProfiles.copy(sources.get(i), enriched);
+                outputs.send(session.createQueue("billingToInventory." + OrderLane.of(decision.overallItems).suffix()), basic);
+                outputs.send(resultsTopic, enriched);
+                decision.log(log);
+            }
+            outputs.flush();
+        }
+    }
+
+    // Outcome of the credit check of one order, rendered for inventory and for the result system
+    static class BillingDecision {
+        // Decisions per validation result, for the metrics endpoint
+        static final Map<String, LongAdder> OUTCOMES = new ConcurrentHashMap<>();
+
+        final String orderId;
+        final int overallItems;
+        final int creditScore;
+        final boolean valid;
+        final String validationResult;
+        final String basicCsv;
+        final String enrichedCsv;
+
+        private BillingDecision(String orderId, int overallItems, int creditScore, boolean valid,
+                                String validationResult, String basicCsv, String enrichedCsv) {
+            this.orderId = orderId;
+            this.overallItems = overallItems;
+            this.creditScore = creditScore;
+            this.valid = valid;
+            this.validationResult = validationResult;
+            this.basicCsv = basicCsv;
+            this.enrichedCsv = enrichedCsv;
+        }
+
+        static String[] parse(String message) {
+            String[] parts = message == null ? new String[0] : message.split(",", 9);
             if (parts.length < 9) {
                 throw new IllegalArgumentException("Invalid message format: " + message);
             }
             for (int i = 0; i < parts.length; i++) {
                 parts[i] = parts[i].trim();
             }
+            return parts;
+        }
+
+        static BillingDecision decide(String[] parts, int creditScore, CreditExposureLedger exposure) {
             String customerID = parts[0];
             String firstName = parts[1];
             String lastName = parts[2];
@@ -52,18 +572,19 @@ public class BillingSystem {
             String divingSuits = parts[4];
             String surfboards = parts[5];
             String orderID = parts[6];
-            String digitString = customerID.chars()
-                .filter(Character::isDigit)
-                .mapToObj(c -> String.valueOf((char) c))
-                .collect(Collectors.joining());
-            int digitSum = digitString.chars()
-                .map(Character::getNumericValue)
-                .sum();
-            int creditScore = (digitSum % 10) + 1; // 1 to 10
-            boolean isValid = creditScore >= 5; // 5-10 is good
-            String validationResult = isValid ? "Credit score is good" : "Credit score too low";
             int overallItems = Integer.parseInt(overallItemsStr);
-            exchange.getIn().setHeader("overallItems", overallItems);
+            boolean creditOk = creditScore >= 5; // 5-10 is good
+            // a good score is not enough if the customer already has too many items in unfinished orders
+            boolean isValid = creditOk
+                && exposure.tryReserve(orderID, customerID, overallItems, (long) creditScore * ITEMS_PER_SCORE_POINT);
+            String validationResult = !creditOk ? "Credit score too low"
+                                    : isValid   ? "Credit score is good"
+                                    : "Credit exposure limit exceeded";
+            LongAdder outcome = OUTCOMES.get(validationResult);
+            if (outcome == null) {
+                outcome = OUTCOMES.computeIfAbsent(validationResult, r -> new LongAdder());
+            }
+            outcome.increment();
 
             // Create basic order for inventory (no credit score)
             BasicValidatedOrder basicOrder = new BasicValidatedOrder(
@@ -92,14 +613,15 @@ public class BillingSystem {
                 creditScore
             );
 
-            // Point-to-Point Channel: Send basic order (no credit score) to inventory queue for stock validation
-            exchange.getContext().createProducerTemplate().sendBody("jms:queue:billingToInventory", basicOrder.toCsv());
+            return new BillingDecision(orderID, overallItems, creditScore, isValid, validationResult,
+                basicOrder.toCsv(), enriched.toCsv());
+        }
 
-            // Publish-Subscribe Channel: Send enriched order (with credit score) to results topic for aggregation
-            exchange.getContext().createProducerTemplate().sendBody("jms:topic:billingResults", enriched.toCsv());
-            // (Content-Based Router and Aggregator patterns are typically implemented in downstream systems)
-            System.out.println("Billing validation: " + orderID +
-                " - " + (isValid ? "APPROVED" : "REJECTED") + " | CreditScore: " + creditScore + " (" + validationResult + ")");
+        void log(OrderLog.Route log) {
+            if (log.sample()) {
+                log.write("creditChecked", "orderId", orderId, "verdict", valid ? "APPROVED" : "REJECTED",
+                    "creditScore", creditScore, "result", validationResult);
+            }
         }
     }
 
@@ -0,0 +1,161 @@
+package com.divesurf.BillingSystem;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-customer cache in front of a (slow) {@link CreditScoreProvider}.
+ * Entries expire after a fixed TTL and the least recently used entry is evicted
+ * once the cache is full. Concurrent misses for the same customer share one backend call.
+ */
+public class CachingCreditScoreProvider implements CreditScoreProvider {
+    private final CreditScoreProvider backend;
+    private final long ttlNanos;
+    private final Map<String, CachedScore> cache;
+    private final ConcurrentHashMap<String, FutureTask<Integer>> pendingLookups = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    public CachingCreditScoreProvider(CreditScoreProvider backend, int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("maxEntries and ttlMillis must be positive");
+        }
+        this.backend = backend;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        // access-ordered, so the eldest entry is the least recently used one
+        this.cache = new LinkedHashMap<String, CachedScore>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedScore> eldest) {
+                if (size() > maxEntries) {
+                    evicted.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public int creditScore(String customerId) throws Exception {
+        Integer cached = lookup(customerId);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        FutureTask<Integer> lookup = new FutureTask<>(() -> backend.creditScore(customerId));
+        FutureTask<Integer> running = pendingLookups.putIfAbsent(customerId, lookup);
+        if (running != null) {
+            // someone else is already asking the backend for this customer
+            coalesced.increment();
+            return await(running);
+        }
+        try {
+            lookup.run();
+            int score = await(lookup);
+            store(customerId, score);
+            return score;
+        } finally {
+            pendingLookups.remove(customerId, lookup);
+        }
+    }
+
+    private Integer lookup(String customerId) {
+        synchronized (cache) {
+            CachedScore entry = cache.get(customerId);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.loadedAt > ttlNanos) {
+                cache.remove(customerId);
+                expired.increment();
+                return null;
+            }
+            return entry.score;
+        }
+    }
+
+    private void store(String customerId, int score) {
+        synchronized (cache) {
+            cache.put(customerId, new CachedScore(score, System.nanoTime()));
+        }
+    }
+
+    /** Drops expired entries; called periodically so idle customers don't hold slots until evicted. */
+    public void purgeExpired() {
+        long now = System.nanoTime();
+        synchronized (cache) {
+            Iterator<CachedScore> it = cache.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().loadedAt > ttlNanos) {
+                    it.remove();
+                    expired.increment();
+                }
+            }
+        }
+    }
+
+    private static int await(FutureTask<Integer> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("billing_credit_cache_entries", "Cached credit scores", this::size);
+        registry.counter("billing_credit_cache_hits_total", "Credit score lookups served from the cache", hits::sum);
+        registry.counter("billing_credit_cache_misses_total", "Credit score lookups sent to the backend", misses::sum);
+        registry.counter("billing_credit_cache_evictions_total", "Entries evicted because the cache was full", evicted::sum);
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getCoalescedMisses() { return coalesced.sum(); }
+    public long getExpired() { return expired.sum(); }
+    public long getEvicted() { return evicted.sum(); }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public String stats() {
+        return String.format("Credit cache: size=%d hits=%d misses=%d coalesced=%d expired=%d evicted=%d hitRatio=%.2f",
+            size(), getHits(), getMisses(), getCoalescedMisses(), getExpired(), getEvicted(), getHitRatio());
+    }
+
+    private static final class CachedScore {
+        final int score;
+        final long loadedAt;
+
+        CachedScore(int score, long loadedAt) {
+            this.score = score;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.divesurf.BillingSystem;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running per-customer credit exposure: the number of items in approved orders that have not been finalized yet.
+ * Exposure is kept in lock stripes selected by customer id, so updates for different customers rarely contend,
+ * and customers without outstanding orders take no memory. Each approved order holds a reservation that is
+ * released exactly once when its result is finalized (or when it expires).
+ * Changes are appended to an optional {@link ExposureJournal} that is written in batches.
+ */
+public class CreditExposureLedger {
+    private static final int STRIPES = 256; // power of two
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+    private final ExposureJournal journal;
+
+    private final LongAdder approved = new LongAdder();
+    private final LongAdder limitExceeded = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** In-memory ledger without persistence. */
+    public CreditExposureLedger() {
+        journal = null;
+    }
+
+    /** Ledger persisted to the given journal file; outstanding reservations are restored from it. */
+    public CreditExposureLedger(File journalFile) throws IOException {
+        for (Reservation r : ExposureJournal.replay(journalFile).values()) {
+            reservations.put(r.orderId, r);
+            stripeFor(r.customerId).add(r.customerId, r.items);
+        }
+        journal = new ExposureJournal(journalFile, reservations.values());
+    }
+
+    /**
+     * Reserves the items of an approved order if the customer's exposure stays within the limit.
+     * Reserving the same order again (same id, customer and items, e.g. on redelivery) succeeds without counting
+     * twice. An order id that holds a reservation for another customer or amount belongs to an earlier order
+     * (e.g. numbered before an order publisher restart): that reservation is dropped and the order reserved anew.
+     */
+    public boolean tryReserve(String orderId, String customerId, int items, long limit) {
+        Reservation earlier = reservations.get(orderId);
+        if (earlier != null && !earlier.isFor(customerId, items) && reservations.remove(orderId, earlier)) {
+            unreserve(earlier);
+            replaced.increment();
+        }
+        Stripe stripe = stripeFor(customerId);
+        synchronized (stripe) {
+            if (reservations.containsKey(orderId)) {
+                return true;
+            }
+            if (stripe.get(customerId) + items > limit) {
+                limitExceeded.increment();
+                return false;
+            }
+            stripe.add(customerId, items);
+            Reservation reservation = new Reservation(orderId, customerId, items, System.currentTimeMillis());
+            reservations.put(orderId, reservation);
+            if (journal != null) {
+                journal.reserved(reservation);
+            }
+        }
+        approved.increment();
+        return true;
+    }
+
+    /** Releases the reservation of a finalized order; returns false if the order holds none. */
+    public boolean release(String orderId) {
+        Reservation reservation = reservations.remove(orderId);
+        if (reservation == null) {
+            return false;
+        }
+        unreserve(reservation);
+        released.increment();
+        return true;
+    }
+
+    // Takes a reservation that was removed from the map off its customer's exposure
+    private void unreserve(Reservation reservation) {
+        Stripe stripe = stripeFor(reservation.customerId);
+        synchronized (stripe) {
+            stripe.add(reservation.customerId, -reservation.items);
+            if (journal != null) {
+                journal.released(reservation.orderId);
+            }
+        }
+    }
+
+    /** Releases reservations older than maxAgeMillis, e.g. of orders whose result never arrived. */
+    public int expireOlderThan(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int count = 0;
+        for (Reservation reservation : reservations.values()) {
+            if (reservation.reservedAt < cutoff && release(reservation.orderId)) {
+                count++;
+            }
+        }
+        expired.add(count);
+        return count;
+    }
+
+    public long exposure(String customerId) {
+        Stripe stripe = stripeFor(customerId);
+        synchronized (stripe) {
+            return stripe.get(customerId);
+        }
+    }
+
+    /** Writes the journal entries collected since the last flush. */
+    public void flush() throws IOException {
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("billing_exposure_outstanding_orders", "Approved orders not finalized yet", this::getOutstandingOrders);
+        registry.counter("billing_exposure_released_total", "Reservations released by finalized orders", released::sum);
+        registry.counter("billing_exposure_expired_total", "Reservations released because no result arrived", expired::sum);
+        registry.counter("billing_exposure_replaced_total",
+            "Reservations dropped because their order id was reused by another order", replaced::sum);
+    }
+
+    public int getOutstandingOrders() { return reservations.size(); }
+    public long getApproved() { return approved.sum(); }
+    public long getLimitExceeded() { return limitExceeded.sum(); }
+    public long getReleased() { return released.sum(); }
+    public long getExpired() { return expired.sum(); }
+    public long getReplaced() { return replaced.sum(); }
+
+    public String stats() {
+        return String.format("Credit exposure: outstandingOrders=%d approved=%d limitExceeded=%d released=%d expired=%d replaced=%d",
+            getOutstandingOrders(), getApproved(), getLimitExceeded(), getReleased(), getExpired(), getReplaced());
+    }
+
+    private Stripe stripeFor(String customerId) {
+        int h = customerId.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    // One lock stripe: exposure per customer, entries are dropped when they reach zero
+    private static final class Stripe {
+        private final Map<String, long[]> exposure = new HashMap<>();
+
+        long get(String customerId) {
+            long[] value = exposure.get(customerId);
+            return value == null ? 0 : value[0];
+        }
+
+        void add(String customerId, long delta) {
+            long[] value = exposure.get(customerId);
+            if (value == null) {
+                if (delta <= 0) {
+                    return;
+                }
+                exposure.put(customerId, new long[] {delta});
+            } else {
+                value[0] += delta;
+                if (value[0] <= 0) {
+                    exposure.remove(customerId);
+                }
+            }
+        }
+    }
+
+    static final class Reservation {
+        final String orderId;
+        final String customerId;
+        final int items;
+        final long reservedAt;
+
+        Reservation(String orderId, String customerId, int items, long reservedAt) {
+            this.orderId = orderId;
+            this.customerId = customerId;
+            this.items = items;
+            this.reservedAt = reservedAt;
+        }
+
+        boolean isFor(String customerId, int items) {
+            return this.customerId.equals(customerId) && this.items == items;
+        }
+    }
+}
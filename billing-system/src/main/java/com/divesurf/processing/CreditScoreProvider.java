@@ -0,0 +1,10 @@
+package com.divesurf.BillingSystem;
+
+/**
+ * Source of customer credit scores used by the billing validation.
+ * Scores range from 1 (worst) to 10 (best); 5 and above is considered good.
+ */
+public interface CreditScoreProvider {
+
+    int creditScore(String customerId) throws Exception;
+}
@@ -0,0 +1,75 @@
+package com.divesurf.BillingSystem;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared executor, one customer's tasks one after another in the order they were submitted,
+ * different customers' tasks concurrently. The billing routes check a customer's credit this way, so the customer's
+ * orders leave billing in the order they arrived (see {@link com.divesurf.common.CustomerSequence}).
+ * Tasks must not throw.
+ */
+public class CustomerSerialExecutor {
+    private final Executor executor;
+    // tasks waiting for the running task of their customer; a customer is present while one of its tasks runs
+    private final Map<String, ArrayDeque<Runnable>> waiting = new HashMap<>();
+
+    public CustomerSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the task after the customer's earlier tasks.
+     *
+     * @throws RejectedExecutionException if the executor takes no more tasks; the task did not run
+     */
+    public void execute(String customerId, Runnable task) {
+        synchronized (waiting) {
+            ArrayDeque<Runnable> queue = waiting.get(customerId);
+            if (queue != null) {
+                queue.add(task);
+                return;
+            }
+            waiting.put(customerId, new ArrayDeque<>());
+        }
+        try {
+            executor.execute(() -> run(customerId, task));
+        } catch (RejectedExecutionException e) {
+            runWaiting(customerId);
+            throw e;
+        }
+    }
+
+    private void run(String customerId, Runnable task) {
+        task.run();
+        runWaiting(customerId);
+    }
+
+    // Hands the customer's next task to the executor, or runs it here if the executor takes no more
+    private void runWaiting(String customerId) {
+        Runnable next;
+        synchronized (waiting) {
+            next = waiting.get(customerId).poll();
+            if (next == null) {
+                waiting.remove(customerId);
+                return;
+            }
+        }
+        Runnable task = next;
+        try {
+            executor.execute(() -> run(customerId, task));
+        } catch (RejectedExecutionException e) {
+            run(customerId, task);
+        }
+    }
+
+    /** Customers with a running task. */
+    public int size() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+}
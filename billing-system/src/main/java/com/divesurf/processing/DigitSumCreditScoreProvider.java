@@ -0,0 +1,19 @@
+package com.divesurf.BillingSystem;
+
+/**
+ * Local scoring rule: (sum of the digits in the customer id % 10) + 1.
+ */
+public class DigitSumCreditScoreProvider implements CreditScoreProvider {
+
+    @Override
+    public int creditScore(String customerId) {
+        int digitSum = 0;
+        for (int i = 0; i < customerId.length(); i++) {
+            char c = customerId.charAt(i);
+            if (Character.isDigit(c)) {
+                digitSum += Character.getNumericValue(c);
+            }
+        }
+        return (digitSum % 10) + 1; // 1 to 10
+    }
+}
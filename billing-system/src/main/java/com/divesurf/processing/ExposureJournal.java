@@ -0,0 +1,145 @@
+package com.divesurf.BillingSystem;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of exposure reservations ("+,orderId,customerId,items,reservedAt") and
+ * releases ("-,orderId"). Entries are buffered and written together by {@link #flush()},
+ * so persisting costs one write per batch instead of one per order. On startup the journal is
+ * replayed and compacted to the reservations that are still outstanding. A journal belongs to one billing
+ * instance: it is locked while open, and a second instance opening it fails.
+ */
+class ExposureJournal {
+    private static final int MAX_BUFFERED_ENTRIES = 10000;
+
+    private final File file;
+    private final FileChannel lockChannel;
+    private final Writer writer;
+    private final Object writeLock = new Object();
+    private StringBuilder pending = new StringBuilder();
+    private int pendingEntries;
+
+    ExposureJournal(File file, Collection<CreditExposureLedger.Reservation> outstanding) throws IOException {
+        this.file = file;
+        this.lockChannel = lock(file);
+        compact(outstanding);
+        this.writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+    }
+
+    // Locks the journal for this instance; the lock is released when the channel closes
+    private static FileChannel lock(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file.getPath() + ".lock", "rw").getChannel();
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // held by this process
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Exposure journal " + file + " is used by another billing instance;"
+                + " start each instance with its own -Dbilling.instanceId");
+        }
+        return channel;
+    }
+
+    static Map<String, CreditExposureLedger.Reservation> replay(File file) throws IOException {
+        Map<String, CreditExposureLedger.Reservation> outstanding = new LinkedHashMap<>();
+        if (!file.exists()) {
+            return outstanding;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(",");
+                try {
+                    if (parts.length == 5 && "+".equals(parts[0])) {
+                        outstanding.put(parts[1], new CreditExposureLedger.Reservation(
+                            parts[1], parts[2], Integer.parseInt(parts[3]), Long.parseLong(parts[4])));
+                    } else if (parts.length == 2 && "-".equals(parts[0])) {
+                        outstanding.remove(parts[1]);
+                    }
+                } catch (NumberFormatException e) {
+                    // torn last line after a crash
+                    System.err.println("Skipping corrupt exposure journal entry: " + line);
+                }
+            }
+        }
+        return outstanding;
+    }
+
+    void reserved(CreditExposureLedger.Reservation r) {
+        append("+," + r.orderId + "," + r.customerId + "," + r.items + "," + r.reservedAt + "\n");
+    }
+
+    void released(String orderId) {
+        append("-," + orderId + "\n");
+    }
+
+    private void append(String entry) {
+        boolean full;
+        synchronized (this) {
+            pending.append(entry);
+            full = ++pendingEntries >= MAX_BUFFERED_ENTRIES;
+        }
+        if (full) {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("Failed to write exposure journal: " + e.getMessage());
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        synchronized (writeLock) {
+            StringBuilder batch;
+            synchronized (this) {
+                if (pendingEntries == 0) {
+                    return;
+                }
+                batch = pending;
+                pending = new StringBuilder();
+                pendingEntries = 0;
+            }
+            writer.write(batch.toString());
+            writer.flush();
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            flush();
+            writer.close();
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    private void compact(Collection<CreditExposureLedger.Reservation> outstanding) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (CreditExposureLedger.Reservation r : outstanding) {
+                out.write("+," + r.orderId + "," + r.customerId + "," + r.items + "," + r.reservedAt + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,28 @@
+package com.divesurf.BillingSystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the external credit bureau: answers like the local rule,
+ * but only after a fixed delay, so caching and concurrency can be tested locally.
+ */
+public class SimulatedBureauCreditScoreProvider implements CreditScoreProvider {
+    private final CreditScoreProvider scoring = new DigitSumCreditScoreProvider();
+    private final long latencyMillis;
+    private final AtomicLong calls = new AtomicLong();
+
+    public SimulatedBureauCreditScoreProvider(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public int creditScore(String customerId) throws Exception {
+        calls.incrementAndGet();
+        Thread.sleep(latencyMillis);
+        return scoring.creditScore(customerId);
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+}
@@ -0,0 +1,138 @@
+package com.divesurf.processing;
+
+import com.divesurf.BillingSystem.BillingSystem;
+import com.divesurf.BillingSystem.CachingCreditScoreProvider;
+import com.divesurf.BillingSystem.CreditExposureLedger;
+import com.divesurf.BillingSystem.CreditScoreProvider;
+import com.divesurf.common.Quarantine;
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.jms.JmsComponent;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the asynchronous billing routes, against an embedded broker.
+ */
+public class BillingRoutesTest extends TestCase {
+    private static final String ORDERS = "Consumer.billing.VirtualTopic.ordersForProcessing.small";
+
+    static {
+        // short redelivery backoff for the failure path (read once, when the quarantine settings are loaded)
+        System.setProperty("errors.redeliveryDelayMillis", "10");
+    }
+
+    private BrokerService broker;
+    private ActiveMQConnectionFactory connectionFactory;
+    private CamelContext context;
+
+    @Override
+    protected void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("billing-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        connectionFactory = new ActiveMQConnectionFactory("vm://billing-test?create=false");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (context != null) {
+            context.stop();
+        }
+        broker.stop();
+    }
+
+    private void start(CreditScoreProvider provider, int maxInFlight) throws Exception {
+        context = new DefaultCamelContext();
+        context.addComponent("jms", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        BillingSystem.addBillingRoutes(context, new CachingCreditScoreProvider(provider, 100, 60000),
+            new CreditExposureLedger(), 1, maxInFlight);
+        context.start();
+    }
+
+    public void testCreditChecksRunConcurrentlyUpToTheLimit() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        start(customerId -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(200);
+            running.decrementAndGet();
+            return 8;
+        }, 4);
+        for (int i = 0; i < 8; i++) {
+            send(ORDERS, order(String.valueOf(100 + i), i));
+        }
+        assertEquals(8, receive("billingToInventory.small", 8).length);
+        assertEquals(4, maxRunning.get());
+    }
+
+    public void testFailedCreditCheckIsQuarantinedAndAcknowledged() throws Exception {
+        start(customerId -> {
+            if ("13".equals(customerId)) {
+                throw new IllegalStateException("bureau unavailable");
+            }
+            return 8;
+        }, 4);
+        send(ORDERS, order("13", 1));
+        send(ORDERS, order("14", 2));
+        String[] billed = receive("billingToInventory.small", 1);
+        assertEquals(1, billed.length);
+        assertTrue(billed[0].startsWith("14,"));
+        String[] quarantined = receive(Quarantine.QUEUE, 1);
+        assertEquals(1, quarantined.length);
+        assertTrue(quarantined[0].startsWith("13,"));
+
+        // an unacknowledged order would come back once the consumer is gone
+        context.stop();
+        context = null;
+        assertEquals(0, receive(ORDERS, 1, 1000).length);
+    }
+
+    private static String order(String customerId, int orderId) {
+        return customerId + ",Anna,Meier,2,1,1," + orderId + ",true,";
+    }
+
+    private void send(String queue, String body) throws Exception {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(session.createQueue(queue));
+            producer.send(session.createTextMessage(body));
+        } finally {
+            connection.close();
+        }
+    }
+
+    private String[] receive(String queue, int max) throws Exception {
+        return receive(queue, max, 5000);
+    }
+
+    private String[] receive(String queue, int max, long timeoutMillis) throws Exception {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(session.createQueue(queue));
+            String[] bodies = new String[max];
+            int received = 0;
+            TextMessage message;
+            while (received < max && (message = (TextMessage) consumer.receive(timeoutMillis)) != null) {
+                bodies[received++] = message.getText();
+            }
+            return Arrays.copyOf(bodies, received);
+        } finally {
+            connection.close();
+        }
+    }
+}
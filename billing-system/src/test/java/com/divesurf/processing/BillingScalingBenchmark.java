@@ -0,0 +1,88 @@
+package com.divesurf.processing;
+
+import com.divesurf.BillingSystem.BillingSystem;
+import com.divesurf.BillingSystem.CachingCreditScoreProvider;
+import com.divesurf.BillingSystem.CreditExposureLedger;
+import com.divesurf.BillingSystem.SimulatedBureauCreditScoreProvider;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.jms.JmsComponent;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Measures billing throughput with 1, 2, 4 and 8 competing consumers on the
+ * small-order lane of the ordersForProcessing virtual topic, against an embedded broker and a simulated slow credit bureau.
+ *
+ * Run with: mvn -pl billing-system test-compile exec:java -Dexec.classpathScope=test
+ *           -Dexec.mainClass=com.divesurf.processing.BillingScalingBenchmark [-Dbench.orders=400 -Dbench.latencyMillis=20]
+ */
+public class BillingScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int orders = Integer.getInteger("bench.orders", 400);
+        long latencyMillis = Long.getLong("bench.latencyMillis", 20L);
+
+        System.out.println("orders=" + orders + " bureauLatency=" + latencyMillis + "ms");
+        System.out.printf("%-10s %-12s %-12s %s%n", "consumers", "elapsed ms", "orders/s", "speedup");
+        double baseline = 0;
+        for (int consumers : new int[] {1, 2, 4, 8}) {
+            double throughput = run(consumers, orders, latencyMillis);
+            if (baseline == 0) {
+                baseline = throughput;
+            }
+            System.out.printf("%-10d %-12d %-12.1f %.2fx%n",
+                consumers, Math.round(orders * 1000.0 / throughput), throughput, throughput / baseline);
+        }
+    }
+
+    private static double run(int consumers, int orders, long latencyMillis) throws Exception {
+        String brokerName = "billing-bench-" + consumers;
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName(brokerName);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://" + brokerName + "?create=false");
+
+        CamelContext context = new DefaultCamelContext();
+        context.addComponent("jms", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        // every order has its own customer, so each credit check goes to the bureau
+        CachingCreditScoreProvider creditScores = new CachingCreditScoreProvider(
+            new SimulatedBureauCreditScoreProvider(latencyMillis), orders, 60000);
+        // one credit check per consumer, so throughput depends on the number of consumers only
+        BillingSystem.addBillingRoutes(context, creditScores, new CreditExposureLedger(), consumers, consumers);
+        context.start();
+
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer billed = session.createConsumer(session.createQueue("billingToInventory.small"));
+            MessageProducer publisher = session.createProducer(session.createTopic("VirtualTopic.ordersForProcessing.small"));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                publisher.send(session.createTextMessage((1000 + i) + ",John,Doe,5,2,3," + i + ",true,"));
+            }
+            int received = 0;
+            while (received < orders && billed.receive(30000) != null) {
+                received++;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (received < orders) {
+                throw new IllegalStateException("Only " + received + " of " + orders + " orders were billed");
+            }
+            return orders / (elapsed / 1e9);
+        } finally {
+            connection.close();
+            context.stop();
+            broker.stop();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.divesurf.processing;
+
+import com.divesurf.BillingSystem.CachingCreditScoreProvider;
+import com.divesurf.BillingSystem.CreditScoreProvider;
+import com.divesurf.BillingSystem.DigitSumCreditScoreProvider;
+import com.divesurf.BillingSystem.SimulatedBureauCreditScoreProvider;
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the credit score cache.
+ */
+public class CachingCreditScoreProviderTest extends TestCase {
+
+    public void testDigitSumScore() throws Exception {
+        CreditScoreProvider provider = new DigitSumCreditScoreProvider();
+        assertEquals(7, provider.creditScore("123"));   // 6 % 10 + 1
+        assertEquals(9, provider.creditScore("459"));   // 18 % 10 + 1
+        assertEquals(1, provider.creditScore("abc"));
+    }
+
+    public void testHitAfterMiss() throws Exception {
+        CountingProvider backend = new CountingProvider();
+        CachingCreditScoreProvider cache = new CachingCreditScoreProvider(backend, 10, 60000);
+        assertEquals(7, cache.creditScore("123"));
+        assertEquals(7, cache.creditScore("123"));
+        assertEquals(1, backend.calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        CountingProvider backend = new CountingProvider();
+        CachingCreditScoreProvider cache = new CachingCreditScoreProvider(backend, 2, 60000);
+        cache.creditScore("1");
+        cache.creditScore("2");
+        cache.creditScore("1");
+        cache.creditScore("3"); // evicts "2"
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvicted());
+        cache.creditScore("1");
+        assertEquals(3, backend.calls.get());
+        cache.creditScore("2");
+        assertEquals(4, backend.calls.get());
+    }
+
+    public void testExpiresAfterTtl() throws Exception {
+        CountingProvider backend = new CountingProvider();
+        CachingCreditScoreProvider cache = new CachingCreditScoreProvider(backend, 10, 20);
+        cache.creditScore("123");
+        Thread.sleep(50);
+        cache.creditScore("123");
+        assertEquals(2, backend.calls.get());
+        assertEquals(1, cache.getExpired());
+    }
+
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        SimulatedBureauCreditScoreProvider bureau = new SimulatedBureauCreditScoreProvider(200);
+        CachingCreditScoreProvider cache = new CachingCreditScoreProvider(bureau, 10, 60000);
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            Future<?>[] results = new Future<?>[threads];
+            for (int i = 0; i < threads; i++) {
+                results[i] = pool.submit(() -> {
+                    start.await();
+                    return cache.creditScore("459");
+                });
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                assertEquals(9, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, bureau.getCalls());
+        assertEquals(threads - 1, cache.getCoalescedMisses() + cache.getHits());
+    }
+
+    private static class CountingProvider extends DigitSumCreditScoreProvider {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public int creditScore(String customerId) {
+            calls.incrementAndGet();
+            return super.creditScore(customerId);
+        }
+    }
+}
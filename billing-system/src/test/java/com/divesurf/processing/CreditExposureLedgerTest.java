@@ -0,0 +1,109 @@
+package com.divesurf.processing;
+
+import com.divesurf.BillingSystem.CreditExposureLedger;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for the per-customer credit exposure ledger.
+ */
+public class CreditExposureLedgerTest extends TestCase {
+
+    public void testReserveUpToLimit() {
+        CreditExposureLedger ledger = new CreditExposureLedger();
+        assertTrue(ledger.tryReserve("1", "123", 30, 50));
+        assertTrue(ledger.tryReserve("2", "123", 20, 50));
+        assertFalse(ledger.tryReserve("3", "123", 1, 50));
+        assertTrue(ledger.tryReserve("4", "456", 50, 50));
+        assertEquals(50, ledger.exposure("123"));
+        assertEquals(1, ledger.getLimitExceeded());
+    }
+
+    public void testRedeliveredOrderIsReservedOnce() {
+        CreditExposureLedger ledger = new CreditExposureLedger();
+        assertTrue(ledger.tryReserve("1", "123", 30, 50));
+        assertTrue(ledger.tryReserve("1", "123", 30, 50));
+        assertEquals(30, ledger.exposure("123"));
+    }
+
+    public void testReusedOrderIdIsReservedForTheNewOrder() throws Exception {
+        File journal = File.createTempFile("credit-exposure", ".journal");
+        try {
+            CreditExposureLedger ledger = new CreditExposureLedger(journal);
+            assertTrue(ledger.tryReserve("1", "123", 30, 50));
+            // the same id for another order, e.g. after an order publisher restart
+            assertTrue(ledger.tryReserve("1", "456", 20, 50));
+            assertEquals(0, ledger.exposure("123"));
+            assertEquals(20, ledger.exposure("456"));
+            assertEquals(1, ledger.getReplaced());
+            ledger.close();
+
+            CreditExposureLedger restarted = new CreditExposureLedger(journal);
+            assertEquals(0, restarted.exposure("123"));
+            assertEquals(20, restarted.exposure("456"));
+            assertFalse(restarted.tryReserve("2", "456", 40, 50));
+            restarted.close();
+        } finally {
+            journal.delete();
+            new File(journal.getPath() + ".lock").delete();
+        }
+    }
+
+    public void testReleaseOnce() {
+        CreditExposureLedger ledger = new CreditExposureLedger();
+        ledger.tryReserve("1", "123", 30, 50);
+        assertTrue(ledger.release("1"));
+        assertFalse(ledger.release("1"));
+        assertEquals(0, ledger.exposure("123"));
+        assertTrue(ledger.tryReserve("2", "123", 50, 50));
+    }
+
+    public void testExpireOldReservations() throws Exception {
+        CreditExposureLedger ledger = new CreditExposureLedger();
+        ledger.tryReserve("1", "123", 30, 50);
+        Thread.sleep(20);
+        assertEquals(1, ledger.expireOlderThan(10));
+        assertEquals(0, ledger.exposure("123"));
+    }
+
+    public void testOutstandingReservationsSurviveRestart() throws Exception {
+        File journal = File.createTempFile("credit-exposure", ".journal");
+        try {
+            CreditExposureLedger ledger = new CreditExposureLedger(journal);
+            ledger.tryReserve("1", "123", 30, 50);
+            ledger.tryReserve("2", "123", 10, 50);
+            ledger.tryReserve("3", "456", 5, 50);
+            ledger.release("2");
+            ledger.close();
+
+            CreditExposureLedger restarted = new CreditExposureLedger(journal);
+            assertEquals(30, restarted.exposure("123"));
+            assertEquals(5, restarted.exposure("456"));
+            assertEquals(2, restarted.getOutstandingOrders());
+            assertTrue(restarted.release("1"));
+            restarted.close();
+        } finally {
+            journal.delete();
+            new File(journal.getPath() + ".lock").delete();
+        }
+    }
+
+    public void testJournalIsUsedByOneInstance() throws Exception {
+        File journal = File.createTempFile("credit-exposure", ".journal");
+        try {
+            CreditExposureLedger ledger = new CreditExposureLedger(journal);
+            try {
+                new CreditExposureLedger(journal);
+                fail();
+            } catch (IOException expected) {
+            }
+            ledger.close();
+            new CreditExposureLedger(journal).close();
+        } finally {
+            journal.delete();
+            new File(journal.getPath() + ".lock").delete();
+        }
+    }
+}
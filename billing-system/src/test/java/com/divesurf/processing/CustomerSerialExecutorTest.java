@@ -0,0 +1,61 @@
+package com.divesurf.processing;
+
+import com.divesurf.BillingSystem.CustomerSerialExecutor;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the executor that runs each customer's tasks in order.
+ */
+public class CustomerSerialExecutorTest extends TestCase {
+
+    public void testCustomersTasksRunInOrderAndCustomersConcurrently() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            CustomerSerialExecutor executor = new CustomerSerialExecutor(pool);
+            List<Integer> first = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            CountDownLatch otherCustomerRan = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(21);
+            for (int i = 0; i < 20; i++) {
+                int order = i;
+                executor.execute("7", () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        // the first check waits until another customer's check ran next to it
+                        if (order == 0) {
+                            otherCustomerRan.await(5, TimeUnit.SECONDS);
+                        }
+                        first.add(order);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            executor.execute("8", () -> {
+                otherCustomerRan.countDown();
+                done.countDown();
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, otherCustomerRan.getCount());
+            assertEquals(1, maxRunning.get());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(Integer.valueOf(i), first.get(i));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
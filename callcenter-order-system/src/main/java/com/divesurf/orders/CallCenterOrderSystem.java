@@ -7,35 +7,125 @@ import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.jms.JmsComponent;
 import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.model.MulticastDefinition;
 import org.apache.camel.processor.aggregate.GroupedBodyAggregationStrategy;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import com.sun.net.httpserver.HttpServer;
+
+import com.divesurf.camel.QuarantineRoutes;
+import com.divesurf.camel.RouteMetrics;
+import com.divesurf.camel.TraceInterceptor;
+import com.divesurf.common.AdmissionGate;
+import com.divesurf.common.CustomerSequence;
+import com.divesurf.common.JvmMetrics;
+import com.divesurf.common.Lifecycle;
+import com.divesurf.common.MetricsRegistry;
+import com.divesurf.common.MetricsServer;
+import com.divesurf.common.OrderLog;
+import com.divesurf.common.Quarantine;
+import com.divesurf.common.StockSnapshot;
+import com.divesurf.common.Tracer;
+import com.divesurf.common.VirtualThreads;
 
 import javax.jms.ConnectionFactory;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class CallCenterOrderSystem {
 
+    private static final long ADMISSION_MAX_WAIT_MILLIS = Long.getLong("order.admission.maxWaitMillis", 2000L);
+    private static final String STOCK_CHECK = System.getProperty("order.stockCheck", "reject");
+    private static final String ORDER_FORMAT = "Full Name,Surfboards,Diving Suits,Customer-ID";
+
     public static void main(String[] args) throws Exception {
+        // Startup time, readiness and the drain on shutdown
+        Lifecycle lifecycle = Lifecycle.fromSystemProperties("callcenter");
         CamelContext context = new DefaultCamelContext();
+        // Route, admission and JVM statistics for the metrics endpoint
+        MetricsRegistry metrics = new MetricsRegistry("callcenter");
+        JvmMetrics.register(metrics);
+        lifecycle.registerMetrics(metrics);
+        context.addRoutePolicyFactory(new RouteMetrics(metrics));
 
         ConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://localhost:61616");
-        context.addComponent("jms", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        JmsComponent jms = JmsComponent.jmsComponentAutoAcknowledge(connectionFactory);
+        if (VirtualThreads.isEnabled()) {
+            // consumers wait in receive most of the time; on virtual threads they do not hold a platform thread each
+            jms.setTaskExecutor(new TaskExecutorAdapter(VirtualThreads.newPerTaskExecutor("JmsConsumer")));
+        }
+        context.addComponent("jms", jms);
+        // Producers connect on their first message instead of at startup
+        context.getGlobalEndpointConfiguration().setLazyStartProducer(true);
+        // Orders being sent get most of the drain timeout to complete when the context stops
+        context.getShutdownStrategy().setTimeUnit(TimeUnit.MILLISECONDS);
+        context.getShutdownStrategy().setTimeout(lifecycle.getDrainTimeoutMillis() * 2 / 3);
+
+        // Credits for new orders, refreshed by the capacity the OrderPublisher announces
+        AdmissionGate admission = new AdmissionGate(Integer.getInteger("order.admission.initialCredits", 50));
+        admission.registerMetrics(metrics);
+        // Local copy of the inventory's stock levels, refreshed by its broadcasts
+        StockSnapshot stock = new StockSnapshot(Long.getLong("order.stockCheck.maxAgeMillis", 10000L));
+        stock.registerMetrics(metrics);
+        Quarantine quarantine = new Quarantine("callcenter");
+        quarantine.registerMetrics(metrics);
+        context.addRoutes(new QuarantineRoutes(quarantine));
+        // Per-order events are sampled and written in the background
+        OrderLog log = OrderLog.fromSystemProperties("callcenter");
+        log.registerMetrics(metrics);
+        OrderLog.Route orderLog = log.route("bufferedOrderRoute");
+        OrderLog.Route fileLog = log.route("collectOrders");
+        // Sampled orders get a trace id that follows them through all systems
+        Tracer tracer = Tracer.fromSystemProperties("callcenter");
+        if (tracer.isEnabled()) {
+            context.adapt(ExtendedCamelContext.class).addInterceptStrategy(new TraceInterceptor(tracer));
+            tracer.registerMetrics(metrics);
+        }
 
         // Channel Adapter: Integrates external CLI input into Camel routes
         context.addRoutes(new RouteBuilder() {
             @Override
             public void configure() {
+                // Publish-Subscribe Channel: capacity announcements of the processing pipeline
+                from("jms:topic:pipelineCapacity")
+                    .routeId("pipelineCapacity")
+                    .errorHandler(QuarantineRoutes.deadLetterChannel())
+                    // a malformed announcement is quarantined at once, the next one follows shortly
+                    .onException(NumberFormatException.class).maximumRedeliveries(0).end()
+                    // every entry system gets the announcement, each spends only its share
+                    .process(e -> admission.onCapacity(AdmissionGate.parseCapacity(e.getIn().getBody(String.class)),
+                        e.getIn().getHeader(AdmissionGate.ENTRY_SYSTEMS_HEADER, 1, Integer.class)));
+
+                // Publish-Subscribe Channel: stock snapshots of the inventory for early rejection
+                from("jms:topic:stockLevels")
+                    .routeId("stockLevels")
+                    .errorHandler(QuarantineRoutes.deadLetterChannel())
+                    // a malformed snapshot is quarantined at once, the next one follows shortly
+                    .onException(NumberFormatException.class).maximumRedeliveries(0).end()
+                    .process(e -> stock.update(e.getIn().getBody(String.class)));
+
                 // Point-to-Point Channel: Sending orders to a JMS queue (orders)
-                from("direct:cli-orders")
+                MulticastDefinition multicast = from("direct:cli-orders")
                     .routeId("bufferedOrderRoute")
-                    .log("Received order: ${body}")
-                    .multicast().parallelProcessing()
-                        .to("jms:queue:orders", "direct:collect-orders");
+                    .process(e -> orderLog.log("orderReceived", "body", e.getIn().getBody()))
+                    .multicast().parallelProcessing();
+                if (VirtualThreads.isEnabled()) {
+                    multicast.executorService(VirtualThreads.newPerTaskExecutor("Multicast"));
+                }
+                multicast.to("jms:queue:orders", "direct:collect-orders");
 
                 // Aggregator pattern: Collects orders for 2 minutes before writing to file
+                // (and writes the collected orders when the system stops)
                 from("direct:collect-orders")
                     .aggregate(constant(true), new GroupedBodyAggregationStrategy())
                     .completionInterval(120000) //2 minutes
-                    .log("Writing ${body.size()} orders to file")
+                    .forceCompletionOnStop()
+                    .process(e -> fileLog.log("writingOrders", "orders", e.getIn().getBody(java.util.List.class).size()))
                     // Message Translator: Converts list of orders to string for file output
                     .process(exchange -> {
                         @SuppressWarnings("unchecked")
@@ -50,37 +140,144 @@ public class CallCenterOrderSystem {
             }
         });
 
+        HttpServer server = MetricsServer.start(metrics, 9102);
+        if (server != null) {
+            lifecycle.serveProbes(server);
+        }
         context.start();
         ProducerTemplate template = context.createProducerTemplate();
 
+        // Channel Adapter: TCP intake for the agents, one order per line, answered once it is on the orders queue
+        int intakePort = Integer.getInteger("callcenter.intake.port", 9202);
+        if (intakePort >= 0) {
+            Executor workers = VirtualThreads.isEnabled() ? VirtualThreads.newPerTaskExecutor("Intake")
+                : Executors.newFixedThreadPool(Integer.getInteger("callcenter.intake.workers", 32), r -> {
+                    Thread thread = new Thread(r, "IntakeWorker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            IntakeServer intake = new IntakeServer(new InetSocketAddress(intakePort),
+                line -> placeOrder(line, lifecycle, stock, admission, tracer, template), workers,
+                Integer.getInteger("callcenter.intake.maxPendingPerConnection", 32),
+                Integer.getInteger("callcenter.intake.maxConnections", 1000));
+            intake.registerMetrics(metrics);
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("timer:intakeStats?period=60000&delay=60000")
+                        .routeId("intakeStats")
+                        .process(e -> System.out.println(intake.stats()));
+                }
+            });
+            System.out.println("Agents can connect to port " + intake.getPort());
+            // orders already read are answered before the routes stop
+            lifecycle.onDrain("intake", () -> intake.drain(lifecycle.getDrainTimeoutMillis() / 4));
+        }
+        lifecycle.onDrain("camel", context::stop);
+        lifecycle.onDrain("logs", () -> {
+            log.close();
+            tracer.close();
+        });
+        lifecycle.ready();
+
         //Get orders via CLI
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Enter orders in format: <Full Name,Surfboards,Diving Suits,Customer-ID>");
+        System.out.println("Enter orders in format: <" + ORDER_FORMAT + ">");
         System.out.println("Type 'exit' to quit.");
 
         while (true) {
             System.out.print("Order: ");
+            if (!scanner.hasNextLine()) break;
             String input = scanner.nextLine();
-            if ("exit".equalsIgnoreCase(input.trim())) break;
-
-            try {
-                String[] parts = input.split(",");
-                if (parts.length != 4) throw new IllegalArgumentException();
-
-                String fullName = parts[0].trim();
-                int surfboards = Integer.parseInt(parts[1].trim());
-                int divingSuits = Integer.parseInt(parts[2].trim());
-                int customerId = Integer.parseInt(parts[3].trim());
-
-                // Message Translator: Formats CLI input into a CSV order line
-                String orderLine = String.format("%s,%d,%d,%d", fullName, surfboards, divingSuits, customerId);
-                template.sendBody("direct:cli-orders", orderLine);
-            } catch (Exception e) {
-                System.out.println("Error: Invalid input. Please use the format: Full Name,Surfboards,Diving Suits,Customer-ID");
+            if ("exit".equalsIgnoreCase(input.trim())) {
+                lifecycle.drain();
+                break;
+            }
+            String answer = placeOrder(input, lifecycle, stock, admission, tracer, template);
+            if (answer.startsWith("REJECTED ")) {
+                System.out.println("Rejected: " + answer.substring("REJECTED ".length()));
+            } else if (answer.startsWith("ERROR ")) {
+                System.out.println("Error: " + answer.substring("ERROR ".length()));
+            } else if (answer.startsWith("OK ")) {
+                System.out.println("Warning: " + answer.substring("OK ".length()));
             }
         }
 
-        context.stop();
+        // Without a console (stdin closed) the system runs until it is terminated
+        lifecycle.awaitStopped();
         System.out.println("Application stopped.");
     }
+
+    /**
+     * Places one order line "Full Name,Surfboards,Diving Suits,Customer-ID" from the console or an agent connection.
+     * Returns "OK" once the order is on the orders queue ("OK warning" if it will probably be rejected),
+     * "REJECTED reason" if it was not taken, or "ERROR reason".
+     */
+    static String placeOrder(String input, Lifecycle lifecycle, StockSnapshot stock, AdmissionGate admission,
+                             Tracer tracer, ProducerTemplate template) {
+        if (!lifecycle.isReady()) {
+            return "REJECTED the system is shutting down.";
+        }
+        String orderLine;
+        int surfboards;
+        int divingSuits;
+        int customerId;
+        try {
+            String[] parts = input.split(",");
+            if (parts.length != 4) throw new IllegalArgumentException();
+
+            String fullName = parts[0].trim();
+            surfboards = Integer.parseInt(parts[1].trim());
+            divingSuits = Integer.parseInt(parts[2].trim());
+            customerId = Integer.parseInt(parts[3].trim());
+
+            // Message Translator: Formats CLI input into a CSV order line
+            orderLine = String.format("%s,%d,%d,%d", fullName, surfboards, divingSuits, customerId);
+        } catch (IllegalArgumentException e) {
+            return "ERROR Invalid input. Please use the format: " + ORDER_FORMAT;
+        }
+        String warning = "";
+        String exceeded = exceededStock(stock, surfboards, divingSuits);
+        if (exceeded != null) {
+            if (!"flag".equals(STOCK_CHECK)) {
+                return "REJECTED only " + exceeded + " in stock.";
+            }
+            warning = " only " + exceeded + " in stock, the order will probably be rejected.";
+        }
+        try {
+            // Flow control: wait briefly for pipeline capacity, reject the order if there is none
+            if (!admission.tryAcquire(ADMISSION_MAX_WAIT_MILLIS)) {
+                return "REJECTED the order pipeline is saturated, please try again later.";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "REJECTED the system is shutting down.";
+        }
+        // Message groups: a customer's orders are translated by one order publisher consumer, in order
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(CustomerSequence.GROUP_HEADER, String.valueOf(customerId));
+        String traceId = tracer.newTraceId();
+        if (traceId != null) {
+            headers.put(Tracer.TRACE_ID, traceId);
+        }
+        try {
+            template.sendBodyAndHeaders("direct:cli-orders", orderLine, headers);
+        } catch (RuntimeException e) {
+            return "ERROR the order could not be sent: " + e.getMessage();
+        }
+        return "OK" + warning;
+    }
+
+    /**
+     * Early rejection: an order asking for more items than the latest stock snapshot shows cannot be shipped,
+     * so with order.stockCheck=reject (default) it is refused before it takes pipeline capacity;
+     * with "flag" it is only pointed out, with "off" not checked at all.
+     * Returns the available stock if the order exceeds it, null otherwise.
+     */
+    static String exceededStock(StockSnapshot stock, int surfboards, int divingSuits) {
+        if ("off".equals(STOCK_CHECK) || stock.check(surfboards, divingSuits) != StockSnapshot.Verdict.EXCEEDS_STOCK) {
+            return null;
+        }
+        return stock.getSurfboards() + " surfboards and " + stock.getDivingSuits() + " diving suits";
+    }
 }
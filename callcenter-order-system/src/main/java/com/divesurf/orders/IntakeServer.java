@@ -0,0 +1,392 @@
+package com.divesurf.CallCenterOrderSystem;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TCP intake for the call center agents: one order per line, answered with one line per order, in order.
+ * A single selector thread accepts the connections and reads and writes them without blocking; the orders are
+ * placed on the worker executor, one at a time per connection, so each agent's orders keep their order while
+ * the agents' orders are placed concurrently.
+ * <p>
+ * Backpressure per connection: when maxPending orders of a connection wait to be placed, or its answers are not
+ * read, the server stops reading from it until it has caught up, and TCP flow control holds the agent back.
+ * "exit" (or closing the connection's output) ends a connection after the answers of its orders are sent.
+ */
+public class IntakeServer implements AutoCloseable {
+
+    /** Places one order line and returns the answer: "OK[ note]", "REJECTED reason" or "ERROR reason". */
+    public interface OrderHandler {
+        String place(String line);
+    }
+
+    private static final int MAX_LINE_BYTES = 1024;
+    private static final int MAX_UNSENT_BYTES = 64 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final OrderHandler handler;
+    private final Executor workers;
+    private final int maxPending;
+    private final int maxConnections;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // connections whose interest ops must be recomputed on the selector thread
+    private final ConcurrentLinkedQueue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private volatile boolean draining;
+    private volatile boolean closed;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder readPauses = new LongAdder();
+    private final LongAdder ackNanos = new LongAdder();
+
+    public IntakeServer(InetSocketAddress address, OrderHandler handler, Executor workers, int maxPending, int maxConnections)
+            throws IOException {
+        if (maxPending <= 0 || maxConnections <= 0) {
+            throw new IllegalArgumentException("maxPending and maxConnections must be positive");
+        }
+        this.handler = handler;
+        this.workers = workers;
+        this.maxPending = maxPending;
+        this.maxConnections = maxConnections;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 256);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(this::run, "IntakeServer");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /** Orders answered "ok", "rejected" or "error". */
+    public long getOrders(String result) {
+        return "ok".equals(result) ? ok.sum() : "rejected".equals(result) ? rejected.sum() : errors.sum();
+    }
+
+    public long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("callcenter_intake_connections", "Open agent connections", this::getConnections);
+        registry.counter("callcenter_intake_connections_total", "Agent connections by outcome",
+            accepted::sum, "result", "accepted");
+        registry.counter("callcenter_intake_connections_total", "Agent connections by outcome",
+            refused::sum, "result", "refused");
+        registry.counter("callcenter_intake_orders_total", "Orders received over TCP by answer", ok::sum, "result", "ok");
+        registry.counter("callcenter_intake_orders_total", "Orders received over TCP by answer",
+            rejected::sum, "result", "rejected");
+        registry.counter("callcenter_intake_orders_total", "Orders received over TCP by answer", errors::sum, "result", "error");
+        registry.counter("callcenter_intake_read_pauses_total",
+            "Times a connection was not read because its orders or answers were backed up", readPauses::sum);
+        registry.counter("callcenter_intake_ack_seconds_total", "Time from reading an order until its answer was ready",
+            () -> ackNanos.sum() / 1e9);
+    }
+
+    public String stats() {
+        long answered = ok.sum() + rejected.sum() + errors.sum();
+        return String.format("Intake server: connections=%d accepted=%d refused=%d ok=%d rejected=%d errors=%d"
+                + " readPauses=%d avgAckMillis=%.2f", connections.size(), accepted.sum(), refused.sum(), ok.sum(),
+            rejected.sum(), errors.sum(), readPauses.sum(), answered == 0 ? 0.0 : ackNanos.sum() / 1e6 / answered);
+    }
+
+    /**
+     * Stops taking orders and connections, waits up to timeoutMillis for the answers of the orders already read,
+     * then closes all connections.
+     */
+    public void drain(long timeoutMillis) throws InterruptedException {
+        draining = true;
+        for (Connection connection : connections) {
+            changed.add(connection);
+        }
+        selector.wakeup();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline && connections.stream().anyMatch(Connection::isBusy)) {
+            Thread.sleep(20);
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = changed.poll()) != null) {
+                    connection.updateInterest();
+                }
+                if (draining && serverChannel.isOpen()) {
+                    serverChannel.close();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection c = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            c.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            c.read();
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.err.println("Intake server stopped: " + e.getMessage());
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (draining || connections.size() >= maxConnections) {
+                refused.increment();
+                channel.write(ByteBuffer.wrap("ERROR the call center takes no more connections\n"
+                    .getBytes(StandardCharsets.UTF_8)));
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            accepted.increment();
+        }
+    }
+
+    // An order line and when it was read, for the answer latency
+    private static final class Order {
+        final String line;
+        final long readNanos;
+
+        Order(String line, long readNanos) {
+            this.line = line;
+            this.readNanos = readNanos;
+        }
+    }
+
+    // State of one agent connection; the selector thread reads and writes, the workers place the orders
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE_BYTES);
+        // guarded by this: orders read and not yet placed, answers not yet sent
+        private final ArrayDeque<Order> pending = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private int unsentBytes;
+        private boolean placing;
+        private boolean inputDone;
+        private boolean readPaused;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized boolean isBusy() {
+            return placing || !pending.isEmpty() || !out.isEmpty();
+        }
+
+        void read() throws IOException {
+            int read;
+            try {
+                read = channel.read(in);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (read < 0) {
+                synchronized (this) {
+                    inputDone = true;
+                }
+                updateInterest();
+                return;
+            }
+            ((Buffer) in).flip(); // as a Buffer, so the class also runs on Java 8
+            int start = 0;
+            for (int i = 0; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    String line = new String(in.array(), start, i - start, StandardCharsets.UTF_8).trim();
+                    start = i + 1;
+                    if (!line.isEmpty()) {
+                        received(line);
+                    }
+                }
+            }
+            ((Buffer) in).position(start);
+            in.compact();
+            if (!in.hasRemaining()) {
+                synchronized (this) {
+                    inputDone = true;
+                    answer("ERROR line longer than " + MAX_LINE_BYTES + " bytes", 0);
+                }
+            }
+            updateInterest();
+        }
+
+        private synchronized void received(String line) {
+            if (inputDone) {
+                return;
+            }
+            if ("exit".equalsIgnoreCase(line)) {
+                inputDone = true;
+                return;
+            }
+            pending.addLast(new Order(line, System.nanoTime()));
+            if (!placing) {
+                placing = true;
+                workers.execute(this::placeNext);
+            }
+        }
+
+        // Places the oldest order of the connection, then hands the worker back, so connections take turns
+        private void placeNext() {
+            Order order;
+            synchronized (this) {
+                order = pending.pollFirst();
+            }
+            String answer;
+            try {
+                answer = handler.place(order.line);
+            } catch (RuntimeException e) {
+                answer = "ERROR " + e.getMessage();
+            }
+            (answer.startsWith("OK") ? ok : answer.startsWith("REJECTED") ? rejected : errors).increment();
+            synchronized (this) {
+                answer(answer, order.readNanos);
+                if (pending.isEmpty()) {
+                    placing = false;
+                } else {
+                    workers.execute(this::placeNext);
+                }
+            }
+        }
+
+        // called with the lock held
+        private void answer(String answer, long readNanos) {
+            byte[] bytes = (answer + "\n").getBytes(StandardCharsets.UTF_8);
+            out.addLast(ByteBuffer.wrap(bytes));
+            unsentBytes += bytes.length;
+            if (readNanos != 0) {
+                ackNanos.add(System.nanoTime() - readNanos);
+            }
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        void write() {
+            synchronized (this) {
+                try {
+                    while (!out.isEmpty()) {
+                        ByteBuffer buffer = out.peekFirst();
+                        unsentBytes -= channel.write(buffer);
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+                        out.removeFirst();
+                    }
+                } catch (IOException e) {
+                    inputDone = true;
+                    out.clear();
+                    pending.clear();
+                }
+            }
+            updateInterest();
+        }
+
+        // Selector thread only: reads while the connection keeps up, writes while answers are waiting
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            synchronized (this) {
+                if (inputDone && !placing && pending.isEmpty() && out.isEmpty()) {
+                    close();
+                    return;
+                }
+                boolean backedUp = pending.size() >= maxPending || unsentBytes >= MAX_UNSENT_BYTES;
+                boolean caughtUp = pending.size() <= maxPending / 2 && unsentBytes < MAX_UNSENT_BYTES / 2;
+                if (!readPaused && backedUp) {
+                    readPaused = true;
+                    readPauses.increment();
+                } else if (readPaused && caughtUp) {
+                    readPaused = false;
+                }
+                if (!readPaused && !inputDone && !draining) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (!out.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
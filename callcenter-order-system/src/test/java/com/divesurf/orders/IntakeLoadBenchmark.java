@@ -0,0 +1,81 @@
+package com.divesurf.orders;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test of a running call center's TCP intake with simulated agents (run with exec:java against the call center
+ * and the rest of the pipeline). Every agent keeps its own connection and places ordersPerAgent orders one after the
+ * other, waiting for each answer, with thinkMillis between them. Prints one CSV line with the answers by kind,
+ * the throughput and the answer latency percentiles.
+ * <p>
+ * Settings: -Dbenchmark.host=localhost -Dbenchmark.port=9202 -Dbenchmark.agents=200 -Dbenchmark.ordersPerAgent=50
+ * -Dbenchmark.thinkMillis=10
+ */
+public class IntakeLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("benchmark.host", "localhost");
+        int port = Integer.getInteger("benchmark.port", 9202);
+        int agents = Integer.getInteger("benchmark.agents", 200);
+        int ordersPerAgent = Integer.getInteger("benchmark.ordersPerAgent", 50);
+        long thinkMillis = Long.getLong("benchmark.thinkMillis", 10L);
+
+        LongAdder ok = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder errors = new LongAdder();
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(agents);
+        long start = System.nanoTime();
+        for (int a = 0; a < agents; a++) {
+            int agent = a;
+            Thread thread = new Thread(() -> {
+                try (Socket socket = new Socket(host, port)) {
+                    OutputStream out = socket.getOutputStream();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    for (int i = 0; i < ordersPerAgent; i++) {
+                        // customer ids repeat across agents, so message groups see concurrent orders too
+                        String order = "Agent " + agent + " Customer," + (i % 3) + "," + (i % 2) + "," + (1000 + (agent * 7 + i) % 500);
+                        long sent = System.nanoTime();
+                        out.write((order + "\n").getBytes(StandardCharsets.UTF_8));
+                        String answer = in.readLine();
+                        latencies.add(System.nanoTime() - sent);
+                        if (answer == null) {
+                            errors.increment();
+                            break;
+                        }
+                        (answer.startsWith("OK") ? ok : answer.startsWith("REJECTED") ? rejected : errors).increment();
+                        Thread.sleep(thinkMillis);
+                    }
+                    out.write("exit\n".getBytes(StandardCharsets.UTF_8));
+                } catch (Exception e) {
+                    System.err.println("Agent " + agent + " failed: " + e);
+                    errors.increment();
+                } finally {
+                    done.countDown();
+                }
+            }, "Agent-" + agent);
+            thread.start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.println("agents,orders,ok,rejected,errors,seconds,answersPerSecond,p50Millis,p99Millis,maxMillis");
+        System.out.println(String.format("%d,%d,%d,%d,%d,%.1f,%.0f,%.2f,%.2f,%.2f", agents, sorted.length, ok.sum(),
+            rejected.sum(), errors.sum(), seconds, sorted.length / seconds, percentile(sorted, 0.5) / 1e6,
+            percentile(sorted, 0.99) / 1e6, sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+}
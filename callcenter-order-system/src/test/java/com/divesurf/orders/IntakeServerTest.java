@@ -0,0 +1,139 @@
+package com.divesurf.orders;
+
+import com.divesurf.CallCenterOrderSystem.IntakeServer;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit and load tests for the call center's TCP intake server, with simulated agents and a stand-in for
+ * placing the orders.
+ */
+public class IntakeServerTest extends TestCase {
+
+    private ExecutorService workers;
+    private IntakeServer server;
+
+    @Override
+    protected void setUp() {
+        workers = Executors.newFixedThreadPool(16);
+    }
+
+    @Override
+    protected void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+        workers.shutdownNow();
+    }
+
+    private int start(IntakeServer.OrderHandler placeOrder, int maxPending) throws IOException {
+        server = new IntakeServer(new InetSocketAddress("localhost", 0), placeOrder, workers, maxPending, 1000);
+        return server.getPort();
+    }
+
+    public void testEachOrderIsAnsweredInOrder() throws Exception {
+        int port = start(line -> line.startsWith("bad") ? "ERROR Invalid input" : "OK " + line, 8);
+        try (Socket agent = new Socket("localhost", port)) {
+            OutputStream out = agent.getOutputStream();
+            out.write("Anna Meier,1,2,7\r\n\nbad\nBen Ng,0,1,8\nexit\n".getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(agent.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("OK Anna Meier,1,2,7", in.readLine());
+            assertEquals("ERROR Invalid input", in.readLine());
+            assertEquals("OK Ben Ng,0,1,8", in.readLine());
+            assertNull(in.readLine()); // closed after "exit"
+        }
+        assertEquals(2, server.getOrders("ok"));
+        assertEquals(1, server.getOrders("error"));
+    }
+
+    public void testSlowPlacementPausesReadingTheConnection() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        int port = start(line -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "OK";
+        }, 4);
+        try (Socket agent = new Socket("localhost", port)) {
+            OutputStream out = agent.getOutputStream();
+            for (int i = 0; i < 20; i++) {
+                out.write(("Agent Order,1,1," + i + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                Thread.sleep(5);
+            }
+            assertTrue(server.getReadPauses() >= 1);
+            release.countDown();
+            BufferedReader in = new BufferedReader(new InputStreamReader(agent.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < 20; i++) {
+                assertEquals("OK", in.readLine());
+            }
+        }
+    }
+
+    // Load test: hundreds of simulated agents, each sending a burst of orders, answered in order per agent
+    public void testHundredsOfConcurrentAgents() throws Exception {
+        int agents = 300;
+        int ordersPerAgent = 20;
+        AtomicInteger placed = new AtomicInteger();
+        int port = start(line -> {
+            placed.incrementAndGet();
+            return "OK " + line;
+        }, 8);
+        ExecutorService simulated = Executors.newFixedThreadPool(agents);
+        List<String> failures = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(agents);
+        long start = System.nanoTime();
+        for (int a = 0; a < agents; a++) {
+            int agent = a;
+            simulated.execute(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    OutputStream out = socket.getOutputStream();
+                    StringBuilder burst = new StringBuilder();
+                    for (int i = 0; i < ordersPerAgent; i++) {
+                        burst.append("Agent ").append(agent).append(',').append(i).append(",1,").append(agent).append('\n');
+                    }
+                    out.write(burst.toString().getBytes(StandardCharsets.UTF_8));
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    for (int i = 0; i < ordersPerAgent; i++) {
+                        String expected = "OK Agent " + agent + "," + i + ",1," + agent;
+                        String answer = in.readLine();
+                        if (!expected.equals(answer)) {
+                            synchronized (failures) {
+                                failures.add(expected + " but got " + answer);
+                            }
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    synchronized (failures) {
+                        failures.add(e.toString());
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        simulated.shutdown();
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(agents * ordersPerAgent, placed.get());
+        System.out.println(agents + " agents placed " + placed.get() + " orders in " + millis + " ms; " + server.stats());
+    }
+}
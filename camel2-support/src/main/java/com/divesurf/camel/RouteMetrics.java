@@ -0,0 +1,60 @@
+package com.divesurf.camel;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.spi.RoutePolicy;
+import org.apache.camel.spi.RoutePolicyFactory;
+import org.apache.camel.support.RoutePolicySupport;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Route statistics for the metrics endpoint: a route policy on every route counts completed and failed
+ * exchanges, exchanges in flight and processing time in lock-free counters.
+ */
+public class RouteMetrics implements RoutePolicyFactory {
+    private final MetricsRegistry registry;
+
+    public RouteMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public RoutePolicy createRoutePolicy(CamelContext context, String routeId, RouteDefinition route) {
+        LongAdder completed = registry.counter("camel_route_exchanges_total", "Exchanges completed by the route", "route", routeId);
+        LongAdder failed = registry.counter("camel_route_exchanges_failed_total",
+            "Exchanges that failed or were handled by the error handler", "route", routeId);
+        LongAdder inflight = new LongAdder();
+        registry.gauge("camel_route_exchanges_inflight", "Exchanges being processed by the route", inflight::sum, "route", routeId);
+        LongAdder nanos = new LongAdder();
+        registry.counter("camel_route_processing_seconds_total", "Time spent processing exchanges",
+            () -> nanos.sum() / 1e9, "route", routeId);
+        // a direct: route runs within its caller's exchange, so the start time is kept per route
+        String startedProperty = "metricsStarted." + routeId;
+
+        return new RoutePolicySupport() {
+            @Override
+            public void onExchangeBegin(Route route, Exchange exchange) {
+                inflight.increment();
+                exchange.setProperty(startedProperty, System.nanoTime());
+            }
+
+            @Override
+            public void onExchangeDone(Route route, Exchange exchange) {
+                inflight.decrement();
+                completed.increment();
+                Long started = exchange.getProperty(startedProperty, Long.class);
+                if (started != null) {
+                    nanos.add(System.nanoTime() - started);
+                }
+                if (exchange.isFailed() || exchange.getProperty(Exchange.EXCEPTION_CAUGHT) != null) {
+                    failed.increment();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package com.divesurf.camel;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.DeadLetterChannelBuilder;
+import org.apache.camel.builder.RouteBuilder;
+
+import com.divesurf.common.Quarantine;
+
+/**
+ * Error handling of the routes of a system: bounded redelivery with exponential backoff, after which the
+ * original message is moved to the quarantine queue with the failure reason (see {@link Quarantine}).
+ * Malformed messages fail the same way on every attempt, so they are quarantined without redelivery; parsers
+ * report them with an {@link IllegalArgumentException}.
+ * Systems whose routes mostly serve their own input use {@link #deadLetterChannel()} on their JMS consumers only.
+ */
+public class QuarantineRoutes extends RouteBuilder {
+    private static final String ENDPOINT = "direct:quarantine";
+
+    private final Quarantine quarantine;
+
+    public QuarantineRoutes(Quarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /** Dead Letter Channel: redelivers with backoff, then hands the original message to the quarantine route. */
+    public static DeadLetterChannelBuilder deadLetterChannel() {
+        DeadLetterChannelBuilder builder = new DeadLetterChannelBuilder(ENDPOINT);
+        builder.useOriginalMessage()
+            .maximumRedeliveries(Quarantine.MAX_REDELIVERIES)
+            .redeliveryDelay(Quarantine.REDELIVERY_DELAY_MILLIS)
+            .useExponentialBackOff()
+            .backOffMultiplier(2)
+            .maximumRedeliveryDelay(Quarantine.MAX_REDELIVERY_DELAY_MILLIS)
+            .retryAttemptedLogLevel(LoggingLevel.WARN);
+        return builder;
+    }
+
+    /** Applies the error handling to all routes of the given builder; call it first in configure(). */
+    public static void applyTo(RouteBuilder routes) {
+        routes.errorHandler(deadLetterChannel());
+        // Fast fail: the parsers reject a malformed body with an IllegalArgumentException (or NumberFormatException),
+        // which is not worth retrying; any other failure, e.g. a NullPointerException, gets the bounded redelivery
+        routes.onException(IllegalArgumentException.class).maximumRedeliveries(0);
+    }
+
+    @Override
+    public void configure() {
+        // Invalid Message Channel: original body plus the failure reason, for inspection and replay
+        from(ENDPOINT)
+            .routeId("quarantine")
+            .process(e -> {
+                Exception cause = e.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+                String route = e.getProperty(Exchange.FAILURE_ROUTE_ID, e.getFromRouteId(), String.class);
+                String reason = cause == null ? "unknown" : cause.getClass().getName() + ": " + cause.getMessage();
+                e.getIn().setHeader(Quarantine.SYSTEM_HEADER, quarantine.getSystem());
+                e.getIn().setHeader(Quarantine.ROUTE_HEADER, route);
+                e.getIn().setHeader(Quarantine.REASON_HEADER, reason);
+                e.getIn().setHeader(Quarantine.EXCEPTION_HEADER, cause == null ? null : cause.getClass().getName());
+                e.getIn().setHeader(Quarantine.ATTEMPTS_HEADER, e.getIn().getHeader(Exchange.REDELIVERY_COUNTER, 0, Integer.class) + 1);
+                quarantine.record(route, reason);
+            })
+            // billing's order routes acknowledge the quarantined message once the exchange completes
+            .to("jms:queue:" + Quarantine.QUEUE);
+
+        from("timer:quarantineStats?period=60000&delay=60000")
+            .routeId("quarantineStats")
+            .process(e -> System.out.println(quarantine.stats()));
+    }
+}
@@ -0,0 +1,54 @@
+package com.divesurf.camel;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.jms.JmsConsumer;
+import org.springframework.jms.listener.DefaultMessageListenerContainer;
+
+import com.divesurf.common.ConsumerAutoscaler;
+import com.divesurf.common.LatencyTracker;
+import com.divesurf.common.QueueDepthProbe;
+
+import javax.jms.ConnectionFactory;
+
+/**
+ * Autoscaling of the JMS consumers of a route: a {@link ConsumerAutoscaler} that resizes the route's listener
+ * container from the depth of its queue and the processing time.
+ */
+public final class RouteAutoscaler {
+
+    private RouteAutoscaler() {
+    }
+
+    /**
+     * Starts an autoscaler for the JMS consumers of a started route, configured by the autoscale.* properties.
+     * The route's listener container is resized in place, so no messages are lost while scaling.
+     */
+    public static ConsumerAutoscaler start(CamelContext context, ConnectionFactory connectionFactory,
+                                           String routeId, String queue, LatencyTracker latency) throws Exception {
+        DefaultMessageListenerContainer container = (DefaultMessageListenerContainer)
+            ((JmsConsumer) context.getRoute(routeId).getConsumer()).getListenerContainer();
+        ConsumerAutoscaler autoscaler = ConsumerAutoscaler.fromSystemProperties(routeId,
+            new ConsumerAutoscaler.ConsumerPool() {
+                @Override
+                public int getConsumers() {
+                    return container.getConcurrentConsumers();
+                }
+
+                @Override
+                public void setConsumers(int consumers) {
+                    // the maximum must never be below the core count, so the order depends on the direction
+                    if (consumers > container.getMaxConcurrentConsumers()) {
+                        container.setMaxConcurrentConsumers(consumers);
+                        container.setConcurrentConsumers(consumers);
+                    } else {
+                        container.setConcurrentConsumers(consumers);
+                        container.setMaxConcurrentConsumers(consumers);
+                    }
+                }
+            },
+            new QueueDepthProbe(connectionFactory, queue, Integer.getInteger("autoscale.maxProbedDepth", 1000)),
+            latency);
+        autoscaler.start(Long.getLong("autoscale.intervalMillis", 1000L));
+        return autoscaler;
+    }
+}
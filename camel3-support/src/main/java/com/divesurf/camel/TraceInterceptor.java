@@ -0,0 +1,78 @@
+package com.divesurf.camel;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.DelegateProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.NamedNode;
+import org.apache.camel.Processor;
+import org.apache.camel.spi.InterceptStrategy;
+import org.apache.camel.support.processor.DelegateAsyncProcessor;
+
+import com.divesurf.common.Tracer;
+
+/**
+ * Records a span for every processor that handles a traced order (one carrying a trace id header),
+ * plus one span for the broker hop that delivered it (from the JMS send timestamp to the first processor).
+ * Orders without a trace id pass through with a single header lookup per processor.
+ */
+public class TraceInterceptor implements InterceptStrategy {
+    private static final String HOP_RECORDED = "traceHopRecorded";
+
+    private final Tracer tracer;
+
+    public TraceInterceptor(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public Processor wrapProcessorInInterceptors(CamelContext context, NamedNode definition,
+                                                 Processor target, Processor nextTarget) {
+        String name = spanName(definition.getLabel(), definition.getShortName(), definition.getId(), target);
+        return new DelegateAsyncProcessor(target) {
+            @Override
+            public boolean process(Exchange exchange, AsyncCallback callback) {
+                String traceId = exchange.getIn().getHeader(Tracer.TRACE_ID, String.class);
+                if (traceId == null) {
+                    return processor.process(exchange, callback);
+                }
+                String route = exchange.getFromRouteId();
+                long startMillis = System.currentTimeMillis();
+                recordHop(exchange, traceId, route, startMillis);
+                long start = System.nanoTime();
+                // async processors complete later: the span ends when the callback fires
+                return processor.process(exchange, doneSync -> {
+                    tracer.span(traceId, route, name, startMillis, (System.nanoTime() - start) / 1000);
+                    callback.done(doneSync);
+                });
+            }
+        };
+    }
+
+    // Processors are labelled by object identity: use their class, or the node id (e.g. process3) for lambdas
+    private static String spanName(String label, String shortName, String id, Processor target) {
+        if (!label.contains("@0x")) {
+            return label;
+        }
+        Processor processor = target;
+        while (processor instanceof DelegateProcessor && ((DelegateProcessor) processor).getProcessor() != null) {
+            processor = ((DelegateProcessor) processor).getProcessor();
+        }
+        Class<?> type = processor.getClass();
+        return type.isSynthetic() || type.isAnonymousClass() || type.getSimpleName().contains("$$Lambda")
+            ? shortName + "#" + id
+            : shortName + "[" + type.getSimpleName() + "]";
+    }
+
+    private void recordHop(Exchange exchange, String traceId, String route, long now) {
+        Long sentMillis = exchange.getIn().getHeader("JMSTimestamp", Long.class);
+        if (sentMillis == null || sentMillis == 0 || exchange.getProperty(HOP_RECORDED) != null) {
+            return;
+        }
+        exchange.setProperty(HOP_RECORDED, Boolean.TRUE);
+        String endpoint = exchange.getFromEndpoint().getEndpointUri();
+        int options = endpoint.indexOf('?');
+        tracer.span(traceId, route, "hop[" + (options < 0 ? endpoint : endpoint.substring(0, options)) + "]",
+            sentMillis, Math.max(0, now - sentMillis) * 1000);
+    }
+}
@@ -0,0 +1,85 @@
+package com.divesurf.common;
+
+/**
+ * Credit-based admission control for order entry. The pipeline periodically announces how many more orders
+ * it can take ({@link #onCapacity(long)}), counting the admitted orders still waiting in its input queue;
+ * every admitted order spends one credit until the next announcement.
+ * When no credit is left, {@link #tryAcquire(long)} waits for a new announcement and then gives up, so the
+ * caller can reject the order instead of flooding the broker. Until the first announcement arrives,
+ * a small initial window of credits is available.
+ * <p>
+ * Every entry system receives the same announcement, so it carries the number of entry systems listening
+ * ({@link #ENTRY_SYSTEMS_HEADER}) and each gate only takes its share of the capacity.
+ */
+public class AdmissionGate {
+    /** Header of a capacity announcement with the number of entry systems sharing the capacity. */
+    public static final String ENTRY_SYSTEMS_HEADER = "entrySystems";
+
+    private long available;
+    private long spentSinceUpdate;
+    private long lastUpdateMillis;
+    private long admitted;
+    private long rejected;
+
+    public AdmissionGate(long initialCredits) {
+        this.available = initialCredits;
+    }
+
+    /**
+     * The capacity of an announcement body.
+     *
+     * @throws NumberFormatException if the body is missing or no number
+     */
+    public static long parseCapacity(String announcement) {
+        if (announcement == null) {
+            throw new NumberFormatException("Empty capacity announcement");
+        }
+        return Long.parseLong(announcement.trim());
+    }
+
+    /** Called with the capacity announced by the pipeline; replaces all earlier credits. */
+    public void onCapacity(long capacity) {
+        onCapacity(capacity, 1);
+    }
+
+    /**
+     * Called with the capacity announced to entrySystems entry systems; replaces all earlier credits with this
+     * gate's share, rounded down so that the gates together never admit more than the capacity.
+     */
+    public synchronized void onCapacity(long capacity, int entrySystems) {
+        available = Math.max(0, capacity) / Math.max(1, entrySystems);
+        spentSinceUpdate = 0;
+        lastUpdateMillis = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /** Takes one credit, waiting at most maxWaitMillis for one to become available. */
+    public synchronized boolean tryAcquire(long maxWaitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (available - spentSinceUpdate <= 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rejected++;
+                return false;
+            }
+            wait(remaining);
+        }
+        spentSinceUpdate++;
+        admitted++;
+        return true;
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("admission_credits", "Orders that may still be admitted", this::getCredits);
+        registry.counter("admission_admitted_total", "Orders admitted into the pipeline", this::getAdmitted);
+        registry.counter("admission_rejected_total", "Orders rejected because the pipeline was saturated", this::getRejected);
+    }
+
+    public synchronized long getCredits() {
+        return Math.max(0, available - spentSinceUpdate);
+    }
+
+    public synchronized long getAdmitted() { return admitted; }
+    public synchronized long getRejected() { return rejected; }
+    public synchronized long getLastUpdateMillis() { return lastUpdateMillis; }
+}
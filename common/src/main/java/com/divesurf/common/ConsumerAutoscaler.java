@@ -0,0 +1,159 @@
+package com.divesurf.common;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Adjusts the number of consumers of one input queue between a minimum and a maximum.
+ * Every interval it reads the queue depth and the average processing time since the last check:
+ * <ul>
+ *   <li>scale up (at least doubling) when the backlog would take longer than targetDrainMillis
+ *       with the current consumers, or exceeds depthPerConsumer messages per consumer;</li>
+ *   <li>scale down by one consumer after the queue was empty for idleChecksBeforeScaleDown checks.</li>
+ * </ul>
+ */
+public class ConsumerAutoscaler {
+
+    /** The consumers being scaled, e.g. the listener container of a JMS route. */
+    public interface ConsumerPool {
+        int getConsumers();
+
+        void setConsumers(int consumers);
+    }
+
+    private final String name;
+    private final ConsumerPool pool;
+    private final IntSupplier queueDepth;
+    private final LatencyTracker latency;
+    private final int minConsumers;
+    private final int maxConsumers;
+    private final long targetDrainMillis;
+    private final int depthPerConsumer;
+    private final int idleChecksBeforeScaleDown;
+
+    private final AtomicLong scaleUps = new AtomicLong();
+    private final AtomicLong scaleDowns = new AtomicLong();
+    private volatile int lastDepth;
+    private volatile double lastLatencyMillis = -1;
+    private int idleChecks;
+    private ScheduledExecutorService scheduler;
+
+    public ConsumerAutoscaler(String name, ConsumerPool pool, IntSupplier queueDepth, LatencyTracker latency,
+                              int minConsumers, int maxConsumers, long targetDrainMillis,
+                              int depthPerConsumer, int idleChecksBeforeScaleDown) {
+        if (minConsumers < 1 || maxConsumers < minConsumers) {
+            throw new IllegalArgumentException("Need 1 <= minConsumers <= maxConsumers");
+        }
+        this.name = name;
+        this.pool = pool;
+        this.queueDepth = queueDepth;
+        this.latency = latency;
+        this.minConsumers = minConsumers;
+        this.maxConsumers = maxConsumers;
+        this.targetDrainMillis = targetDrainMillis;
+        this.depthPerConsumer = depthPerConsumer;
+        this.idleChecksBeforeScaleDown = idleChecksBeforeScaleDown;
+    }
+
+    /** Autoscaler configured by the autoscale.* system properties. */
+    public static ConsumerAutoscaler fromSystemProperties(String name, ConsumerPool pool, IntSupplier queueDepth,
+                                                          LatencyTracker latency) {
+        return new ConsumerAutoscaler(name, pool, queueDepth, latency,
+            Integer.getInteger("autoscale.minConsumers", 1),
+            Integer.getInteger("autoscale.maxConsumers", 8),
+            Long.getLong("autoscale.targetDrainMillis", 1000L),
+            Integer.getInteger("autoscale.depthPerConsumer", 100),
+            Integer.getInteger("autoscale.idleChecksBeforeScaleDown", 5));
+    }
+
+    public synchronized void start(long intervalMillis) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Autoscaler[" + name + "]");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                System.err.println("Autoscaler[" + name + "] check failed: " + e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /** One scaling decision; returns the consumer count afterwards. */
+    public synchronized int check() {
+        int consumers = pool.getConsumers();
+        int depth = queueDepth.getAsInt();
+        double latencyMillis = latency != null ? latency.averageMillisSinceLastRead() : -1;
+        if (latencyMillis >= 0) {
+            lastLatencyMillis = latencyMillis;
+        }
+        if (depth < 0) {
+            return consumers; // depth unknown, keep the current size
+        }
+        lastDepth = depth;
+
+        int target = consumers;
+        double drainMillis = lastLatencyMillis >= 0 ? depth * lastLatencyMillis / consumers : 0;
+        if (depth > 0 && (drainMillis > targetDrainMillis || depth > (long) depthPerConsumer * consumers)) {
+            idleChecks = 0;
+            int needed = lastLatencyMillis > 0
+                ? (int) Math.ceil(depth * lastLatencyMillis / targetDrainMillis)
+                : consumers * 2;
+            target = Math.max(consumers * 2, needed);
+        } else if (depth == 0) {
+            if (++idleChecks >= idleChecksBeforeScaleDown) {
+                idleChecks = 0;
+                target = consumers - 1;
+            }
+        } else {
+            idleChecks = 0;
+        }
+        target = Math.max(minConsumers, Math.min(maxConsumers, target));
+
+        if (target != consumers) {
+            pool.setConsumers(target);
+            if (target > consumers) {
+                scaleUps.incrementAndGet();
+            } else {
+                scaleDowns.incrementAndGet();
+            }
+            System.out.println(String.format("Autoscaler[%s]: consumers %d -> %d (depth=%d, latency=%.1fms)",
+                name, consumers, target, depth, lastLatencyMillis));
+        }
+        return target;
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("autoscaler_consumers", "Current number of consumers", this::getConsumers, "route", name);
+        registry.gauge("autoscaler_queue_depth", "Input queue depth at the last check", this::getLastDepth, "route", name);
+        registry.counter("autoscaler_scale_ups_total", "Scale-up events", scaleUps::get, "route", name);
+        registry.counter("autoscaler_scale_downs_total", "Scale-down events", scaleDowns::get, "route", name);
+    }
+
+    public long getScaleUps() { return scaleUps.get(); }
+    public long getScaleDowns() { return scaleDowns.get(); }
+    public int getLastDepth() { return lastDepth; }
+    public double getLastLatencyMillis() { return lastLatencyMillis; }
+    public int getConsumers() { return pool.getConsumers(); }
+    public String getName() { return name; }
+
+    public String stats() {
+        return String.format("Autoscaler[%s]: consumers=%d depth=%d latency=%.1fms scaleUps=%d scaleDowns=%d",
+            name, getConsumers(), getLastDepth(), getLastLatencyMillis(), getScaleUps(), getScaleDowns());
+    }
+}
@@ -0,0 +1,297 @@
+package com.divesurf.common;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tier and region of the customers, from a local data file with one "customerId,tier,region" line per customer.
+ * The order publisher attaches them to every order once ({@link #TIER_HEADER}, {@link #REGION_HEADER}), so
+ * the later stages read them from the message instead of looking the customer up again.
+ * <p>
+ * The data file is compiled into a binary index next to it (data file name + ".idx"): the tier and region
+ * names, then one 12-byte record per customer (id, tier number, region number) sorted by id. The index is
+ * memory-mapped, so the profiles take no heap and a restart does not parse the data file again; it is only
+ * rebuilt when the data file changed. A lookup is a binary search in the mapped records, with a small LRU cache
+ * of the recently ordering customers in front of it. Customers that are not in the file (or have no numeric id)
+ * get the profile {@link #UNKNOWN}.
+ */
+public class CustomerProfiles implements AutoCloseable {
+    public static final String TIER_HEADER = "customerTier";
+    public static final String REGION_HEADER = "customerRegion";
+
+    /** Tier and region of a customer. */
+    public static final class Profile {
+        private final String tier;
+        private final String region;
+
+        Profile(String tier, String region) {
+            this.tier = tier;
+            this.region = region;
+        }
+
+        public String getTier() {
+            return tier;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+    }
+
+    public static final Profile UNKNOWN = new Profile("unknown", "unknown");
+
+    private static final int MAGIC = 0x43504931; // "CPI1"
+    private static final int RECORD_BYTES = 12;
+
+    private final Map<String, Profile> cache;
+    private final FileChannel channel;
+    private final MappedByteBuffer records;
+    private final int recordsStart;
+    private final int size;
+    private final Profile[][] profiles; // [tier][region], shared by all customers with the same combination
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder indexHits = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+    private final LongAdder cacheNanos = new LongAdder();
+    private final LongAdder indexNanos = new LongAdder();
+
+    /** Profiles of the given data file; a missing data file leaves every customer {@link #UNKNOWN}. */
+    public CustomerProfiles(File dataFile, int cacheSize) throws IOException {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("cacheSize must be positive");
+        }
+        this.cache = new LinkedHashMap<String, Profile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Profile> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        File indexFile = new File(dataFile.getPath() + ".idx");
+        if (!dataFile.exists()) {
+            System.err.println("No customer data file " + dataFile + "; customers get the profile 'unknown'");
+            indexFile = null;
+        } else if (!isCurrent(indexFile, dataFile)) {
+            buildIndex(dataFile, indexFile);
+        }
+        if (indexFile == null) {
+            channel = null;
+            records = null;
+            recordsStart = 0;
+            size = 0;
+            profiles = new Profile[0][0];
+            return;
+        }
+        channel = new RandomAccessFile(indexFile, "r").getChannel();
+        records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        ((Buffer) records).position(4 + 8 + 8); // as a Buffer, so the class also runs on Java 8
+        String[] tiers = readNames(records);
+        String[] regions = readNames(records);
+        size = records.getInt();
+        recordsStart = records.position();
+        profiles = new Profile[tiers.length][regions.length];
+        for (int t = 0; t < tiers.length; t++) {
+            for (int r = 0; r < regions.length; r++) {
+                profiles[t][r] = new Profile(tiers[t], regions[r]);
+            }
+        }
+    }
+
+    /** Profiles of -Dorder.customerProfiles.file (default OrderPublisher/customers.csv), -Dorder.customerProfiles.cacheSize (default 10000). */
+    public static CustomerProfiles fromSystemProperties() throws IOException {
+        String defaultFile = System.getProperty("user.dir") + File.separator + "OrderPublisher" + File.separator + "customers.csv";
+        return new CustomerProfiles(new File(System.getProperty("order.customerProfiles.file", defaultFile)),
+            Integer.getInteger("order.customerProfiles.cacheSize", 10000));
+    }
+
+    /** The profile of the customer; never null. */
+    public Profile lookup(String customerId) {
+        long start = System.nanoTime();
+        Profile profile;
+        synchronized (cache) {
+            profile = cache.get(customerId);
+        }
+        if (profile != null) {
+            cacheHits.increment();
+            cacheNanos.add(System.nanoTime() - start);
+            return profile;
+        }
+        profile = search(customerId);
+        synchronized (cache) {
+            cache.put(customerId, profile);
+        }
+        (profile == UNKNOWN ? unknown : indexHits).increment();
+        indexNanos.add(System.nanoTime() - start);
+        return profile;
+    }
+
+    /** Copies the profile headers of an order to a message derived from it. */
+    public static void copy(Message from, Message to) throws JMSException {
+        for (String header : new String[] {TIER_HEADER, REGION_HEADER}) {
+            String value = from.getStringProperty(header);
+            if (value != null) {
+                to.setStringProperty(header, value);
+            }
+        }
+    }
+
+    /** Number of customers in the index. */
+    public int size() {
+        return size;
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("pipeline_customer_profiles", "Customers in the customer profile index", this::size);
+        String help = "Customer profile lookups by where the profile was found";
+        registry.counter("pipeline_customer_profile_lookups_total", help, cacheHits::sum, "result", "cache");
+        registry.counter("pipeline_customer_profile_lookups_total", help, indexHits::sum, "result", "index");
+        registry.counter("pipeline_customer_profile_lookups_total", help, unknown::sum, "result", "unknown");
+        help = "Time spent in customer profile lookups";
+        registry.counter("pipeline_customer_profile_lookup_seconds_total", help, () -> cacheNanos.sum() / 1e9, "result", "cache");
+        registry.counter("pipeline_customer_profile_lookup_seconds_total", help,
+            () -> indexNanos.sum() / 1e9, "result", "index");
+    }
+
+    public String stats() {
+        long hits = cacheHits.sum();
+        long misses = indexHits.sum() + unknown.sum();
+        return String.format("Customer profiles: customers=%d cacheHits=%d indexLookups=%d unknown=%d hitRate=%.1f%%"
+                + " avgCacheMicros=%.2f avgIndexMicros=%.2f",
+            size, hits, misses, unknown.sum(), hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+            hits == 0 ? 0.0 : cacheNanos.sum() / 1e3 / hits, misses == 0 ? 0.0 : indexNanos.sum() / 1e3 / misses);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Binary search of the customer id in the mapped records; absolute reads, so concurrent lookups need no lock
+    private Profile search(String customerId) {
+        long id;
+        try {
+            id = Long.parseLong(customerId.trim());
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = recordsStart + mid * RECORD_BYTES;
+            long midId = records.getLong(offset);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return profiles[records.getShort(offset + 8)][records.getShort(offset + 10)];
+            }
+        }
+        return UNKNOWN;
+    }
+
+    // The index is current if it was built from a data file of the same size and modification time
+    private static boolean isCurrent(File indexFile, File dataFile) {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+            return index.length() >= 20 && index.readInt() == MAGIC
+                && index.readLong() == dataFile.length() && index.readLong() == dataFile.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void buildIndex(File dataFile, File indexFile) throws IOException {
+        long start = System.nanoTime();
+        TreeMap<Long, String[]> customers = new TreeMap<>();
+        int skipped = 0;
+        try (BufferedReader in = Files.newBufferedReader(dataFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split(",");
+                try {
+                    customers.put(Long.parseLong(parts[0].trim()), new String[] {parts[1].trim(), parts[2].trim()});
+                } catch (RuntimeException e) {
+                    skipped++;
+                }
+            }
+        }
+        List<String> tiers = new ArrayList<>();
+        List<String> regions = new ArrayList<>();
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeLong(dataFile.length());
+            out.writeLong(dataFile.lastModified());
+            for (String[] profile : customers.values()) {
+                if (!tiers.contains(profile[0])) {
+                    tiers.add(profile[0]);
+                }
+                if (!regions.contains(profile[1])) {
+                    regions.add(profile[1]);
+                }
+            }
+            writeNames(out, tiers);
+            writeNames(out, regions);
+            out.writeInt(customers.size());
+            for (Map.Entry<Long, String[]> customer : customers.entrySet()) {
+                out.writeLong(customer.getKey());
+                out.writeShort(tiers.indexOf(customer.getValue()[0]));
+                out.writeShort(regions.indexOf(customer.getValue()[1]));
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Indexed " + customers.size() + " customer profiles of " + dataFile + " in "
+            + (System.nanoTime() - start) / 1000000 + " ms" + (skipped > 0 ? " (" + skipped + " malformed lines skipped)" : ""));
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        if (names.size() > Short.MAX_VALUE) {
+            throw new IOException("Too many distinct tiers or regions: " + names.size());
+        }
+        out.writeInt(names.size());
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readNames(MappedByteBuffer buffer) {
+        String[] names = new String[buffer.getInt()];
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return names;
+    }
+}
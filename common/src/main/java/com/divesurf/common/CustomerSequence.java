@@ -0,0 +1,117 @@
+package com.divesurf.common;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-customer ordering of the orders. Every order carries its customer id as the JMS message group
+ * ({@link #GROUP_HEADER}), so the broker hands all orders of a customer in a queue to the same consumer, in order,
+ * while different customers are spread over all consumers. The order publisher also numbers each customer's
+ * orders ({@link #SEQUENCE_HEADER}, 1, 2, 3, ...), so the result system can restore their order after the
+ * concurrent stages. Counters of the least recently active customers are dropped beyond maxCustomers;
+ * a dropped customer's numbering restarts at 1. So does every customer's after a restart of the publisher, as the
+ * counters are only kept in memory. Each numbering therefore carries an epoch ({@link #EPOCH_HEADER}), later than
+ * that of any numbering before, and the result system starts over when a customer's epoch changes.
+ * Numbers taken in a batch transaction ({@link #beginBatch()}) are handed out again if the batch rolls back, so a
+ * redelivered batch does not leave gaps that hold back its customers' later orders.
+ */
+public class CustomerSequence {
+    /** The JMS message group header, understood by ActiveMQ. */
+    public static final String GROUP_HEADER = "JMSXGroupID";
+    public static final String SEQUENCE_HEADER = "customerSeq";
+    public static final String EPOCH_HEADER = "customerSeqEpoch";
+
+    // {epoch, last sequence number} per customer
+    private final Map<String, long[]> counters;
+    private long lastEpoch;
+    // {epoch, last number before the batch, last number taken by the batch} per customer of the batch open on the current thread
+    private final ThreadLocal<Map<String, long[]>> openBatch = new ThreadLocal<>();
+
+    public CustomerSequence(int maxCustomers) {
+        this.counters = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > maxCustomers;
+            }
+        };
+    }
+
+    /** The next sequence number of the customer, starting at 1. */
+    public synchronized long next(String customerId) {
+        return ++counter(customerId)[1];
+    }
+
+    /** Puts the customer's next sequence number and the epoch of its numbering into the headers of an order. */
+    public synchronized void next(String customerId, Map<String, Object> headers) {
+        long[] counter = counter(customerId);
+        headers.put(EPOCH_HEADER, counter[0]);
+        headers.put(SEQUENCE_HEADER, ++counter[1]);
+        Map<String, long[]> batch = openBatch.get();
+        if (batch != null) {
+            batch.computeIfAbsent(customerId, id -> new long[] {counter[0], counter[1] - 1, 0})[2] = counter[1];
+        }
+    }
+
+    // Starts a batch on the current thread: its numbers are kept on commitBatch() or handed out again by rollbackBatch()
+    public void beginBatch() {
+        openBatch.set(new HashMap<>());
+    }
+
+    public void commitBatch() {
+        openBatch.remove();
+    }
+
+    // Hands the batch's numbers out again, for each customer that got no number after the batch's in the meantime
+    public synchronized void rollbackBatch() {
+        Map<String, long[]> batch = openBatch.get();
+        if (batch == null) {
+            return;
+        }
+        openBatch.remove();
+        for (Map.Entry<String, long[]> entry : batch.entrySet()) {
+            long[] counter = counters.get(entry.getKey());
+            long[] taken = entry.getValue();
+            if (counter != null && counter[0] == taken[0] && counter[1] == taken[2]) {
+                counter[1] = taken[1];
+            }
+        }
+    }
+
+    /** The epoch of the customer's current numbering, 0 if the customer has none. */
+    public synchronized long epoch(String customerId) {
+        long[] counter = counters.get(customerId);
+        return counter == null ? 0 : counter[0];
+    }
+
+    private long[] counter(String customerId) {
+        long[] counter = counters.get(customerId);
+        if (counter == null) {
+            // the clock orders the epochs across restarts, the increment within one run
+            lastEpoch = Math.max(System.currentTimeMillis(), lastEpoch + 1);
+            counter = new long[] {lastEpoch, 0};
+            counters.put(customerId, counter);
+        }
+        return counter;
+    }
+
+    /** Copies the group, sequence number and epoch of an order to a message derived from it. */
+    public static void copy(Message from, Message to) throws JMSException {
+        String group = from.getStringProperty(GROUP_HEADER);
+        if (group != null) {
+            to.setStringProperty(GROUP_HEADER, group);
+        }
+        if (from.propertyExists(SEQUENCE_HEADER)) {
+            to.setLongProperty(SEQUENCE_HEADER, from.getLongProperty(SEQUENCE_HEADER));
+        }
+        if (from.propertyExists(EPOCH_HEADER)) {
+            to.setLongProperty(EPOCH_HEADER, from.getLongProperty(EPOCH_HEADER));
+        }
+    }
+
+    public synchronized int size() {
+        return counters.size();
+    }
+}
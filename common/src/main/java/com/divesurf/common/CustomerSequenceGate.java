@@ -0,0 +1,115 @@
+package com.divesurf.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets each customer's orders through in the order of their sequence numbers (see {@link CustomerSequence}), for a
+ * stage that must apply them in that order although they reach it on several queues, e.g. one per lane. A thread
+ * with an order that overtook an earlier one of its customer waits in {@link #await} until the earlier order was
+ * {@link #applied}, but at most timeoutMillis; the earlier order was then lost or is stuck, and the gap is skipped
+ * (if it turns up later, it passes at once). Orders of the same customer on the same queue must arrive in order,
+ * or a thread would wait for an order queued behind its own.
+ * <p>
+ * The customers are kept in memory, the least recently active ones dropped beyond maxCustomers. An order of a
+ * customer the gate does not know waits for the customer's first order only if its numbering started after the
+ * gate knew all customers (it started, or last dropped one); otherwise earlier orders may have passed already.
+ */
+public class CustomerSequenceGate {
+
+    private final long timeoutMillis;
+    private final Map<String, long[]> customers; // {epoch, next expected sequence number}
+    private long knownSince;
+
+    private final LongAdder inOrder = new LongAdder();
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public CustomerSequenceGate(long timeoutMillis, int maxCustomers) {
+        this.timeoutMillis = timeoutMillis;
+        this.knownSince = System.currentTimeMillis();
+        this.customers = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                if (size() <= maxCustomers) {
+                    return false;
+                }
+                knownSince = Math.max(knownSince, eldest.getValue()[0] + 1);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gate of -D&lt;system&gt;.sequence.timeoutMillis (default 1000) and -D&lt;system&gt;.sequence.maxCustomers
+     * (default 100000).
+     */
+    public static CustomerSequenceGate fromSystemProperties(String system) {
+        return new CustomerSequenceGate(Long.getLong(system + ".sequence.timeoutMillis", 1000L),
+            Integer.getInteger(system + ".sequence.maxCustomers", 100000));
+    }
+
+    /**
+     * Waits until the order is its customer's next one, or the timeout passed. An order without a sequence number
+     * (sequence 0) passes at once.
+     */
+    public synchronized void await(String customerId, long epoch, long sequence) throws InterruptedException {
+        if (sequence <= 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean waiting = false;
+        while (true) {
+            long[] customer = customers.get(customerId);
+            if (customer == null || epoch > customer[0]) {
+                // a numbering started before the gate knew all customers may have passed orders already
+                customer = new long[] {epoch, epoch >= knownSince ? 1 : sequence};
+                customers.put(customerId, customer);
+            }
+            if (epoch < customer[0] || sequence < customer[1]) {
+                late.increment(); // numbered before the publisher started over, or its gap was skipped
+                return;
+            }
+            if (sequence == customer[1]) {
+                (waiting ? waited : inOrder).increment();
+                return;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                timedOut.increment();
+                return;
+            }
+            waiting = true;
+            wait(remaining);
+        }
+    }
+
+    /** Records that the order was applied, so its customer's next order may pass. */
+    public synchronized void applied(String customerId, long epoch, long sequence) {
+        long[] customer = customers.get(customerId);
+        if (sequence > 0 && customer != null && customer[0] == epoch && sequence >= customer[1]) {
+            customer[1] = sequence + 1;
+            notifyAll();
+        }
+    }
+
+    public synchronized int size() {
+        return customers.size();
+    }
+
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.gauge(prefix + "_sequence_customers", "Customers tracked by the sequence gate", this::size);
+        String help = "Orders let through by the sequence gate";
+        registry.counter(prefix + "_sequence_passed_total", help, inOrder::sum, "reason", "inOrder");
+        registry.counter(prefix + "_sequence_passed_total", help, waited::sum, "reason", "waited");
+        registry.counter(prefix + "_sequence_passed_total", help, late::sum, "reason", "late");
+        registry.counter(prefix + "_sequence_passed_total", help, timedOut::sum, "reason", "timeout");
+    }
+
+    public String stats() {
+        return String.format("Sequence gate: customers=%d inOrder=%d waited=%d late=%d timeout=%d",
+            size(), inOrder.sum(), waited.sum(), late.sum(), timedOut.sum());
+    }
+}
@@ -0,0 +1,48 @@
+package com.divesurf.common;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Memory, thread, class loading, GC and uptime statistics of the JVM, read from the platform MXBeans.
+ */
+public final class JvmMetrics {
+
+    private JvmMetrics() {
+    }
+
+    public static void register(MetricsRegistry registry) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        registry.gauge("jvm_memory_used_bytes", "Used memory", () -> memory.getHeapMemoryUsage().getUsed(), "area", "heap");
+        registry.gauge("jvm_memory_used_bytes", "Used memory", () -> memory.getNonHeapMemoryUsage().getUsed(), "area", "nonheap");
+        registry.gauge("jvm_memory_committed_bytes", "Committed memory", () -> memory.getHeapMemoryUsage().getCommitted(), "area", "heap");
+        registry.gauge("jvm_memory_committed_bytes", "Committed memory", () -> memory.getNonHeapMemoryUsage().getCommitted(), "area", "nonheap");
+        registry.gauge("jvm_memory_max_bytes", "Maximum heap size", () -> memory.getHeapMemoryUsage().getMax(), "area", "heap");
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            registry.counter("jvm_gc_collections_total", "Garbage collections", gc::getCollectionCount, "gc", gc.getName());
+            registry.counter("jvm_gc_collection_seconds_total", "Time spent in garbage collection",
+                () -> gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        registry.gauge("jvm_threads_live", "Live threads", threads::getThreadCount);
+        registry.gauge("jvm_threads_peak", "Peak live threads", threads::getPeakThreadCount);
+        registry.gauge("jvm_threads_daemon", "Live daemon threads", threads::getDaemonThreadCount);
+
+        ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+        registry.gauge("jvm_classes_loaded", "Currently loaded classes", classes::getLoadedClassCount);
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        registry.gauge("system_load_average_1m", "System load average of the last minute", os::getSystemLoadAverage);
+        registry.gauge("system_cpu_count", "Available processors", os::getAvailableProcessors);
+
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        registry.gauge("process_uptime_seconds", "JVM uptime", () -> runtime.getUptime() / 1000.0);
+    }
+}
@@ -0,0 +1,37 @@
+package com.divesurf.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free processing time statistics. Routes record each message's processing time;
+ * a single reader (e.g. the autoscaler) takes the average since its previous read.
+ */
+public class LatencyTracker {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder windowCount = new LongAdder();
+    private final LongAdder windowNanos = new LongAdder();
+
+    public void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        windowCount.increment();
+        windowNanos.add(nanos);
+    }
+
+    /** Average processing time in milliseconds since the previous call, or -1 if nothing was processed. */
+    public double averageMillisSinceLastRead() {
+        long n = windowCount.sumThenReset();
+        long nanos = windowNanos.sumThenReset();
+        return n == 0 ? -1 : nanos / 1e6 / n;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getAverageMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+    }
+}
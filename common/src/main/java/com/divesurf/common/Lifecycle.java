@@ -0,0 +1,184 @@
+package com.divesurf.common;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup, readiness and graceful shutdown of a system. The main method creates it first, registers a drain
+ * step per resource and calls {@link #ready()} once it takes work; the startup time is logged and exported.
+ * On SIGTERM, Ctrl+C or exit, the shutdown hook marks the system as draining (so its readiness probe fails)
+ * and runs the drain steps in registration order: typically stop consuming, let in-flight orders complete,
+ * then flush state to disk. All steps together get drainTimeoutMillis; a step still running when the time is up
+ * is left behind and the next one runs, so a hanging resource cannot block the shutdown.
+ */
+public class Lifecycle {
+
+    public enum State { STARTING, READY, DRAINING, STOPPED }
+
+    /** One step of the drain, e.g. stopping the Camel context or flushing a journal. */
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    private final String system;
+    private final long drainTimeoutMillis;
+    private final long createdNanos = System.nanoTime();
+    private final List<String> stepNames = new ArrayList<>();
+    private final List<Step> steps = new ArrayList<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile State state = State.STARTING;
+    private volatile long startupMillis = -1;
+    private volatile long jvmStartupMillis = -1;
+
+    public Lifecycle(String system, long drainTimeoutMillis) {
+        if (drainTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("drainTimeoutMillis must be positive");
+        }
+        this.system = system;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /** Lifecycle configured by -Dlifecycle.drainTimeoutMillis (default 30000), drained by a JVM shutdown hook. */
+    public static Lifecycle fromSystemProperties(String system) {
+        Lifecycle lifecycle = new Lifecycle(system, Long.getLong("lifecycle.drainTimeoutMillis", 30000L));
+        Runtime.getRuntime().addShutdownHook(new Thread(lifecycle::drain, "Drain[" + system + "]"));
+        return lifecycle;
+    }
+
+    /** Adds a drain step; steps run in the order they were added. */
+    public synchronized void onDrain(String name, Step step) {
+        stepNames.add(name);
+        steps.add(step);
+    }
+
+    /** Marks the system as ready and logs how long the startup took, from the JVM start and from this object. */
+    public void ready() {
+        startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos);
+        jvmStartupMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        synchronized (this) {
+            if (state == State.STARTING) {
+                state = State.READY;
+            }
+        }
+        System.out.println(system + " ready in " + startupMillis + " ms (" + jvmStartupMillis + " ms since JVM start)");
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    /** Milliseconds from the creation of this object to {@link #ready()}, or -1 before. */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    /**
+     * Runs the drain steps once; later calls, e.g. from the shutdown hook after an "exit" on the console,
+     * wait until the first drain has finished.
+     */
+    public void drain() {
+        List<String> names;
+        List<Step> toRun;
+        synchronized (this) {
+            if (state == State.DRAINING || state == State.STOPPED) {
+                names = null;
+                toRun = null;
+            } else {
+                state = State.DRAINING;
+                names = new ArrayList<>(stepNames);
+                toRun = new ArrayList<>(steps);
+            }
+        }
+        if (toRun == null) {
+            awaitQuietly();
+            return;
+        }
+        System.out.println("Draining " + system + "...");
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        for (int i = 0; i < toRun.size(); i++) {
+            runStep(names.get(i), toRun.get(i), deadline);
+        }
+        state = State.STOPPED;
+        System.out.println(system + " drained in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        stopped.countDown();
+    }
+
+    /** Blocks until the system has been drained; the main thread of a system without a console waits here. */
+    public void awaitStopped() throws InterruptedException {
+        stopped.await();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("lifecycle_startup_seconds", "Time from the start of main until the system was ready",
+            () -> startupMillis < 0 ? Double.NaN : startupMillis / 1000.0);
+        registry.gauge("lifecycle_ready", "1 while the system takes work, 0 while starting or draining",
+            () -> isReady() ? 1 : 0);
+    }
+
+    /**
+     * Serves the probes from the metrics server: /health/live answers 200 while the process runs,
+     * /health/ready answers 200 once the system is ready and 503 while it starts or drains.
+     */
+    public void serveProbes(HttpServer server) {
+        MetricsServer.serve(server, "/health/live", "text/plain; charset=utf-8", query -> "UP\n");
+        MetricsServer.serve(server, "/health/ready", "text/plain; charset=utf-8", query -> {
+            State current = state;
+            if (current != State.READY) {
+                throw new IllegalStateException(current.name());
+            }
+            return current.name() + "\n";
+        });
+    }
+
+    // Runs a step on its own thread, so the drain can move on when the step overruns the deadline
+    private void runStep(String name, Step step, long deadline) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            System.err.println("Drain of " + system + " timed out, skipping step " + name);
+            return;
+        }
+        Thread runner = new Thread(() -> {
+            try {
+                step.run();
+            } catch (Exception e) {
+                System.err.println("Drain step " + name + " of " + system + " failed: " + e);
+            }
+        }, "Drain[" + system + "," + name + "]");
+        runner.setDaemon(true);
+        long start = System.nanoTime();
+        runner.start();
+        try {
+            runner.join(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (runner.isAlive()) {
+            System.err.println("Drain step " + name + " of " + system + " did not finish within " + remaining + " ms");
+        } else {
+            System.out.println("Drained " + name + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+    }
+
+    // Waits for the drain started by another thread; it ends at the latest after drainTimeoutMillis
+    private void awaitQuietly() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
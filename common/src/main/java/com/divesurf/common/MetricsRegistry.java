@@ -0,0 +1,135 @@
+package com.divesurf.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of one system in the Prometheus text format. Metrics are registered once at startup; the hot paths
+ * only increment the returned {@link LongAdder}s, and gauges are read from their suppliers when scraped,
+ * so collecting metrics takes no locks while orders are processed.
+ */
+public class MetricsRegistry {
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public MetricsRegistry(String system) {
+        gauge("divesurf_info", "Dive & Surf system running in this process", () -> 1, "system", system);
+    }
+
+    /** A counter incremented by the caller; labels are name/value pairs. */
+    public LongAdder counter(String name, String help, String... labels) {
+        LongAdder counter = new LongAdder();
+        add(name, help, "counter", labels, counter::sum);
+        return counter;
+    }
+
+    /** A counter maintained elsewhere (e.g. an existing statistic), read when scraped. */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        add(name, help, "counter", labels, value);
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        add(name, help, "gauge", labels, value);
+    }
+
+    /** Series whose label values are only known when scraped, e.g. counts per route. */
+    public synchronized void family(String name, String help, String type, String label,
+                                    Supplier<Map<String, ? extends Number>> values) {
+        family(name, help, type).dynamic.add(new Dynamic(label, values));
+    }
+
+    private synchronized void add(String name, String help, String type, String[] labels, DoubleSupplier value) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            text.append(text.length() == 0 ? "{" : ",").append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        if (text.length() > 0) {
+            text.append('}');
+        }
+        family(name, help, type).series.add(new Series(text.toString(), value));
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    /** The current value of every metric. */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Series series : family.series) {
+                appendSample(out, name, series.labels, series.value.getAsDouble());
+            }
+            for (Dynamic dynamic : family.dynamic) {
+                for (Map.Entry<String, ? extends Number> sample : dynamic.values.get().entrySet()) {
+                    appendSample(out, name, "{" + dynamic.label + "=\"" + escape(sample.getKey()) + "\"}",
+                        sample.getValue().doubleValue());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        final String help;
+        final String type;
+        final List<Series> series = new ArrayList<>();
+        final List<Dynamic> dynamic = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Series {
+        final String labels;
+        final DoubleSupplier value;
+
+        Series(String labels, DoubleSupplier value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    private static final class Dynamic {
+        final String label;
+        final Supplier<Map<String, ? extends Number>> values;
+
+        Dynamic(String label, Supplier<Map<String, ? extends Number>> values) {
+            this.label = label;
+            this.values = values;
+        }
+    }
+}
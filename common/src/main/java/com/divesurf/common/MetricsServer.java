@@ -0,0 +1,73 @@
+package com.divesurf.common;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Serves a {@link MetricsRegistry} at http://host:port/metrics with the JDK's built-in HTTP server,
+ * on a single daemon thread. Systems can add local query endpoints with {@link #serve}.
+ */
+public final class MetricsServer {
+
+    private MetricsServer() {
+    }
+
+    /**
+     * Starts the endpoint on -Dmetrics.port, or on the system's default port if that is not set.
+     * A negative port disables the endpoint and returns null.
+     */
+    public static HttpServer start(MetricsRegistry registry, int defaultPort) throws IOException {
+        int port = Integer.getInteger("metrics.port", defaultPort);
+        if (port < 0) {
+            return null;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        serve(server, "/metrics", "text/plain; version=0.0.4; charset=utf-8", query -> registry.scrape());
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MetricsServer");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Metrics available at http://localhost:" + server.getAddress().getPort() + "/metrics");
+        return server;
+    }
+
+    /**
+     * Serves another local endpoint from the same server, e.g. a query API of the system;
+     * the handler gets the raw query string (null without one) and returns the response body.
+     * An IllegalArgumentException of the handler is answered with 400 (bad query), an IllegalStateException
+     * with 503 (not available right now); the exception message is the body.
+     */
+    public static void serve(HttpServer server, String path, String contentType, Function<String, String> handler) {
+        server.createContext(path, exchange -> {
+            try {
+                int status = 200;
+                String text;
+                try {
+                    text = handler.apply(exchange.getRequestURI().getRawQuery());
+                } catch (IllegalArgumentException e) {
+                    status = 400;
+                    text = e.getMessage() + "\n";
+                } catch (IllegalStateException e) {
+                    status = 503;
+                    text = e.getMessage() + "\n";
+                }
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+}
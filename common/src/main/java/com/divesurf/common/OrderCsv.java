@@ -0,0 +1,47 @@
+package com.divesurf.common;
+
+/**
+ * Field access for the order CSV lines passed between the systems
+ * ("customerId,firstName,lastName,overallItems,divingSuits,surfboards,orderId,valid,validationResult,...").
+ * A line that is missing or too short is rejected with an {@link IllegalArgumentException}, so the routes
+ * quarantine it without redelivery; any other failure is retried.
+ */
+public final class OrderCsv {
+    /** Index of the order id. */
+    public static final int ORDER_ID = 6;
+    /** Index of the number of items of the order. */
+    public static final int OVERALL_ITEMS = 3;
+
+    private OrderCsv() {
+    }
+
+    /**
+     * The fields of the line (untrimmed, empty trailing fields kept).
+     *
+     * @throws IllegalArgumentException if the line is null or has fewer than minFields fields
+     */
+    public static String[] split(String csv, int minFields) {
+        if (csv == null) {
+            throw new IllegalArgumentException("Invalid message format: no body");
+        }
+        String[] fields = csv.split(",", -1);
+        if (fields.length < minFields) {
+            throw new IllegalArgumentException("Invalid message format: " + csv);
+        }
+        return fields;
+    }
+
+    /** The order id of the line. */
+    public static String orderId(String csv) {
+        return split(csv, ORDER_ID + 1)[ORDER_ID].trim();
+    }
+
+    /**
+     * The number of items of the order.
+     *
+     * @throws NumberFormatException if the field is no number
+     */
+    public static int overallItems(String csv) {
+        return Integer.parseInt(split(csv, OVERALL_ITEMS + 1)[OVERALL_ITEMS].trim());
+    }
+}
@@ -0,0 +1,289 @@
+package com.divesurf.common;
+
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Envelope mode: many orders in one JMS message on the high-volume hops, so the broker's per-message cost is paid
+ * once per envelope instead of once per order. An envelope is a text message with the {@link #COUNT_HEADER}
+ * property and one line per order: the order's properties and its body, URL-encoded, separated by a tab.
+ * The receiving stage opens the envelope and processes, routes and (on failure) quarantines every order on its own.
+ * <p>
+ * Envelopes keep the message groups of {@link CustomerSequence}: a customer's orders always go into the envelopes of
+ * the same envelope group ({@link #groupOf}), and the envelopes carry that group, so each customer's orders still
+ * reach one consumer in order.
+ */
+public final class OrderEnvelope {
+    /** Number of orders in the envelope; only envelopes have this property. */
+    public static final String COUNT_HEADER = "orderEnvelope";
+
+    private static final LongAdder ENVELOPES_SENT = new LongAdder();
+    private static final LongAdder ORDERS_PACKED = new LongAdder();
+    private static final LongAdder ORDERS_UNPACKED = new LongAdder();
+
+    private OrderEnvelope() {
+    }
+
+    /** Orders per envelope from -Dpipeline.envelope.maxOrders; 0 (default) or 1 sends every order on its own. */
+    public static int maxOrdersFromSystemProperties() {
+        return Integer.getInteger("pipeline.envelope.maxOrders", 0);
+    }
+
+    public static boolean isEnabled(int maxOrders) {
+        return maxOrders > 1;
+    }
+
+    /** The envelope group of a customer's message group, one of -Dpipeline.envelope.groups (default 4). */
+    public static String groupOf(String customerGroup) {
+        int groups = Integer.getInteger("pipeline.envelope.groups", 4);
+        return "envelope-" + (customerGroup == null ? 0 : (customerGroup.hashCode() & 0x7fffffff) % groups);
+    }
+
+    public static boolean isEnvelope(Message message) throws JMSException {
+        return message.propertyExists(COUNT_HEADER);
+    }
+
+    /** The body of an envelope under construction. */
+    public static final class Builder {
+        private final StringBuilder text = new StringBuilder(1024);
+        private int size;
+
+        /**
+         * Adds an order; JMS and Camel headers (except the message group) and headers that cannot be JMS properties
+         * are left out.
+         */
+        public void add(String body, Map<String, ?> properties) {
+            if (size++ > 0) {
+                text.append('\n');
+            }
+            boolean first = true;
+            for (Map.Entry<String, ?> property : properties.entrySet()) {
+                String name = property.getKey();
+                Object value = property.getValue();
+                char type = typeOf(value);
+                if (type == 0 || COUNT_HEADER.equals(name) || !isPropertyName(name) || name.startsWith("Camel")
+                        || (name.startsWith("JMS") && !CustomerSequence.GROUP_HEADER.equals(name))) {
+                    continue;
+                }
+                text.append(first ? "" : "&").append(name).append('=').append(type).append(urlEncode(String.valueOf(value)));
+                first = false;
+            }
+            text.append('\t').append(urlEncode(body));
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** The envelope's body; counts the envelope as sent. */
+        public String build() {
+            ENVELOPES_SENT.increment();
+            ORDERS_PACKED.add(size);
+            return text.toString();
+        }
+    }
+
+    /** One order of an envelope. */
+    public static final class Entry {
+        private final String body;
+        private final Map<String, Object> properties;
+
+        Entry(String body, Map<String, Object> properties) {
+            this.body = body;
+            this.properties = properties;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public Map<String, Object> getProperties() {
+            return properties;
+        }
+    }
+
+    /** Decodes one line of an envelope. */
+    public static Entry decode(String line) {
+        int tab = line.indexOf('\t');
+        if (tab < 0) {
+            throw new IllegalArgumentException("Not an envelope line: " + line);
+        }
+        Map<String, Object> properties = new LinkedHashMap<>();
+        if (tab > 0) {
+            for (String property : line.substring(0, tab).split("&")) {
+                int equals = property.indexOf('=');
+                String value = urlDecode(property.substring(equals + 2));
+                properties.put(property.substring(0, equals), parse(property.charAt(equals + 1), value));
+            }
+        }
+        ORDERS_UNPACKED.increment();
+        return new Entry(urlDecode(line.substring(tab + 1)), properties);
+    }
+
+    /**
+     * The orders of an envelope as messages of their own. They do not share the envelope's redelivery state:
+     * the receiving stage handles, and if necessary quarantines, each of them separately.
+     */
+    public static List<Message> open(Message envelope) throws JMSException {
+        String[] lines = ((TextMessage) envelope).getText().split("\n");
+        List<Message> orders = new ArrayList<>(lines.length);
+        for (String line : lines) {
+            Entry entry = decode(line);
+            ActiveMQTextMessage order = new ActiveMQTextMessage();
+            order.setText(entry.getBody());
+            for (Map.Entry<String, Object> property : entry.getProperties().entrySet()) {
+                order.setObjectProperty(property.getKey(), property.getValue());
+            }
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    /**
+     * Collects the outputs of one micro-batch per destination and envelope group and sends them as envelopes of up
+     * to maxOrders orders through the batch's session, so they are committed with the batch. With envelope mode off,
+     * every order is sent at once.
+     */
+    public static final class Packer {
+        private final Session session;
+        private final MessageProducer producer;
+        private final int maxOrders;
+        private final Map<Destination, Map<String, Builder>> pending = new LinkedHashMap<>();
+
+        public Packer(Session session, MessageProducer producer, int maxOrders) {
+            this.session = session;
+            this.producer = producer;
+            this.maxOrders = maxOrders;
+        }
+
+        public void send(Destination destination, TextMessage order) throws JMSException {
+            if (!isEnabled(maxOrders)) {
+                producer.send(destination, order);
+                return;
+            }
+            Map<String, Object> properties = new LinkedHashMap<>();
+            Enumeration<?> names = order.getPropertyNames();
+            while (names.hasMoreElements()) {
+                String name = (String) names.nextElement();
+                properties.put(name, order.getObjectProperty(name));
+            }
+            // the message group is a header of the message, not one of its properties
+            String customerGroup = order.getStringProperty(CustomerSequence.GROUP_HEADER);
+            if (customerGroup != null) {
+                properties.put(CustomerSequence.GROUP_HEADER, customerGroup);
+            }
+            String group = groupOf(customerGroup);
+            Builder builder = pending.computeIfAbsent(destination, d -> new LinkedHashMap<>())
+                .computeIfAbsent(group, g -> new Builder());
+            builder.add(order.getText(), properties);
+            if (builder.size() >= maxOrders) {
+                send(destination, group, builder);
+                pending.get(destination).remove(group);
+            }
+        }
+
+        /** Sends the envelopes that are not full yet; called at the end of the batch. */
+        public void flush() throws JMSException {
+            for (Map.Entry<Destination, Map<String, Builder>> destination : pending.entrySet()) {
+                for (Map.Entry<String, Builder> group : destination.getValue().entrySet()) {
+                    send(destination.getKey(), group.getKey(), group.getValue());
+                }
+            }
+            pending.clear();
+        }
+
+        private void send(Destination destination, String group, Builder builder) throws JMSException {
+            TextMessage envelope = session.createTextMessage(builder.build());
+            envelope.setIntProperty(COUNT_HEADER, builder.size());
+            envelope.setStringProperty(CustomerSequence.GROUP_HEADER, group);
+            producer.send(destination, envelope);
+        }
+    }
+
+    public static void registerMetrics(MetricsRegistry registry) {
+        registry.counter("pipeline_envelopes_sent_total", "Envelopes sent by this system", ENVELOPES_SENT::sum);
+        String help = "Orders packed into or unpacked from envelopes";
+        registry.counter("pipeline_envelope_orders_total", help, ORDERS_PACKED::sum, "direction", "packed");
+        registry.counter("pipeline_envelope_orders_total", help, ORDERS_UNPACKED::sum, "direction", "unpacked");
+    }
+
+    public static String stats() {
+        long envelopes = ENVELOPES_SENT.sum();
+        return String.format("Envelopes: sent=%d ordersPacked=%d avgOrders=%.1f ordersUnpacked=%d", envelopes,
+            ORDERS_PACKED.sum(), envelopes == 0 ? 0.0 : (double) ORDERS_PACKED.sum() / envelopes, ORDERS_UNPACKED.sum());
+    }
+
+    private static char typeOf(Object value) {
+        if (value instanceof String) {
+            return 'S';
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return 'I';
+        } else if (value instanceof Long) {
+            return 'L';
+        } else if (value instanceof Double || value instanceof Float) {
+            return 'D';
+        } else if (value instanceof Boolean) {
+            return 'B';
+        }
+        return 0;
+    }
+
+    private static Object parse(char type, String value) {
+        switch (type) {
+            case 'I':
+                return Integer.valueOf(value);
+            case 'L':
+                return Long.valueOf(value);
+            case 'D':
+                return Double.valueOf(value);
+            case 'B':
+                return Boolean.valueOf(value);
+            default:
+                return value;
+        }
+    }
+
+    // Headers such as Camel's internal ones may not be valid JMS property names
+    private static boolean isPropertyName(String name) {
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String urlEncode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String urlDecode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
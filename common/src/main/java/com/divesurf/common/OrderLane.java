@@ -0,0 +1,28 @@
+package com.divesurf.common;
+
+/**
+ * Processing lanes by order size. Every stage has separate destinations and consumers per lane,
+ * so a burst of large orders does not queue up in front of small ones.
+ */
+public enum OrderLane {
+    SMALL("small"),
+    LARGE("large");
+
+    /** Orders with more items than this are large (same rule as the inventory router). */
+    public static final int LARGE_ORDER_THRESHOLD = 10;
+
+    private final String suffix;
+
+    OrderLane(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public static OrderLane of(int overallItems) {
+        return overallItems > LARGE_ORDER_THRESHOLD ? LARGE : SMALL;
+    }
+
+    /** Destination suffix, e.g. "billingToInventory." + lane.suffix() */
+    public String suffix() {
+        return suffix;
+    }
+}
@@ -0,0 +1,245 @@
+package com.divesurf.common;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Asynchronous per-order logging. Each route logs through its own {@link Route}, which samples events
+ * (log.sampleRate, 1 = every event) and limits them per second (log.maxPerSecond, 0 = no limit); both can be set
+ * per route as log.&lt;route&gt;.sampleRate and log.&lt;route&gt;.maxPerSecond. Accepted events are queued with
+ * their field values as they are, and a background thread renders them as
+ * {@code time system=.. route=.. event=.. key=value ...} lines, so an event that is not logged costs no rendering
+ * at all, and one that is costs the order thread no formatting or I/O. A {@link Supplier} field is only called
+ * by the writer; other values must not change after they were logged. If the writer falls behind, events are
+ * dropped rather than slowing down the orders.
+ */
+public class OrderLog implements AutoCloseable {
+
+    private final String system;
+    private final double sampleRate;
+    private final int maxPerSecond;
+    private final BlockingQueue<Event> events;
+    private final PrintStream out;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param sampleRate   default share of events that are logged, per route
+     * @param maxPerSecond default maximum of logged events per route and second, 0 for no limit
+     * @param bufferSize   events waiting for the writer before further events are dropped
+     */
+    public OrderLog(String system, double sampleRate, int maxPerSecond, int bufferSize, PrintStream out) {
+        this.system = system;
+        this.sampleRate = sampleRate;
+        this.maxPerSecond = maxPerSecond;
+        this.events = new ArrayBlockingQueue<>(bufferSize);
+        this.out = out;
+        writerThread = new Thread(this::writeEvents, "OrderLog[" + system + "]");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /** Log configured by the log.* system properties, writing to standard output. */
+    public static OrderLog fromSystemProperties(String system) {
+        return new OrderLog(system,
+            Double.parseDouble(System.getProperty("log.sampleRate", "1")),
+            Integer.getInteger("log.maxPerSecond", 100),
+            Integer.getInteger("log.bufferSize", 8192),
+            System.out);
+    }
+
+    /** The log of one route; the same instance is returned for the same name. */
+    public Route route(String name) {
+        return routes.computeIfAbsent(name, n -> new Route(n,
+            Double.parseDouble(System.getProperty("log." + n + ".sampleRate", String.valueOf(sampleRate))),
+            Integer.getInteger("log." + n + ".maxPerSecond", maxPerSecond)));
+    }
+
+    /** Per-route sampling and rate limit in front of the shared writer. */
+    public final class Route {
+        private final String name;
+        private final double sampleRate;
+        private final int maxPerSecond;
+        // second of the current rate limit window and events accepted in it
+        private final AtomicLong window = new AtomicLong();
+        private final AtomicLong inWindow = new AtomicLong();
+        private final LongAdder sampledOut = new LongAdder();
+        private final LongAdder rateLimited = new LongAdder();
+
+        private Route(String name, double sampleRate, int maxPerSecond) {
+            this.name = name;
+            this.sampleRate = sampleRate;
+            this.maxPerSecond = maxPerSecond;
+        }
+
+        /**
+         * Decides whether the next event is logged. Callers that need work to build the fields check this first
+         * and then call {@link #write}; otherwise {@link #log} does both.
+         */
+        public boolean sample() {
+            if (sampleRate < 1 && (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+                sampledOut.increment();
+                return false;
+            }
+            if (maxPerSecond > 0) {
+                long second = System.currentTimeMillis() / 1000;
+                long current = window.get();
+                if (current != second && window.compareAndSet(current, second)) {
+                    inWindow.set(0);
+                }
+                if (inWindow.incrementAndGet() > maxPerSecond) {
+                    rateLimited.increment();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Logs an event with fields given as name/value pairs, if it is sampled. */
+        public void log(String event, Object... fields) {
+            if (sample()) {
+                write(event, fields);
+            }
+        }
+
+        /** Queues an event that was already sampled. */
+        public void write(String event, Object... fields) {
+            if (!events.offer(new Event(System.currentTimeMillis(), name, event, fields))) {
+                dropped.increment();
+            }
+        }
+
+        public long getSampledOut() { return sampledOut.sum(); }
+        public long getRateLimited() { return rateLimited.sum(); }
+    }
+
+    private void writeEvents() {
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        time.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<Event> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder(4096);
+        try {
+            while (running || !events.isEmpty()) {
+                Event first = events.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                events.drainTo(batch);
+                for (Event event : batch) {
+                    render(text, time, event);
+                }
+                out.print(text);
+                out.flush();
+                written.add(batch.size());
+                batch.clear();
+                text.setLength(0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void render(StringBuilder text, SimpleDateFormat time, Event event) {
+        text.append(time.format(new Date(event.millis)))
+            .append(" system=").append(system)
+            .append(" route=").append(event.route)
+            .append(" event=").append(event.name);
+        Object[] fields = event.fields;
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            Object value = fields[i + 1];
+            if (value instanceof Supplier) {
+                try {
+                    value = ((Supplier<?>) value).get();
+                } catch (RuntimeException e) {
+                    value = "<" + e + ">";
+                }
+            }
+            text.append(' ').append(fields[i]).append('=');
+            appendValue(text, String.valueOf(value));
+        }
+        text.append('\n');
+    }
+
+    // Values with spaces, quotes or '=' are quoted, so every line splits into its fields again
+    private static void appendValue(StringBuilder text, String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c == '\n';
+        }
+        if (!quote) {
+            text.append(value);
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    /** Writes the queued events and stops the writer. */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        writerThread.join();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.counter("log_events_written_total", "Order log events written", written::sum);
+        registry.counter("log_events_dropped_total", "Order log events dropped because the writer fell behind", dropped::sum);
+        registry.family("log_events_sampled_out_total", "Order log events skipped by sampling", "counter", "route",
+            () -> perRoute(Route::getSampledOut));
+        registry.family("log_events_rate_limited_total", "Order log events skipped by the rate limit", "counter", "route",
+            () -> perRoute(Route::getRateLimited));
+    }
+
+    private Map<String, Long> perRoute(ToLongFunction<Route> value) {
+        Map<String, Long> counts = new TreeMap<>();
+        routes.forEach((name, route) -> counts.put(name, value.applyAsLong(route)));
+        return counts;
+    }
+
+    public long getWritten() { return written.sum(); }
+    public long getDropped() { return dropped.sum(); }
+
+    private static final class Event {
+        final long millis;
+        final String route;
+        final String name;
+        final Object[] fields;
+
+        Event(long millis, String route, String name, Object[] fields) {
+            this.millis = millis;
+            this.route = route;
+            this.name = name;
+            this.fields = fields;
+        }
+    }
+}
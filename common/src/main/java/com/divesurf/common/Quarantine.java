@@ -0,0 +1,88 @@
+package com.divesurf.common;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.RedeliveryPolicy;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared settings and per-route counters for poison messages. A message that still fails after
+ * {@link #MAX_REDELIVERIES} redeliveries (waiting {@link #REDELIVERY_DELAY_MILLIS}, doubled each time, at most
+ * {@link #MAX_REDELIVERY_DELAY_MILLIS}) is moved with its original body to the {@link #QUEUE} queue, and the
+ * failure is described in the quarantine headers. Malformed messages are quarantined without redelivery.
+ */
+public class Quarantine {
+    public static final String QUEUE = "quarantine";
+
+    public static final String SYSTEM_HEADER = "quarantineSystem";
+    public static final String ROUTE_HEADER = "quarantineRoute";
+    public static final String REASON_HEADER = "quarantineReason";
+    public static final String EXCEPTION_HEADER = "quarantineException";
+    public static final String ATTEMPTS_HEADER = "quarantineAttempts";
+
+    public static final int MAX_REDELIVERIES = Integer.getInteger("errors.maxRedeliveries", 3);
+    public static final long REDELIVERY_DELAY_MILLIS = Long.getLong("errors.redeliveryDelayMillis", 500L);
+    public static final long MAX_REDELIVERY_DELAY_MILLIS = Long.getLong("errors.maxRedeliveryDelayMillis", 10000L);
+
+    private final String system;
+    private final ConcurrentHashMap<String, LongAdder> quarantined = new ConcurrentHashMap<>();
+
+    public Quarantine(String system) {
+        this.system = system;
+    }
+
+    /**
+     * Redelivery by the broker client for rolled back transactions (micro-batches): same backoff as the routes.
+     * The limit is one above ours, so {@link TransactedBatchConsumer} quarantines the message before the
+     * client would hand it to the broker's default dead letter queue.
+     */
+    public static void applyRedeliveryPolicy(ActiveMQConnectionFactory connectionFactory) {
+        RedeliveryPolicy policy = connectionFactory.getRedeliveryPolicy();
+        policy.setMaximumRedeliveries(MAX_REDELIVERIES + 1);
+        policy.setInitialRedeliveryDelay(REDELIVERY_DELAY_MILLIS);
+        policy.setRedeliveryDelay(REDELIVERY_DELAY_MILLIS);
+        policy.setUseExponentialBackOff(true);
+        policy.setBackOffMultiplier(2);
+        policy.setMaximumRedeliveryDelay(MAX_REDELIVERY_DELAY_MILLIS);
+    }
+
+    /** Counts a quarantined message of the given route and logs the reason. */
+    public void record(String route, String reason) {
+        quarantined.computeIfAbsent(route, r -> new LongAdder()).increment();
+        System.err.println("Quarantined message from " + system + "/" + route + ": " + reason);
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.family("quarantined_messages_total", "Poison messages moved to the quarantine queue", "counter",
+            "route", this::snapshot);
+    }
+
+    public String getSystem() { return system; }
+
+    public long getQuarantined(String route) {
+        LongAdder count = quarantined.get(route);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (LongAdder count : quarantined.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /** Quarantined messages per route, sorted by route. */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        quarantined.forEach((route, count) -> snapshot.put(route, count.sum()));
+        return snapshot;
+    }
+
+    public String stats() {
+        return "Quarantine " + system + ": total=" + getTotal() + " perRoute=" + snapshot();
+    }
+}
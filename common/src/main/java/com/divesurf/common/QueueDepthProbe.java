@@ -0,0 +1,68 @@
+package com.divesurf.common;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import java.util.Enumeration;
+import java.util.function.IntSupplier;
+
+/**
+ * Reads the depth of a queue by browsing it, counting at most maxCount messages
+ * (above that the exact number does not change any scaling decision). Works with any broker,
+ * without JMX access.
+ */
+public class QueueDepthProbe implements IntSupplier, AutoCloseable {
+    private final ConnectionFactory connectionFactory;
+    private final String queueName;
+    private final int maxCount;
+    private Connection connection;
+    private Session session;
+
+    public QueueDepthProbe(ConnectionFactory connectionFactory, String queueName, int maxCount) {
+        this.connectionFactory = connectionFactory;
+        this.queueName = queueName;
+        this.maxCount = maxCount;
+    }
+
+    @Override
+    public synchronized int getAsInt() {
+        try {
+            if (session == null) {
+                connection = connectionFactory.createConnection();
+                connection.start();
+                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            }
+            QueueBrowser browser = session.createBrowser(session.createQueue(queueName));
+            try {
+                int depth = 0;
+                Enumeration<?> messages = browser.getEnumeration();
+                while (depth < maxCount && messages.hasMoreElements()) {
+                    messages.nextElement();
+                    depth++;
+                }
+                return depth;
+            } finally {
+                browser.close();
+            }
+        } catch (JMSException e) {
+            System.err.println("Could not read depth of " + queueName + ": " + e.getMessage());
+            close();
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException ignored) {
+                // reconnect on the next probe
+            }
+        }
+        connection = null;
+        session = null;
+    }
+}
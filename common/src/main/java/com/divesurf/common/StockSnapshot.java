@@ -0,0 +1,98 @@
+package com.divesurf.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local, read-mostly copy of the inventory's stock levels at order entry. The inventory publishes compact
+ * snapshots ("surfboards,divingSuits,publishedMillis") whenever the stock changes and as a heartbeat;
+ * {@link #check(int, int)} then tells whether an order asks for more items than are left in total. Stock only
+ * goes down between snapshots (orders in flight take more), so such an order would certainly be rejected by the
+ * inventory and can be rejected before it uses pipeline capacity. Without a snapshot younger than maxAgeMillis
+ * the answer is {@link Verdict#UNKNOWN} and the order goes through as before.
+ */
+public class StockSnapshot {
+
+    public enum Verdict { AVAILABLE, EXCEEDS_STOCK, UNKNOWN }
+
+    private final long maxAgeMillis;
+    private volatile Levels levels;
+    private final LongAdder exceeded = new LongAdder();
+
+    public StockSnapshot(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /** The broadcast form of the given stock levels. */
+    public static String format(int surfboards, int divingSuits, long publishedMillis) {
+        return surfboards + "," + divingSuits + "," + publishedMillis;
+    }
+
+    /**
+     * Applies a broadcast snapshot; snapshots older than the current one are ignored.
+     *
+     * @throws NumberFormatException if the message is malformed
+     */
+    public synchronized boolean update(String message) {
+        String[] parts = message == null ? new String[0] : message.trim().split(",");
+        if (parts.length != 3) {
+            throw new NumberFormatException("Invalid stock snapshot: " + message);
+        }
+        long publishedMillis = Long.parseLong(parts[2]);
+        Levels current = levels;
+        if (current != null && publishedMillis < current.publishedMillis) {
+            return false;
+        }
+        levels = new Levels(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), publishedMillis,
+            System.currentTimeMillis());
+        return true;
+    }
+
+    public Verdict check(int surfboards, int divingSuits) {
+        Levels current = levels;
+        // the age is measured by the local clock, so clock differences between hosts do not matter
+        if (current == null || System.currentTimeMillis() - current.receivedMillis > maxAgeMillis) {
+            return Verdict.UNKNOWN;
+        }
+        if (surfboards > current.surfboards || divingSuits > current.divingSuits) {
+            exceeded.increment();
+            return Verdict.EXCEEDS_STOCK;
+        }
+        return Verdict.AVAILABLE;
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("stock_snapshot_age_seconds", "Age of the latest stock snapshot", () -> {
+            Levels current = levels;
+            return current == null ? Double.POSITIVE_INFINITY : (System.currentTimeMillis() - current.receivedMillis) / 1000.0;
+        });
+        registry.counter("stock_snapshot_exceeded_total", "Orders asking for more items than in stock", exceeded::sum);
+    }
+
+    /** Surfboards in the latest snapshot, -1 without one. */
+    public int getSurfboards() {
+        Levels current = levels;
+        return current == null ? -1 : current.surfboards;
+    }
+
+    /** Diving suits in the latest snapshot, -1 without one. */
+    public int getDivingSuits() {
+        Levels current = levels;
+        return current == null ? -1 : current.divingSuits;
+    }
+
+    public long getExceeded() { return exceeded.sum(); }
+
+    private static final class Levels {
+        final int surfboards;
+        final int divingSuits;
+        final long publishedMillis;
+        final long receivedMillis;
+
+        Levels(int surfboards, int divingSuits, long publishedMillis, long receivedMillis) {
+            this.surfboards = surfboards;
+            this.divingSuits = divingSuits;
+            this.publishedMillis = publishedMillis;
+            this.receivedMillis = receivedMillis;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.divesurf.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rebuilds per-order timelines from the span files written by {@link Tracer}.
+ * <p>
+ * Usage: {@code java com.divesurf.common.TraceTimeline [traceDir] [traceId]} — prints every trace found in
+ * traceDir (default "traces"), or only the given one, as its spans ordered by start time with offsets from
+ * the first span.
+ */
+public class TraceTimeline {
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : "traces");
+        Map<String, List<Span>> traces = load(dir);
+        if (args.length > 1) {
+            List<Span> trace = traces.get(args[1]);
+            if (trace == null) {
+                System.out.println("No spans for trace " + args[1] + " in " + dir);
+                return;
+            }
+            print(args[1], trace, System.out);
+        } else {
+            traces.forEach((traceId, trace) -> print(traceId, trace, System.out));
+            System.out.println(traces.size() + " traces");
+        }
+    }
+
+    /** All spans of all span files in the directory, grouped by trace id and sorted by start time. */
+    public static Map<String, List<Span>> load(File dir) throws IOException {
+        Map<String, List<Span>> traces = new TreeMap<>();
+        File[] files = dir.listFiles((d, name) -> name.contains(".spans"));
+        if (files == null) {
+            return traces;
+        }
+        for (File file : files) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(",", 6);
+                    if (parts.length < 6) {
+                        continue; // torn line of a running process
+                    }
+                    try {
+                        traces.computeIfAbsent(parts[0], id -> new ArrayList<>()).add(new Span(
+                            Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], parts[4], parts[5]));
+                    } catch (NumberFormatException e) {
+                        // torn line, skip
+                    }
+                }
+            }
+        }
+        for (List<Span> trace : traces.values()) {
+            trace.sort(Comparator.comparingLong((Span s) -> s.startMillis));
+        }
+        return traces;
+    }
+
+    public static void print(String traceId, List<Span> trace, PrintStream out) {
+        long start = trace.get(0).startMillis;
+        long end = start;
+        for (Span span : trace) {
+            end = Math.max(end, span.startMillis + span.durationMicros / 1000);
+        }
+        out.println("Trace " + traceId + ": " + trace.size() + " spans, " + (end - start) + " ms, systems "
+            + systems(trace));
+        for (Span span : trace) {
+            out.println(String.format("  +%6d ms %9.3f ms  %-16s %-28s %s",
+                span.startMillis - start, span.durationMicros / 1000.0, span.system, span.route, span.name));
+        }
+    }
+
+    private static String systems(List<Span> trace) {
+        Map<String, Boolean> systems = new LinkedHashMap<>();
+        for (Span span : trace) {
+            systems.put(span.system, Boolean.TRUE);
+        }
+        return String.join(" -> ", systems.keySet());
+    }
+
+    public static final class Span {
+        public final long startMillis;
+        public final long durationMicros;
+        public final String system;
+        public final String route;
+        public final String name;
+
+        Span(long startMillis, long durationMicros, String system, String route, String name) {
+            this.startMillis = startMillis;
+            this.durationMicros = durationMicros;
+            this.system = system;
+            this.route = route;
+            this.name = name;
+        }
+    }
+}
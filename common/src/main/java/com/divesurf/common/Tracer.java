@@ -0,0 +1,178 @@
+package com.divesurf.common;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampled order tracing. The order entry systems give a sampled order a trace id, which travels with the order
+ * as the {@link #TRACE_ID} JMS header; every system records spans of traced orders only, so unsampled orders
+ * cost one header lookup. Spans are queued and written by a background thread to a rolling file per process
+ * ({@code <dir>/<system>-<pid>.spans}, lines "traceId,startMillis,durationMicros,system,route,name");
+ * if the writer falls behind, spans are dropped rather than slowing down the orders.
+ * {@link TraceTimeline} rebuilds the per-order timelines from these files.
+ */
+public class Tracer implements AutoCloseable {
+    public static final String TRACE_ID = "traceId";
+
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private final String system;
+    private final double sampleRate;
+    private final File dir;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final BlockingQueue<String> spans;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    /**
+     * @param sampleRate share of new orders that are traced (0 disables tracing, 1 traces every order)
+     */
+    public Tracer(String system, double sampleRate, File dir, long maxFileBytes, int maxFiles) {
+        this.system = system;
+        this.sampleRate = sampleRate;
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        if (sampleRate > 0) {
+            spans = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            running = true;
+            writerThread = new Thread(this::writeSpans, "TraceWriter[" + system + "]");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            spans = null;
+            writerThread = null;
+        }
+    }
+
+    /** Tracer configured by the tracing.* system properties; disabled unless tracing.sampleRate is above 0. */
+    public static Tracer fromSystemProperties(String system) {
+        return new Tracer(system,
+            Double.parseDouble(System.getProperty("tracing.sampleRate", "0")),
+            new File(System.getProperty("tracing.dir", "traces")),
+            Long.getLong("tracing.maxFileBytes", 10L * 1024 * 1024),
+            Integer.getInteger("tracing.maxFiles", 5));
+    }
+
+    public boolean isEnabled() {
+        return spans != null;
+    }
+
+    /** A new trace id if this order is sampled, otherwise null. */
+    public String newTraceId() {
+        if (spans == null || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return null;
+        }
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    }
+
+    /** Records a span of a traced order; does nothing for a null trace id or when tracing is disabled. */
+    public void span(String traceId, String route, String name, long startMillis, long durationMicros) {
+        if (traceId == null || spans == null) {
+            return;
+        }
+        String line = traceId + "," + startMillis + "," + durationMicros + "," + system + ","
+            + clean(route) + "," + clean(name) + "\n";
+        if (!spans.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static String clean(String value) {
+        return value == null ? "" : value.replace(',', ';').replace('\n', ' ');
+    }
+
+    private void writeSpans() {
+        File file = new File(dir, system + "-" + ManagementFactory.getRuntimeMXBean().getName().split("@")[0] + ".spans");
+        List<String> batch = new ArrayList<>();
+        Writer out = null;
+        try {
+            dir.mkdirs();
+            out = open(file);
+            long size = file.length();
+            while (running || !spans.isEmpty()) {
+                String first = spans.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                spans.drainTo(batch);
+                for (String line : batch) {
+                    out.write(line);
+                    size += line.length();
+                }
+                out.flush();
+                written.addAndGet(batch.size());
+                batch.clear();
+                if (size >= maxFileBytes) {
+                    out.close();
+                    roll(file);
+                    out = open(file);
+                    size = 0;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Trace export stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // nothing left to write to
+                }
+            }
+        }
+    }
+
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    // <file>.1 is the most recent full file, <file>.<maxFiles - 1> the oldest kept
+    private void roll(File file) {
+        new File(file.getPath() + "." + (maxFiles - 1)).delete();
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        file.renameTo(new File(file.getPath() + "." + 1));
+    }
+
+    /** Writes the queued spans and stops the writer thread. */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        if (writerThread != null) {
+            writerThread.join();
+        }
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.counter("tracing_spans_written_total", "Spans written to the trace file", written::get);
+        registry.counter("tracing_spans_dropped_total", "Spans dropped because the trace writer fell behind", dropped::get);
+    }
+
+    public long getWritten() { return written.get(); }
+    public long getDropped() { return dropped.get(); }
+
+    public String stats() {
+        return "Tracing " + system + ": sampleRate=" + sampleRate + " spansWritten=" + getWritten() + " dropped=" + getDropped();
+    }
+}
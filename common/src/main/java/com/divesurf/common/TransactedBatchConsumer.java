@@ -0,0 +1,401 @@
+package com.divesurf.common;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consumes a queue in micro-batches inside one local JMS transaction.
+ * A batch is closed after batchSize messages or lingerMillis after its first message, whichever comes first.
+ * The handler sends its outputs through the same transacted session, and everything is committed once;
+ * if the handler fails, the whole batch is rolled back and redelivered by the broker.
+ * With a {@link Quarantine}, a message that comes back more than {@link Quarantine#MAX_REDELIVERIES} times
+ * is moved to the quarantine queue in the next batch's transaction instead of failing its batch again,
+ * and a message the handler rejects (e.g. a malformed order) is moved there in its own batch's transaction.
+ * An {@link OrderEnvelope} is opened into its orders, so the handler always gets one message per order;
+ * a batch then holds at least all orders of the envelopes it took. The orders of an envelope cannot be redelivered
+ * on their own, so one that fails is quarantined in the batch's transaction (see {@link Rejects#fail}) instead of
+ * rolling back the envelope's other orders with it; an envelope that keeps failing as a whole is quarantined as is.
+ * Quarantined messages are counted once their batch is committed.
+ */
+public class TransactedBatchConsumer {
+
+    public interface BatchHandler {
+        /**
+         * Processes one batch. Outputs must be sent with the given (anonymous) producer,
+         * so they become part of the batch transaction. A message that can never be processed is passed to
+         * rejects and skipped, instead of failing (and rolling back) the whole batch.
+         */
+        void handle(List<Message> batch, Session session, MessageProducer producer, Rejects rejects) throws Exception;
+
+        /** Called after the batch transaction was committed. */
+        default void afterCommit() {
+        }
+
+        /** Called after the batch transaction was rolled back. */
+        default void afterRollback() {
+        }
+    }
+
+    /** Takes the messages of a batch that the handler cannot process. */
+    public interface Rejects {
+        /**
+         * Moves the message to the quarantine queue in the batch transaction. Without a quarantine,
+         * the cause is rethrown, so the batch is rolled back and redelivered.
+         */
+        void reject(Message message, Exception cause) throws Exception;
+
+        /**
+         * Takes a message whose processing failed, maybe only for the moment. A message of its own is retried:
+         * the cause is rethrown, so the batch is rolled back and the message comes back on its own. An order of
+         * an envelope would come back with all orders of its envelope, so it is {@link #reject rejected} instead.
+         */
+        void fail(Message message, Exception cause) throws Exception;
+    }
+
+    private final ConnectionFactory connectionFactory;
+    private final String queueName;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final BatchHandler handler;
+    private final Quarantine quarantine;
+
+    // Delay before reconnecting after the connection failed, doubled up to the maximum while it keeps failing
+    private static final long RECONNECT_MIN_MILLIS = Long.getLong("batch.reconnectMinMillis", 500L);
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("batch.reconnectMaxMillis", 30000L);
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+    private final AtomicLong envelopes = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private volatile String lastFailure = "unknown";
+    // quarantined in the open batch: {route, reason}, counted once the batch is committed
+    private final List<String[]> quarantinedInBatch = new ArrayList<>();
+
+    private volatile boolean running;
+    private volatile boolean connected;
+    private volatile JMSException connectionFailure;
+    private Connection connection;
+    private Thread worker;
+
+    public TransactedBatchConsumer(ConnectionFactory connectionFactory, String queueName,
+                                   int batchSize, long lingerMillis, BatchHandler handler) {
+        this(connectionFactory, queueName, batchSize, lingerMillis, handler, null);
+    }
+
+    public TransactedBatchConsumer(ConnectionFactory connectionFactory, String queueName,
+                                   int batchSize, long lingerMillis, BatchHandler handler, Quarantine quarantine) {
+        if (batchSize <= 0 || lingerMillis < 0) {
+            throw new IllegalArgumentException("batchSize must be positive and lingerMillis not negative");
+        }
+        this.connectionFactory = connectionFactory;
+        this.queueName = queueName;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.handler = handler;
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Connects and starts consuming. If the connection fails later (e.g. the broker restarts), the consumer
+     * reconnects with a growing delay until it is stopped.
+     */
+    public synchronized void start() throws JMSException {
+        if (running) {
+            return;
+        }
+        connection = connect();
+        running = true;
+        worker = new Thread(this::consume, "BatchConsumer[" + queueName + "]");
+        worker.start();
+    }
+
+    public synchronized void stop() throws Exception {
+        running = false;
+        if (worker != null) {
+            worker.join();
+            worker = null;
+        }
+    }
+
+    private Connection connect() throws JMSException {
+        Connection c = connectionFactory.createConnection();
+        try {
+            connectionFailure = null;
+            c.setExceptionListener(e -> connectionFailure = e);
+            c.start();
+        } catch (JMSException e) {
+            close(c);
+            throw e;
+        }
+        return c;
+    }
+
+    // Consumes until stopped, reconnecting whenever the connection or session fails
+    private void consume() {
+        long delay = RECONNECT_MIN_MILLIS;
+        try {
+            while (running) {
+                try {
+                    if (connection == null) {
+                        connection = connect();
+                        reconnects.incrementAndGet();
+                        System.err.println("Batch consumer for " + queueName + " reconnected");
+                    }
+                    delay = RECONNECT_MIN_MILLIS;
+                    consumeBatches();
+                } catch (JMSException e) {
+                    connected = false;
+                    if (!running) {
+                        break;
+                    }
+                    lastFailure = e.getClass().getName() + ": " + e.getMessage();
+                    System.err.println("Batch consumer for " + queueName + " lost its connection, reconnecting in "
+                        + delay + "ms: " + e.getMessage());
+                    close(connection);
+                    connection = null;
+                    if (!pause(delay)) {
+                        break;
+                    }
+                    delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+                }
+            }
+        } finally {
+            connected = false;
+            close(connection);
+            connection = null;
+        }
+    }
+
+    // Waits before reconnecting; returns false if the consumer was stopped meanwhile
+    private boolean pause(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        try {
+            for (long remaining = millis; running && remaining > 0; remaining = deadline - System.currentTimeMillis()) {
+                Thread.sleep(Math.min(remaining, 100));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return running;
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException ignored) {
+                // the connection failed already
+            }
+        }
+    }
+
+    // Consumes batches on a new session until stopped; throws if the session or its connection fails
+    private void consumeBatches() throws JMSException {
+        Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+        try {
+            MessageConsumer consumer = session.createConsumer(session.createQueue(queueName));
+            MessageProducer producer = session.createProducer(null);
+            List<Message> received = new ArrayList<>(batchSize);
+            List<Message> batch = new ArrayList<>(batchSize);
+            Set<Message> envelopeOrders = Collections.newSetFromMap(new IdentityHashMap<>());
+            BatchRejects rejects = new BatchRejects(session, producer, envelopeOrders);
+            connected = true;
+
+            while (running) {
+                Message first = consumer.receive(1000);
+                if (first == null) {
+                    if (connectionFailure != null) {
+                        throw connectionFailure;
+                    }
+                    continue;
+                }
+                received.add(first);
+                int orders = sizeOf(first);
+                // A redelivered message failed in an earlier batch: retry it on its own,
+                // so a poison message does not keep failing the messages batched with it
+                long deadline = System.currentTimeMillis() + lingerMillis;
+                while (orders < batchSize && !received.get(received.size() - 1).getJMSRedelivered()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Message next = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+                    if (next == null) {
+                        break;
+                    }
+                    received.add(next);
+                    orders += sizeOf(next);
+                }
+
+                try {
+                    if (quarantine != null) {
+                        quarantineRedelivered(received, session, producer);
+                    }
+                    for (Message message : received) {
+                        add(batch, envelopeOrders, message);
+                    }
+                    handler.handle(batch, session, producer, rejects);
+                    session.commit();
+                    batches.incrementAndGet();
+                    messages.addAndGet(batch.size());
+                    countQuarantined();
+                    handler.afterCommit();
+                } catch (Exception e) {
+                    lastFailure = e.getClass().getName() + ": " + e.getMessage();
+                    System.err.println("Batch of " + batch.size() + " messages from " + queueName
+                        + " rolled back: " + e.getMessage());
+                    rollbacks.incrementAndGet();
+                    quarantinedInBatch.clear();
+                    try {
+                        session.rollback();
+                    } finally {
+                        // the broker redelivers the batch also if the rollback failed with the connection
+                        handler.afterRollback();
+                    }
+                }
+                received.clear();
+                batch.clear();
+                envelopeOrders.clear();
+            }
+        } finally {
+            try {
+                session.close();
+            } catch (JMSException ignored) {
+                // the connection is closed next anyway
+            }
+        }
+    }
+
+    // Counts the messages quarantined by the committed batch
+    private void countQuarantined() {
+        for (String[] entry : quarantinedInBatch) {
+            if (quarantine != null) {
+                quarantine.record(entry[0], entry[1]);
+            }
+            quarantined.incrementAndGet();
+        }
+        quarantinedInBatch.clear();
+    }
+
+    private static int sizeOf(Message message) throws JMSException {
+        return OrderEnvelope.isEnvelope(message) ? Math.max(1, message.getIntProperty(OrderEnvelope.COUNT_HEADER)) : 1;
+    }
+
+    private void add(List<Message> batch, Set<Message> envelopeOrders, Message message) throws JMSException {
+        if (OrderEnvelope.isEnvelope(message)) {
+            List<Message> orders = OrderEnvelope.open(message);
+            batch.addAll(orders);
+            envelopeOrders.addAll(orders);
+            envelopes.incrementAndGet();
+        } else {
+            batch.add(message);
+        }
+    }
+
+    // Moves messages (or whole envelopes) that already failed too often out of the batch into the quarantine queue
+    private void quarantineRedelivered(List<Message> batch, Session session, MessageProducer producer) throws JMSException {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            Message message = batch.get(i);
+            if (!message.getJMSRedelivered() || message.getIntProperty("JMSXDeliveryCount") <= Quarantine.MAX_REDELIVERIES + 1) {
+                continue;
+            }
+            quarantine(message, "Batch rolled back: " + lastFailure, null, session, producer);
+            batch.remove(i);
+        }
+    }
+
+    // Takes the messages the handler cannot process; they go to the quarantine queue with the batch's outputs
+    private final class BatchRejects implements Rejects {
+        private final Session session;
+        private final MessageProducer producer;
+        private final Set<Message> envelopeOrders;
+
+        BatchRejects(Session session, MessageProducer producer, Set<Message> envelopeOrders) {
+            this.session = session;
+            this.producer = producer;
+            this.envelopeOrders = envelopeOrders;
+        }
+
+        @Override
+        public void reject(Message message, Exception cause) throws Exception {
+            if (quarantine == null) {
+                throw cause;
+            }
+            quarantine(message, cause.getClass().getName() + ": " + cause.getMessage(), cause.getClass().getName(),
+                session, producer);
+        }
+
+        @Override
+        public void fail(Message message, Exception cause) throws Exception {
+            if (!envelopeOrders.contains(message)) {
+                throw cause;
+            }
+            reject(message, cause);
+        }
+    }
+
+    private void quarantine(Message message, String reason, String exception, Session session,
+                            MessageProducer producer) throws JMSException {
+        Message copy = message instanceof TextMessage
+            ? session.createTextMessage(((TextMessage) message).getText())
+            : session.createMessage();
+        Enumeration<?> names = message.getPropertyNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            if (!name.startsWith("JMSX")) {
+                copy.setObjectProperty(name, message.getObjectProperty(name));
+            }
+        }
+        String route = "batch-" + queueName;
+        copy.setStringProperty(Quarantine.SYSTEM_HEADER, quarantine.getSystem());
+        copy.setStringProperty(Quarantine.ROUTE_HEADER, route);
+        copy.setStringProperty(Quarantine.REASON_HEADER, reason);
+        if (exception != null) {
+            copy.setStringProperty(Quarantine.EXCEPTION_HEADER, exception);
+        }
+        copy.setIntProperty(Quarantine.ATTEMPTS_HEADER, message.propertyExists("JMSXDeliveryCount")
+            ? Math.max(1, message.getIntProperty("JMSXDeliveryCount")) : 1);
+        producer.send(session.createQueue(Quarantine.QUEUE), copy);
+        quarantinedInBatch.add(new String[] {route, reason});
+    }
+
+    public long getBatches() { return batches.get(); }
+    public long getMessages() { return messages.get(); }
+    public long getRollbacks() { return rollbacks.get(); }
+    public long getQuarantined() { return quarantined.get(); }
+    public long getEnvelopes() { return envelopes.get(); }
+    public long getReconnects() { return reconnects.get(); }
+    public boolean isConnected() { return connected; }
+
+    /** Exports the consumer's state and counts, labeled with its queue and its number among the queue's consumers. */
+    public void registerMetrics(MetricsRegistry registry, int consumer) {
+        String[] labels = {"queue", queueName, "consumer", String.valueOf(consumer)};
+        registry.gauge("batch_consumer_connected", "1 while the batch consumer is connected, 0 while it reconnects",
+            () -> connected ? 1 : 0, labels);
+        registry.counter("batch_consumer_reconnects_total", "Reconnects after the connection failed", reconnects::get, labels);
+        registry.counter("batch_consumer_batches_total", "Committed batches", batches::get, labels);
+        registry.counter("batch_consumer_messages_total", "Messages of committed batches", messages::get, labels);
+        registry.counter("batch_consumer_rollbacks_total", "Rolled back batches", rollbacks::get, labels);
+        registry.counter("batch_consumer_quarantined_total", "Messages quarantined by committed batches", quarantined::get, labels);
+    }
+
+    public String stats() {
+        long b = getBatches();
+        return String.format("Batch consumer %s: connected=%b batches=%d messages=%d avgBatch=%.1f envelopes=%d rollbacks=%d"
+                + " quarantined=%d reconnects=%d", queueName, isConnected(), b, getMessages(),
+            b == 0 ? 0.0 : (double) getMessages() / b, getEnvelopes(), getRollbacks(), getQuarantined(), getReconnects());
+    }
+}
@@ -0,0 +1,61 @@
+package com.divesurf.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Optional virtual threads (Java 21) for the blocking work of the systems: JMS consumers, credit lookups,
+ * sends and parallel route steps. Enabled with -Dthreads.virtual=true (set by the virtual-threads Maven profile);
+ * the sources stay on Java 8, so the Java 21 API is looked up reflectively, and on an older runtime the systems
+ * fall back to platform threads with a warning.
+ */
+public final class VirtualThreads {
+
+    private static final boolean ENABLED = Boolean.getBoolean("threads.virtual") && supported();
+
+    private VirtualThreads() {
+    }
+
+    /** True if virtual threads were requested and the runtime supports them. */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /** Factory of virtual threads named name-1, name-2, ... */
+    public static ThreadFactory factory(String name) {
+        if (!ENABLED) {
+            throw new IllegalStateException("Virtual threads are not enabled");
+        }
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual threads", e);
+        }
+    }
+
+    /** Executor that starts a new virtual thread per task. */
+    public static ExecutorService newPerTaskExecutor(String name) {
+        try {
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory(name));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual threads", e);
+        }
+    }
+
+    private static boolean supported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            System.err.println("threads.virtual is set, but Java " + System.getProperty("java.version")
+                + " has no virtual threads; using platform threads");
+            return false;
+        }
+    }
+}
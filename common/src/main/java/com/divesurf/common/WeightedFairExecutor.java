@@ -0,0 +1,147 @@
+package com.divesurf.common;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread pool shared by several lanes. Each lane has its own task queue; when a worker becomes free it
+ * takes the next task by smooth weighted round-robin over the lanes that have work. A lane with weight 4
+ * gets four tasks started for every one of a lane with weight 1 while both are busy, and idle lanes
+ * leave their share to the others.
+ */
+public class WeightedFairExecutor {
+    private final int[] weights;
+    private final int[] current;
+    private final ArrayDeque<Runnable>[] queues;
+    private final Thread[] workers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private volatile boolean shutdown;
+
+    @SuppressWarnings("unchecked")
+    public WeightedFairExecutor(String name, int threads, int... weights) {
+        if (threads <= 0 || weights.length == 0) {
+            throw new IllegalArgumentException("threads and weights are required");
+        }
+        this.weights = weights.clone();
+        this.current = new int[weights.length];
+        this.queues = new ArrayDeque[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] <= 0) {
+                throw new IllegalArgumentException("Lane weights must be positive");
+            }
+            queues[i] = new ArrayDeque<>();
+        }
+        this.workers = new Thread[threads];
+        // with virtual threads, blocked tasks do not hold a platform thread, so many more workers are affordable
+        ThreadFactory virtual = VirtualThreads.isEnabled() ? VirtualThreads.factory(name) : null;
+        for (int i = 0; i < threads; i++) {
+            workers[i] = virtual != null ? virtual.newThread(this::work) : new Thread(this::work, name + "-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public void execute(int lane, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            queues[lane].add(task);
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Executor view that submits to one lane. */
+    public Executor lane(int lane) {
+        return task -> execute(lane, task);
+    }
+
+    public int queued(int lane) {
+        lock.lock();
+        try {
+            return queues[lane].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops accepting tasks; queued tasks still run. */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            worker.join(remaining);
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void work() {
+        while (true) {
+            Runnable task;
+            lock.lock();
+            try {
+                while ((task = next()) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    workAvailable.await();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println(Thread.currentThread().getName() + ": task failed: " + e);
+            }
+        }
+    }
+
+    // Smooth weighted round-robin over the non-empty lanes; caller holds the lock
+    private Runnable next() {
+        int total = 0;
+        int best = -1;
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].isEmpty()) {
+                continue;
+            }
+            current[i] += weights[i];
+            total += weights[i];
+            if (best < 0 || current[i] > current[best]) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        current[best] -= total;
+        return queues[best].poll();
+    }
+}
@@ -0,0 +1,59 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the credit-based admission gate.
+ */
+public class AdmissionGateTest extends TestCase {
+
+    public void testInitialCreditsThenReject() throws Exception {
+        AdmissionGate gate = new AdmissionGate(2);
+        assertTrue(gate.tryAcquire(0));
+        assertTrue(gate.tryAcquire(0));
+        assertFalse(gate.tryAcquire(20));
+        assertEquals(2, gate.getAdmitted());
+        assertEquals(1, gate.getRejected());
+    }
+
+    public void testCapacityAnnouncementReplacesCredits() throws Exception {
+        AdmissionGate gate = new AdmissionGate(1);
+        gate.tryAcquire(0);
+        gate.onCapacity(3);
+        assertEquals(3, gate.getCredits());
+        gate.onCapacity(0);
+        assertFalse(gate.tryAcquire(0));
+    }
+
+    public void testTwoGatesShareOneAnnouncement() throws Exception {
+        AdmissionGate web = new AdmissionGate(0);
+        AdmissionGate callCenter = new AdmissionGate(0);
+        web.onCapacity(11, 2);
+        callCenter.onCapacity(11, 2);
+        int admitted = 0;
+        while (web.tryAcquire(0)) {
+            admitted++;
+        }
+        while (callCenter.tryAcquire(0)) {
+            admitted++;
+        }
+        assertEquals(10, admitted);
+        assertEquals(5, web.getAdmitted());
+        assertEquals(5, callCenter.getAdmitted());
+    }
+
+    public void testWaitingProducerIsReleasedByNewCapacity() throws Exception {
+        AdmissionGate gate = new AdmissionGate(0);
+        Thread announcer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            gate.onCapacity(1);
+        });
+        announcer.start();
+        assertTrue(gate.tryAcquire(5000));
+        announcer.join();
+    }
+}
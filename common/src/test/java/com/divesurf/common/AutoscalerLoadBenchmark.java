@@ -0,0 +1,148 @@
+package com.divesurf.common;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local load test for the consumer autoscaler (run with exec:java or from the IDE).
+ * An embedded broker feeds a queue at stepped rates (up, peak, down, idle); consumers spend
+ * a fixed time per message, like an I/O bound route. Every second it prints the input rate,
+ * queue depth, throughput and consumer count, so scale-ups under load and scale-downs after it are visible.
+ * <p>
+ * Settings: -Dbenchmark.workMillis=20 and -Dbenchmark.rates=20,100,250,100,20,0 (messages/s, 10 s per step).
+ */
+public class AutoscalerLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long workMillis = Long.getLong("benchmark.workMillis", 20L);
+        String[] rates = System.getProperty("benchmark.rates", "20,100,250,100,20,0").split(",");
+        int stepSeconds = Integer.getInteger("benchmark.stepSeconds", 10);
+
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName("autoscale-benchmark");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://autoscale-benchmark?create=false");
+
+        LatencyTracker latency = new LatencyTracker();
+        ThreadPool pool = new ThreadPool(connectionFactory, "load", workMillis, latency);
+        pool.setConsumers(1);
+        QueueDepthProbe depth = new QueueDepthProbe(connectionFactory, "load", 5000);
+        ConsumerAutoscaler autoscaler = new ConsumerAutoscaler("load", pool, depth, latency, 1, 32, 1000, 100, 3);
+        autoscaler.start(1000);
+
+        Connection connection = connectionFactory.createConnection();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(session.createQueue("load"));
+
+        System.out.println("second,rate,depth,processedPerSecond,consumers");
+        int second = 0;
+        long lastProcessed = 0;
+        for (String rateText : rates) {
+            int rate = Integer.parseInt(rateText.trim());
+            for (int s = 0; s < stepSeconds; s++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < rate; i++) {
+                    producer.send(session.createTextMessage("order-" + i));
+                    // spread the messages over the second
+                    long due = start + (i + 1) * 1_000_000_000L / rate;
+                    long sleep = (due - System.nanoTime()) / 1_000_000;
+                    if (sleep > 0) {
+                        Thread.sleep(sleep);
+                    }
+                }
+                long rest = 1000 - (System.nanoTime() - start) / 1_000_000;
+                if (rest > 0) {
+                    Thread.sleep(rest);
+                }
+                long processed = pool.processed.get();
+                System.out.println(++second + "," + rate + "," + autoscaler.getLastDepth() + ","
+                    + (processed - lastProcessed) + "," + pool.getConsumers());
+                lastProcessed = processed;
+            }
+        }
+        System.out.println(autoscaler.stats());
+
+        autoscaler.stop();
+        depth.close();
+        pool.setConsumers(0);
+        connection.close();
+        broker.stop();
+    }
+
+    // Consumers as plain threads, each with its own session; resizing starts or stops threads
+    private static final class ThreadPool implements ConsumerAutoscaler.ConsumerPool {
+        private final ActiveMQConnectionFactory connectionFactory;
+        private final String queue;
+        private final long workMillis;
+        private final LatencyTracker latency;
+        private final List<Worker> workers = new ArrayList<>();
+        final AtomicLong processed = new AtomicLong();
+
+        ThreadPool(ActiveMQConnectionFactory connectionFactory, String queue, long workMillis, LatencyTracker latency) {
+            this.connectionFactory = connectionFactory;
+            this.queue = queue;
+            this.workMillis = workMillis;
+            this.latency = latency;
+        }
+
+        @Override
+        public synchronized int getConsumers() {
+            return workers.size();
+        }
+
+        @Override
+        public synchronized void setConsumers(int consumers) {
+            while (workers.size() < consumers) {
+                Worker worker = new Worker();
+                workers.add(worker);
+                worker.start();
+            }
+            while (workers.size() > consumers) {
+                workers.remove(workers.size() - 1).running = false;
+            }
+        }
+
+        private final class Worker extends Thread {
+            volatile boolean running = true;
+
+            Worker() {
+                setDaemon(true);
+            }
+
+            @Override
+            public void run() {
+                try {
+                    Connection connection = connectionFactory.createConnection();
+                    connection.start();
+                    try {
+                        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                        MessageConsumer consumer = session.createConsumer(session.createQueue(queue + "?consumer.prefetchSize=1"));
+                        while (running) {
+                            if (consumer.receive(200) != null) {
+                                long start = System.nanoTime();
+                                Thread.sleep(workMillis);
+                                latency.record(System.nanoTime() - start);
+                                processed.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        connection.close();
+                    }
+                } catch (JMSException | InterruptedException e) {
+                    System.err.println("Worker stopped: " + e);
+                }
+            }
+        }
+    }
+}
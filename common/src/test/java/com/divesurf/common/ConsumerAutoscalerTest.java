@@ -0,0 +1,89 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the consumer autoscaler's scaling decisions.
+ */
+public class ConsumerAutoscalerTest extends TestCase {
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LatencyTracker latency = new LatencyTracker();
+    private final Pool pool = new Pool(1);
+    // 1..8 consumers, drain backlog within 1s, 100 messages per consumer, scale down after 3 idle checks
+    private final ConsumerAutoscaler autoscaler =
+        new ConsumerAutoscaler("test", pool, depth::get, latency, 1, 8, 1000, 100, 3);
+
+    public void testScalesUpWhenBacklogTakesTooLongToDrain() {
+        depth.set(50);
+        latency.record(100_000_000L); // 100 ms per message: 5 s to drain with one consumer
+        assertEquals(5, autoscaler.check());
+        assertEquals(5, pool.consumers);
+        assertEquals(1, autoscaler.getScaleUps());
+    }
+
+    public void testScalesUpOnDepthWithoutLatencySamples() {
+        depth.set(150);
+        assertEquals(2, autoscaler.check());
+        assertEquals(2, autoscaler.check()); // 150 <= 2 * 100
+        depth.set(250);
+        assertEquals(4, autoscaler.check());
+        depth.set(350);
+        assertEquals(4, autoscaler.check()); // 350 <= 4 * 100
+    }
+
+    public void testNeverExceedsBounds() {
+        depth.set(100000);
+        latency.record(1_000_000_000L);
+        assertEquals(8, autoscaler.check());
+        depth.set(0);
+        for (int i = 0; i < 100; i++) {
+            autoscaler.check();
+        }
+        assertEquals(1, pool.consumers);
+    }
+
+    public void testScalesDownOneAtATimeAfterIdleChecks() {
+        pool.consumers = 4;
+        depth.set(0);
+        assertEquals(4, autoscaler.check());
+        assertEquals(4, autoscaler.check());
+        assertEquals(3, autoscaler.check());
+        assertEquals(3, autoscaler.check());
+        assertEquals(1, autoscaler.getScaleDowns());
+    }
+
+    public void testSmallBacklogKeepsConsumers() {
+        pool.consumers = 4;
+        depth.set(5);
+        latency.record(10_000_000L);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(4, autoscaler.check());
+        }
+    }
+
+    public void testUnknownDepthKeepsConsumers() {
+        depth.set(-1);
+        assertEquals(1, autoscaler.check());
+        assertEquals(0, autoscaler.getScaleUps() + autoscaler.getScaleDowns());
+    }
+
+    private static final class Pool implements ConsumerAutoscaler.ConsumerPool {
+        int consumers;
+
+        Pool(int consumers) {
+            this.consumers = consumers;
+        }
+
+        @Override
+        public int getConsumers() {
+            return consumers;
+        }
+
+        @Override
+        public void setConsumers(int consumers) {
+            this.consumers = consumers;
+        }
+    }
+}
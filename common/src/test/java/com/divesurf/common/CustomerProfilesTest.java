@@ -0,0 +1,78 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Unit tests for the memory-mapped customer profile index and its cache.
+ */
+public class CustomerProfilesTest extends TestCase {
+
+    private File directory;
+    private File data;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("customers").toFile();
+        data = new File(directory, "customers.csv");
+        write("# customerId,tier,region\n30,gold,north\n10,silver,south\n20,bronze,north\nbroken line\n");
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private void write(String text) throws IOException {
+        Files.write(data.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void testLookupsFromTheIndexAndTheCache() throws IOException {
+        try (CustomerProfiles profiles = new CustomerProfiles(data, 2)) {
+            assertEquals(3, profiles.size());
+            CustomerProfiles.Profile profile = profiles.lookup("10");
+            assertEquals("silver", profile.getTier());
+            assertEquals("south", profile.getRegion());
+            assertSame(profile, profiles.lookup("10"));
+            assertEquals("north", profiles.lookup("30").getRegion());
+            assertSame(CustomerProfiles.UNKNOWN, profiles.lookup("25"));
+            assertSame(CustomerProfiles.UNKNOWN, profiles.lookup("Anna Meier"));
+
+            String stats = profiles.stats();
+            assertTrue(stats, stats.contains("cacheHits=1 indexLookups=4 unknown=2"));
+        }
+    }
+
+    public void testIndexIsReusedUntilTheDataFileChanges() throws IOException {
+        new CustomerProfiles(data, 10).close();
+        File index = new File(directory, "customers.csv.idx");
+        assertTrue(index.exists());
+        long built = index.lastModified();
+        try (CustomerProfiles profiles = new CustomerProfiles(data, 10)) {
+            assertEquals("bronze", profiles.lookup("20").getTier());
+        }
+        assertEquals(built, index.lastModified());
+
+        write("20,gold,east\n40,gold,west\n");
+        assertTrue(data.setLastModified(data.lastModified() + 2000));
+        try (CustomerProfiles profiles = new CustomerProfiles(data, 10)) {
+            assertEquals(2, profiles.size());
+            assertEquals("gold", profiles.lookup("20").getTier());
+            assertSame(CustomerProfiles.UNKNOWN, profiles.lookup("10"));
+        }
+    }
+
+    public void testMissingDataFileMakesEveryoneUnknown() throws IOException {
+        try (CustomerProfiles profiles = new CustomerProfiles(new File(directory, "missing.csv"), 10)) {
+            assertEquals(0, profiles.size());
+            assertSame(CustomerProfiles.UNKNOWN, profiles.lookup("10"));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the gate that lets each customer's orders through in order.
+ */
+public class CustomerSequenceGateTest extends TestCase {
+
+    // a numbering started after the gate
+    private final long epoch = System.currentTimeMillis() + 1000;
+
+    public void testOrderThatOvertookAnEarlierOneWaitsForIt() throws Exception {
+        CustomerSequenceGate gate = new CustomerSequenceGate(5000, 100);
+        List<Long> applied = Collections.synchronizedList(new ArrayList<>());
+        // order 2 arrives on the other lane first
+        Thread second = new Thread(() -> pass(gate, 2, applied));
+        second.start();
+        Thread.sleep(100);
+        assertTrue(applied.isEmpty());
+        pass(gate, 1, applied);
+        second.join(5000);
+        pass(gate, 3, applied);
+        assertEquals(Arrays.asList(1L, 2L, 3L), applied);
+    }
+
+    public void testGapIsSkippedAfterTheTimeout() {
+        CustomerSequenceGate gate = new CustomerSequenceGate(50, 100);
+        List<Long> applied = new ArrayList<>();
+        pass(gate, 2, applied);
+        // the skipped order passes at once when it turns up
+        pass(gate, 1, applied);
+        assertEquals(Arrays.asList(2L, 1L), applied);
+    }
+
+    public void testNumberingOlderThanTheGatePassesAtOnce() throws Exception {
+        CustomerSequenceGate gate = new CustomerSequenceGate(5000, 100);
+        long started = System.currentTimeMillis();
+        gate.await("7", 1, 42);
+        gate.applied("7", 1, 42);
+        gate.await("8", 0, 5); // not numbered in an epoch
+        // a later numbering of the customer starts over at 1
+        gate.await("7", epoch, 1);
+        assertTrue(System.currentTimeMillis() - started < 1000);
+    }
+
+    private void pass(CustomerSequenceGate gate, long sequence, List<Long> applied) {
+        try {
+            gate.await("7", epoch, sequence);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        applied.add(sequence);
+        gate.applied("7", epoch, sequence);
+    }
+}
@@ -0,0 +1,92 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for the per-customer order numbering.
+ */
+public class CustomerSequenceTest extends TestCase {
+
+    public void testEachCustomerIsNumberedFromOne() {
+        CustomerSequence sequence = new CustomerSequence(10);
+        assertEquals(1, sequence.next("7"));
+        assertEquals(2, sequence.next("7"));
+        assertEquals(1, sequence.next("8"));
+        assertEquals(3, sequence.next("7"));
+    }
+
+    public void testLeastRecentlyActiveCustomersAreDropped() {
+        CustomerSequence sequence = new CustomerSequence(2);
+        sequence.next("7");
+        sequence.next("8");
+        sequence.next("7");
+        sequence.next("9"); // drops 8
+        assertEquals(2, sequence.size());
+        assertEquals(3, sequence.next("7"));
+        assertEquals(1, sequence.next("8"));
+    }
+
+    public void testDroppedCustomerIsNumberedInALaterEpoch() {
+        CustomerSequence sequence = new CustomerSequence(1);
+        sequence.next("7");
+        long epoch = sequence.epoch("7");
+        assertTrue(epoch > 0);
+        sequence.next("8"); // drops 7
+        assertTrue(sequence.epoch("8") > epoch);
+        assertEquals(1, sequence.next("7"));
+        assertTrue(sequence.epoch("7") > sequence.epoch("8"));
+    }
+
+    public void testRestartedPublisherNumbersInALaterEpoch() throws Exception {
+        Map<String, Object> before = new HashMap<>();
+        new CustomerSequence(10).next("7", before);
+        Thread.sleep(2);
+        Map<String, Object> after = new HashMap<>();
+        new CustomerSequence(10).next("7", after);
+        assertEquals(1L, after.get(CustomerSequence.SEQUENCE_HEADER));
+        assertTrue((Long) after.get(CustomerSequence.EPOCH_HEADER) > (Long) before.get(CustomerSequence.EPOCH_HEADER));
+    }
+
+    public void testRolledBackBatchHandsItsNumbersOutAgain() {
+        CustomerSequence sequence = new CustomerSequence(10);
+        Map<String, Object> headers = new HashMap<>();
+        sequence.next("7", headers);
+        sequence.beginBatch();
+        sequence.next("7", headers);
+        sequence.next("7", headers);
+        sequence.next("8", headers);
+        sequence.rollbackBatch();
+        sequence.next("7", headers);
+        assertEquals(2L, headers.get(CustomerSequence.SEQUENCE_HEADER));
+        sequence.next("8", headers);
+        assertEquals(1L, headers.get(CustomerSequence.SEQUENCE_HEADER));
+
+        // a committed batch keeps them
+        sequence.beginBatch();
+        sequence.next("7", headers);
+        sequence.commitBatch();
+        sequence.rollbackBatch();
+        sequence.next("7", headers);
+        assertEquals(4L, headers.get(CustomerSequence.SEQUENCE_HEADER));
+    }
+
+    public void testGroupAndSequenceAreCopied() throws Exception {
+        ActiveMQTextMessage order = new ActiveMQTextMessage();
+        order.setStringProperty(CustomerSequence.GROUP_HEADER, "7");
+        order.setLongProperty(CustomerSequence.SEQUENCE_HEADER, 4);
+        order.setLongProperty(CustomerSequence.EPOCH_HEADER, 1700000000000L);
+        ActiveMQTextMessage derived = new ActiveMQTextMessage();
+        CustomerSequence.copy(order, derived);
+        assertEquals("7", derived.getStringProperty(CustomerSequence.GROUP_HEADER));
+        assertEquals(4, derived.getLongProperty(CustomerSequence.SEQUENCE_HEADER));
+        assertEquals(1700000000000L, derived.getLongProperty(CustomerSequence.EPOCH_HEADER));
+
+        ActiveMQTextMessage unsequenced = new ActiveMQTextMessage();
+        CustomerSequence.copy(new ActiveMQTextMessage(), unsequenced);
+        assertFalse(unsequenced.propertyExists(CustomerSequence.SEQUENCE_HEADER));
+    }
+}
@@ -0,0 +1,88 @@
+package com.divesurf.common;
+
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for the startup, readiness and drain of a system.
+ */
+public class LifecycleTest extends TestCase {
+
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+    public void testReadyAfterStartup() {
+        Lifecycle lifecycle = new Lifecycle("test", 1000);
+        assertEquals(Lifecycle.State.STARTING, lifecycle.getState());
+        assertEquals(-1, lifecycle.getStartupMillis());
+        lifecycle.ready();
+        assertTrue(lifecycle.isReady());
+        assertTrue(lifecycle.getStartupMillis() >= 0);
+    }
+
+    public void testDrainRunsTheStepsInOrderOnce() throws InterruptedException {
+        Lifecycle lifecycle = new Lifecycle("test", 1000);
+        lifecycle.onDrain("consumers", () -> ran.add("consumers"));
+        lifecycle.onDrain("failing", () -> {
+            throw new IllegalStateException("broken");
+        });
+        lifecycle.onDrain("state", () -> ran.add("state"));
+        lifecycle.ready();
+
+        lifecycle.drain();
+        lifecycle.drain();
+        lifecycle.awaitStopped();
+        assertEquals(Arrays.asList("consumers", "state"), ran);
+        assertEquals(Lifecycle.State.STOPPED, lifecycle.getState());
+        assertFalse(lifecycle.isReady());
+    }
+
+    public void testHangingStepDoesNotBlockTheDrain() {
+        Lifecycle lifecycle = new Lifecycle("test", 200);
+        CountDownLatch never = new CountDownLatch(1);
+        lifecycle.onDrain("hanging", never::await);
+        lifecycle.onDrain("skipped", () -> ran.add("skipped"));
+
+        long start = System.currentTimeMillis();
+        lifecycle.drain();
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertTrue(ran.isEmpty()); // the hanging step used up the whole drain timeout
+        assertEquals(Lifecycle.State.STOPPED, lifecycle.getState());
+    }
+
+    public void testReadinessProbe() throws IOException {
+        Lifecycle lifecycle = new Lifecycle("test", 1000);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        lifecycle.serveProbes(server);
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort();
+            assertEquals(200, status(base + "/health/live"));
+            assertEquals(503, status(base + "/health/ready"));
+            lifecycle.ready();
+            assertEquals(200, status(base + "/health/ready"));
+            lifecycle.drain();
+            assertEquals(503, status(base + "/health/ready"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static int status(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Unit tests for the Prometheus text output of the metrics registry.
+ */
+public class MetricsRegistryTest extends TestCase {
+
+    public void testCountersAndGaugesAreScraped() {
+        MetricsRegistry registry = new MetricsRegistry("test");
+        LongAdder orders = registry.counter("orders_total", "Orders", "lane", "small");
+        registry.gauge("queue_depth", "Depth", () -> 2.5);
+        orders.add(3);
+
+        String text = registry.scrape();
+        assertTrue(text.contains("divesurf_info{system=\"test\"} 1\n"));
+        assertTrue(text.contains("# TYPE orders_total counter\n"));
+        assertTrue(text.contains("orders_total{lane=\"small\"} 3\n"));
+        assertTrue(text.contains("# HELP queue_depth Depth\n"));
+        assertTrue(text.contains("queue_depth 2.5\n"));
+    }
+
+    public void testSeriesOfOneFamilyShareTheHeader() {
+        MetricsRegistry registry = new MetricsRegistry("test");
+        registry.counter("orders_total", "Orders", "lane", "small").increment();
+        registry.counter("orders_total", "Orders", "lane", "large");
+
+        String text = registry.scrape();
+        assertEquals(text.indexOf("# TYPE orders_total"), text.lastIndexOf("# TYPE orders_total"));
+        assertTrue(text.contains("orders_total{lane=\"small\"} 1\n"));
+        assertTrue(text.contains("orders_total{lane=\"large\"} 0\n"));
+    }
+
+    public void testFamilyLabelsAreReadWhenScraped() {
+        MetricsRegistry registry = new MetricsRegistry("test");
+        TreeMap<String, Long> perRoute = new TreeMap<>();
+        registry.family("quarantined_total", "Quarantined", "counter", "route", () -> perRoute);
+        assertFalse(registry.scrape().contains("quarantined_total{"));
+
+        perRoute.put("say \"hi\"", 2L);
+        assertTrue(registry.scrape().contains("quarantined_total{route=\"say \\\"hi\\\"\"} 2\n"));
+    }
+
+    public void testTypeConflictIsRejected() {
+        MetricsRegistry registry = new MetricsRegistry("test");
+        registry.gauge("depth", "Depth", () -> 1);
+        try {
+            registry.counter("depth", "Depth");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // a name has one type
+        }
+    }
+}
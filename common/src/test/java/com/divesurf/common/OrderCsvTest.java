@@ -0,0 +1,31 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the field access of order CSV lines.
+ */
+public class OrderCsvTest extends TestCase {
+
+    public void testFieldsOfAnOrder() {
+        String order = "123, Anna,Meier, 3,1,2, 42 ,true,";
+        assertEquals("42", OrderCsv.orderId(order));
+        assertEquals(3, OrderCsv.overallItems(order));
+        assertEquals(9, OrderCsv.split(order, 8).length);
+    }
+
+    public void testMalformedLinesAreRejectedAsInvalid() {
+        for (String malformed : new String[] {null, "", "123,Anna,Meier,3"}) {
+            try {
+                OrderCsv.orderId(malformed);
+                fail(malformed);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            OrderCsv.overallItems("123,Anna,Meier,three,1,2,42");
+            fail();
+        } catch (NumberFormatException expected) {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for packing orders into envelopes and opening them again.
+ */
+public class OrderEnvelopeTest extends TestCase {
+
+    public void testLinesKeepBodiesAndTypedProperties() {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("orderId", "7");
+        properties.put(CustomerSequence.SEQUENCE_HEADER, 42L);
+        properties.put("overallItems", 12);
+        properties.put("valid", true);
+        properties.put(CustomerSequence.GROUP_HEADER, "customer-3");
+        properties.put("JMSCorrelationID", "dropped");
+        properties.put("CamelJmsDestination", "dropped");
+        properties.put("breadcrumb-id", "dropped");
+        OrderEnvelope.Builder builder = new OrderEnvelope.Builder();
+        builder.add("3, Anna, Müller, 12, 2, 10, 7\ttab & more=", properties);
+        builder.add("4, Ben, Ng, 1, 1, 0, 8", new LinkedHashMap<>());
+        assertEquals(2, builder.size());
+
+        String[] lines = builder.build().split("\n");
+        assertEquals(2, lines.length);
+        OrderEnvelope.Entry first = OrderEnvelope.decode(lines[0]);
+        assertEquals("3, Anna, Müller, 12, 2, 10, 7\ttab & more=", first.getBody());
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("orderId", "7");
+        expected.put(CustomerSequence.SEQUENCE_HEADER, 42L);
+        expected.put("overallItems", 12);
+        expected.put("valid", true);
+        expected.put(CustomerSequence.GROUP_HEADER, "customer-3");
+        assertEquals(expected, first.getProperties());
+        OrderEnvelope.Entry second = OrderEnvelope.decode(lines[1]);
+        assertEquals("4, Ben, Ng, 1, 1, 0, 8", second.getBody());
+        assertTrue(second.getProperties().isEmpty());
+    }
+
+    public void testOpenedOrdersAreMessagesOfTheirOwn() throws Exception {
+        OrderEnvelope.Builder builder = new OrderEnvelope.Builder();
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("orderId", String.valueOf(i));
+            builder.add("order-" + i, properties);
+        }
+        ActiveMQTextMessage envelope = new ActiveMQTextMessage();
+        envelope.setText(builder.build());
+        envelope.setIntProperty(OrderEnvelope.COUNT_HEADER, builder.size());
+        envelope.setRedeliveryCounter(2);
+        envelope.setJMSRedelivered(true);
+        assertTrue(OrderEnvelope.isEnvelope(envelope));
+
+        List<Message> orders = OrderEnvelope.open(envelope);
+        assertEquals(3, orders.size());
+        for (int i = 0; i < 3; i++) {
+            TextMessage order = (TextMessage) orders.get(i);
+            assertEquals("order-" + i, order.getText());
+            assertEquals(String.valueOf(i), order.getStringProperty("orderId"));
+            assertFalse(OrderEnvelope.isEnvelope(order));
+            // one failing order must not make the others count as redelivered
+            assertFalse(order.getJMSRedelivered());
+            assertEquals(0, ((ActiveMQTextMessage) order).getRedeliveryCounter());
+        }
+    }
+
+    public void testPackerKeepsEachCustomerInOneEnvelopeGroup() throws Exception {
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName("envelope-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        Connection connection = new ActiveMQConnectionFactory("vm://envelope-test?create=false").createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            MessageProducer producer = session.createProducer(null);
+            OrderEnvelope.Packer packer = new OrderEnvelope.Packer(session, producer, 3);
+            for (int i = 0; i < 10; i++) {
+                TextMessage order = session.createTextMessage("order-" + i);
+                order.setStringProperty(CustomerSequence.GROUP_HEADER, "customer-" + i % 2);
+                order.setLongProperty(CustomerSequence.SEQUENCE_HEADER, i);
+                packer.send(session.createQueue("out"), order);
+            }
+            packer.flush();
+            session.commit();
+
+            MessageConsumer consumer = session.createConsumer(session.createQueue("out"));
+            Map<String, List<Long>> sequences = new LinkedHashMap<>();
+            int envelopes = 0;
+            Message envelope;
+            while ((envelope = consumer.receive(1000)) != null) {
+                envelopes++;
+                assertTrue(envelope.getIntProperty(OrderEnvelope.COUNT_HEADER) <= 3);
+                for (Message order : OrderEnvelope.open(envelope)) {
+                    String customer = order.getStringProperty(CustomerSequence.GROUP_HEADER);
+                    String group = envelope.getStringProperty(CustomerSequence.GROUP_HEADER);
+                    assertEquals(OrderEnvelope.groupOf(customer), group);
+                    sequences.computeIfAbsent(customer, c -> new ArrayList<>())
+                        .add(order.getLongProperty(CustomerSequence.SEQUENCE_HEADER));
+                }
+            }
+            session.commit();
+            // 5 orders per customer in envelopes of up to 3, each customer's orders in the order they were sent
+            assertTrue(envelopes >= 4 && envelopes < 10);
+            assertEquals(Arrays.asList(0L, 2L, 4L, 6L, 8L), sequences.get("customer-0"));
+            assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L), sequences.get("customer-1"));
+        } finally {
+            connection.close();
+            broker.stop();
+        }
+    }
+
+    public void testEnvelopeModeNeedsMoreThanOneOrder() {
+        assertFalse(OrderEnvelope.isEnabled(0));
+        assertFalse(OrderEnvelope.isEnabled(1));
+        assertTrue(OrderEnvelope.isEnabled(2));
+    }
+}
@@ -0,0 +1,81 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Unit tests for the asynchronous, sampled order log.
+ */
+public class OrderLogTest extends TestCase {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    public void testEventsAreWrittenAsFields() throws Exception {
+        OrderLog log = new OrderLog("test", 1, 0, 100, new PrintStream(bytes, true, "UTF-8"));
+        log.route("billing-small").log("creditChecked", "orderId", 7, "result", "Credit score is good");
+        log.close();
+
+        String line = output();
+        assertTrue(line, line.endsWith(" system=test route=billing-small event=creditChecked orderId=7 result=\"Credit score is good\"\n"));
+        assertEquals(1, log.getWritten());
+    }
+
+    public void testSuppliersAreOnlyCalledForLoggedEvents() throws Exception {
+        AtomicInteger rendered = new AtomicInteger();
+        Supplier<String> body = () -> "order-" + rendered.incrementAndGet();
+        OrderLog log = new OrderLog("test", 0, 0, 100, new PrintStream(bytes, true, "UTF-8"));
+        OrderLog.Route route = log.route("off");
+        for (int i = 0; i < 10; i++) {
+            route.log("received", "body", body);
+        }
+        log.close();
+
+        assertEquals(0, rendered.get());
+        assertEquals("", output());
+        assertEquals(10, route.getSampledOut());
+    }
+
+    public void testRateLimitPerRoute() throws Exception {
+        OrderLog log = new OrderLog("test", 1, 5, 100, new PrintStream(bytes, true, "UTF-8"));
+        OrderLog.Route busy = log.route("busy");
+        OrderLog.Route quiet = log.route("quiet");
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            accepted += busy.sample() ? 1 : 0;
+        }
+        assertTrue(quiet.sample());
+        log.close();
+
+        // the window may have turned over once during the loop
+        assertTrue("accepted " + accepted, accepted >= 5 && accepted <= 10);
+        assertEquals(20 - accepted, busy.getRateLimited());
+    }
+
+    public void testFullBufferDropsEvents() throws Exception {
+        OrderLog log = new OrderLog("test", 1, 0, 1, new PrintStream(bytes, true, "UTF-8"));
+        OrderLog.Route route = log.route("r");
+        Supplier<String> slow = () -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "x";
+        };
+        for (int i = 0; i < 50; i++) {
+            route.log("e", "v", slow);
+        }
+        log.close();
+
+        assertTrue(log.getDropped() > 0);
+        assertEquals(50, log.getWritten() + log.getDropped());
+    }
+
+    private String output() {
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,717 @@
+package com.divesurf.common;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.command.ActiveMQDestination;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running soak and fault-injection test of the pipeline (run with exec:java from the project directory).
+ * It starts a persistent embedded broker on tcp://localhost:61616, runs the order publisher, billing, inventory and
+ * result systems as child JVMs and sends web orders at a fixed rate for the whole run. Every faultIntervalSeconds
+ * it injects the next fault: a broker restart, a stalled (SIGSTOP'ed) consumer, a graceful restart or a kill -9 of
+ * billing, inventory or result, in turn. The finalized orders are collected from the finalizedOrders virtual topic,
+ * so lost and duplicated order ids are counted exactly; the systems' metrics are sampled for heap, threads and the
+ * result aggregator. One CSV line is printed per window, and a pass/fail report at the end; the exit code is 0 on pass.
+ * <p>
+ * Prepare the classpaths once: mvn install, then mvn dependency:build-classpath -Dmdep.outputFile=target/classpath.txt.
+ * Settings: -Dsoak.minutes=60 -Dsoak.ordersPerSecond=20 -Dsoak.faultIntervalSeconds=120
+ * -Dsoak.faults=brokerRestart,stall,restart,kill -Dsoak.targets=billing,inventory,result -Dsoak.windowSeconds=60
+ * -Dsoak.javaOpts=-Xmx256m; pass criteria -Dsoak.maxLost=0 -Dsoak.maxDuplicates=0 -Dsoak.maxHeapGrowthMbPerHour=64
+ * -Dsoak.maxThroughputDrop=0.1. Logs of the systems, the samples and the report go to -Dsoak.workDir.
+ */
+public class SoakHarness {
+
+    private static final String BROKER_URL = "tcp://localhost:61616";
+    private static final String RESULTS_QUEUE = "Consumer.soak.VirtualTopic.finalizedOrders";
+    // Runs of a system shorter than this many windows are too noisy for a heap trend
+    private static final int MIN_HEAP_WINDOWS = 10;
+
+    public static void main(String[] args) throws Exception {
+        File projectDir = new File(System.getProperty("soak.projectDir", System.getProperty("user.dir")));
+        File workDir = new File(System.getProperty("soak.workDir",
+            Files.createTempDirectory("divesurf-soak").toString()));
+        long minutes = Long.getLong("soak.minutes", 60L);
+        int ordersPerSecond = Integer.getInteger("soak.ordersPerSecond", 20);
+        long faultIntervalSeconds = Long.getLong("soak.faultIntervalSeconds", 120L);
+        String[] faults = System.getProperty("soak.faults", "brokerRestart,stall,restart,kill").split(",");
+        String[] targets = System.getProperty("soak.targets", "billing,inventory,result").split(",");
+        int windowSeconds = Integer.getInteger("soak.windowSeconds", 60);
+        long settleSeconds = Long.getLong("soak.settleSeconds", 60L);
+
+        prepareWorkDir(projectDir, workDir);
+        System.out.println("Soak of " + minutes + " min at " + ordersPerSecond + " orders/s, work directory " + workDir);
+
+        Broker broker = new Broker(new File(workDir, "broker"));
+        broker.start();
+        Ledger ledger = new Ledger();
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(
+            "failover:(" + BROKER_URL + ")?initialReconnectDelay=100&maxReconnectDelay=1000");
+        Connection connection = connectionFactory.createConnection();
+        connection.start();
+        Session receiveSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer results = receiveSession.createConsumer(receiveSession.createQueue(RESULTS_QUEUE));
+        results.setMessageListener(ledger::finalized);
+
+        Map<String, SystemProcess> systems = new LinkedHashMap<>();
+        systems.put("result", new SystemProcess("result", "result-system", "com.divesurf.results.ResultSystem", 9106, projectDir, workDir));
+        systems.put("billing", new SystemProcess("billing", "billing-system", "com.divesurf.BillingSystem.BillingSystem", 9104, projectDir, workDir));
+        systems.put("inventory", new SystemProcess("inventory", "inventory-system", "com.divesurf.InventorySystem.InventorySystem", 9105, projectDir, workDir));
+        systems.put("orderPublisher", new SystemProcess("orderPublisher", "OrderPublisher", "com.divesurf.OrderPublisher.OrderPublisher", 9103, projectDir, workDir));
+        for (SystemProcess system : systems.values()) {
+            system.start();
+        }
+
+        Samples samples = new Samples(systems, ledger, new File(workDir, "soak-samples.csv"));
+        FaultInjector injector = new FaultInjector(broker, systems, faults, targets, faultIntervalSeconds);
+        Thread faultThread = new Thread(injector, "SoakFaults");
+        faultThread.setDaemon(true);
+
+        // Fixed load: orders spread evenly over the run, caught up after a stall of the sender (e.g. a broker restart)
+        Session sendSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = sendSession.createProducer(sendSession.createQueue("orders"));
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MINUTES.toNanos(minutes);
+        long nextWindow = start + TimeUnit.SECONDS.toNanos(windowSeconds);
+        long nextSample = start;
+        faultThread.start();
+        while (System.nanoTime() < end) {
+            long due = start + ledger.getSent() * 1_000_000_000L / ordersPerSecond;
+            long now = System.nanoTime();
+            if (now >= nextSample) {
+                samples.sample();
+                nextSample += TimeUnit.SECONDS.toNanos(5);
+            }
+            if (now >= nextWindow) {
+                samples.closeWindow(injector.takeWindowFaults());
+                nextWindow += TimeUnit.SECONDS.toNanos(windowSeconds);
+            }
+            if (due > now) {
+                Thread.sleep(Math.max(1, Math.min((due - now) / 1_000_000, 100)));
+                continue;
+            }
+            long order = ledger.getSent() + 1;
+            // 50 customers of the sample profile file, mixed small and large orders
+            producer.send(sendSession.createTextMessage((order % 50 + 1) + ",Soak,Customer" + order % 50 + ","
+                + order % 3 + "," + (order % 7 == 0 ? 6 : 1)));
+            ledger.sent();
+        }
+        injector.stop();
+        faultThread.join();
+        samples.closeWindow(injector.takeWindowFaults());
+
+        // Let the orders in the pipeline finish before counting the lost ones
+        System.out.println("Load finished after " + ledger.getSent() + " orders, settling for up to " + settleSeconds + " s");
+        long settleEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(settleSeconds);
+        while (System.nanoTime() < settleEnd && ledger.getFinalized() < ledger.getSent()) {
+            Thread.sleep(1000);
+        }
+        // an order finalized by the aggregation timeout may still get a late duplicate
+        Thread.sleep(10000);
+        samples.sample();
+        Map<String, Double> result = scrape(systems.get("result").port);
+        Map<String, Long> leftover = broker.queueDepths();
+        leftover.remove(RESULTS_QUEUE);
+
+        Report report = new Report(ledger, samples, injector, minutes, ordersPerSecond);
+        report.check("lost orders", ledger.lost(), Long.getLong("soak.maxLost", 0L));
+        report.check("duplicated orders", ledger.getDuplicates(), Long.getLong("soak.maxDuplicates", 0L));
+        report.check("pending aggregations after settling", (long) sum(result, "result_pending_aggregations"), 0);
+        report.check("orders held by the resequencer after settling", (long) sum(result, "result_resequencer_held"), 0);
+        report.checkHeap(Double.parseDouble(System.getProperty("soak.maxHeapGrowthMbPerHour", "64")));
+        report.checkThroughput(Double.parseDouble(System.getProperty("soak.maxThroughputDrop", "0.1")));
+        String text = report.text(leftover);
+        System.out.println(text);
+        Files.write(new File(workDir, "soak-report.txt").toPath(), text.getBytes(StandardCharsets.UTF_8));
+
+        for (SystemProcess system : systems.values()) {
+            system.stop(false);
+        }
+        connection.close();
+        broker.stop();
+        System.exit(report.passed() ? 0 : 1);
+    }
+
+    // The systems resolve their files from the working directory, so they get a copy of the repository's data files
+    private static void prepareWorkDir(File projectDir, File workDir) throws IOException {
+        for (String[] file : new String[][] {{"inventory-system", "stock.properties"}, {"OrderPublisher", "customers.csv"},
+                                             {"billing-system", null}}) {
+            File dir = new File(workDir, file[0]);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            File source = file[1] == null ? null : new File(new File(projectDir, file[0]), file[1]);
+            if (source != null && source.exists()) {
+                Files.copy(source.toPath(), new File(dir, file[1]).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /** Every series of a system's /metrics endpoint, or an empty map while the system is down. */
+    static Map<String, Double> scrape(int port) {
+        Map<String, Double> series = new HashMap<>();
+        try {
+            HttpURLConnection http = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+            http.setConnectTimeout(1000);
+            http.setReadTimeout(2000);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(http.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.lastIndexOf(' ');
+                    if (line.startsWith("#") || space < 0) {
+                        continue;
+                    }
+                    try {
+                        series.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+                    } catch (NumberFormatException ignored) {
+                        // +Inf and NaN values are not sampled
+                    }
+                }
+            }
+        } catch (IOException e) {
+            series.clear();
+        }
+        return series;
+    }
+
+    /** Sum of all series of a metric, whatever their labels. */
+    static double sum(Map<String, Double> series, String name) {
+        double total = 0;
+        for (Map.Entry<String, Double> entry : series.entrySet()) {
+            String key = entry.getKey();
+            if (key.equals(name) || key.startsWith(name + "{")) {
+                total += entry.getValue();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Sent orders and the order ids seen on the finalizedOrders topic. The publisher's ids are not consecutive, so
+     * lost orders are counted, not listed.
+     */
+    static final class Ledger {
+        private final AtomicLong sent = new AtomicLong();
+        private final Set<Long> seen = new HashSet<>();
+        private final List<Long> duplicateIds = new ArrayList<>();
+        private long finalized;
+        private long duplicates;
+        private long redelivered;
+        private long unparseable;
+
+        void sent() {
+            sent.incrementAndGet();
+        }
+
+        long getSent() {
+            return sent.get();
+        }
+
+        synchronized void finalized(Message message) {
+            try {
+                String[] parts = ((TextMessage) message).getText().split(",", 8);
+                long orderId = Long.parseLong(parts[6].trim());
+                if (seen.add(orderId)) {
+                    finalized++;
+                } else if (message.getJMSRedelivered()) {
+                    // delivered to us again after a broker restart, not a second result of the pipeline
+                    redelivered++;
+                } else {
+                    duplicates++;
+                    if (duplicateIds.size() < 20) {
+                        duplicateIds.add(orderId);
+                    }
+                }
+            } catch (JMSException | RuntimeException e) {
+                unparseable++;
+            }
+        }
+
+        synchronized long getFinalized() {
+            return finalized;
+        }
+
+        synchronized long getDuplicates() {
+            return duplicates;
+        }
+
+        synchronized long lost() {
+            return sent.get() - seen.size();
+        }
+
+        synchronized String describe() {
+            return "sent=" + sent.get() + " finalized=" + finalized + " lost=" + lost() + " duplicated=" + duplicates
+                + " redeliveredToHarness=" + redelivered + " unparseable=" + unparseable
+                + (duplicateIds.isEmpty() ? "" : "\n  duplicated ids: " + duplicateIds);
+        }
+    }
+
+    /** A system running as a child JVM in the work directory, with its output appended to <name>.log. */
+    static final class SystemProcess {
+        final String name;
+        final int port;
+        private final String mainClass;
+        private final String classpath;
+        private final File workDir;
+        private volatile Process process;
+        private int starts;
+
+        SystemProcess(String name, String module, String mainClass, int port, File projectDir, File workDir) throws IOException {
+            this.name = name;
+            this.mainClass = mainClass;
+            this.port = port;
+            this.workDir = workDir;
+            File dependencies = new File(projectDir, module + File.separator + "target" + File.separator + "classpath.txt");
+            if (!dependencies.exists()) {
+                throw new IllegalStateException("Missing " + dependencies + "; run mvn install and "
+                    + "mvn dependency:build-classpath -Dmdep.outputFile=target/classpath.txt first");
+            }
+            this.classpath = new File(projectDir, module + File.separator + "target" + File.separator + "classes")
+                + File.pathSeparator + new String(Files.readAllBytes(dependencies.toPath()), StandardCharsets.UTF_8).trim();
+        }
+
+        synchronized void start() throws IOException, InterruptedException {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            for (String option : System.getProperty("soak.javaOpts", "-Xmx256m").trim().split("\\s+")) {
+                if (!option.isEmpty()) {
+                    command.add(option);
+                }
+            }
+            command.addAll(Arrays.asList("-cp", classpath, mainClass));
+            long startNanos = System.nanoTime();
+            process = new ProcessBuilder(command)
+                .directory(workDir)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(workDir, name + ".log")))
+                .start();
+            starts++;
+            long deadline = startNanos + TimeUnit.SECONDS.toNanos(120);
+            while (!isReady()) {
+                if (!process.isAlive() || System.nanoTime() > deadline) {
+                    throw new IllegalStateException(name + " did not get ready, see " + new File(workDir, name + ".log"));
+                }
+                Thread.sleep(200);
+            }
+            System.out.println(name + " ready after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+        }
+
+        /** Stops the system with SIGTERM (it drains) or SIGKILL. */
+        synchronized void stop(boolean kill) throws InterruptedException {
+            if (kill) {
+                process.destroyForcibly();
+            } else {
+                process.destroy();
+            }
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                System.err.println(name + " did not stop within 60 s, killing it");
+                process.destroyForcibly().waitFor();
+            }
+        }
+
+        /** Sends a signal to the process; needs Process.pid() (Java 9+) and a kill command. */
+        boolean signal(String signal) throws IOException, InterruptedException {
+            long pid;
+            try {
+                pid = (Long) Process.class.getMethod("pid").invoke(process);
+            } catch (ReflectiveOperationException e) {
+                return false;
+            }
+            return new ProcessBuilder("kill", "-" + signal, String.valueOf(pid)).start().waitFor() == 0;
+        }
+
+        synchronized int getStarts() {
+            return starts;
+        }
+
+        private boolean isReady() {
+            try {
+                HttpURLConnection http = (HttpURLConnection) new URL("http://localhost:" + port + "/health/ready").openConnection();
+                http.setConnectTimeout(500);
+                http.setReadTimeout(1000);
+                try {
+                    return http.getResponseCode() == 200;
+                } finally {
+                    http.disconnect();
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /** The persistent embedded broker; a restart keeps its messages, like a restart of a real broker. */
+    static final class Broker {
+        private final File dataDir;
+        private volatile BrokerService service;
+
+        Broker(File dataDir) {
+            this.dataDir = dataDir;
+        }
+
+        synchronized void start() throws Exception {
+            BrokerService broker = new BrokerService();
+            broker.setBrokerName("soak");
+            broker.setDataDirectoryFile(dataDir);
+            broker.setPersistent(true);
+            broker.setUseJmx(false);
+            broker.addConnector(BROKER_URL);
+            broker.start();
+            broker.waitUntilStarted();
+            service = broker;
+        }
+
+        synchronized void stop() throws Exception {
+            service.stop();
+            service.waitUntilStopped();
+        }
+
+        /** Queues that still hold messages. */
+        Map<String, Long> queueDepths() throws Exception {
+            Map<String, Long> depths = new TreeMap<>();
+            for (Map.Entry<ActiveMQDestination, Destination> entry : service.getRegionBroker().getDestinationMap().entrySet()) {
+                long count = entry.getValue().getDestinationStatistics().getMessages().getCount();
+                if (entry.getKey().isQueue() && count > 0) {
+                    depths.put(entry.getKey().getPhysicalName(), count);
+                }
+            }
+            return depths;
+        }
+    }
+
+    /** Injects the configured faults in turn; the process faults rotate over the target systems. */
+    static final class FaultInjector implements Runnable {
+        private final Broker broker;
+        private final Map<String, SystemProcess> systems;
+        private final String[] faults;
+        private final String[] targets;
+        private final long intervalSeconds;
+        private final Map<String, Integer> injected = new TreeMap<>();
+        private final List<String> windowFaults = new ArrayList<>();
+        private volatile boolean running = true;
+
+        FaultInjector(Broker broker, Map<String, SystemProcess> systems, String[] faults, String[] targets, long intervalSeconds) {
+            this.broker = broker;
+            this.systems = systems;
+            this.faults = faults;
+            this.targets = targets;
+            this.intervalSeconds = intervalSeconds;
+        }
+
+        @Override
+        public void run() {
+            int next = 0;
+            int nextTarget = 0;
+            while (sleep(intervalSeconds)) {
+                String fault = faults[next++ % faults.length].trim();
+                String target = fault.equals("brokerRestart") ? "broker" : targets[nextTarget++ % targets.length].trim();
+                long start = System.nanoTime();
+                try {
+                    inject(fault, target);
+                } catch (Exception e) {
+                    System.err.println("Fault " + fault + " of " + target + " failed: " + e);
+                }
+                String done = fault + " " + target;
+                System.out.println("Injected " + done + " (" + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s)");
+                synchronized (this) {
+                    injected.merge(done, 1, Integer::sum);
+                    windowFaults.add(done);
+                }
+            }
+        }
+
+        private void inject(String fault, String target) throws Exception {
+            SystemProcess system = systems.get(target);
+            switch (fault) {
+                case "brokerRestart":
+                    broker.stop();
+                    Thread.sleep(Long.getLong("soak.brokerDownSeconds", 5L) * 1000);
+                    broker.start();
+                    break;
+                case "stall":
+                    // a consumer that stops taking messages: its prefetched and queued orders wait, nothing is lost
+                    if (!system.signal("STOP")) {
+                        System.err.println("Cannot stall " + target + " on this JVM/OS, skipped");
+                        return;
+                    }
+                    Thread.sleep(Long.getLong("soak.stallSeconds", 20L) * 1000);
+                    system.signal("CONT");
+                    break;
+                case "restart":
+                    system.stop(false);
+                    system.start();
+                    break;
+                case "kill":
+                    system.stop(true);
+                    Thread.sleep(1000);
+                    system.start();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown fault " + fault);
+            }
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        synchronized Map<String, Integer> getInjected() {
+            return new TreeMap<>(injected);
+        }
+
+        synchronized String takeWindowFaults() {
+            String faults = String.join(" ", windowFaults);
+            windowFaults.clear();
+            return faults;
+        }
+
+        private boolean sleep(long seconds) {
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            while (running && System.nanoTime() < end) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return running;
+        }
+    }
+
+    /** Per window: finalized orders per second, and per system the lowest heap, the most threads and its start count. */
+    static final class Samples {
+        private final Map<String, SystemProcess> systems;
+        private final Ledger ledger;
+        private final PrintWriter csv;
+        private final List<Double> throughput = new ArrayList<>();
+        // per system: [window][heap floor MB, start count]
+        private final Map<String, List<double[]>> heapFloors = new LinkedHashMap<>();
+        private final Map<String, Double> maxThreads = new HashMap<>();
+        private final Map<String, Double> windowHeap = new HashMap<>();
+        private final Map<String, Double> windowThreads = new HashMap<>();
+        private double windowPending;
+        private long windowStart = System.nanoTime();
+        private long finalizedAtWindowStart;
+        private long sentAtWindowStart;
+
+        Samples(Map<String, SystemProcess> systems, Ledger ledger, File csvFile) throws IOException {
+            this.systems = systems;
+            this.ledger = ledger;
+            this.csv = new PrintWriter(new FileWriter(csvFile), true);
+            StringBuilder header = new StringBuilder("window,sentPerSecond,finalizedPerSecond,notFinalized,duplicated,maxPendingAggregations");
+            for (String name : systems.keySet()) {
+                heapFloors.put(name, new ArrayList<>());
+                header.append(',').append(name).append("HeapMb,").append(name).append("Threads");
+            }
+            header.append(",faults");
+            csv.println(header);
+            System.out.println(header);
+        }
+
+        synchronized void sample() {
+            for (SystemProcess system : systems.values()) {
+                Map<String, Double> series = scrape(system.port);
+                if (series.isEmpty()) {
+                    continue;
+                }
+                windowHeap.merge(system.name, sum(series, "jvm_memory_used_bytes{area=\"heap\"}") / (1024 * 1024), Math::min);
+                windowThreads.merge(system.name, sum(series, "jvm_threads_live"), Math::max);
+                if (system.name.equals("result")) {
+                    windowPending = Math.max(windowPending, sum(series, "result_pending_aggregations"));
+                }
+            }
+        }
+
+        synchronized void closeWindow(String faults) {
+            double seconds = (System.nanoTime() - windowStart) / 1e9;
+            long finalized = ledger.getFinalized();
+            double finalizedPerSecond = (finalized - finalizedAtWindowStart) / seconds;
+            StringBuilder line = new StringBuilder().append(throughput.size() + 1)
+                .append(',').append(String.format("%.1f", (ledger.getSent() - sentAtWindowStart) / seconds))
+                .append(',').append(String.format("%.1f", finalizedPerSecond))
+                .append(',').append(ledger.getSent() - finalized)
+                .append(',').append(ledger.getDuplicates())
+                .append(',').append((long) windowPending);
+            for (SystemProcess system : systems.values()) {
+                Double heap = windowHeap.get(system.name);
+                Double threads = windowThreads.get(system.name);
+                line.append(',').append(heap == null ? "" : String.format("%.1f", heap))
+                    .append(',').append(threads == null ? "" : String.valueOf(threads.longValue()));
+                if (heap != null) {
+                    heapFloors.get(system.name).add(new double[] {heap, system.getStarts()});
+                    maxThreads.merge(system.name, threads, Math::max);
+                }
+            }
+            line.append(',').append(faults);
+            csv.println(line);
+            System.out.println(line);
+            throughput.add(finalizedPerSecond);
+            windowHeap.clear();
+            windowThreads.clear();
+            windowPending = 0;
+            windowStart = System.nanoTime();
+            finalizedAtWindowStart = finalized;
+            sentAtWindowStart = ledger.getSent();
+        }
+
+        /**
+         * Growth of the heap floor in MB per window, the steepest least-squares slope over the runs of a system
+         * without a restart; the first window of a run (startup) is left out. NaN if no run is long enough.
+         */
+        synchronized double heapGrowthPerWindow(String system) {
+            List<double[]> floors = heapFloors.get(system);
+            double steepest = Double.NaN;
+            int from = 0;
+            while (from < floors.size()) {
+                int to = from;
+                while (to < floors.size() && floors.get(to)[1] == floors.get(from)[1]) {
+                    to++;
+                }
+                if (to - from - 1 >= MIN_HEAP_WINDOWS) {
+                    double slope = slope(floors.subList(from + 1, to));
+                    steepest = Double.isNaN(steepest) ? slope : Math.max(steepest, slope);
+                }
+                from = to;
+            }
+            return steepest;
+        }
+
+        synchronized List<Double> getThroughput() {
+            return new ArrayList<>(throughput);
+        }
+
+        synchronized Map<String, Double> getMaxThreads() {
+            return new TreeMap<>(maxThreads);
+        }
+
+        private static double slope(List<double[]> points) {
+            int n = points.size();
+            double meanX = (n - 1) / 2.0;
+            double meanY = 0;
+            for (double[] point : points) {
+                meanY += point[0] / n;
+            }
+            double covariance = 0;
+            double variance = 0;
+            for (int x = 0; x < n; x++) {
+                covariance += (x - meanX) * (points.get(x)[0] - meanY);
+                variance += (x - meanX) * (x - meanX);
+            }
+            return covariance / variance;
+        }
+    }
+
+    /** The pass/fail checks and the final report. */
+    static final class Report {
+        private final Ledger ledger;
+        private final Samples samples;
+        private final FaultInjector injector;
+        private final long minutes;
+        private final int ordersPerSecond;
+        private final List<String> checks = new ArrayList<>();
+        private boolean passed = true;
+
+        Report(Ledger ledger, Samples samples, FaultInjector injector, long minutes, int ordersPerSecond) {
+            this.ledger = ledger;
+            this.samples = samples;
+            this.injector = injector;
+            this.minutes = minutes;
+            this.ordersPerSecond = ordersPerSecond;
+        }
+
+        void check(String what, long actual, long max) {
+            record(actual <= max, what + " " + actual + " (max " + max + ")");
+        }
+
+        void checkHeap(double maxMbPerHour) {
+            double windowsPerHour = 3600.0 / Integer.getInteger("soak.windowSeconds", 60);
+            for (String system : samples.heapFloors.keySet()) {
+                double growth = samples.heapGrowthPerWindow(system) * windowsPerHour;
+                if (Double.isNaN(growth)) {
+                    checks.add("SKIP heap growth of " + system + ": no run of " + (MIN_HEAP_WINDOWS + 1)
+                        + " windows without a restart");
+                } else {
+                    record(growth <= maxMbPerHour, String.format("heap floor growth of %s %.1f MB/h (max %.1f)",
+                        system, growth, maxMbPerHour));
+                }
+            }
+        }
+
+        // Compares the first and the last third of the windows; the first window (startup) is left out
+        void checkThroughput(double maxDrop) {
+            List<Double> windows = samples.getThroughput();
+            if (windows.size() < 4) {
+                checks.add("SKIP throughput drift: fewer than 4 windows");
+                return;
+            }
+            List<Double> steady = windows.subList(1, windows.size() - 1);
+            int third = Math.max(1, steady.size() / 3);
+            double first = mean(steady.subList(0, third));
+            double last = mean(steady.subList(steady.size() - third, steady.size()));
+            double drift = first == 0 ? 0 : (last - first) / first;
+            record(drift >= -maxDrop, String.format("throughput drift %.1f/s -> %.1f/s (%+.1f%%, max drop %.1f%%)",
+                first, last, 100 * drift, 100 * maxDrop));
+        }
+
+        boolean passed() {
+            return passed;
+        }
+
+        String text(Map<String, Long> leftover) {
+            StringBuilder text = new StringBuilder();
+            text.append("Soak report: ").append(minutes).append(" min at ").append(ordersPerSecond).append(" orders/s\n");
+            text.append("orders: ").append(ledger.describe()).append('\n');
+            text.append("faults: ").append(injector.getInjected()).append('\n');
+            text.append("max threads: ").append(samples.getMaxThreads()).append('\n');
+            text.append("messages left in queues: ").append(leftover).append('\n');
+            for (String check : checks) {
+                text.append(check).append('\n');
+            }
+            text.append(passed ? "PASSED" : "FAILED").append('\n');
+            return text.toString();
+        }
+
+        private void record(boolean ok, String description) {
+            checks.add((ok ? "PASS " : "FAIL ") + description);
+            passed &= ok;
+        }
+
+        private static double mean(List<Double> values) {
+            double sum = 0;
+            for (double value : values) {
+                sum += value;
+            }
+            return sum / values.size();
+        }
+    }
+}
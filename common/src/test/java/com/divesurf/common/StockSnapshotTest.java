@@ -0,0 +1,51 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the local stock snapshot used for early rejection at order entry.
+ */
+public class StockSnapshotTest extends TestCase {
+
+    public void testUnknownWithoutSnapshot() {
+        StockSnapshot stock = new StockSnapshot(10000);
+        assertEquals(StockSnapshot.Verdict.UNKNOWN, stock.check(1, 1));
+        assertEquals(-1, stock.getSurfboards());
+    }
+
+    public void testOrdersExceedingStockAreDetected() {
+        StockSnapshot stock = new StockSnapshot(10000);
+        assertTrue(stock.update(StockSnapshot.format(5, 2, System.currentTimeMillis())));
+        assertEquals(StockSnapshot.Verdict.AVAILABLE, stock.check(5, 2));
+        assertEquals(StockSnapshot.Verdict.EXCEEDS_STOCK, stock.check(6, 0));
+        assertEquals(StockSnapshot.Verdict.EXCEEDS_STOCK, stock.check(0, 3));
+        assertEquals(2, stock.getExceeded());
+    }
+
+    public void testOlderSnapshotsAreIgnored() {
+        StockSnapshot stock = new StockSnapshot(10000);
+        long now = System.currentTimeMillis();
+        stock.update(StockSnapshot.format(5, 2, now));
+        assertFalse(stock.update(StockSnapshot.format(50, 20, now - 1000)));
+        assertEquals(5, stock.getSurfboards());
+        assertTrue(stock.update(StockSnapshot.format(50, 20, now + 1000)));
+        assertEquals(20, stock.getDivingSuits());
+    }
+
+    public void testStaleSnapshotIsNotTrusted() throws Exception {
+        StockSnapshot stock = new StockSnapshot(50);
+        stock.update(StockSnapshot.format(0, 0, System.currentTimeMillis()));
+        assertEquals(StockSnapshot.Verdict.EXCEEDS_STOCK, stock.check(1, 0));
+        Thread.sleep(100);
+        assertEquals(StockSnapshot.Verdict.UNKNOWN, stock.check(1, 0));
+    }
+
+    public void testMalformedSnapshotIsRejected() {
+        try {
+            new StockSnapshot(10000).update("5,2");
+            fail("expected NumberFormatException");
+        } catch (NumberFormatException expected) {
+            // quarantined by the stockLevels route
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the sampled span export and the timeline rebuild.
+ */
+public class TracerTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("traces").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testDisabledTracerSamplesNothing() throws Exception {
+        Tracer tracer = new Tracer("web", 0, dir, 1024, 2);
+        assertFalse(tracer.isEnabled());
+        assertNull(tracer.newTraceId());
+        tracer.span("abc", "route", "process", 1, 1);
+        tracer.close();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testSpansOfAllSystemsFormOneTimeline() throws Exception {
+        Tracer web = new Tracer("web", 1, dir, 1 << 20, 2);
+        Tracer billing = new Tracer("billing", 1, dir, 1 << 20, 2);
+        String traceId = web.newTraceId();
+        assertNotNull(traceId);
+        web.span(traceId, "webOrderRoute", "to[jms:queue:orders]", 1000, 500);
+        billing.span(traceId, "billing-small", "hop[jms://queue:orders]", 1002, 3000);
+        billing.span(traceId, "billing-small", "process[CreditValidator, with, commas]", 1005, 20000);
+        web.span(null, "webOrderRoute", "unsampled", 1000, 1);
+        web.close();
+        billing.close();
+
+        Map<String, List<TraceTimeline.Span>> traces = TraceTimeline.load(dir);
+        assertEquals(1, traces.size());
+        List<TraceTimeline.Span> trace = traces.get(traceId);
+        assertEquals(3, trace.size());
+        assertEquals("web", trace.get(0).system);
+        assertEquals("billing", trace.get(2).system);
+        assertEquals("process[CreditValidator; with; commas]", trace.get(2).name);
+        assertEquals(20000, trace.get(2).durationMicros);
+    }
+
+    public void testRollsOverAtMaxFileSize() throws Exception {
+        Tracer tracer = new Tracer("result", 1, dir, 200, 3);
+        for (int i = 0; i < 50; i++) {
+            tracer.span("t" + i, "aggregation-small", "aggregate", i, i);
+            Thread.sleep(2); // let the writer roll between batches
+        }
+        tracer.close();
+        assertEquals(50, tracer.getWritten());
+        // current file plus at most two rolled ones
+        assertEquals(3, dir.listFiles().length);
+    }
+}
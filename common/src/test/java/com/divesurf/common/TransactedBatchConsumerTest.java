@@ -0,0 +1,336 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Unit tests for the transacted micro-batch consumer, against an embedded broker.
+ */
+public class TransactedBatchConsumerTest extends TestCase {
+    private BrokerService broker;
+    private ActiveMQConnectionFactory connectionFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        startBroker();
+        connectionFactory = new ActiveMQConnectionFactory("vm://batch-test?create=false");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        broker.stop();
+    }
+
+    private void startBroker() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("batch-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+    }
+
+    public void testForwardsAllMessagesInBatches() throws Exception {
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    producer.send(session.createQueue("out"),
+                        session.createTextMessage(((TextMessage) message).getText().toUpperCase()));
+                }
+            });
+        consumer.start();
+        try {
+            send("in", 25);
+            assertEquals(25, receive("out", 25));
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(25, consumer.getMessages());
+        assertTrue(consumer.getBatches() >= 3);
+    }
+
+    public void testFailedBatchIsRolledBackAndRedelivered() throws Exception {
+        AtomicBoolean failOnce = new AtomicBoolean(true);
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 5, 500,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    producer.send(session.createQueue("out"), session.createTextMessage(((TextMessage) message).getText()));
+                }
+                if (failOnce.getAndSet(false)) {
+                    throw new IllegalStateException("simulated failure");
+                }
+            });
+        consumer.start();
+        try {
+            send("in", 5);
+            // outputs of the failed attempt were rolled back, so each order arrives exactly once
+            assertEquals(5, receive("out", 10));
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(1, consumer.getRollbacks());
+    }
+
+    public void testPoisonMessageIsQuarantinedAndOthersGetThrough() throws Exception {
+        connectionFactory.getRedeliveryPolicy().setInitialRedeliveryDelay(10);
+        connectionFactory.getRedeliveryPolicy().setRedeliveryDelay(10);
+        connectionFactory.getRedeliveryPolicy().setMaximumRedeliveries(Quarantine.MAX_REDELIVERIES + 1);
+        Quarantine quarantine = new Quarantine("test");
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    String text = ((TextMessage) message).getText();
+                    if (text.equals("order-2")) {
+                        throw new NumberFormatException("For input string: \"x\"");
+                    }
+                    producer.send(session.createQueue("out"), session.createTextMessage(text));
+                }
+            }, quarantine);
+        consumer.start();
+        try {
+            send("in", 5);
+            assertEquals(4, receive("out", 10));
+        } finally {
+            consumer.stop();
+        }
+
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            TextMessage poisoned = (TextMessage) session.createConsumer(session.createQueue(Quarantine.QUEUE)).receive(2000);
+            assertNotNull(poisoned);
+            assertEquals("order-2", poisoned.getText());
+            assertEquals("batch-in", poisoned.getStringProperty(Quarantine.ROUTE_HEADER));
+            assertTrue(poisoned.getStringProperty(Quarantine.REASON_HEADER).contains("NumberFormatException"));
+        } finally {
+            connection.close();
+        }
+        assertEquals(1, consumer.getQuarantined());
+        assertEquals(1, quarantine.getQuarantined("batch-in"));
+    }
+
+    public void testRejectedMessageIsQuarantinedWithoutFailingTheBatch() throws Exception {
+        Quarantine quarantine = new Quarantine("test");
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    String text = ((TextMessage) message).getText();
+                    if (text.equals("order-1")) {
+                        rejects.reject(message, new IllegalArgumentException("Invalid message format: " + text));
+                        continue;
+                    }
+                    producer.send(session.createQueue("out"), session.createTextMessage(text));
+                }
+            }, quarantine);
+        consumer.start();
+        try {
+            send("in", 3);
+            assertEquals(2, receive("out", 10));
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(0, consumer.getRollbacks());
+        assertEquals(1, consumer.getQuarantined());
+
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            TextMessage rejected = (TextMessage) session.createConsumer(session.createQueue(Quarantine.QUEUE)).receive(2000);
+            assertNotNull(rejected);
+            assertEquals("order-1", rejected.getText());
+            assertEquals(IllegalArgumentException.class.getName(), rejected.getStringProperty(Quarantine.EXCEPTION_HEADER));
+            assertEquals(1, rejected.getIntProperty(Quarantine.ATTEMPTS_HEADER));
+        } finally {
+            connection.close();
+        }
+    }
+
+    public void testEnvelopesAreOpenedIntoTheirOrders() throws Exception {
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    producer.send(session.createQueue("out"), session.createTextMessage(((TextMessage) message).getText()));
+                }
+            });
+        sendEnvelope("in", 4);
+        consumer.start();
+        try {
+            assertEquals(4, receive("out", 10));
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(1, consumer.getEnvelopes());
+        assertEquals(4, consumer.getMessages());
+    }
+
+    public void testFailedOrderOfAnEnvelopeIsQuarantinedAlone() throws Exception {
+        Quarantine quarantine = new Quarantine("test");
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    String text = ((TextMessage) message).getText();
+                    if (text.equals("order-2")) {
+                        rejects.fail(message, new IllegalStateException("bureau unavailable"));
+                        continue;
+                    }
+                    producer.send(session.createQueue("out"), session.createTextMessage(text));
+                }
+            }, quarantine);
+        sendEnvelope("in", 4);
+        consumer.start();
+        try {
+            assertEquals(3, receive("out", 10));
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(0, consumer.getRollbacks());
+        assertEquals(1, consumer.getQuarantined());
+
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer quarantined = session.createConsumer(session.createQueue(Quarantine.QUEUE));
+            TextMessage failed = (TextMessage) quarantined.receive(2000);
+            assertNotNull(failed);
+            assertEquals("order-2", failed.getText());
+            assertEquals(IllegalStateException.class.getName(), failed.getStringProperty(Quarantine.EXCEPTION_HEADER));
+            assertNull(quarantined.receive(200));
+        } finally {
+            connection.close();
+        }
+    }
+
+    public void testFailedMessageOfItsOwnIsRetried() throws Exception {
+        AtomicBoolean failOnce = new AtomicBoolean(true);
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    if (failOnce.getAndSet(false)) {
+                        rejects.fail(message, new IllegalStateException("bureau unavailable"));
+                    }
+                    producer.send(session.createQueue("out"), session.createTextMessage(((TextMessage) message).getText()));
+                }
+            }, new Quarantine("test"));
+        consumer.start();
+        try {
+            send("in", 3);
+            assertEquals(3, receive("out", 10));
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(1, consumer.getRollbacks());
+        assertEquals(0, consumer.getQuarantined());
+    }
+
+    public void testMessageQuarantinedByARolledBackBatchIsCountedOnce() throws Exception {
+        Quarantine quarantine = new Quarantine("test");
+        AtomicBoolean failOnce = new AtomicBoolean(true);
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    rejects.reject(message, new IllegalArgumentException("Invalid message format"));
+                }
+                if (failOnce.getAndSet(false)) {
+                    throw new IllegalStateException("simulated failure");
+                }
+            }, quarantine);
+        consumer.start();
+        try {
+            send("in", 1);
+            assertEquals(1, receive(Quarantine.QUEUE, 10));
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(1, consumer.getRollbacks());
+        assertEquals(1, consumer.getQuarantined());
+        assertEquals(1, quarantine.getQuarantined("batch-in"));
+    }
+
+    public void testReconnectsAfterTheBrokerRestarted() throws Exception {
+        TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory, "in", 10, 200,
+            (batch, session, producer, rejects) -> {
+                for (Message message : batch) {
+                    producer.send(session.createQueue("out"), session.createTextMessage(((TextMessage) message).getText()));
+                }
+            });
+        consumer.start();
+        try {
+            send("in", 2);
+            assertEquals(2, receive("out", 10));
+            assertTrue(consumer.isConnected());
+
+            broker.stop();
+            broker.waitUntilStopped();
+            startBroker();
+            send("in", 3);
+            // the consumer notices the failure and reconnects after its backoff
+            assertEquals(3, receive("out", 3, 10000));
+            assertTrue(consumer.isConnected());
+        } finally {
+            consumer.stop();
+        }
+        assertEquals(1, consumer.getReconnects());
+        assertEquals(5, consumer.getMessages());
+    }
+
+    private void sendEnvelope(String queue, int orders) throws Exception {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            OrderEnvelope.Builder builder = new OrderEnvelope.Builder();
+            for (int i = 0; i < orders; i++) {
+                builder.add("order-" + i, Collections.emptyMap());
+            }
+            TextMessage envelope = session.createTextMessage(builder.build());
+            envelope.setIntProperty(OrderEnvelope.COUNT_HEADER, builder.size());
+            session.createProducer(session.createQueue(queue)).send(envelope);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void send(String queue, int count) throws Exception {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(session.createQueue(queue));
+            for (int i = 0; i < count; i++) {
+                producer.send(session.createTextMessage("order-" + i));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private int receive(String queue, int max) throws Exception {
+        return receive(queue, max, 2000);
+    }
+
+    private int receive(String queue, int max, long timeoutMillis) throws Exception {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(session.createQueue(queue));
+            int received = 0;
+            while (received < max && consumer.receive(timeoutMillis) != null) {
+                received++;
+            }
+            return received;
+        } finally {
+            connection.close();
+        }
+    }
+}
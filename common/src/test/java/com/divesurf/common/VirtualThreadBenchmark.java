@@ -0,0 +1,109 @@
+package com.divesurf.common;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local benchmark of platform against virtual threads for billing-like work (run with exec:java, once plainly
+ * and once with -Pvirtual-threads on Java 21). Each order blocks on a credit lookup of lookupMillis and is then
+ * sent to an embedded broker, on a {@link WeightedFairExecutor} with as many workers as the concurrency level,
+ * like the billing credit checks with billing.maxInFlight. Prints one CSV line per level with throughput,
+ * latency percentiles and the peak number of platform threads.
+ * <p>
+ * Settings: -Dbenchmark.concurrency=16,256,1024,4096 -Dbenchmark.lookupMillis=50 -Dbenchmark.ordersPerWorker=20
+ */
+public class VirtualThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String[] levels = System.getProperty("benchmark.concurrency", "16,256,1024,4096").split(",");
+        long lookupMillis = Long.getLong("benchmark.lookupMillis", 50L);
+        int ordersPerWorker = Integer.getInteger("benchmark.ordersPerWorker", 20);
+        String mode = VirtualThreads.isEnabled() ? "virtual" : "platform";
+
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName("thread-benchmark");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        Connection connection = new ActiveMQConnectionFactory("vm://thread-benchmark?create=false").createConnection();
+        connection.start();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.println("mode,concurrency,orders,seconds,ordersPerSecond,p50Millis,p99Millis,peakPlatformThreads");
+        for (String level : levels) {
+            int concurrency = Integer.parseInt(level.trim());
+            int orders = concurrency * ordersPerWorker;
+            // each worker keeps its own session, like a JMS consumer thread
+            ThreadLocal<Sender> senders = ThreadLocal.withInitial(() -> new Sender(connection));
+            long[] latencies = new long[orders];
+            AtomicInteger completed = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(orders);
+
+            threads.resetPeakThreadCount();
+            WeightedFairExecutor executor = new WeightedFairExecutor("Benchmark", concurrency, 4, 1);
+            long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                int lane = i % 5 == 0 ? 1 : 0;
+                long submitted = System.nanoTime();
+                executor.execute(lane, () -> {
+                    try {
+                        Thread.sleep(lookupMillis);
+                        Sender sender = senders.get();
+                        sender.producer.send(sender.session.createTextMessage("order"));
+                        latencies[completed.getAndIncrement()] = System.nanoTime() - submitted;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (JMSException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+
+            long[] sorted = Arrays.copyOf(latencies, completed.get());
+            Arrays.sort(sorted);
+            System.out.printf("%s,%d,%d,%.2f,%.0f,%.1f,%.1f,%d%n", mode, concurrency, sorted.length, seconds,
+                sorted.length / seconds, percentile(sorted, 0.50), percentile(sorted, 0.99), threads.getPeakThreadCount());
+        }
+
+        connection.close();
+        broker.stop();
+    }
+
+    // A worker's session; sent to a topic without subscribers, so the broker does not pile the orders up
+    private static final class Sender {
+        final Session session;
+        final MessageProducer producer;
+
+        Sender(Connection connection) {
+            try {
+                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                producer = session.createProducer(session.createTopic("benchmark"));
+                producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            } catch (JMSException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0.0 : sorted[(int) Math.min(sorted.length - 1, p * sorted.length)] / 1e6;
+    }
+}
@@ -0,0 +1,66 @@
+package com.divesurf.common;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the weighted-fair lane scheduler.
+ */
+public class WeightedFairExecutorTest extends TestCase {
+
+    public void testLanesShareWorkersByWeight() throws Exception {
+        WeightedFairExecutor executor = new WeightedFairExecutor("test", 1, 4, 1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(50);
+
+        // keep the only worker busy while both lanes fill up
+        executor.execute(0, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 25; i++) {
+            executor.execute(1, () -> { order.add(1); done.countDown(); });
+        }
+        for (int i = 0; i < 25; i++) {
+            executor.execute(0, () -> { order.add(0); done.countDown(); });
+        }
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // of the first 10 tasks, 8 come from the lane with weight 4
+        int heavy = 0;
+        for (int lane : order.subList(0, 10)) {
+            if (lane == 0) {
+                heavy++;
+            }
+        }
+        assertEquals(8, heavy);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    public void testIdleLaneLeavesCapacityToOthers() throws Exception {
+        WeightedFairExecutor executor = new WeightedFairExecutor("test", 2, 4, 1);
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(1, done::countDown);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    public void testOrderLane() {
+        assertEquals(OrderLane.SMALL, OrderLane.of(10));
+        assertEquals(OrderLane.LARGE, OrderLane.of(11));
+        assertEquals("large", OrderLane.LARGE.suffix());
+    }
+}
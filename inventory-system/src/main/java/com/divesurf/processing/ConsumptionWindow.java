@@ -0,0 +1,75 @@
+package com.divesurf.InventorySystem;
+
+/**
+ * Items consumed within a sliding time window, kept in a ring buffer of fixed-size time buckets.
+ * Recording and reading cost O(1): moving the window only clears the buckets that fell out of it,
+ * and a running sum holds the total of the buckets still inside.
+ */
+public class ConsumptionWindow {
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final long[] buckets;
+    private long newestBucket = -1; // absolute bucket number (time / bucketMillis) of the newest bucket
+    private long sum;
+    private long firstRecordMillis = -1;
+
+    public ConsumptionWindow(long windowMillis, int bucketCount) {
+        if (windowMillis <= 0 || bucketCount <= 0 || windowMillis < bucketCount) {
+            throw new IllegalArgumentException("windowMillis and bucketCount must be positive, with buckets of at least 1ms");
+        }
+        this.windowMillis = windowMillis;
+        this.bucketMillis = windowMillis / bucketCount;
+        this.buckets = new long[bucketCount];
+    }
+
+    public synchronized void record(long nowMillis, long quantity) {
+        advance(nowMillis);
+        buckets[(int) Math.floorMod(newestBucket, (long) buckets.length)] += quantity;
+        sum += quantity;
+        if (firstRecordMillis < 0) {
+            firstRecordMillis = nowMillis;
+        }
+    }
+
+    /** Items consumed within the window. */
+    public synchronized long total(long nowMillis) {
+        advance(nowMillis);
+        return sum;
+    }
+
+    /**
+     * Consumption per minute over the window. Until the window has been filled once, the rate is taken over
+     * the time since the first consumption (but at least one bucket), so it is not underestimated at startup.
+     */
+    public synchronized double perMinute(long nowMillis) {
+        advance(nowMillis);
+        if (sum == 0) {
+            return 0.0;
+        }
+        long span = Math.max(bucketMillis, Math.min(windowMillis, nowMillis - firstRecordMillis));
+        return sum * 60000.0 / span;
+    }
+
+    /** True once the window has covered a full window length since the first consumption. */
+    public synchronized boolean isFilled(long nowMillis) {
+        return firstRecordMillis >= 0 && nowMillis - firstRecordMillis >= windowMillis;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    private void advance(long nowMillis) {
+        long bucket = nowMillis / bucketMillis;
+        if (bucket <= newestBucket) {
+            return;
+        }
+        long expired = newestBucket < 0 ? buckets.length : Math.min(bucket - newestBucket, buckets.length);
+        for (long i = 1; i <= expired; i++) {
+            int index = (int) Math.floorMod(bucket - expired + i, (long) buckets.length);
+            sum -= buckets[index];
+            buckets[index] = 0;
+        }
+        newestBucket = bucket;
+    }
+}
@@ -2,22 +2,71 @@ package com.divesurf.InventorySystem;
 
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedCamelContext;
 import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.jms.JmsComponent;
 import org.apache.camel.impl.DefaultCamelContext;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import com.sun.net.httpserver.HttpServer;
+import com.divesurf.camel.QuarantineRoutes;
+import com.divesurf.camel.RouteAutoscaler;
+import com.divesurf.camel.RouteMetrics;
+import com.divesurf.camel.TraceInterceptor;
 //import com.divesurf.common.Order;
 
+import com.divesurf.common.ConsumerAutoscaler;
+import com.divesurf.common.CustomerProfiles;
+import com.divesurf.common.CustomerSequence;
+import com.divesurf.common.CustomerSequenceGate;
+import com.divesurf.common.JvmMetrics;
+import com.divesurf.common.LatencyTracker;
+import com.divesurf.common.Lifecycle;
+import com.divesurf.common.MetricsRegistry;
+import com.divesurf.common.MetricsServer;
+import com.divesurf.common.OrderCsv;
+import com.divesurf.common.OrderEnvelope;
+import com.divesurf.common.OrderLane;
+import com.divesurf.common.OrderLog;
+import com.divesurf.common.Quarantine;
+import com.divesurf.common.StockSnapshot;
+import com.divesurf.common.Tracer;
+import com.divesurf.common.VirtualThreads;
+import com.divesurf.common.TransactedBatchConsumer;
+
 import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class InventorySystem {
 
+    // Exchange property holding System.nanoTime() when the route started processing the message
+    private static final String PROCESSING_STARTED = "processingStarted";
+    private static final String STOCK_FILE_HEADER = "Inventory Stock\n"
+        + "Important notice: you may need to close and open the file if you've made some orders if you want to see this file changed\n"
+        + "if you change the file manually, you may want to also save it CTRL+S\n"
+        + "With -Dinventory.stockFile.watch=true edits are applied while the system runs:\n"
+        + "+N or -N changes an item's stock by N, a changed number corrects it by the difference";
+
     public static void main(String[] args) throws Exception {
+        // Startup time, readiness and the drain on shutdown
+        Lifecycle lifecycle = Lifecycle.fromSystemProperties("inventory");
         Properties stockProps = new Properties();
         // Ensure we create/read stock.properties in the inventory-system module folder
         String baseDir = System.getProperty("user.dir");
@@ -27,10 +76,7 @@ public class InventorySystem {
             stockProps.setProperty("surfboards", "100");
             stockProps.setProperty("divingSuits", "50");
             try (FileOutputStream out = new FileOutputStream(stockFile)) {
-                String header = "Inventory Stock\n"
-                        + "Important notice: you may need to close and open the file if you've made some orders if you want to see this file changed\n"
-                        + "if you change the file manually, you may want to also save it CTRL+S";
-                stockProps.store(out, header);
+                stockProps.store(out, STOCK_FILE_HEADER);
             }
         }
 
@@ -42,41 +88,229 @@ public class InventorySystem {
         StockManager stockManager = new StockManager(stockProps, stockFile);
 
         CamelContext context = new DefaultCamelContext();
-        ConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://localhost:61616");
-        context.addComponent("jms", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        // Route, stock and JVM statistics for the metrics endpoint
+        MetricsRegistry metrics = new MetricsRegistry("inventory");
+        JvmMetrics.register(metrics);
+        lifecycle.registerMetrics(metrics);
+        context.addRoutePolicyFactory(new RouteMetrics(metrics));
+        metrics.gauge("inventory_stock_items", "Items in stock", stockManager::getSurfboardStock, "item", "surfboards");
+        metrics.gauge("inventory_stock_items", "Items in stock", stockManager::getDivingSuitStock, "item", "divingSuits");
+        metrics.family("inventory_decisions_total", "Stock decisions by status", "counter",
+            "status", () -> InventoryDecision.OUTCOMES);
+        ActiveMQConnectionFactory activeMq = new ActiveMQConnectionFactory("tcp://localhost:61616");
+        Quarantine.applyRedeliveryPolicy(activeMq);
+        ConnectionFactory connectionFactory = activeMq;
+        JmsComponent jms = JmsComponent.jmsComponentAutoAcknowledge(connectionFactory);
+        if (VirtualThreads.isEnabled()) {
+            // consumers wait in receive most of the time; on virtual threads they do not hold a platform thread each
+            jms.setTaskExecutor(new TaskExecutorAdapter(VirtualThreads.newPerTaskExecutor("JmsConsumer")));
+        }
+        context.addComponent("jms", jms);
+        // Producers connect on their first message instead of at startup
+        context.getGlobalEndpointConfiguration().setLazyStartProducer(true);
+        // In-flight stock checks get most of the drain timeout to complete when the context stops
+        context.getShutdownStrategy().setTimeUnit(TimeUnit.MILLISECONDS);
+        context.getShutdownStrategy().setTimeout(lifecycle.getDrainTimeoutMillis() * 2 / 3);
+        // Spans of traced orders for every inventory processor
+        Tracer tracer = Tracer.fromSystemProperties("inventory");
+        if (tracer.isEnabled()) {
+            context.adapt(ExtendedCamelContext.class).addInterceptStrategy(new TraceInterceptor(tracer));
+            tracer.registerMetrics(metrics);
+        }
+        // Poison messages of all inventory routes end up in the quarantine queue
+        Quarantine quarantine = new Quarantine("inventory");
+        quarantine.registerMetrics(metrics);
+        // Per-order events are sampled and written in the background
+        OrderLog orderLog = OrderLog.fromSystemProperties("inventory");
+        orderLog.registerMetrics(metrics);
+        // Consumption rates per item: reorder and low-stock alerts are published before stock runs out
+        ProducerTemplate alertProducer = context.createProducerTemplate();
+        StockForecast forecast = StockForecast.fromSystemProperties(alert -> {
+            System.out.println("Stock alert: " + alert);
+            alertProducer.sendBody("jms:topic:VirtualTopic.stockAlerts", alert);
+        });
+        metrics.gauge("inventory_consumption_per_minute", "Items shipped per minute",
+            () -> forecast.shortWindowRate("surfboards"), "item", "surfboards", "window", "short");
+        metrics.gauge("inventory_consumption_per_minute", "Items shipped per minute",
+            () -> forecast.longWindowRate("surfboards"), "item", "surfboards", "window", "long");
+        metrics.gauge("inventory_consumption_per_minute", "Items shipped per minute",
+            () -> forecast.shortWindowRate("divingSuits"), "item", "divingSuits", "window", "short");
+        metrics.gauge("inventory_consumption_per_minute", "Items shipped per minute",
+            () -> forecast.longWindowRate("divingSuits"), "item", "divingSuits", "window", "long");
+        metrics.gauge("inventory_minutes_to_stockout", "Estimated minutes until the item runs out",
+            () -> forecast.minutesToStockout("surfboards", stockManager.getSurfboardStock()), "item", "surfboards");
+        metrics.gauge("inventory_minutes_to_stockout", "Estimated minutes until the item runs out",
+            () -> forecast.minutesToStockout("divingSuits", stockManager.getDivingSuitStock()), "item", "divingSuits");
+        context.addRoutes(new QuarantineRoutes(quarantine));
+        // Restocks and corrections while running, from the stockAdjustments queue and (in file-watch mode)
+        // from edits of stock.properties; a restock re-arms the forecast's alerts at once
+        StockAdjustments adjustments = new StockAdjustments(stockManager, () -> {
+            forecast.update("surfboards", stockManager.getSurfboardStock());
+            forecast.update("divingSuits", stockManager.getDivingSuitStock());
+        });
+        adjustments.registerMetrics(metrics);
+        if (Boolean.getBoolean("inventory.stockFile.watch")) {
+            adjustments.watch(stockFile);
+        }
+
+        // Each customer's orders reserve stock in the order they were placed, though they arrive on both lanes
+        CustomerSequenceGate sequenceGate = CustomerSequenceGate.fromSystemProperties("inventory");
+        sequenceGate.registerMetrics(metrics, "inventory");
+        // Envelopes are opened and packed by the micro-batch consumers, so envelope mode implies micro-batch mode
+        int envelopeOrders = OrderEnvelope.maxOrdersFromSystemProperties();
+        int batchSize = Integer.getInteger("inventory.batchSize", OrderEnvelope.isEnabled(envelopeOrders) ? envelopeOrders : 0);
+        if (OrderEnvelope.isEnabled(envelopeOrders) && batchSize <= 0) {
+            throw new IllegalStateException("Envelope mode needs the micro-batch mode (inventory.batchSize > 0)");
+        }
+        OrderEnvelope.registerMetrics(metrics);
+        LatencyTracker[] laneLatency = {new LatencyTracker(), new LatencyTracker()};
+        List<TransactedBatchConsumer> batchConsumers = new ArrayList<>();
+        if (batchSize > 0) {
+            // Micro-batch mode: up to batchSize orders (or what arrives within batchLingerMillis)
+            // are validated and routed in one local JMS transaction
+            long lingerMillis = Long.getLong("inventory.batchLingerMillis", 50L);
+            for (OrderLane lane : OrderLane.values()) {
+                TransactedBatchConsumer consumer = new TransactedBatchConsumer(connectionFactory,
+                    "billingToInventory." + lane.suffix(), batchSize, lingerMillis,
+                    new BatchStockValidator(stockManager, forecast, sequenceGate, orderLog.route("inventory-" + lane.suffix()),
+                        envelopeOrders),
+                    quarantine);
+                consumer.registerMetrics(metrics, 0);
+                consumer.start();
+                batchConsumers.add(consumer);
+            }
+            System.out.println("Inventory micro-batch mode: batchSize=" + batchSize + ", linger=" + lingerMillis + "ms"
+                + (OrderEnvelope.isEnabled(envelopeOrders) ? ", envelopes of up to " + envelopeOrders + " orders" : ""));
+        } else {
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    QuarantineRoutes.applyTo(this);
+
+                    // Point-to-Point Channel: Receives validated orders from billing system via one queue per lane,
+                    // each lane with its own consumers so large orders never wait in front of small ones
+                    for (OrderLane lane : OrderLane.values()) {
+                        from("jms:queue:billingToInventory." + lane.suffix()
+                                + "?concurrentConsumers=" + Integer.getInteger("inventory." + lane.suffix() + "Lane.consumers", 1))
+                            .routeId("inventory-" + lane.suffix())
+                            .process(e -> e.setProperty(PROCESSING_STARTED, System.nanoTime()))
+                            .process(new StockValidator(stockManager, forecast, sequenceGate, orderLog.route("inventory-" + lane.suffix())))
+                            // Content-Based Router: Routes to largeOrders or smallOrders based on overallItems
+                            .choice()
+                                .when(header("overallItems").isGreaterThan(OrderLane.LARGE_ORDER_THRESHOLD))
+                                    .to("jms:queue:largeOrders") // Point-to-Point Channel
+                                .otherwise()
+                                    .to("jms:queue:smallOrders") // Point-to-Point Channel
+                            .end()
+                            .process(e -> laneLatency[lane.ordinal()].record(
+                                System.nanoTime() - e.getProperty(PROCESSING_STARTED, Long.class)));
+                    }
+                }
+            });
+        }
 
         context.addRoutes(new RouteBuilder() {
             @Override
             public void configure() {
-                // Point-to-Point Channel: Receives validated orders from billing system via queue
-                from("jms:queue:billingToInventory")
-                    .process(new StockValidator(stockManager))
-                    // Content-Based Router: Routes to largeOrders or smallOrders based on overallItems
-                    .choice()
-                        .when(header("overallItems").isGreaterThan(10))
-                            .to("jms:queue:largeOrders") // Point-to-Point Channel
-                        .otherwise()
-                            .to("jms:queue:smallOrders") // Point-to-Point Channel
-                    .end();
+                // Re-evaluate the forecast with the current stock (a restock re-arms the alerts) and report it
+                from("timer:stockForecast?period=60000&delay=60000")
+                    .routeId("stockForecast")
+                    .process(e -> {
+                        int surfboards = stockManager.getSurfboardStock();
+                        int divingSuits = stockManager.getDivingSuitStock();
+                        forecast.update("surfboards", surfboards);
+                        forecast.update("divingSuits", divingSuits);
+                        System.out.println(forecast.stats(surfboards, divingSuits));
+                    });
+
+                // Point-to-Point Channel: admin stock adjustments such as "surfboards=+10,divingSuits=-2";
+                // a request with a JMSReplyTo gets the resulting stock (or why it was rejected) back
+                from("jms:queue:stockAdjustments")
+                    .routeId("stock-adjustments")
+                    .process(e -> e.getIn().setBody(adjustments.apply(e.getIn().getBody(String.class),
+                        e.getIn().getHeader("JMSTimestamp", System.currentTimeMillis(), Long.class))));
+                from("timer:stockAdjustmentStats?period=60000&delay=60000")
+                    .routeId("stockAdjustmentStats")
+                    .process(e -> System.out.println(adjustments.stats()));
+                from("timer:sequenceGateStats?period=60000&delay=60000")
+                    .routeId("sequenceGateStats")
+                    .process(e -> System.out.println(sequenceGate.stats()));
+
+                // Publish-Subscribe Channel: compact stock snapshots for early rejection at order entry,
+                // sent when the stock changed (at most once per interval) and as a heartbeat
+                StockBroadcast broadcast = new StockBroadcast(stockManager,
+                    Long.getLong("inventory.stockBroadcast.heartbeatMillis", 2000L));
+                from("timer:stockBroadcast?period=" + Long.getLong("inventory.stockBroadcast.intervalMillis", 200L))
+                    .routeId("stockBroadcast")
+                    .process(e -> e.getIn().setBody(broadcast.next()))
+                    .filter(body().isNotNull())
+                    .to("jms:topic:stockLevels?deliveryPersistent=false&timeToLive=10000");
             }
         });
 
+        HttpServer server = MetricsServer.start(metrics, 9105);
+        if (server != null) {
+            lifecycle.serveProbes(server);
+        }
         context.start();
+
+        // Resize the lane consumers at runtime from queue depth and processing time
+        if (batchSize <= 0 && Boolean.getBoolean("autoscale.enabled")) {
+            List<ConsumerAutoscaler> autoscalers = new ArrayList<>();
+            for (OrderLane lane : OrderLane.values()) {
+                autoscalers.add(RouteAutoscaler.start(context, connectionFactory, "inventory-" + lane.suffix(),
+                    "billingToInventory." + lane.suffix(), laneLatency[lane.ordinal()]));
+            }
+            autoscalers.forEach(a -> a.registerMetrics(metrics));
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("timer:autoscaleStats?period=60000&delay=60000")
+                        .routeId("autoscaleStats")
+                        .process(e -> autoscalers.forEach(a -> System.out.println(a.stats())));
+                }
+            });
+        }
+
+        // Drain: finish the open batches and in-flight stock checks, then write the final stock
+        lifecycle.onDrain("batchConsumers", () -> {
+            for (TransactedBatchConsumer consumer : batchConsumers) {
+                consumer.stop();
+            }
+        });
+        lifecycle.onDrain("camel", context::stop);
+        lifecycle.onDrain("stockFileWatch", adjustments::close);
+        lifecycle.onDrain("stock", stockManager::flush);
+        lifecycle.onDrain("logs", () -> {
+            orderLog.close();
+            tracer.close();
+        });
+        lifecycle.ready();
         System.out.println("InventorySystem started");
         // Display suits first, then surfboards
         System.out.println("Initial stock - Diving Suits: " + stockManager.getDivingSuitStock() +
                           ", Surfboards: " + stockManager.getSurfboardStock());
-        Thread.sleep(Long.MAX_VALUE);
+        lifecycle.awaitStopped();
     }
 
     // Helper class to manage stock and file updates
-    private static class StockManager {
+    public static class StockManager {
         private final Properties stockProps;
         private final File stockFile;
+        // surfboards and diving suits as last written to the stock file
+        private final int[] written = new int[2];
+        // surfboards and diving suits reserved by the batch open on the current thread
+        private final ThreadLocal<int[]> openBatch = new ThreadLocal<>();
+        // surfboards and diving suits reserved by the batches open on all threads; not written to the stock file
+        private final int[] uncommitted = new int[2];
+        // incremented on every stock change
+        private long version;
 
         public StockManager(Properties stockProps, File stockFile) {
             this.stockProps = stockProps;
             this.stockFile = stockFile;
+            this.written[0] = getSurfboardStock();
+            this.written[1] = getDivingSuitStock();
         }
 
         public synchronized int getSurfboardStock() {
@@ -87,32 +321,161 @@ public class InventorySystem {
             return Integer.parseInt(stockProps.getProperty("divingSuits"));
         }
 
-        public synchronized void updateStock(int surfboards, int divingSuits) {
+        // Takes the items of a shipping order out of stock; callers check availability while holding the lock
+        public synchronized void reserve(int surfboards, int divingSuits) {
+            setStock(getSurfboardStock() - surfboards, getDivingSuitStock() - divingSuits);
+            int[] batch = openBatch.get();
+            if (batch != null) {
+                batch[0] += surfboards;
+                batch[1] += divingSuits;
+                uncommitted[0] += surfboards;
+                uncommitted[1] += divingSuits;
+                return; // written once when the batch commits
+            }
+            persist();
+        }
+
+        // Adds a restock or correction; callers check that no item drops below zero while holding the lock
+        public synchronized void adjust(int surfboards, int divingSuits) {
+            setStock(getSurfboardStock() + surfboards, getDivingSuitStock() + divingSuits);
+            persist();
+        }
+
+        // Surfboards and diving suits as last written to the stock file: the stock without the open batches' reservations
+        public synchronized int[] getWritten() {
+            return written.clone();
+        }
+
+        // Starts a batch on the current thread: its reservations are written on commitBatch() or undone by rollbackBatch()
+        public void beginBatch() {
+            openBatch.set(new int[2]);
+        }
+
+        public synchronized void commitBatch() {
+            int[] batch = openBatch.get();
+            if (batch != null) {
+                openBatch.remove();
+                uncommitted[0] -= batch[0];
+                uncommitted[1] -= batch[1];
+                persist();
+            }
+        }
+
+        public synchronized void rollbackBatch() {
+            int[] batch = openBatch.get();
+            if (batch != null) {
+                openBatch.remove();
+                uncommitted[0] -= batch[0];
+                uncommitted[1] -= batch[1];
+                setStock(getSurfboardStock() + batch[0], getDivingSuitStock() + batch[1]);
+                persist();
+            }
+        }
+
+        // Writes the stock once more after the last order; batches still open were rolled back by then
+        public synchronized void flush() {
+            persist();
+        }
+
+        public synchronized long getVersion() {
+            return version;
+        }
+
+        private void setStock(int surfboards, int divingSuits) {
+            version++;
             stockProps.setProperty("surfboards", String.valueOf(surfboards));
             stockProps.setProperty("divingSuits", String.valueOf(divingSuits));
+        }
+
+        // Writes the committed stock: reservations of batches still open (on other threads) are added back,
+        // so a crash before they commit does not lose their items
+        private void persist() {
+            int surfboards = getSurfboardStock() + uncommitted[0];
+            int divingSuits = getDivingSuitStock() + uncommitted[1];
+            Properties committed = new Properties();
+            committed.putAll(stockProps);
+            committed.setProperty("surfboards", String.valueOf(surfboards));
+            committed.setProperty("divingSuits", String.valueOf(divingSuits));
             try (FileOutputStream out = new FileOutputStream(stockFile)) {
-                String header = "Inventory Stock\n"
-                        + "Important notice: you may need to close and open the file if you've made some orders if you want to see this file changed\n"
-                        + "if you change the file manually, you may want to also save it CTRL+S";
-                stockProps.store(out, header);
+                committed.store(out, STOCK_FILE_HEADER);
+                written[0] = surfboards;
+                written[1] = divingSuits;
             } catch (Exception e) {
                 System.err.println("Failed to update stock.properties: " + e.getMessage());
             }
         }
     }
 
+    // Decides when the next stock snapshot is broadcast: after a change, or when the heartbeat is due
+    private static class StockBroadcast {
+        private final StockManager stockManager;
+        private final long heartbeatMillis;
+        private long lastVersion = -1;
+        private long lastSentMillis;
+
+        StockBroadcast(StockManager stockManager, long heartbeatMillis) {
+            this.stockManager = stockManager;
+            this.heartbeatMillis = heartbeatMillis;
+        }
+
+        // the snapshot to send, or null if nothing is due (only called by the timer thread)
+        String next() {
+            long now = System.currentTimeMillis();
+            String snapshot;
+            long version;
+            synchronized (stockManager) {
+                version = stockManager.getVersion();
+                if (version == lastVersion && now - lastSentMillis < heartbeatMillis) {
+                    return null;
+                }
+                snapshot = StockSnapshot.format(stockManager.getSurfboardStock(), stockManager.getDivingSuitStock(), now);
+            }
+            lastVersion = version;
+            lastSentMillis = now;
+            return snapshot;
+        }
+    }
+
     private static class StockValidator implements Processor {
         private final StockManager stockManager;
+        private final StockForecast forecast;
+        private final CustomerSequenceGate sequenceGate;
+        private final OrderLog.Route log;
 
-        public StockValidator(StockManager stockManager) {
+        public StockValidator(StockManager stockManager, StockForecast forecast, CustomerSequenceGate sequenceGate,
+                              OrderLog.Route log) {
             this.stockManager = stockManager;
+            this.forecast = forecast;
+            this.sequenceGate = sequenceGate;
+            this.log = log;
         }
 
         @Override
         public void process(Exchange exchange) throws Exception {
-            String message = exchange.getIn().getBody(String.class);
+            InventoryDecision decision = validate(exchange.getIn().getBody(String.class),
+                exchange.getIn().getHeader(CustomerSequence.EPOCH_HEADER, 0L, Long.class),
+                exchange.getIn().getHeader(CustomerSequence.SEQUENCE_HEADER, 0L, Long.class));
+            exchange.getIn().setBody(decision.csv);
+            exchange.getIn().setHeader("validationType", "inventory");
+            if (decision.overallItems != null) {
+                exchange.getIn().setHeader("overallItems", decision.overallItems);
+            }
+        }
+
+        // Validates the order once the earlier orders of its customer were validated (see CustomerSequenceGate)
+        InventoryDecision validate(String message, long epoch, long sequence) throws InterruptedException {
+            String customerId = OrderCsv.split(message, 8)[0].trim();
+            sequenceGate.await(customerId, epoch, sequence);
+            try {
+                return validate(message);
+            } finally {
+                sequenceGate.applied(customerId, epoch, sequence);
+            }
+        }
+
+        InventoryDecision validate(String message) {
             // Split incoming full enriched CSV
-            String[] parts = message.split(",", -1);
+            String[] parts = OrderCsv.split(message, 8);
             String customerID = parts[0].trim();
             String firstName = parts[1].trim();
             String lastName = parts[2].trim();
@@ -143,22 +506,37 @@ public class InventorySystem {
                     String.valueOf(stockManager.getDivingSuitStock()),
                     String.valueOf(stockManager.getSurfboardStock() + stockManager.getDivingSuitStock())
                 );
-                exchange.getIn().setBody(errorCsv);
-                exchange.getIn().setHeader("validationType", "inventory");
-                System.out.println("Inventory validation error: Invalid quantities");
-                return;
+                log.log("invalidQuantity", "orderId", orderID);
+                InventoryDecision.record("INVALID QUANTITY");
+                return new InventoryDecision(errorCsv, null);
             }
             boolean isBillingValid = Boolean.parseBoolean(validStr);
-            int currentSurfboards = stockManager.getSurfboardStock();
-            int currentDivingSuits = stockManager.getDivingSuitStock();
-            int currentTotalStock = currentSurfboards + currentDivingSuits;
             int overallItems = Integer.parseInt(overallItemsStr);
-            exchange.getIn().setHeader("overallItems", overallItems);
-            exchange.getIn().setHeader("validationType", "inventory");
+            int currentSurfboards;
+            int currentDivingSuits;
+            boolean stockOk;
+
+            // check and reservation must be atomic, the lanes validate orders concurrently
+            synchronized (stockManager) {
+                currentSurfboards = stockManager.getSurfboardStock();
+                currentDivingSuits = stockManager.getDivingSuitStock();
 
-            /* ---------- evaluate stock regardless of billing result ---------- */
-            boolean stockOk = surfboards <= currentSurfboards
-                           && divingSuits <= currentDivingSuits;
+                /* ---------- evaluate stock regardless of billing result ---------- */
+                stockOk = surfboards <= currentSurfboards
+                       && divingSuits <= currentDivingSuits;
+
+                if (stockOk && isBillingValid) {
+                    // update physical stock only when order will ship
+                    stockManager.reserve(surfboards, divingSuits);
+                    currentSurfboards -= surfboards;
+                    currentDivingSuits -= divingSuits;
+                }
+            }
+            if (stockOk && isBillingValid) {
+                forecast.consumed("surfboards", surfboards, currentSurfboards);
+                forecast.consumed("divingSuits", divingSuits, currentDivingSuits);
+            }
+            int currentTotalStock = currentSurfboards + currentDivingSuits;
             String stockMsg = stockOk ? "Stock sufficient"
                                       : "Insufficient stock";
 
@@ -167,16 +545,6 @@ public class InventorySystem {
 
             String combinedValidation = stockMsg;
 
-            if (stockOk && isBillingValid) {
-                // update physical stock only when order will ship
-                int newSurfboards = currentSurfboards - surfboards;
-                int newDivingSuits = currentDivingSuits - divingSuits;
-                stockManager.updateStock(newSurfboards, newDivingSuits);
-                currentSurfboards = newSurfboards;
-                currentDivingSuits = newDivingSuits;
-                currentTotalStock = newSurfboards + newDivingSuits;
-            }
-
             EnrichedByInventorySystemOrder enriched = new EnrichedByInventorySystemOrder(
                 customerID.isEmpty() ? "-" : customerID,
                 firstName.isEmpty()  ? "-" : firstName,
@@ -192,10 +560,7 @@ public class InventorySystem {
                 currentTotalStock
             );
 
-            exchange.getIn().setBody(enriched.toCsv());
-            exchange.getIn().setHeader("overallItems", overallItems);
 
-            // Print updated stock counts and recalculate total after any update
             // Display suits first, then surfboards in validation log
             String status;
             if (!isBillingValid) {
@@ -205,11 +570,105 @@ public class InventorySystem {
             } else {
                 status = "OUT OF STOCK";
             }
-            System.out.println("Inventory validation: " + orderID +
-                    " - " + status +
-                    " | Suits: " + stockManager.getDivingSuitStock() +
-                    " | Surfboards: " + stockManager.getSurfboardStock() +
-                    " | CurrentTotalStock: " + (stockManager.getSurfboardStock() + stockManager.getDivingSuitStock()));
+            InventoryDecision.record(status);
+            // stock as seen by this order's check, so logging takes no lock
+            if (log.sample()) {
+                log.write("stockChecked", "orderId", orderID, "status", status, "suits", currentDivingSuits,
+                    "surfboards", currentSurfboards, "totalStock", currentTotalStock);
+            }
+            return new InventoryDecision(enriched.toCsv(), overallItems);
+        }
+    }
+
+    // Result of the stock validation of one order; overallItems is null if the quantities could not be parsed
+    static class InventoryDecision {
+        // Decisions per status, for the metrics endpoint
+        static final Map<String, LongAdder> OUTCOMES = new ConcurrentHashMap<>();
+
+        final String csv;
+        final Integer overallItems;
+
+        InventoryDecision(String csv, Integer overallItems) {
+            this.csv = csv;
+            this.overallItems = overallItems;
+        }
+
+        static void record(String status) {
+            LongAdder outcome = OUTCOMES.get(status);
+            if (outcome == null) {
+                outcome = OUTCOMES.computeIfAbsent(status, s -> new LongAdder());
+            }
+            outcome.increment();
+        }
+
+        // Content-Based Router: large orders have more than 10 items
+        String destination() {
+            return overallItems != null && OrderLane.of(overallItems) == OrderLane.LARGE ? "largeOrders" : "smallOrders";
+        }
+    }
+
+    // Micro-batch variant of the route: validates a batch of orders, sends them to largeOrders/smallOrders
+    // in the consumer's transaction (in envelopes, in envelope mode) and writes stock.properties once per committed batch
+    private static class BatchStockValidator implements TransactedBatchConsumer.BatchHandler {
+        private final StockManager stockManager;
+        private final StockValidator validator;
+        private final int envelopeOrders;
+
+        public BatchStockValidator(StockManager stockManager, StockForecast forecast, CustomerSequenceGate sequenceGate,
+                                   OrderLog.Route log, int envelopeOrders) {
+            this.stockManager = stockManager;
+            this.validator = new StockValidator(stockManager, forecast, sequenceGate, log);
+            this.envelopeOrders = envelopeOrders;
+        }
+
+        @Override
+        public void handle(List<Message> batch, Session session, MessageProducer producer,
+                           TransactedBatchConsumer.Rejects rejects) throws Exception {
+            stockManager.beginBatch();
+            OrderEnvelope.Packer outputs = new OrderEnvelope.Packer(session, producer, envelopeOrders);
+            for (Message message : batch) {
+                String body = ((TextMessage) message).getText();
+                InventoryDecision decision;
+                try {
+                    decision = validator.validate(body, longProperty(message, CustomerSequence.EPOCH_HEADER),
+                        longProperty(message, CustomerSequence.SEQUENCE_HEADER));
+                } catch (IllegalArgumentException e) {
+                    // same as the route: a malformed order is quarantined, in the batch's transaction
+                    rejects.reject(message, e);
+                    continue;
+                } catch (RuntimeException e) {
+                    // retried on its own, or quarantined if it came in an envelope
+                    rejects.fail(message, e);
+                    continue;
+                }
+                TextMessage out = session.createTextMessage(decision.csv);
+                out.setStringProperty("validationType", "inventory");
+                if (message.getStringProperty(Tracer.TRACE_ID) != null) {
+                    out.setStringProperty(Tracer.TRACE_ID, message.getStringProperty(Tracer.TRACE_ID));
+                }
+                CustomerSequence.copy(message, out);
+                CustomerProfiles.copy(message, out);
+                if (decision.overallItems != null) {
+                    out.setIntProperty("overallItems", decision.overallItems);
+                }
+                outputs.send(session.createQueue(decision.destination()), out);
+            }
+            outputs.flush();
+        }
+
+        @Override
+        public void afterCommit() {
+            stockManager.commitBatch();
+        }
+
+        private static long longProperty(Message message, String name) throws JMSException {
+            return message.propertyExists(name) ? message.getLongProperty(name) : 0;
+        }
+
+        @Override
+        public void afterRollback() {
+            // the orders will be redelivered, so their reservations must be undone
+            stockManager.rollbackBatch();
         }
     }
 
@@ -0,0 +1,280 @@
+package com.divesurf.InventorySystem;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stock adjustments (restocks, corrections) while the inventory system runs. An adjustment is a list of
+ * "item=value" pairs separated by commas or lines: "+N" and "-N" change the item's stock by N, a plain number sets it.
+ * It is applied under the stock lock, like an order's reservation, so it is atomic with the reservations and only
+ * holds up the stock checks for as long as it takes to apply it and write the stock file.
+ * <p>
+ * Adjustments come from an admin (the stockAdjustments queue) or from edits of stock.properties, which are
+ * watched in file-watch mode. An edit is applied incrementally: "+N"/"-N" as above, and a plain number that differs
+ * from the value last written by the inventory system as the difference to it, so the orders reserved since then
+ * are kept (plain numbers should therefore be edited in a freshly reloaded file; "+N"/"-N" are safe at any time).
+ * The file is rewritten with the resulting stock afterwards. An adjustment that would leave an item below zero
+ * is rejected as a whole.
+ */
+public class StockAdjustments implements AutoCloseable {
+
+    private static final String[] SOURCES = {"admin", "file"};
+
+    private final InventorySystem.StockManager stock;
+    private final Runnable onAdjusted;
+    private final LongAdder[] applied = {new LongAdder(), new LongAdder()};
+    private final LongAdder[] rejected = {new LongAdder(), new LongAdder()};
+    private final LongAdder[] latencyNanos = {new LongAdder(), new LongAdder()};
+    private final LongAdder pauseNanos = new LongAdder();
+    private final AtomicLong maxPauseNanos = new AtomicLong();
+    private volatile WatchService watcher;
+
+    /** @param onAdjusted runs after each applied adjustment, outside the stock lock */
+    public StockAdjustments(InventorySystem.StockManager stock, Runnable onAdjusted) {
+        this.stock = stock;
+        this.onAdjusted = onAdjusted;
+    }
+
+    /**
+     * Applies an admin adjustment requested at requestedMillis.
+     *
+     * @return the stock after the adjustment, or why it was rejected
+     */
+    public String apply(String adjustment, long requestedMillis) {
+        Map<String, String> values;
+        try {
+            values = parse(adjustment);
+        } catch (IllegalArgumentException e) {
+            return rejected(0, e.getMessage());
+        }
+        String result;
+        long start = System.nanoTime();
+        synchronized (stock) {
+            int[] current = {stock.getSurfboardStock(), stock.getDivingSuitStock()};
+            result = adjust(values, current);
+        }
+        return finish(0, start, requestedMillis, result);
+    }
+
+    /**
+     * Applies an external edit of the stock file; its latency is measured from the file's modification time.
+     *
+     * @return the stock after the edit, or why it was rejected; null if the file holds no edit (e.g. it was last
+     *     written by the inventory system, or an editor is in the middle of writing it)
+     */
+    public String applyFileEdit(File stockFile) {
+        long start = System.nanoTime();
+        String result;
+        synchronized (stock) {
+            Properties edited = new Properties();
+            try (InputStream in = new FileInputStream(stockFile)) {
+                edited.load(in);
+            } catch (IOException e) {
+                return null;
+            }
+            int[] written = stock.getWritten();
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < StockForecast.ITEMS.length; i++) {
+                String value = edited.getProperty(StockForecast.ITEMS[i], "").trim();
+                if (value.isEmpty()) {
+                    return null; // not completely written yet
+                }
+                if (!isRelative(value) && value.equals(String.valueOf(written[i]))) {
+                    continue;
+                }
+                values.put(StockForecast.ITEMS[i], value);
+            }
+            if (values.isEmpty()) {
+                return null;
+            }
+            result = adjust(values, written);
+            if (result.startsWith("rejected")) {
+                stock.flush(); // the file shows the actual stock again
+            }
+        }
+        return finish(1, start, stockFile.lastModified(), result);
+    }
+
+    /**
+     * Watches the stock file (file-watch mode): external edits are applied as they are saved.
+     */
+    public void watch(File stockFile) throws IOException {
+        Path directory = stockFile.getAbsoluteFile().getParentFile().toPath();
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = watchService;
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= stockFile.getName().equals(String.valueOf(event.context()));
+                    }
+                    key.reset();
+                    if (changed) {
+                        // editors write in several steps; wait for them and take all their events at once
+                        Thread.sleep(50);
+                        WatchKey more = watchService.poll();
+                        if (more != null) {
+                            more.pollEvents();
+                            more.reset();
+                        }
+                        String result = applyFileEdit(stockFile);
+                        if (result != null) {
+                            System.out.println("Stock file edit: " + result);
+                        }
+                    }
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                // closed on shutdown
+            }
+        }, "stock-file-watch");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Watching " + stockFile + " for stock edits");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    public long getApplied(String source) {
+        return applied[indexOf(source)].sum();
+    }
+
+    public long getRejected(String source) {
+        return rejected[indexOf(source)].sum();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        for (int i = 0; i < SOURCES.length; i++) {
+            LongAdder appliedCount = applied[i];
+            LongAdder rejectedCount = rejected[i];
+            LongAdder latency = latencyNanos[i];
+            registry.counter("inventory_stock_adjustments_total", "Stock adjustments by source and result",
+                appliedCount::sum, "source", SOURCES[i], "result", "applied");
+            registry.counter("inventory_stock_adjustments_total", "Stock adjustments by source and result",
+                rejectedCount::sum, "source", SOURCES[i], "result", "rejected");
+            registry.counter("inventory_stock_adjustment_latency_seconds_total",
+                "Time from the request (or the file edit) until the adjustment was applied",
+                () -> latency.sum() / 1e9, "source", SOURCES[i]);
+        }
+        registry.counter("inventory_stock_adjustment_pause_seconds_total",
+            "Time the stock checks of orders were held up by adjustments", () -> pauseNanos.sum() / 1e9);
+        registry.gauge("inventory_stock_adjustment_max_pause_seconds",
+            "Longest hold-up of the stock checks by a single adjustment", () -> maxPauseNanos.get() / 1e9);
+    }
+
+    public String stats() {
+        long count = applied[0].sum() + applied[1].sum() + rejected[0].sum() + rejected[1].sum();
+        return String.format("Stock adjustments: admin=%d/%d rejected, file=%d/%d rejected, avgAdminLatencyMillis=%.1f"
+                + " avgFileLatencyMillis=%.1f avgPauseMicros=%.1f maxPauseMicros=%.1f",
+            applied[0].sum(), rejected[0].sum(), applied[1].sum(), rejected[1].sum(),
+            average(latencyNanos[0], applied[0]) / 1e6, average(latencyNanos[1], applied[1]) / 1e6,
+            count == 0 ? 0.0 : pauseNanos.sum() / 1e3 / count, maxPauseNanos.get() / 1e3);
+    }
+
+    // Applies the values relative to base (the current stock, or the stock last written for file edits);
+    // called with the stock lock held
+    private String adjust(Map<String, String> values, int[] base) {
+        int[] delta = new int[StockForecast.ITEMS.length];
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            int i = itemIndex(value.getKey());
+            try {
+                int number = Integer.parseInt(value.getValue().startsWith("+")
+                    ? value.getValue().substring(1) : value.getValue());
+                delta[i] = isRelative(value.getValue()) ? number : number - base[i];
+            } catch (NumberFormatException e) {
+                return "rejected: " + value.getKey() + " is not a number: " + value.getValue();
+            }
+        }
+        int surfboards = stock.getSurfboardStock() + delta[0];
+        int divingSuits = stock.getDivingSuitStock() + delta[1];
+        if (surfboards < 0 || divingSuits < 0) {
+            return "rejected: stock would drop below zero (surfboards=" + surfboards + ", divingSuits=" + divingSuits + ")";
+        }
+        stock.adjust(delta[0], delta[1]);
+        return "surfboards=" + surfboards + ",divingSuits=" + divingSuits;
+    }
+
+    private String finish(int source, long start, long requestedMillis, String result) {
+        long pause = System.nanoTime() - start;
+        pauseNanos.add(pause);
+        maxPauseNanos.accumulateAndGet(pause, Math::max);
+        if (result.startsWith("rejected")) {
+            return rejected(source, result.substring("rejected: ".length()));
+        }
+        applied[source].increment();
+        latencyNanos[source].add(Math.max(0, System.currentTimeMillis() - requestedMillis) * 1000000);
+        onAdjusted.run();
+        return result;
+    }
+
+    private String rejected(int source, String reason) {
+        rejected[source].increment();
+        System.err.println("Rejected " + SOURCES[source] + " stock adjustment: " + reason);
+        return "rejected: " + reason;
+    }
+
+    // "surfboards=+10,divingSuits=-2" (or one pair per line) into item and value
+    private static Map<String, String> parse(String adjustment) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String pair : adjustment.split("[,\\n]")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("not item=value: " + pair.trim());
+            }
+            String item = pair.substring(0, equals).trim();
+            itemIndex(item);
+            values.put(item, pair.substring(equals + 1).trim());
+        }
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("no items");
+        }
+        return values;
+    }
+
+    private static int itemIndex(String item) {
+        for (int i = 0; i < StockForecast.ITEMS.length; i++) {
+            if (StockForecast.ITEMS[i].equals(item)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown item: " + item);
+    }
+
+    private static boolean isRelative(String value) {
+        return value.startsWith("+") || value.startsWith("-");
+    }
+
+    private static int indexOf(String source) {
+        return "file".equals(source) ? 1 : 0;
+    }
+
+    private static double average(LongAdder total, LongAdder count) {
+        return count.sum() == 0 ? 0.0 : (double) total.sum() / count.sum();
+    }
+}
@@ -0,0 +1,178 @@
+package com.divesurf.InventorySystem;
+
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Consumption rates and time-to-stockout estimates per stock item. Every shipped order is recorded in a short
+ * and a long {@link ConsumptionWindow}; the higher of both rates is used, so a sudden rush is noticed quickly
+ * and a quiet minute does not hide the usual demand. Once the short window has been filled (so a single early
+ * order does not look like a rush), two alerts are raised per item, once until the item is restocked:
+ * <ul>
+ *   <li>REORDER when the stock no longer covers the consumption during the replenishment lead time</li>
+ *   <li>LOW_STOCK when the stock is expected to run out within lowStockMinutes</li>
+ * </ul>
+ * Alerts are CSV lines "type,item,stock,ratePerMinute,minutesToStockout,reorderQuantity,timestamp".
+ */
+public class StockForecast {
+    public static final String[] ITEMS = {"surfboards", "divingSuits"};
+
+    private final Item[] items = new Item[ITEMS.length];
+    private final double lowStockMinutes;
+    private final double leadTimeMinutes;
+    private final double coverMinutes;
+    private final Consumer<String> alerts;
+
+    /**
+     * @param leadTimeMinutes time from a reorder until the items are in stock
+     * @param coverMinutes    consumption a reorder should cover, used for the suggested quantity
+     * @param alerts          receives the alert lines, on the thread of the order that raised them
+     */
+    public StockForecast(long shortWindowMillis, long longWindowMillis, double lowStockMinutes,
+                         double leadTimeMinutes, double coverMinutes, Consumer<String> alerts) {
+        for (int i = 0; i < ITEMS.length; i++) {
+            items[i] = new Item(ITEMS[i], new ConsumptionWindow(shortWindowMillis, 30), new ConsumptionWindow(longWindowMillis, 60));
+        }
+        this.lowStockMinutes = lowStockMinutes;
+        this.leadTimeMinutes = leadTimeMinutes;
+        this.coverMinutes = coverMinutes;
+        this.alerts = alerts;
+    }
+
+    /** Forecast configured by the inventory.forecast.* system properties. */
+    public static StockForecast fromSystemProperties(Consumer<String> alerts) {
+        return new StockForecast(
+            Long.getLong("inventory.forecast.shortWindowMinutes", 5L) * 60000,
+            Long.getLong("inventory.forecast.longWindowMinutes", 60L) * 60000,
+            Double.parseDouble(System.getProperty("inventory.forecast.lowStockMinutes", "30")),
+            Double.parseDouble(System.getProperty("inventory.forecast.leadTimeMinutes", "120")),
+            Double.parseDouble(System.getProperty("inventory.forecast.coverMinutes", "480")),
+            alerts);
+    }
+
+    /** Records items taken out of stock by a shipped order and raises alerts for the remaining stock. */
+    public void consumed(String item, int quantity, int remaining) {
+        consumed(item, quantity, remaining, System.currentTimeMillis());
+    }
+
+    /** As {@link #consumed(String, int, int)}, at the given time. */
+    public void consumed(String item, int quantity, int remaining, long nowMillis) {
+        Item state = item(item);
+        if (quantity > 0) {
+            state.shortWindow.record(nowMillis, quantity);
+            state.longWindow.record(nowMillis, quantity);
+        }
+        check(state, remaining, nowMillis);
+    }
+
+    /** Re-evaluates an item with its current stock, e.g. periodically or after a restock. */
+    public void update(String item, int stock) {
+        check(item(item), stock, System.currentTimeMillis());
+    }
+
+    public double ratePerMinute(String item) {
+        return rate(item(item), System.currentTimeMillis());
+    }
+
+    public double shortWindowRate(String item) {
+        return item(item).shortWindow.perMinute(System.currentTimeMillis());
+    }
+
+    public double longWindowRate(String item) {
+        return item(item).longWindow.perMinute(System.currentTimeMillis());
+    }
+
+    /** Minutes until the given stock runs out at the current rate; infinite without consumption. */
+    public double minutesToStockout(String item, int stock) {
+        return minutesToStockout(stock, ratePerMinute(item));
+    }
+
+    public String stats(int surfboards, int divingSuits) {
+        return String.format(Locale.ROOT,
+            "Stock forecast: surfboards %.2f/min (%s) divingSuits %.2f/min (%s) alerts=%d",
+            ratePerMinute("surfboards"), formatMinutes(minutesToStockout("surfboards", surfboards)),
+            ratePerMinute("divingSuits"), formatMinutes(minutesToStockout("divingSuits", divingSuits)),
+            items[0].alertCount + items[1].alertCount);
+    }
+
+    private void check(Item state, int stock, long nowMillis) {
+        if (!state.shortWindow.isFilled(nowMillis)) {
+            return;
+        }
+        double rate = rate(state, nowMillis);
+        double minutes = minutesToStockout(stock, rate);
+        String reorder = null;
+        String lowStock = null;
+        synchronized (state) {
+            // a higher stock than at the last alert means the item was restocked
+            if (stock > state.stockAtReorder) {
+                state.reorderRaised = false;
+            }
+            if (stock > state.stockAtLowStock) {
+                state.lowStockRaised = false;
+            }
+            if (rate > 0 && !state.reorderRaised && stock <= rate * leadTimeMinutes) {
+                state.reorderRaised = true;
+                state.stockAtReorder = stock;
+                state.alertCount++;
+                reorder = alert("REORDER", state.name, stock, rate, minutes, nowMillis);
+            }
+            if (rate > 0 && !state.lowStockRaised && minutes <= lowStockMinutes) {
+                state.lowStockRaised = true;
+                state.stockAtLowStock = stock;
+                state.alertCount++;
+                lowStock = alert("LOW_STOCK", state.name, stock, rate, minutes, nowMillis);
+            }
+        }
+        // sent outside the lock, alerts are rare
+        if (reorder != null) {
+            alerts.accept(reorder);
+        }
+        if (lowStock != null) {
+            alerts.accept(lowStock);
+        }
+    }
+
+    private String alert(String type, String item, int stock, double rate, double minutes, long nowMillis) {
+        long quantity = (long) Math.ceil(rate * coverMinutes);
+        return String.format(Locale.ROOT, "%s,%s,%d,%.2f,%.1f,%d,%d", type, item, stock, rate, minutes, quantity, nowMillis);
+    }
+
+    private static double rate(Item state, long nowMillis) {
+        return Math.max(state.shortWindow.perMinute(nowMillis), state.longWindow.perMinute(nowMillis));
+    }
+
+    private static double minutesToStockout(int stock, double rate) {
+        return stock <= 0 ? 0.0 : rate <= 0 ? Double.POSITIVE_INFINITY : stock / rate;
+    }
+
+    private static String formatMinutes(double minutes) {
+        return Double.isInfinite(minutes) ? "no consumption" : String.format(Locale.ROOT, "%.0f min to stockout", minutes);
+    }
+
+    private Item item(String name) {
+        for (Item item : items) {
+            if (item.name.equals(name)) {
+                return item;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stock item: " + name);
+    }
+
+    private static final class Item {
+        final String name;
+        final ConsumptionWindow shortWindow;
+        final ConsumptionWindow longWindow;
+        boolean reorderRaised;
+        boolean lowStockRaised;
+        int stockAtReorder = Integer.MAX_VALUE;
+        int stockAtLowStock = Integer.MAX_VALUE;
+        volatile int alertCount; // written under the item's lock
+
+        Item(String name, ConsumptionWindow shortWindow, ConsumptionWindow longWindow) {
+            this.name = name;
+            this.shortWindow = shortWindow;
+            this.longWindow = longWindow;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.divesurf.processing;
+
+import com.divesurf.InventorySystem.ConsumptionWindow;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the ring-buffer consumption window.
+ */
+public class ConsumptionWindowTest extends TestCase {
+
+    public void testOldConsumptionLeavesTheWindow() {
+        ConsumptionWindow window = new ConsumptionWindow(60000, 6); // 10s buckets
+        window.record(0, 5);
+        window.record(15000, 3);
+        assertEquals(8, window.total(15000));
+        assertEquals(8, window.total(59999));
+        assertEquals(3, window.total(60000));  // first bucket expired
+        assertEquals(0, window.total(80000));
+    }
+
+    public void testLongPauseClearsEverything() {
+        ConsumptionWindow window = new ConsumptionWindow(60000, 6);
+        window.record(1000, 4);
+        window.record(3600000, 2);
+        assertEquals(2, window.total(3600000));
+    }
+
+    public void testRateDuringWarmUpAndAfterwards() {
+        ConsumptionWindow window = new ConsumptionWindow(600000, 60); // 10 minutes
+        window.record(0, 10);
+        window.record(60000, 10);
+        // 20 items in the first minute of the window, not in ten minutes
+        assertEquals(20.0, window.perMinute(60000), 0.001);
+        for (long t = 120000; t < 600000; t += 60000) {
+            window.record(t, 10);
+        }
+        assertEquals(10.0, window.perMinute(599999), 0.001);
+    }
+}
@@ -0,0 +1,125 @@
+package com.divesurf.processing;
+
+import com.divesurf.InventorySystem.InventorySystem;
+import com.divesurf.InventorySystem.StockAdjustments;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the live stock adjustments from the admin queue and from stock file edits.
+ */
+public class StockAdjustmentsTest extends TestCase {
+
+    private File directory;
+    private File stockFile;
+    private InventorySystem.StockManager stock;
+    private final AtomicInteger adjusted = new AtomicInteger();
+    private StockAdjustments adjustments;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("stock").toFile();
+        stockFile = new File(directory, "stock.properties");
+        Properties properties = new Properties();
+        properties.setProperty("surfboards", "100");
+        properties.setProperty("divingSuits", "50");
+        stock = new InventorySystem.StockManager(properties, stockFile);
+        stock.flush();
+        adjustments = new StockAdjustments(stock, adjusted::incrementAndGet);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        adjustments.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private void edit(String surfboards, String divingSuits) throws IOException {
+        String text = "#edited\nsurfboards=" + surfboards + "\ndivingSuits=" + divingSuits + "\n";
+        Files.write(stockFile.toPath(), text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public void testAdminRestocksAndCorrections() {
+        assertEquals("surfboards=110,divingSuits=48", adjustments.apply("surfboards=+10, divingSuits=-2", 0));
+        assertEquals("surfboards=110,divingSuits=30", adjustments.apply("divingSuits=30", 0));
+        assertEquals(110, stock.getSurfboardStock());
+        assertEquals(30, stock.getWritten()[1]);
+        assertEquals(2, adjustments.getApplied("admin"));
+        assertEquals(2, adjusted.get());
+    }
+
+    public void testInvalidAdjustmentsAreRejectedAsAWhole() {
+        assertTrue(adjustments.apply("surfboards=+10,divingSuits=-51", 0).startsWith("rejected"));
+        assertTrue(adjustments.apply("wetsuits=+1", 0).startsWith("rejected"));
+        assertTrue(adjustments.apply("surfboards=ten", 0).startsWith("rejected"));
+        assertEquals(100, stock.getSurfboardStock());
+        assertEquals(50, stock.getDivingSuitStock());
+        assertEquals(3, adjustments.getRejected("admin"));
+        assertEquals(0, adjusted.get());
+    }
+
+    public void testFileEditsKeepTheOrdersReservedSinceTheFileWasWritten() throws IOException {
+        // the file says surfboards=100, a batch takes 5 more before the edit to 120 is saved: a restock of 20
+        stock.beginBatch();
+        stock.reserve(5, 0);
+        edit("120", "50");
+        assertEquals("surfboards=115,divingSuits=50", adjustments.applyFileEdit(stockFile));
+        stock.commitBatch();
+        edit("+3", "-10");
+        assertEquals("surfboards=118,divingSuits=40", adjustments.applyFileEdit(stockFile));
+        assertEquals(2, adjustments.getApplied("file"));
+    }
+
+    public void testAdjustmentWritesTheStockWithoutOpenBatches() throws Exception {
+        // a batch on another thread reserved 5 surfboards and has not committed yet
+        Thread batch = new Thread(() -> {
+            stock.beginBatch();
+            stock.reserve(5, 0);
+        });
+        batch.start();
+        batch.join();
+        assertEquals("surfboards=105,divingSuits=50", adjustments.apply("surfboards=+10", 0));
+        Properties written = new Properties();
+        try (FileInputStream in = new FileInputStream(stockFile)) {
+            written.load(in);
+        }
+        assertEquals("110", written.getProperty("surfboards"));
+        assertEquals(110, stock.getWritten()[0]);
+    }
+
+    public void testOwnWritesAreNoEdits() throws IOException {
+        stock.reserve(1, 1);
+        assertNull(adjustments.applyFileEdit(stockFile));
+        edit("", "50"); // still being written
+        assertNull(adjustments.applyFileEdit(stockFile));
+        assertEquals(0, adjustments.getApplied("file"));
+    }
+
+    public void testRejectedEditRestoresTheFile() throws IOException {
+        edit("-101", "50");
+        assertTrue(adjustments.applyFileEdit(stockFile).startsWith("rejected"));
+        assertNull(adjustments.applyFileEdit(stockFile));
+        assertEquals(100, stock.getSurfboardStock());
+    }
+
+    public void testWatchedEditsAreApplied() throws Exception {
+        adjustments.watch(stockFile);
+        edit("+7", "50");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (stock.getSurfboardStock() != 107 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(107, stock.getSurfboardStock());
+        assertEquals(1, adjustments.getApplied("file"));
+    }
+}
@@ -0,0 +1,71 @@
+package com.divesurf.processing;
+
+import com.divesurf.InventorySystem.StockForecast;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the consumption based stock forecast and its alerts.
+ */
+public class StockForecastTest extends TestCase {
+    private final List<String> alerts = new ArrayList<>();
+    // 10 minute windows, low stock within 10 minutes, 20 minutes lead time
+    private final StockForecast forecast = new StockForecast(600000, 600000, 10, 20, 60, alerts::add);
+
+    public void testReorderBeforeLowStockAndEachOnlyOnce() {
+        long now = System.currentTimeMillis();
+        int stock = 100;
+        // 2 surfboards a minute
+        for (int minute = 0; stock > 0; minute++) {
+            stock -= 2;
+            forecast.consumed("surfboards", 2, stock, now + minute * 60000L);
+        }
+        assertEquals(2, alerts.size());
+        String[] reorder = alerts.get(0).split(",");
+        assertEquals("REORDER", reorder[0]);
+        assertEquals("surfboards", reorder[1]);
+        assertTrue(Integer.parseInt(reorder[2]) <= 40); // 20 minutes of consumption
+        assertTrue(Long.parseLong(reorder[5]) > 0);
+        String[] lowStock = alerts.get(1).split(",");
+        assertEquals("LOW_STOCK", lowStock[0]);
+        assertTrue(Integer.parseInt(lowStock[2]) <= 20);
+    }
+
+    public void testNoAlertsBeforeTheWindowIsFilled() {
+        long now = System.currentTimeMillis();
+        forecast.consumed("surfboards", 30, 1, now);
+        forecast.consumed("surfboards", 1, 0, now + 60000);
+        assertTrue(alerts.isEmpty());
+    }
+
+    public void testRestockRearmsTheAlerts() {
+        long now = System.currentTimeMillis();
+        for (int minute = 0; minute <= 10; minute++) {
+            forecast.consumed("divingSuits", 3, 500, now + minute * 60000L);
+        }
+        assertTrue(alerts.isEmpty());
+        now += 11 * 60000L;
+        forecast.consumed("divingSuits", 3, 10, now);
+        assertEquals(2, alerts.size());
+        forecast.consumed("divingSuits", 1, 9, now + 1000);
+        assertEquals(2, alerts.size());
+        // restocked to 500: plenty for now, the next shortage alerts again
+        forecast.consumed("divingSuits", 1, 500, now + 2000);
+        assertEquals(2, alerts.size());
+        forecast.consumed("divingSuits", 1, 5, now + 3000);
+        assertEquals(4, alerts.size());
+    }
+
+    public void testNoConsumptionMeansNoStockout() {
+        assertTrue(Double.isInfinite(forecast.minutesToStockout("surfboards", 10)));
+        assertEquals(0.0, forecast.minutesToStockout("surfboards", 0), 0.0);
+        try {
+            forecast.consumed("wetsuits", 1, 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // only surfboards and diving suits are stocked
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.divesurf.results;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Releases each customer's final orders in the order of their sequence numbers (see
+ * {@link com.divesurf.common.CustomerSequence}). An order that overtook an earlier one of its customer is held
+ * until the gap is filled; customers are independent, so a gap only holds back the orders of its own customer.
+ * Memory is bounded: a gap is skipped after timeoutMillis (the missing order was lost or is very late; if it
+ * turns up later, it is forwarded at once), and once capacity orders are held, the next order to be held
+ * skips its customer's gap instead.
+ * Releases of one customer happen under the customer's lock, so they reach the release callback in order.
+ * On shutdown the held orders are released and the next expected sequence number of each customer is saved,
+ * so a restarted result system continues each customer's sequence instead of waiting for orders finalized before.
+ * A customer's numbering restarts at 1 in a later epoch when the order publisher restarts or drops the customer's
+ * counter: the first order of a later epoch releases the orders held for the earlier one and starts over at 1,
+ * and orders still arriving from an earlier epoch are released at once.
+ */
+class CustomerResequencer<T> {
+
+    private final long timeoutMillis;
+    private final int capacity;
+    private final long idleMillis;
+    private final Consumer<T> release;
+    private final Map<String, Customer<T>> customers = new ConcurrentHashMap<>();
+    private final Set<Customer<T>> waiting = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger held = new AtomicInteger();
+    private volatile long lastSweepMillis;
+
+    private final LongAdder inOrder = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder unsequenced = new LongAdder();
+    private final LongAdder drained = new LongAdder();
+    private final LongAdder renumbered = new LongAdder();
+
+    /**
+     * @param idleMillis the state of a customer without held orders is dropped after this long without orders
+     * @param release    receives the orders in order, on the thread of the order or of {@link #expire(long)}
+     */
+    CustomerResequencer(long timeoutMillis, int capacity, long idleMillis, Consumer<T> release) {
+        this.timeoutMillis = timeoutMillis;
+        this.capacity = capacity;
+        this.idleMillis = idleMillis;
+        this.release = release;
+    }
+
+    /** Offers the order with the given sequence number of its customer, numbered without an epoch. */
+    void offer(String customerId, long sequence, T order, long nowMillis) {
+        offer(customerId, 0, sequence, order, nowMillis);
+    }
+
+    /** Offers the order with the given sequence number of its customer's numbering of the given epoch. */
+    void offer(String customerId, long epoch, long sequence, T order, long nowMillis) {
+        while (true) {
+            Customer<T> customer = customers.computeIfAbsent(customerId, id -> new Customer<>());
+            synchronized (customer) {
+                if (customer.removed) {
+                    continue; // dropped as idle in the meantime
+                }
+                customer.lastOfferMillis = nowMillis;
+                if (epoch < customer.epoch) {
+                    late.increment(); // numbered before the publisher started over
+                    release.accept(order);
+                    return;
+                }
+                if (epoch > customer.epoch) {
+                    renumber(customer, epoch);
+                }
+                offer(customer, sequence, order, nowMillis);
+                return;
+            }
+        }
+    }
+
+    /** Releases an order without a sequence number at once, e.g. one published before sequencing was introduced. */
+    void offerUnsequenced(T order) {
+        unsequenced.increment();
+        release.accept(order);
+    }
+
+    private void offer(Customer<T> customer, long sequence, T order, long nowMillis) {
+        if (sequence < customer.expected) {
+            // after a skipped gap, a second result of an order, or a restarted numbering: nothing to wait for
+            late.increment();
+            release.accept(order);
+        } else if (sequence == customer.expected) {
+            inOrder.increment();
+            release.accept(order);
+            customer.expected++;
+            releaseConsecutive(customer);
+        } else if (held.get() >= capacity) {
+            releaseHeld(customer, sequence, overflowed);
+            overflowed.increment();
+            release.accept(order);
+            customer.expected = sequence + 1;
+            releaseConsecutive(customer);
+        } else if (customer.held.putIfAbsent(sequence, new Held<>(order, nowMillis)) == null) {
+            held.incrementAndGet();
+            waiting.add(customer);
+        } else {
+            late.increment(); // a second result of a held order
+            release.accept(order);
+        }
+    }
+
+    // The customer's orders are numbered anew: the gaps of the old numbering will not be filled by them
+    private void renumber(Customer<T> customer, long epoch) {
+        if (customer.epoch != 0) {
+            releaseHeld(customer, Long.MAX_VALUE, renumbered);
+            waiting.remove(customer);
+            customer.expected = 1;
+        }
+        // a customer seen the first time keeps its position
+        customer.epoch = epoch;
+    }
+
+    /** Skips the gaps that are older than the timeout; called periodically. */
+    void expire(long nowMillis) {
+        for (Customer<T> customer : waiting) {
+            synchronized (customer) {
+                Map.Entry<Long, Held<T>> first = customer.held.firstEntry();
+                if (first != null && nowMillis - first.getValue().heldSinceMillis >= timeoutMillis) {
+                    customer.expected = first.getKey();
+                    releaseConsecutive(customer, timedOut);
+                }
+                if (customer.held.isEmpty()) {
+                    waiting.remove(customer);
+                }
+            }
+        }
+        if (nowMillis - lastSweepMillis >= idleMillis) {
+            lastSweepMillis = nowMillis;
+            for (Iterator<Customer<T>> it = customers.values().iterator(); it.hasNext(); ) {
+                Customer<T> customer = it.next();
+                synchronized (customer) {
+                    if (customer.held.isEmpty() && nowMillis - customer.lastOfferMillis >= idleMillis) {
+                        customer.removed = true;
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Releases all held orders, each customer's in sequence order, skipping the gaps; part of the drain. */
+    void releaseAll() {
+        for (Customer<T> customer : waiting) {
+            synchronized (customer) {
+                if (!customer.held.isEmpty()) {
+                    customer.expected = customer.held.lastKey() + 1;
+                    releaseHeld(customer, Long.MAX_VALUE, drained);
+                }
+                waiting.remove(customer);
+            }
+        }
+    }
+
+    /** Writes the epoch and next expected sequence number of every customer ("customerId,epoch,expected" per line). */
+    void saveState(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Customer<T>> entry : customers.entrySet()) {
+                synchronized (entry.getValue()) {
+                    out.println(entry.getKey() + "," + entry.getValue().epoch + "," + entry.getValue().expected);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the sequence numbers written by {@link #saveState(File)}; a file older than idleMillis is ignored,
+     * as its customers would have been dropped as idle in the meantime.
+     */
+    void loadState(File file, long nowMillis) throws IOException {
+        if (!file.exists() || nowMillis - file.lastModified() >= idleMillis) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",");
+                try {
+                    Customer<T> customer = new Customer<>();
+                    customer.epoch = Long.parseLong(fields[1].trim());
+                    customer.expected = Long.parseLong(fields[2].trim());
+                    customer.lastOfferMillis = nowMillis;
+                    customers.put(fields[0], customer);
+                } catch (RuntimeException e) {
+                    System.err.println("Skipping malformed resequencer state: " + line);
+                }
+            }
+        }
+    }
+
+    int getHeld() {
+        return held.get();
+    }
+
+    int getCustomers() {
+        return customers.size();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("result_resequencer_held", "Final orders held back for an earlier order of their customer", this::getHeld);
+        registry.gauge("result_resequencer_customers", "Customers tracked by the resequencer", this::getCustomers);
+        String help = "Final orders released by the resequencer";
+        registry.counter("result_resequencer_released_total", help, inOrder::sum, "reason", "inOrder");
+        registry.counter("result_resequencer_released_total", help, reordered::sum, "reason", "reordered");
+        registry.counter("result_resequencer_released_total", help, late::sum, "reason", "late");
+        registry.counter("result_resequencer_released_total", help, timedOut::sum, "reason", "timeout");
+        registry.counter("result_resequencer_released_total", help, overflowed::sum, "reason", "overflow");
+        registry.counter("result_resequencer_released_total", help, unsequenced::sum, "reason", "unsequenced");
+        registry.counter("result_resequencer_released_total", help, drained::sum, "reason", "drain");
+        registry.counter("result_resequencer_released_total", help, renumbered::sum, "reason", "renumbered");
+    }
+
+    public String stats() {
+        return String.format("Resequencer: held=%d customers=%d inOrder=%d reordered=%d late=%d timeout=%d overflow=%d renumbered=%d",
+            held.get(), customers.size(), inOrder.sum(), reordered.sum(), late.sum(), timedOut.sum(), overflowed.sum(),
+            renumbered.sum());
+    }
+
+    // Releases the held orders that continue the sequence
+    private void releaseConsecutive(Customer<T> customer) {
+        releaseConsecutive(customer, reordered);
+    }
+
+    private void releaseConsecutive(Customer<T> customer, LongAdder reason) {
+        Held<T> next;
+        while ((next = customer.held.remove(customer.expected)) != null) {
+            held.decrementAndGet();
+            reason.increment();
+            release.accept(next.order);
+            customer.expected++;
+            reason = reordered;
+        }
+    }
+
+    // Releases the held orders before the given sequence number, skipping the gaps between them
+    private void releaseHeld(Customer<T> customer, long before, LongAdder reason) {
+        Map<Long, Held<T>> skipped = customer.held.headMap(before);
+        for (Held<T> next : skipped.values()) {
+            held.decrementAndGet();
+            reason.increment();
+            release.accept(next.order);
+        }
+        skipped.clear();
+    }
+
+    private static final class Customer<T> {
+        long expected = 1;
+        long epoch;
+        long lastOfferMillis;
+        boolean removed;
+        final TreeMap<Long, Held<T>> held = new TreeMap<>();
+    }
+
+    private static final class Held<T> {
+        final T order;
+        final long heldSinceMillis;
+
+        Held(T order, long heldSinceMillis) {
+            this.order = order;
+            this.heldSinceMillis = heldSinceMillis;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.divesurf.results;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ids of the orders the result system already finalized, so redelivered results and results arriving after
+ * their aggregation timed out do not finalize an order a second time. The first result claiming an order is emitted;
+ * a complete result of an order already finalized incomplete, by the aggregation timeout, is suppressed as late. The
+ * claim is released if the order cannot be sent, so it is emitted when it comes again. The ids are kept in time
+ * buckets of bucketMillis each; the oldest bucket is cleared when a new one starts, so an id is remembered for at
+ * least (buckets - 1) * bucketMillis and the record never grows. Order ids must not repeat within that window.
+ * <p>
+ * Each bucket is an open-addressing hash table of 64-bit hashes of the order ids, in a memory-mapped file: the
+ * record takes no heap, and it survives a restart (or a kill) of the result system, when the broker redelivers
+ * the unacknowledged results. A full bucket remembers no further ids until the next bucket starts; they are
+ * counted as dropped.
+ */
+class EmittedOrderIds implements AutoCloseable {
+
+    private static final int MAGIC = 0x454F4931; // "EOI1"
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+    private static final int BUCKET_HEADER_BYTES = 16; // bucket number, ids
+    // An incomplete order is recorded under its hash with these bits flipped
+    private static final long INCOMPLETE = 0x9e3779b97f4a7c15L;
+    // A released claim; keeps its slot, so the ids stored after it are still found
+    private static final long RELEASED = -1L;
+
+    private final int buckets;
+    private final long bucketMillis;
+    private final int capacity;
+    private final int maxIds;
+    private final FileChannel channel;
+    private final MappedByteBuffer table;
+
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    EmittedOrderIds(File file, int buckets, long bucketMillis, int capacity) throws IOException {
+        if (buckets < 2 || bucketMillis <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Needs at least 2 buckets and a positive bucket length and capacity");
+        }
+        this.buckets = buckets;
+        this.bucketMillis = bucketMillis;
+        this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.maxIds = this.capacity / 4 * 3;
+        long size = HEADER_BYTES + (long) buckets * (BUCKET_HEADER_BYTES + 8L * this.capacity);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Record of " + size + " bytes is too large");
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        // a record of another layout is discarded
+        boolean current = raf.length() == size && raf.readInt() == MAGIC && raf.readInt() == buckets
+            && raf.readInt() == this.capacity && raf.readLong() == bucketMillis;
+        if (!current) {
+            raf.setLength(0);
+            raf.setLength(size);
+        }
+        channel = raf.getChannel();
+        table = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!current) {
+            table.putInt(0, MAGIC);
+            table.putInt(4, buckets);
+            table.putInt(8, this.capacity);
+            table.putLong(12, bucketMillis);
+            for (int b = 0; b < buckets; b++) {
+                table.putLong(bucketStart(b), -1);
+            }
+        }
+    }
+
+    /**
+     * Record of -Dresult.emitted.buckets (default 10) buckets of -Dresult.emitted.bucketSeconds (default 60) with up to
+     * 3/4 of -Dresult.emitted.bucketCapacity (default 65536) ids each, in the order status directory.
+     */
+    static EmittedOrderIds fromSystemProperties() throws IOException {
+        return new EmittedOrderIds(
+            new File(System.getProperty("result.statusStore.dir", "order-status"), "emitted-orders.idx"),
+            Integer.getInteger("result.emitted.buckets", 10),
+            Long.getLong("result.emitted.bucketSeconds", 60L) * 1000,
+            Integer.getInteger("result.emitted.bucketCapacity", 65536));
+    }
+
+    /**
+     * Claims the order for emission; false if it was already claimed within the window, so the caller suppresses it.
+     * Checking and claiming is one step, so of concurrent results of an order exactly one wins.
+     */
+    synchronized boolean tryClaim(String orderId, boolean complete, long now) {
+        long hash = hash(orderId);
+        long current = now / bucketMillis;
+        if (contains(hash, current)) {
+            suppressed.increment();
+            return false;
+        }
+        if (contains(incomplete(hash), current)) {
+            (complete ? late : suppressed).increment();
+            return false;
+        }
+        int b = (int) (current % buckets);
+        if (table.getLong(bucketStart(b)) != current) {
+            clear(b, current);
+        }
+        int ids = table.getInt(bucketStart(b) + 8);
+        if (ids >= maxIds) {
+            dropped.increment();
+            return true;
+        }
+        long stored = complete ? hash : incomplete(hash);
+        int mask = capacity - 1;
+        int slot = (int) mix(stored) & mask;
+        int slots = bucketStart(b) + BUCKET_HEADER_BYTES;
+        while (table.getLong(slots + 8 * slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table.putLong(slots + 8 * slot, stored);
+        table.putInt(bucketStart(b) + 8, ids + 1);
+        return true;
+    }
+
+    /**
+     * Releases the claim of an order that could not be sent, so it is emitted when it comes again.
+     */
+    synchronized void release(String orderId, boolean complete, long now) {
+        long stored = complete ? hash(orderId) : incomplete(hash(orderId));
+        long current = now / bucketMillis;
+        int mask = capacity - 1;
+        for (int b = 0; b < buckets; b++) {
+            long number = table.getLong(bucketStart(b));
+            if (number <= current - buckets || number > current) {
+                continue;
+            }
+            int slots = bucketStart(b) + BUCKET_HEADER_BYTES;
+            for (int slot = (int) mix(stored) & mask; table.getLong(slots + 8 * slot) != 0; slot = (slot + 1) & mask) {
+                if (table.getLong(slots + 8 * slot) == stored) {
+                    table.putLong(slots + 8 * slot, RELEASED);
+                    released.increment();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Ids remembered in the buckets of the window ending now. */
+    synchronized int size(long now) {
+        long current = now / bucketMillis;
+        int size = 0;
+        for (int b = 0; b < buckets; b++) {
+            long number = table.getLong(bucketStart(b));
+            if (number > current - buckets && number <= current) {
+                size += table.getInt(bucketStart(b) + 8);
+            }
+        }
+        return size;
+    }
+
+    long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getLate() {
+        return late.sum();
+    }
+
+    long getReleased() {
+        return released.sum();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.counter("result_duplicates_suppressed_total",
+            "Final orders not emitted again because their order id was already finalized", suppressed::sum);
+        registry.counter("result_emitted_ids_dropped_total",
+            "Finalized order ids not remembered because their bucket was full", dropped::sum);
+        registry.counter("result_late_results_suppressed_total",
+            "Complete final orders not emitted because the order was already finalized incomplete", late::sum);
+        registry.counter("result_emitted_ids_released_total",
+            "Claimed order ids released because the final order could not be sent", released::sum);
+        registry.gauge("result_emitted_ids", "Finalized order ids remembered for duplicate suppression",
+            () -> size(System.currentTimeMillis()));
+    }
+
+    public String stats() {
+        return String.format("Emitted order ids: remembered=%d windowSeconds=%d duplicatesSuppressed=%d "
+                + "lateSuppressed=%d released=%d dropped=%d", size(System.currentTimeMillis()),
+            (buckets - 1) * bucketMillis / 1000, suppressed.sum(), late.sum(), released.sum(), dropped.sum());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        table.force();
+        channel.close();
+    }
+
+    private int bucketStart(int bucket) {
+        return HEADER_BYTES + bucket * (BUCKET_HEADER_BYTES + 8 * capacity);
+    }
+
+    private boolean contains(long hash, long current) {
+        for (int b = 0; b < buckets; b++) {
+            long number = table.getLong(bucketStart(b));
+            if (number > current - buckets && number <= current && contains(b, hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean contains(int bucket, long hash) {
+        int mask = capacity - 1;
+        int slot = (int) mix(hash) & mask;
+        int slots = bucketStart(bucket) + BUCKET_HEADER_BYTES;
+        while (true) {
+            long stored = table.getLong(slots + 8 * slot);
+            if (stored == hash) {
+                return true;
+            } else if (stored == 0) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void clear(int bucket, long number) {
+        int slots = bucketStart(bucket) + BUCKET_HEADER_BYTES;
+        for (int slot = 0; slot < capacity; slot++) {
+            table.putLong(slots + 8 * slot, 0);
+        }
+        table.putInt(bucketStart(bucket) + 8, 0);
+        table.putLong(bucketStart(bucket), number);
+    }
+
+    // 64-bit FNV-1a of the order id; 0 marks a free slot and -1 a released one, so no id hashes to them
+    private static long hash(String orderId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < orderId.length(); i++) {
+            hash ^= orderId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 || hash == RELEASED ? 1 : hash;
+    }
+
+    private static long incomplete(long hash) {
+        long flipped = hash ^ INCOMPLETE;
+        return flipped == 0 || flipped == RELEASED ? 1 : flipped;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,108 @@
+package com.divesurf.results;
+
+import java.util.Locale;
+
+/**
+ * Incremental analytics of finalized orders over the last minute, five minutes and hour: throughput,
+ * approval and rejection rates by reason, shipped items per category and the large/small mix.
+ * Each final order updates one bucket per window in O(1) without locks; a summary sums the window's buckets.
+ */
+class OrderAnalytics {
+    static final String[] WINDOWS = {"1m", "5m", "1h"};
+
+    // Counter indexes
+    static final int ORDERS = 0;
+    static final int APPROVED = 1;
+    static final int REJECTED_CREDIT = 2;
+    static final int REJECTED_STOCK = 3;
+    static final int REJECTED_OTHER = 4;
+    static final int INCOMPLETE = 5;
+    static final int SURFBOARDS = 6;
+    static final int DIVING_SUITS = 7;
+    static final int LARGE = 8;
+    static final int SMALL = 9;
+    private static final int COUNTERS = 10;
+
+    private final SlidingWindowCounters[] windows = {
+        new SlidingWindowCounters(COUNTERS, 1000, 60),      // 1 minute in seconds
+        new SlidingWindowCounters(COUNTERS, 5000, 60),      // 5 minutes in 5 seconds
+        new SlidingWindowCounters(COUNTERS, 60000, 60)      // 1 hour in minutes
+    };
+    private final long startMillis;
+
+    OrderAnalytics() {
+        this(System.currentTimeMillis());
+    }
+
+    OrderAnalytics(long startMillis) {
+        this.startMillis = startMillis;
+    }
+
+    /** Records a final order CSV of the given lane ("large" or "small"). */
+    void record(String finalCsv, String lane, long nowMillis) {
+        long[] deltas = new long[COUNTERS];
+        deltas[ORDERS] = 1;
+        deltas["large".equals(lane) ? LARGE : SMALL] = 1;
+        String[] values = finalCsv.split(",", -1);
+        if (values.length < 13) {
+            // completed by the timeout with only the billing or the inventory result
+            deltas[INCOMPLETE] = 1;
+        } else if (Boolean.parseBoolean(values[7].trim())) {
+            deltas[APPROVED] = 1;
+            deltas[DIVING_SUITS] = parseItems(values[4]);
+            deltas[SURFBOARDS] = parseItems(values[5]);
+        } else {
+            String reason = values[8];
+            if (reason.contains("Credit score too low") || reason.contains("Credit exposure limit exceeded")) {
+                deltas[REJECTED_CREDIT] = 1;
+            } else if (reason.contains("Insufficient stock")) {
+                deltas[REJECTED_STOCK] = 1;
+            } else {
+                deltas[REJECTED_OTHER] = 1;
+            }
+        }
+        for (SlidingWindowCounters window : windows) {
+            window.add(nowMillis, deltas);
+        }
+    }
+
+    private static long parseItems(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Counter sums of the window at the given index of {@link #WINDOWS}. */
+    long[] counts(int window, long nowMillis) {
+        return windows[window].sum(nowMillis);
+    }
+
+    /** Orders per second in the window; right after startup over the time since the start. */
+    double ordersPerSecond(int window, long nowMillis) {
+        long span = Math.max(1000, Math.min(windows[window].getWindowMillis(), nowMillis - startMillis));
+        return counts(window, nowMillis)[ORDERS] * 1000.0 / span;
+    }
+
+    /** One key=value line per window. */
+    String summary(long nowMillis) {
+        StringBuilder text = new StringBuilder();
+        for (int w = 0; w < WINDOWS.length; w++) {
+            long[] c = counts(w, nowMillis);
+            long orders = c[ORDERS];
+            text.append(String.format(Locale.ROOT,
+                "window=%s orders=%d ordersPerSec=%.2f approvalRate=%.3f creditRejectionRate=%.3f "
+                    + "stockRejectionRate=%.3f otherRejectionRate=%.3f incompleteRate=%.3f "
+                    + "surfboards=%d divingSuits=%d largeShare=%.3f\n",
+                WINDOWS[w], orders, ordersPerSecond(w, nowMillis), share(c[APPROVED], orders),
+                share(c[REJECTED_CREDIT], orders), share(c[REJECTED_STOCK], orders), share(c[REJECTED_OTHER], orders),
+                share(c[INCOMPLETE], orders), c[SURFBOARDS], c[DIVING_SUITS], share(c[LARGE], orders)));
+        }
+        return text.toString();
+    }
+
+    static double share(long part, long total) {
+        return total == 0 ? 0.0 : (double) part / total;
+    }
+}
@@ -0,0 +1,309 @@
+package com.divesurf.results;
+
+import com.divesurf.common.MetricsRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Final order results, queryable by order id and customer id. The most recent results are kept in memory,
+ * in a bounded FIFO with a hash index per key, so lookups of hot orders are plain map reads. Results pushed
+ * out of memory are appended to a data file ("finalizedMillis,lane,finalCsv" per line) whose offsets are
+ * indexed by order id and customer id; a lookup of an older order then costs one positional read. The file
+ * index is rebuilt from the data file at startup, so results survive restarts of the result system.
+ * The data file is not compacted; it grows by about 100 bytes per order.
+ */
+class OrderStatusStore implements AutoCloseable {
+
+    /** A final order result. */
+    static final class Status {
+        final long finalizedMillis;
+        final String lane;
+        final String csv;
+        final String orderId;
+        final String customerId;
+
+        Status(long finalizedMillis, String lane, String csv) {
+            this.finalizedMillis = finalizedMillis;
+            this.lane = lane;
+            this.csv = csv;
+            String[] values = csv.split(",", -1);
+            this.customerId = values[0].trim();
+            this.orderId = values.length > 6 ? values[6].trim() : "";
+        }
+
+        /** One key=value line with the fields of the final CSV. */
+        String format() {
+            StringBuilder line = new StringBuilder()
+                .append("finalizedAt=").append(Instant.ofEpochMilli(finalizedMillis))
+                .append(" lane=").append(lane);
+            String[] values = csv.split(",", -1);
+            for (int i = 0; i < Math.min(values.length, ResultSystem.FINAL_FIELDS.length); i++) {
+                String value = values[i].trim();
+                line.append(' ').append(ResultSystem.FINAL_FIELDS[i]).append('=');
+                if (value.indexOf(' ') >= 0 || value.isEmpty()) {
+                    line.append('"').append(value).append('"');
+                } else {
+                    line.append(value);
+                }
+            }
+            return line.toString();
+        }
+
+        String toLine() {
+            return finalizedMillis + "," + lane + "," + csv;
+        }
+
+        static Status parse(String line) {
+            int first = line.indexOf(',');
+            int second = line.indexOf(',', first + 1);
+            return new Status(Long.parseLong(line.substring(0, first)), line.substring(first + 1, second),
+                line.substring(second + 1));
+        }
+    }
+
+    private final int memoryCapacity;
+    // memory tier: results in arrival order, indexed by order and customer
+    private final ArrayDeque<Status> recent = new ArrayDeque<>();
+    private final Map<String, Status> recentByOrder = new HashMap<>();
+    private final Map<String, ArrayDeque<Status>> recentByCustomer = new HashMap<>();
+    // disk tier: line offsets in the data file
+    private final Map<String, Long> diskByOrder = new HashMap<>();
+    private final Map<String, List<Long>> diskByCustomer = new HashMap<>();
+    private final File dataFile;
+    private final OutputStream out;
+    private final FileChannel reader;
+    private long fileSize;
+    private boolean unflushed;
+    private long spilled;
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    OrderStatusStore(int memoryCapacity, File directory) throws IOException {
+        if (memoryCapacity <= 0) {
+            throw new IllegalArgumentException("memoryCapacity must be positive");
+        }
+        this.memoryCapacity = memoryCapacity;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.dataFile = new File(directory, "order-status.csv");
+        boolean torn = rebuildIndex();
+        this.out = new BufferedOutputStream(new FileOutputStream(dataFile, true), 64 * 1024);
+        if (torn) {
+            // terminate the torn line, so the next result starts on a line of its own
+            out.write('\n');
+            fileSize++;
+        }
+        this.reader = new RandomAccessFile(dataFile, "r").getChannel();
+    }
+
+    /** Store configured by the result.statusStore.* system properties. */
+    static OrderStatusStore fromSystemProperties() throws IOException {
+        return new OrderStatusStore(Integer.getInteger("result.statusStore.memoryCapacity", 100000),
+            new File(System.getProperty("result.statusStore.dir", "order-status")));
+    }
+
+    /** Adds a final order; results pushed out of memory go to the data file. */
+    synchronized void put(String finalCsv, String lane, long finalizedMillis) {
+        Status status = new Status(finalizedMillis, lane, finalCsv);
+        recent.addLast(status);
+        recentByOrder.put(status.orderId, status);
+        recentByCustomer.computeIfAbsent(status.customerId, c -> new ArrayDeque<>()).addLast(status);
+        while (recent.size() > memoryCapacity) {
+            spill(recent.removeFirst());
+        }
+    }
+
+    /** The latest result of the order, or null if it is unknown. */
+    synchronized Status findByOrderId(String orderId) {
+        Status status = recentByOrder.get(orderId);
+        if (status != null) {
+            memoryHits.increment();
+            return status;
+        }
+        Long offset = diskByOrder.get(orderId);
+        if (offset == null) {
+            misses.increment();
+            return null;
+        }
+        diskHits.increment();
+        return read(offset);
+    }
+
+    /** The latest results of the customer, newest first. */
+    synchronized List<Status> findByCustomerId(String customerId, int limit) {
+        List<Status> found = new ArrayList<>();
+        ArrayDeque<Status> inMemory = recentByCustomer.get(customerId);
+        if (inMemory != null) {
+            Iterator<Status> newestFirst = inMemory.descendingIterator();
+            while (newestFirst.hasNext() && found.size() < limit) {
+                found.add(newestFirst.next());
+            }
+            memoryHits.increment();
+        }
+        List<Long> offsets = diskByCustomer.getOrDefault(customerId, Collections.emptyList());
+        for (int i = offsets.size() - 1; i >= 0 && found.size() < limit; i--) {
+            found.add(read(offsets.get(i)));
+        }
+        if (!offsets.isEmpty()) {
+            diskHits.increment();
+        } else if (inMemory == null) {
+            misses.increment();
+        }
+        return found;
+    }
+
+    synchronized int getMemorySize() {
+        return recent.size();
+    }
+
+    synchronized int getDiskSize() {
+        return diskByOrder.size();
+    }
+
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("result_status_store_orders", "Orders in the order-status store", this::getMemorySize, "tier", "memory");
+        registry.gauge("result_status_store_orders", "Orders in the order-status store", this::getDiskSize, "tier", "disk");
+        registry.counter("result_status_store_lookups_total", "Order-status lookups", memoryHits::sum, "result", "memory");
+        registry.counter("result_status_store_lookups_total", "Order-status lookups", diskHits::sum, "result", "disk");
+        registry.counter("result_status_store_lookups_total", "Order-status lookups", misses::sum, "result", "miss");
+    }
+
+    public synchronized String stats() {
+        return String.format("Order status store: memory=%d disk=%d spilled=%d memoryHits=%d diskHits=%d misses=%d",
+            recent.size(), diskByOrder.size(), spilled, memoryHits.sum(), diskHits.sum(), misses.sum());
+    }
+
+    /** Writes buffered results to the data file; called periodically, so little is lost if the process dies. */
+    synchronized void flush() throws IOException {
+        if (unflushed) {
+            out.flush();
+            unflushed = false;
+        }
+    }
+
+    /** Moves all results in memory to the data file, so they are still found after a restart; part of the drain. */
+    synchronized void spillAll() throws IOException {
+        while (!recent.isEmpty()) {
+            spill(recent.removeFirst());
+        }
+        flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void spill(Status status) {
+        if (recentByOrder.get(status.orderId) == status) {
+            recentByOrder.remove(status.orderId);
+        }
+        ArrayDeque<Status> customer = recentByCustomer.get(status.customerId);
+        customer.removeFirst(); // the oldest result overall is also the customer's oldest
+        if (customer.isEmpty()) {
+            recentByCustomer.remove(status.customerId);
+        }
+        byte[] line = (status.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            out.write(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write " + dataFile, e);
+        }
+        unflushed = true;
+        index(status, fileSize);
+        fileSize += line.length;
+        spilled++;
+    }
+
+    private void index(Status status, long offset) {
+        diskByOrder.put(status.orderId, offset);
+        diskByCustomer.computeIfAbsent(status.customerId, c -> new ArrayList<>()).add(offset);
+    }
+
+    private Status read(long offset) {
+        try {
+            flush();
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            long position = offset;
+            while (true) {
+                ((Buffer) buffer).clear(); // as a Buffer, so the class also runs on Java 8
+                int read = reader.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                int end = 0;
+                while (end < read && buffer.get(end) != '\n') {
+                    end++;
+                }
+                line.write(buffer.array(), 0, end);
+                if (end < read) {
+                    break;
+                }
+                position += read;
+            }
+            return Status.parse(new String(line.toByteArray(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + dataFile, e);
+        }
+    }
+
+    // Indexes the results spilled before a restart; returns whether the last line is torn (left out of the index)
+    private boolean rebuildIndex() throws IOException {
+        if (!dataFile.exists()) {
+            return false;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(dataFile), 64 * 1024)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long offset = 0;
+            long position = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                try {
+                    index(Status.parse(new String(line.toByteArray(), StandardCharsets.UTF_8)), offset);
+                } catch (RuntimeException e) {
+                    System.err.println("Skipping malformed order status at offset " + offset + " of " + dataFile);
+                }
+                line.reset();
+                offset = position;
+            }
+            fileSize = position;
+            return line.size() > 0;
+        }
+    }
+}
@@ -3,117 +3,225 @@ package com.divesurf.results;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedCamelContext;
+import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.jms.JmsComponent;
 import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.processor.aggregate.MemoryAggregationRepository;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 
+import com.sun.net.httpserver.HttpServer;
+
+import com.divesurf.camel.QuarantineRoutes;
+import com.divesurf.camel.RouteAutoscaler;
+import com.divesurf.camel.RouteMetrics;
+import com.divesurf.camel.TraceInterceptor;
+import com.divesurf.common.ConsumerAutoscaler;
+import com.divesurf.common.CustomerProfiles;
+import com.divesurf.common.CustomerSequence;
+import com.divesurf.common.JvmMetrics;
+import com.divesurf.common.LatencyTracker;
+import com.divesurf.common.Lifecycle;
+import com.divesurf.common.MetricsRegistry;
+import com.divesurf.common.MetricsServer;
+import com.divesurf.common.OrderCsv;
+import com.divesurf.common.OrderEnvelope;
+import com.divesurf.common.OrderLane;
+import com.divesurf.common.OrderLog;
+import com.divesurf.common.Quarantine;
+import com.divesurf.common.Tracer;
+import com.divesurf.common.VirtualThreads;
+
+import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.apache.camel.builder.Builder.header;
 
 public class ResultSystem {
 
+    // Fields of the final order CSV, in order
+    static final String[] FINAL_FIELDS = {"customerId", "firstName", "lastName", "overallItems", "divingSuits",
+        "surfboards", "orderId", "valid", "validationResult", "creditScore", "currentSurfboards", "currentSuits", "totalStock"};
+    // Header of a final order: false if it lacks its billing or inventory result
+    static final String COMPLETE_HEADER = "resultComplete";
+    // Exchange property of a final order: true if it claimed its order id for emission
+    private static final String CLAIMED = "orderIdClaimed";
+
     public static void main(String[] args) throws Exception {
+        // Startup time, readiness and the drain on shutdown
+        Lifecycle lifecycle = Lifecycle.fromSystemProperties("result");
 
         CamelContext context = new DefaultCamelContext();
+        // Route, aggregation and JVM statistics for the metrics endpoint
+        MetricsRegistry metrics = new MetricsRegistry("result");
+        JvmMetrics.register(metrics);
+        lifecycle.registerMetrics(metrics);
+        context.addRoutePolicyFactory(new RouteMetrics(metrics));
 
         // Configure the JMS component with ActiveMQ
         ConnectionFactory connectionFactory =
                 new ActiveMQConnectionFactory("tcp://localhost:61616");
-        context.addComponent("jms",
-                JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        JmsComponent jms = JmsComponent.jmsComponentAutoAcknowledge(connectionFactory);
+        if (VirtualThreads.isEnabled()) {
+            // consumers wait in receive most of the time; on virtual threads they do not hold a platform thread each
+            jms.setTaskExecutor(new TaskExecutorAdapter(VirtualThreads.newPerTaskExecutor("JmsConsumer")));
+        }
+        context.addComponent("jms", jms);
+        // Producers connect on their first message instead of at startup
+        context.getGlobalEndpointConfiguration().setLazyStartProducer(true);
+        // In-flight exchanges get most of the drain timeout to complete when the context stops
+        context.getShutdownStrategy().setTimeUnit(TimeUnit.MILLISECONDS);
+        context.getShutdownStrategy().setTimeout(lifecycle.getDrainTimeoutMillis() * 2 / 3);
+        // Spans of traced orders for every result processor, including the join of billing and inventory
+        Tracer tracer = Tracer.fromSystemProperties("result");
+        if (tracer.isEnabled()) {
+            context.adapt(ExtendedCamelContext.class).addInterceptStrategy(new TraceInterceptor(tracer));
+            tracer.registerMetrics(metrics);
+        }
+        // Poison messages of all result routes end up in the quarantine queue
+        Quarantine quarantine = new Quarantine("result");
+        quarantine.registerMetrics(metrics);
+        context.addRoutes(new QuarantineRoutes(quarantine));
+        // Billing and inventory results may arrive in envelopes of many orders
+        OrderEnvelope.registerMetrics(metrics);
+        // Final orders are sampled and written in the background
+        OrderLog log = OrderLog.fromSystemProperties("result");
+        log.registerMetrics(metrics);
+        OrderLog.Route finalLarge = log.route("final-large");
+        OrderLog.Route finalSmall = log.route("final-small");
+        // Sliding-window analytics of the final orders, published to a topic and served locally
+        OrderAnalytics analytics = new OrderAnalytics();
+        registerAnalytics(metrics, analytics);
+        // Recent final orders in memory, older ones on disk, queryable by order and customer id
+        OrderStatusStore statusStore = OrderStatusStore.fromSystemProperties();
+        statusStore.registerMetrics(metrics);
+        // Each order is finalized once, even if its results are redelivered or arrive after the aggregation timed out
+        EmittedOrderIds emitted = EmittedOrderIds.fromSystemProperties();
+        emitted.registerMetrics(metrics);
+        // Restores each customer's order after the concurrent stages; the timeout exceeds the aggregation timeout,
+        // so an order finalized by the timeout still arrives before its gap is skipped
+        ProducerTemplate producer = context.createProducerTemplate();
+        CustomerResequencer<Exchange> resequencer = new CustomerResequencer<>(
+            Long.getLong("result.resequencer.timeoutMillis", 6000L),
+            Integer.getInteger("result.resequencer.capacity", 10000),
+            Long.getLong("result.resequencer.idleMillis", 600000L),
+            order -> {
+                Exchange sent = producer.send("direct:finalized", order);
+                if (sent.getException() != null) {
+                    if (sent.getProperty(CLAIMED, false, Boolean.class)) {
+                        emitted.release(orderIdOf(sent), isComplete(sent), System.currentTimeMillis());
+                    }
+                    System.err.println("Failed to forward final order: " + sent.getException().getMessage());
+                }
+            });
+        resequencer.registerMetrics(metrics);
+        File resequencerState = new File(System.getProperty("result.statusStore.dir", "order-status"), "resequencer.state");
+        resequencer.loadState(resequencerState, System.currentTimeMillis());
+        // Orders waiting for their second result, per lane; kept in explicit repositories, so they can be
+        // counted and handed back to their aggregation queue on shutdown
+        MemoryAggregationRepository[] pending = new MemoryAggregationRepository[OrderLane.values().length];
 
         context.addRoutes(new RouteBuilder() {
             @Override
             public void configure() {
+                QuarantineRoutes.applyTo(this);
 
-                // Publish-Subscribe Channel: Receives billing results from topic
-                from("jms:topic:billingResults?clientId=resultBilling&durableSubscriptionName=resultBilling")
+                // Publish-Subscribe Channel: Receives billing results from the virtual topic via the result system's queue
+                from("jms:queue:Consumer.resultBilling.VirtualTopic.billingResults")
+                    .routeId("billing-results")
+                    // Splitter: one exchange per order of an envelope
+                    .split(body().tokenize("\n"))
+                    .process(ResultSystem::openEnvelope)
                     .process(e -> {
-                        String[] parts = e.getIn().getBody(String.class).split(",");
-                        e.getIn().setHeader("orderId", parts[6].trim());
+                        String[] parts = OrderCsv.split(e.getIn().getBody(String.class), OrderCsv.ORDER_ID + 1);
+                        e.getIn().setHeader("orderId", parts[OrderCsv.ORDER_ID].trim());
                         e.getIn().setHeader("source", "billing");
                         // Capture credit score for aggregation
                         if (parts.length > 9) {
                             e.getIn().setHeader("creditScoreHeader", parts[9].trim());
                         }
+                        e.getIn().setHeader("orderLane",
+                            OrderLane.of(Integer.parseInt(parts[OrderCsv.OVERALL_ITEMS].trim())).suffix());
                     })
-                    .to("jms:queue:aggregationInput");
+                    // Content-Based Router: join the aggregation lane of the order's size
+                    .choice()
+                        .when(header("orderLane").isEqualTo(OrderLane.LARGE.suffix()))
+                            .to("jms:queue:aggregationInput.large")
+                        .otherwise()
+                            .to("jms:queue:aggregationInput.small")
+                    .end();
                     
                 // Point-to-Point Channel: Receives large orders from inventory
                 from("jms:queue:largeOrders")
+                    .routeId("inventory-large")
+                    // Splitter: one exchange per order of an envelope
+                    .split(body().tokenize("\n"))
+                    .process(ResultSystem::openEnvelope)
                     .process(e -> {
-                        String[] parts = e.getIn().getBody(String.class).split(",");
-                        e.getIn().setHeader("orderId", parts[6].trim());
+                        e.getIn().setHeader("orderId", OrderCsv.orderId(e.getIn().getBody(String.class)));
                         e.getIn().setHeader("source", "inventory");
                         e.getIn().setHeader("orderSize", "large");
                     })
-                    .to("jms:queue:aggregationInput");
+                    .to("jms:queue:aggregationInput.large");
                     
                 // Point-to-Point Channel: Receives small orders from inventory
                 from("jms:queue:smallOrders")
+                    .routeId("inventory-small")
+                    // Splitter: one exchange per order of an envelope
+                    .split(body().tokenize("\n"))
+                    .process(ResultSystem::openEnvelope)
                     .process(e -> {
-                        String[] parts = e.getIn().getBody(String.class).split(",");
-                        e.getIn().setHeader("orderId", parts[6].trim());
+                        e.getIn().setHeader("orderId", OrderCsv.orderId(e.getIn().getBody(String.class)));
                         e.getIn().setHeader("source", "inventory");
                         e.getIn().setHeader("orderSize", "small");
                     })
-                    .to("jms:queue:aggregationInput");
+                    .to("jms:queue:aggregationInput.small");
 
-                // Aggregator: Combines billing and inventory results for the same orderId
+                // Aggregator: Combines billing and inventory results for the same orderId, one aggregator per lane
                 // Content-Based Router: Routes aggregated orders by order size
-                from("jms:queue:aggregationInput")
-                    .aggregate(header("orderId"), (oldEx, newEx) -> {
-                        // Handle first message case
-                        if (oldEx == null) {
-                            return newEx;
-                        }
-                        
-                        /* -- decide which message is which -- */
-                        Exchange billingEx   = "billing".equals(oldEx.getIn().getHeader("source"))   ? oldEx
-                                             : "billing".equals(newEx.getIn().getHeader("source"))   ? newEx : null;
-                        Exchange inventEx    = "inventory".equals(oldEx.getIn().getHeader("source")) ? oldEx
-                                             : "inventory".equals(newEx.getIn().getHeader("source")) ? newEx : null;
-
-                        if (billingEx == null || inventEx == null) {
-                            /* only one side arrived – just keep collecting */
-                            return oldEx != null ? oldEx : newEx;
-                        }
+                for (OrderLane lane : OrderLane.values()) {
+                    MemoryAggregationRepository repository = new MemoryAggregationRepository();
+                    pending[lane.ordinal()] = repository;
+                    metrics.gauge("result_pending_aggregations", "Orders waiting for their billing or inventory result",
+                        () -> repository.getKeys().size(), "lane", lane.suffix());
+                    LongAdder joined = metrics.counter("result_aggregations_completed_total",
+                        "Finalized orders by completion reason", "lane", lane.suffix(), "completedBy", "size");
+                    LongAdder timedOut = metrics.counter("result_aggregations_completed_total",
+                        "Finalized orders by completion reason", "lane", lane.suffix(), "completedBy", "timeout");
+                    from("jms:queue:aggregationInput." + lane.suffix()
+                            + "?concurrentConsumers=" + Integer.getInteger("result." + lane.suffix() + "Lane.consumers", 1))
+                        .routeId("aggregation-" + lane.suffix())
+                        .aggregate(header("orderId"), ResultSystem::aggregate)
+                        .aggregationRepository(repository)
+                        .completionSize(2)
+                        .completionTimeout(5000)   // 5‑second timeout
+                        .process(e -> completed(e, joined, timedOut))
+                        // Resequencer: each customer's orders continue in the order they were placed
+                        .process(e -> resequence(resequencer, e));
+                }
 
-                        String[] b = billingEx.getIn().getBody(String.class).split(",", -1);
-                        String[] i = inventEx.getIn().getBody(String.class).split(",", -1);
-
-                        /*  -------- build unified CSV --------  */
-                        String[] out = new String[13];
-                        /* static fields straight from billing */
-                        System.arraycopy(b, 0, out, 0, 7);   // 0‑6
-
-                        /* 7: valid flag – comes from inventory */
-                        out[7] = i.length > 7 ? i[7].trim() : "";
-
-                        /* 8: validation result = billing + inventory */
-                        String vrBilling = b.length > 8 ? b[8].trim() : "";
-                        String vrInv     = i.length > 8 ? i[8].trim() : "";
-                        out[8] = vrBilling.isEmpty() ? vrInv
-                                : vrInv.isEmpty()   ? vrBilling
-                                : vrBilling + " && " + vrInv;
-
-                        /* 9: credit‑score – from billing (header copy is safer) */
-                        out[9] = billingEx.getIn().getHeader("creditScoreHeader", String.class);
-
-                        /* 10‑12: stock numbers – from inventory */
-                        out[10] = i.length > 10 ? i[9].trim() : "";
-                        out[11] = i.length > 11 ? i[10].trim() : "";
-                        out[12] = i.length >= 11 ? i[11].trim() : ""; // because it won't work otherwise
-
-                        /* set body + propagate orderSize header */
-                        billingEx.getIn().setBody(String.join(",", out));
-                        billingEx.getIn().setHeader("orderSize",
-                              inventEx.getIn().getHeader("orderSize"));
-                        return billingEx;         // always return the enriched envelope
-                    })
-                    .completionSize(2)
-                    .completionTimeout(5000)   // 5‑second timeout
+                from("direct:finalized")
+                    .routeId("finalized")
+                    // Idempotent Receiver: only the first result claiming an order is emitted, complete or not;
+                    // the claim is released if the order cannot be sent
+                    .filter(e -> claim(emitted, e))
+                    // Publish-Subscribe Channel: announce the finalized order (billing releases the customer's exposure)
+                    .to("jms:topic:VirtualTopic.finalizedOrders")
                     // Content-Based Router: route by order size from header or fallback to parsing
                     .choice()
                         .when(header("orderSize").isEqualTo("large"))
@@ -123,47 +231,367 @@ public class ResultSystem {
                         .otherwise()
                             // Fallback: parse message if header is missing
                             .choice()
-                                .when(e -> {
-                                    String[] parts = e.getIn().getBody(String.class).split(",");
-                                    return Integer.parseInt(parts[3].trim()) > 10;
-                                })
+                                .when(e -> OrderLane.of(OrderCsv.overallItems(e.getIn().getBody(String.class))) == OrderLane.LARGE)
                                     .to("jms:queue:finalLargeOrders")
                                 .otherwise()
                                     .to("jms:queue:finalSmallOrders");
 
+                // Skip gaps of lost or very late orders, so held orders do not wait forever
+                from("timer:resequencer?period=100")
+                    .routeId("resequencerTimeout")
+                    .process(e -> resequencer.expire(System.currentTimeMillis()));
+                from("timer:resequencerStats?period=60000&delay=60000")
+                    .routeId("resequencerStats")
+                    .process(e -> System.out.println(resequencer.stats()));
+                from("timer:emittedStats?period=60000&delay=60000")
+                    .routeId("emittedStats")
+                    .process(e -> System.out.println(emitted.stats()));
+
                 /* ---------- Large orders ---------- */
                 from("jms:queue:finalLargeOrders")
-                    .process(e -> {
-                        String[] fields = {"Customer ID", "First Name", "Last Name", "Overall Items", "Diving Suits", "Surfboards", "Order ID", "Valid", "Validation Result", "Credit Score", "Current Surfboards", "Current Suits", "Total Stock"};
-                        String[] values = e.getIn().getBody(String.class).split(",");
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("\n=== Aggregated Large Order ===\n");
-                        for (int i = 0; i < Math.min(fields.length, values.length); i++) {
-                            sb.append(String.format("%-18s : %s\n", fields[i], values[i].trim()));
-                        }
-                        sb.append("============================\n");
-                        System.out.print(sb.toString());
-                    });
+                    .routeId("final-large")
+                    .process(e -> finalized(analytics, statusStore, "large", finalLarge, e));
 
                 /* ---------- Small orders ---------- */
                 from("jms:queue:finalSmallOrders")
-                    .process(e -> {
-                        String[] fields = {"Customer ID", "First Name", "Last Name", "Overall Items", "Diving Suits", "Surfboards", "Order ID", "Valid", "Validation Result", "Credit Score", "Current Surfboards", "Current Suits", "Total Stock"};
-                        String[] values = e.getIn().getBody(String.class).split(",");
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("\n=== Aggregated Small Order ===\n");
-                        for (int i = 0; i < Math.min(fields.length, values.length); i++) {
-                            sb.append(String.format("%-18s : %s\n", fields[i], values[i].trim()));
-                        }
-                        sb.append("============================\n");
-                        System.out.print(sb.toString());
-                    });
+                    .routeId("final-small")
+                    .process(e -> finalized(analytics, statusStore, "small", finalSmall, e));
+
+                /* ---------- Order analytics ---------- */
+                long publishMillis = Long.getLong("result.analytics.publishMillis", 10000L);
+                from("timer:orderAnalytics?period=" + publishMillis + "&delay=" + publishMillis)
+                    .routeId("orderAnalytics")
+                    .setBody(e -> analytics.summary(System.currentTimeMillis()))
+                    .to("jms:topic:orderAnalytics?deliveryPersistent=false&timeToLive=" + 6 * publishMillis);
+
+                /* ---------- Order status store ---------- */
+                from("timer:orderStatusFlush?period=1000")
+                    .routeId("orderStatusFlush")
+                    .process(e -> statusStore.flush());
+                from("timer:orderStatusStats?period=60000&delay=60000")
+                    .routeId("orderStatusStats")
+                    .process(e -> System.out.println(statusStore.stats()));
             }
         });
 
+        HttpServer server = MetricsServer.start(metrics, 9106);
+        if (server != null) {
+            lifecycle.serveProbes(server);
+            MetricsServer.serve(server, "/analytics", "text/plain; charset=utf-8",
+                query -> analytics.summary(System.currentTimeMillis()));
+            MetricsServer.serve(server, "/orders", "text/plain; charset=utf-8", query -> queryOrders(statusStore, query));
+        }
         context.start();
+
+        // Resize the aggregation consumers at runtime from queue depth; aggregating is cheap,
+        // so the backlog alone decides (no processing time tracking)
+        if (Boolean.getBoolean("autoscale.enabled")) {
+            List<ConsumerAutoscaler> autoscalers = new ArrayList<>();
+            for (OrderLane lane : OrderLane.values()) {
+                autoscalers.add(RouteAutoscaler.start(context, connectionFactory, "aggregation-" + lane.suffix(),
+                    "aggregationInput." + lane.suffix(), null));
+            }
+            autoscalers.forEach(a -> a.registerMetrics(metrics));
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("timer:autoscaleStats?period=60000&delay=60000")
+                        .routeId("autoscaleStats")
+                        .process(e -> autoscalers.forEach(a -> System.out.println(a.stats())));
+                }
+            });
+        }
+
+        // Drain: stop taking results, hand incomplete orders back to the broker, release the held orders,
+        // then let the final orders in flight complete and persist the order status
+        lifecycle.onDrain("intake", () -> {
+            for (String routeId : new String[] {"billing-results", "inventory-large", "inventory-small"}) {
+                context.getRouteController().stopRoute(routeId);
+            }
+            for (OrderLane lane : OrderLane.values()) {
+                context.getRouteController().stopRoute("aggregation-" + lane.suffix());
+                int handedBack = handBack(context, pending[lane.ordinal()], connectionFactory, "aggregationInput." + lane.suffix());
+                System.out.println("Handed " + handedBack + " incomplete " + lane.suffix() + " orders back to the broker");
+            }
+        });
+        lifecycle.onDrain("resequencer", () -> {
+            resequencer.releaseAll();
+            resequencer.saveState(resequencerState);
+        });
+        lifecycle.onDrain("camel", context::stop);
+        lifecycle.onDrain("statusStore", () -> {
+            statusStore.spillAll();
+            statusStore.close();
+        });
+        lifecycle.onDrain("emittedOrderIds", emitted::close);
+        lifecycle.onDrain("logs", () -> {
+            log.close();
+            tracer.close();
+        });
+        lifecycle.ready();
         System.out.println("ResultSystem started. Waiting for orders…");
-        Thread.sleep(Long.MAX_VALUE);
-        context.stop();
+        lifecycle.awaitStopped();
+    }
+
+    /**
+     * Puts the orders still waiting for their second result back on their aggregation queue, with their headers,
+     * in one transaction; called after the aggregation route stopped. The first result was already consumed,
+     * so without the hand-back a restart would finalize these orders as incomplete; this way the restarted
+     * (or another) result system joins them with their second result.
+     */
+    static int handBack(CamelContext context, MemoryAggregationRepository pending, ConnectionFactory connectionFactory,
+                        String queue) throws JMSException {
+        Map<String, Exchange> orders = new HashMap<>();
+        for (String key : pending.getKeys()) {
+            Exchange order = pending.get(context, key);
+            if (order != null) {
+                orders.put(key, order);
+            }
+        }
+        if (orders.isEmpty()) {
+            return 0;
+        }
+        Connection connection = connectionFactory.createConnection();
+        try {
+            Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            MessageProducer producer = session.createProducer(session.createQueue(queue));
+            for (Exchange order : orders.values()) {
+                TextMessage message = session.createTextMessage(order.getIn().getBody(String.class));
+                for (Map.Entry<String, Object> header : order.getIn().getHeaders().entrySet()) {
+                    Object value = header.getValue();
+                    String name = header.getKey();
+                    boolean jmsHeader = name.startsWith("JMS") && !CustomerSequence.GROUP_HEADER.equals(name);
+                    if (!jmsHeader && isPropertyName(name)
+                            && (value instanceof String || value instanceof Number || value instanceof Boolean)) {
+                        message.setObjectProperty(name, value);
+                    }
+                }
+                producer.send(message);
+            }
+            session.commit();
+        } finally {
+            connection.close();
+        }
+        for (Map.Entry<String, Exchange> order : orders.entrySet()) {
+            pending.remove(context, order.getKey(), order.getValue());
+        }
+        return orders.size();
+    }
+
+    // Headers such as Camel's internal ones may not be valid JMS property names
+    private static boolean isPropertyName(String name) {
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Turns a line of an envelope into the order it carries; exchanges of single orders are left as they are
+    private static void openEnvelope(Exchange exchange) {
+        if (exchange.getIn().removeHeader(OrderEnvelope.COUNT_HEADER) == null) {
+            return;
+        }
+        OrderEnvelope.Entry entry = OrderEnvelope.decode(exchange.getIn().getBody(String.class));
+        exchange.getIn().getHeaders().putAll(entry.getProperties());
+        exchange.getIn().setBody(entry.getBody());
+    }
+
+    // The order id of a final order, from its header or else from its CSV
+    private static String orderIdOf(Exchange exchange) {
+        String orderId = exchange.getIn().getHeader("orderId", String.class);
+        return orderId != null ? orderId : OrderCsv.orderId(exchange.getIn().getBody(String.class));
+    }
+
+    // Counts an aggregated order by how it completed; an order with only one of its results is marked incomplete
+    private static void completed(Exchange exchange, LongAdder joined, LongAdder timedOut) {
+        ("timeout".equals(exchange.getProperty(Exchange.AGGREGATED_COMPLETED_BY, String.class))
+            ? timedOut : joined).increment();
+        if (!exchange.getIn().getHeader(COMPLETE_HEADER, false, Boolean.class)) {
+            exchange.getIn().setHeader(COMPLETE_HEADER, false);
+        }
+    }
+
+    // Claims a final order for emission; the exchange remembers the claim, so it is released if the send fails
+    private static boolean claim(EmittedOrderIds emitted, Exchange exchange) {
+        boolean claimed = emitted.tryClaim(orderIdOf(exchange), isComplete(exchange), System.currentTimeMillis());
+        exchange.setProperty(CLAIMED, claimed);
+        return claimed;
+    }
+
+    // An order without the header was finalized before incomplete orders were told apart
+    private static boolean isComplete(Exchange exchange) {
+        return exchange.getIn().getHeader(COMPLETE_HEADER, Boolean.TRUE, Boolean.class);
+    }
+
+    // Offers an aggregated order to the resequencer; orders without a sequence number are forwarded at once
+    private static void resequence(CustomerResequencer<Exchange> resequencer, Exchange exchange) {
+        Long sequence = exchange.getIn().getHeader(CustomerSequence.SEQUENCE_HEADER, Long.class);
+        String body = exchange.getIn().getBody(String.class);
+        Exchange order = exchange.copy();
+        if (sequence == null) {
+            resequencer.offerUnsequenced(order);
+            return;
+        }
+        resequencer.offer(body.substring(0, Math.max(0, body.indexOf(','))).trim(),
+            exchange.getIn().getHeader(CustomerSequence.EPOCH_HEADER, 0L, Long.class), sequence, order,
+            System.currentTimeMillis());
+    }
+
+    // Counts a final order in the analytics, stores its status and logs it
+    private static void finalized(OrderAnalytics analytics, OrderStatusStore statusStore, String lane,
+                                  OrderLog.Route log, Exchange exchange) {
+        String body = exchange.getIn().getBody(String.class);
+        long now = System.currentTimeMillis();
+        analytics.record(body, lane, now);
+        statusStore.put(body, lane, now);
+        logFinalized(log, body, exchange.getIn().getHeader(CustomerProfiles.TIER_HEADER, String.class),
+            exchange.getIn().getHeader(CustomerProfiles.REGION_HEADER, String.class));
+    }
+
+    /**
+     * Answers /orders?orderId=... or /orders?customerId=...[&limit=...] with one key=value line per result,
+     * newest first; an empty response means the order or customer is unknown.
+     */
+    static String queryOrders(OrderStatusStore statusStore, String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    try {
+                        params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                    } catch (UnsupportedEncodingException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+        List<OrderStatusStore.Status> found;
+        if (params.containsKey("orderId")) {
+            OrderStatusStore.Status status = statusStore.findByOrderId(params.get("orderId"));
+            found = status == null ? Collections.emptyList() : Collections.singletonList(status);
+        } else if (params.containsKey("customerId")) {
+            int limit;
+            try {
+                limit = Integer.parseInt(params.getOrDefault("limit", "100"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit: " + params.get("limit"));
+            }
+            found = statusStore.findByCustomerId(params.get("customerId"), limit);
+        } else {
+            throw new IllegalArgumentException("Query by orderId=... or customerId=...[&limit=...]");
+        }
+        StringBuilder text = new StringBuilder();
+        for (OrderStatusStore.Status status : found) {
+            text.append(status.format()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Gauges of the analytics per window; each scrape sums the window's buckets
+    private static void registerAnalytics(MetricsRegistry metrics, OrderAnalytics analytics) {
+        for (int w = 0; w < OrderAnalytics.WINDOWS.length; w++) {
+            int window = w;
+            String name = OrderAnalytics.WINDOWS[w];
+            metrics.gauge("result_orders_per_second", "Final orders per second in the window",
+                () -> analytics.ordersPerSecond(window, System.currentTimeMillis()), "window", name);
+            String[] outcomes = {"approved", "creditRejected", "stockRejected", "otherRejected", "incomplete"};
+            int[] counters = {OrderAnalytics.APPROVED, OrderAnalytics.REJECTED_CREDIT, OrderAnalytics.REJECTED_STOCK,
+                OrderAnalytics.REJECTED_OTHER, OrderAnalytics.INCOMPLETE};
+            for (int i = 0; i < outcomes.length; i++) {
+                int counter = counters[i];
+                metrics.gauge("result_order_outcome_ratio", "Share of the final orders in the window by outcome", () -> {
+                    long[] c = analytics.counts(window, System.currentTimeMillis());
+                    return OrderAnalytics.share(c[counter], c[OrderAnalytics.ORDERS]);
+                }, "window", name, "outcome", outcomes[i]);
+            }
+            metrics.gauge("result_items_shipped", "Items of the approved orders in the window",
+                () -> analytics.counts(window, System.currentTimeMillis())[OrderAnalytics.SURFBOARDS],
+                "window", name, "item", "surfboards");
+            metrics.gauge("result_items_shipped", "Items of the approved orders in the window",
+                () -> analytics.counts(window, System.currentTimeMillis())[OrderAnalytics.DIVING_SUITS],
+                "window", name, "item", "divingSuits");
+            metrics.gauge("result_large_order_ratio", "Share of large orders in the window", () -> {
+                long[] c = analytics.counts(window, System.currentTimeMillis());
+                return OrderAnalytics.share(c[OrderAnalytics.LARGE], c[OrderAnalytics.ORDERS]);
+            }, "window", name);
+        }
+    }
+
+    // Logs a final order with one field per CSV column and the customer profile attached by the order publisher;
+    // the body is only split if the event is sampled
+    private static void logFinalized(OrderLog.Route log, String body, String tier, String region) {
+        if (!log.sample()) {
+            return;
+        }
+        String[] values = body.split(",");
+        int columns = Math.min(FINAL_FIELDS.length, values.length);
+        Object[] fields = new Object[2 * columns + 4];
+        for (int i = 0; i < columns; i++) {
+            fields[2 * i] = FINAL_FIELDS[i];
+            fields[2 * i + 1] = values[i].trim();
+        }
+        fields[2 * columns] = CustomerProfiles.TIER_HEADER;
+        fields[2 * columns + 1] = tier;
+        fields[2 * columns + 2] = CustomerProfiles.REGION_HEADER;
+        fields[2 * columns + 3] = region;
+        log.write("orderFinalized", fields);
+    }
+
+    // Aggregation strategy: merges the billing and inventory results of one order into the final CSV
+    private static Exchange aggregate(Exchange oldEx, Exchange newEx) {
+        // Handle first message case
+        if (oldEx == null) {
+            return newEx;
+        }
+        
+        /* -- decide which message is which -- */
+        Exchange billingEx   = "billing".equals(oldEx.getIn().getHeader("source"))   ? oldEx
+                             : "billing".equals(newEx.getIn().getHeader("source"))   ? newEx : null;
+        Exchange inventEx    = "inventory".equals(oldEx.getIn().getHeader("source")) ? oldEx
+                             : "inventory".equals(newEx.getIn().getHeader("source")) ? newEx : null;
+
+        if (billingEx == null || inventEx == null) {
+            /* only one side arrived – just keep collecting */
+            return oldEx != null ? oldEx : newEx;
+        }
+
+        String[] b = OrderCsv.split(billingEx.getIn().getBody(String.class), OrderCsv.ORDER_ID + 1);
+        String[] i = OrderCsv.split(inventEx.getIn().getBody(String.class), OrderCsv.ORDER_ID + 1);
+
+        /*  -------- build unified CSV --------  */
+        String[] out = new String[13];
+        /* static fields straight from billing */
+        System.arraycopy(b, 0, out, 0, 7);   // 0‑6
+
+        /* 7: valid flag – comes from inventory */
+        out[7] = i.length > 7 ? i[7].trim() : "";
+
+        /* 8: validation result = billing + inventory */
+        String vrBilling = b.length > 8 ? b[8].trim() : "";
+        String vrInv     = i.length > 8 ? i[8].trim() : "";
+        out[8] = vrBilling.isEmpty() ? vrInv
+                : vrInv.isEmpty()   ? vrBilling
+                : vrBilling + " && " + vrInv;
+
+        /* 9: credit‑score – from billing (header copy is safer) */
+        out[9] = billingEx.getIn().getHeader("creditScoreHeader", String.class);
+
+        /* 10‑12: stock numbers – from inventory */
+        out[10] = i.length > 10 ? i[9].trim() : "";
+        out[11] = i.length > 11 ? i[10].trim() : "";
+        out[12] = i.length > 11 ? i[11].trim() : "";
+
+        /* set body + propagate orderSize header */
+        billingEx.getIn().setBody(String.join(",", out));
+        billingEx.getIn().setHeader("orderSize",
+              inventEx.getIn().getHeader("orderSize"));
+        billingEx.getIn().setHeader(COMPLETE_HEADER, true);
+        return billingEx;         // always return the enriched envelope
     }
 }
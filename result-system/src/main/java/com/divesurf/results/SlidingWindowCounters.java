@@ -0,0 +1,83 @@
+package com.divesurf.results;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed set of counters summed over a sliding time window. The window is a ring of buckets, each covering
+ * resolutionMillis; memory is fixed at buckets x counters longs. Updates take no locks: a thread that finds
+ * the slot of the current time still holding an expired bucket swaps in a fresh one with compare-and-set,
+ * so concurrent updates of the same period always end up in the same bucket.
+ */
+class SlidingWindowCounters {
+    private final int counters;
+    private final long resolutionMillis;
+    private final AtomicReferenceArray<Bucket> ring;
+
+    SlidingWindowCounters(int counters, long resolutionMillis, int buckets) {
+        this.counters = counters;
+        this.resolutionMillis = resolutionMillis;
+        this.ring = new AtomicReferenceArray<>(buckets);
+    }
+
+    void add(long nowMillis, int counter, long delta) {
+        bucket(nowMillis).values.addAndGet(counter, delta);
+    }
+
+    /** Adds to several counters of the same bucket; deltas are indexed by counter. */
+    void add(long nowMillis, long[] deltas) {
+        AtomicLongArray values = bucket(nowMillis).values;
+        for (int i = 0; i < deltas.length; i++) {
+            if (deltas[i] != 0) {
+                values.addAndGet(i, deltas[i]);
+            }
+        }
+    }
+
+    /** Sum of every counter over the buckets still inside the window. */
+    long[] sum(long nowMillis) {
+        long newest = nowMillis / resolutionMillis;
+        long[] sums = new long[counters];
+        for (int i = 0; i < ring.length(); i++) {
+            Bucket bucket = ring.get(i);
+            if (bucket != null && bucket.period > newest - ring.length() && bucket.period <= newest) {
+                for (int c = 0; c < counters; c++) {
+                    sums[c] += bucket.values.get(c);
+                }
+            }
+        }
+        return sums;
+    }
+
+    long getWindowMillis() {
+        return resolutionMillis * ring.length();
+    }
+
+    private Bucket bucket(long nowMillis) {
+        long period = nowMillis / resolutionMillis;
+        int slot = (int) (period % ring.length());
+        while (true) {
+            Bucket current = ring.get(slot);
+            if (current != null && current.period == period) {
+                return current;
+            }
+            if (current != null && current.period > period) {
+                return current; // a late update near the boundary counts in the newer period
+            }
+            Bucket fresh = new Bucket(period, counters);
+            if (ring.compareAndSet(slot, current, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private static final class Bucket {
+        final long period;
+        final AtomicLongArray values;
+
+        Bucket(long period, int counters) {
+            this.period = period;
+            this.values = new AtomicLongArray(counters);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.divesurf.results;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the per-customer resequencer.
+ */
+public class CustomerResequencerTest extends TestCase {
+
+    private final List<String> released = Collections.synchronizedList(new ArrayList<>());
+
+    private CustomerResequencer<String> resequencer(long timeoutMillis, int capacity) {
+        return new CustomerResequencer<>(timeoutMillis, capacity, 60000, released::add);
+    }
+
+    public void testOvertakingOrdersWaitForEarlierOnes() {
+        CustomerResequencer<String> resequencer = resequencer(1000, 100);
+        resequencer.offer("7", 2, "7-2", 0);
+        resequencer.offer("7", 3, "7-3", 0);
+        assertTrue(released.isEmpty());
+        assertEquals(2, resequencer.getHeld());
+        resequencer.offer("7", 1, "7-1", 10);
+        assertEquals(Arrays.asList("7-1", "7-2", "7-3"), released);
+        assertEquals(0, resequencer.getHeld());
+    }
+
+    public void testCustomersDoNotWaitForEachOther() {
+        CustomerResequencer<String> resequencer = resequencer(1000, 100);
+        resequencer.offer("7", 2, "7-2", 0);
+        resequencer.offer("8", 1, "8-1", 0);
+        resequencer.offer("9", 1, "9-1", 0);
+        assertEquals(Arrays.asList("8-1", "9-1"), released);
+    }
+
+    public void testGapIsSkippedAfterTheTimeout() {
+        CustomerResequencer<String> resequencer = resequencer(1000, 100);
+        resequencer.offer("7", 2, "7-2", 0);
+        resequencer.offer("7", 3, "7-3", 500);
+        resequencer.expire(999);
+        assertTrue(released.isEmpty());
+        resequencer.expire(1000);
+        assertEquals(Arrays.asList("7-2", "7-3"), released);
+        // the lost order turns up after all: it is forwarded at once
+        resequencer.offer("7", 1, "7-1", 2000);
+        resequencer.offer("7", 4, "7-4", 2000);
+        assertEquals(Arrays.asList("7-2", "7-3", "7-1", "7-4"), released);
+    }
+
+    public void testFullResequencerSkipsGapsInsteadOfHolding() {
+        CustomerResequencer<String> resequencer = resequencer(1000, 2);
+        resequencer.offer("7", 2, "7-2", 0);
+        resequencer.offer("8", 3, "8-3", 0);
+        resequencer.offer("8", 5, "8-5", 0); // full: 8-3 and 8-5 go out, skipping 8-1, 8-2 and 8-4
+        assertEquals(Arrays.asList("8-3", "8-5"), released);
+        assertEquals(1, resequencer.getHeld());
+        resequencer.offer("7", 1, "7-1", 0);
+        assertEquals(Arrays.asList("8-3", "8-5", "7-1", "7-2"), released);
+    }
+
+    public void testRepeatedOrdersAreNotHeld() {
+        CustomerResequencer<String> resequencer = resequencer(1000, 100);
+        resequencer.offer("7", 1, "7-1", 0);
+        resequencer.offer("7", 2, "7-2", 0);
+        resequencer.offer("7", 1, "7-1'", 10); // e.g. a late second result after the aggregation timeout
+        resequencer.offer("7", 3, "7-3", 10);
+        assertEquals(Arrays.asList("7-1", "7-2", "7-1'", "7-3"), released);
+    }
+
+    public void testDrainReleasesHeldOrdersAndRestartContinuesTheSequence() throws IOException {
+        CustomerResequencer<String> resequencer = resequencer(1000, 100);
+        resequencer.offer("7", 1, "7-1", 0);
+        resequencer.offer("7", 3, "7-3", 0);
+        resequencer.offer("7", 4, "7-4", 0);
+        resequencer.offer("8", 2, "8-2", 0);
+        resequencer.releaseAll();
+        assertEquals(0, resequencer.getHeld());
+        assertEquals(4, released.size());
+        assertTrue(released.contains("8-2"));
+        assertTrue(released.indexOf("7-1") < released.indexOf("7-3"));
+        assertTrue(released.indexOf("7-3") < released.indexOf("7-4"));
+
+        File state = File.createTempFile("resequencer", ".state");
+        try {
+            resequencer.saveState(state);
+            released.clear();
+            CustomerResequencer<String> restarted = resequencer(1000, 100);
+            restarted.loadState(state, System.currentTimeMillis());
+            restarted.offer("7", 5, "7-5", 0);  // continues after 7-4 instead of waiting for 7-1
+            restarted.offer("8", 4, "8-4", 0);  // still waits for 8-3
+            assertEquals(Arrays.asList("7-5"), released);
+            assertEquals(1, restarted.getHeld());
+        } finally {
+            state.delete();
+        }
+    }
+
+    public void testRestartedNumberingStartsOver() {
+        CustomerResequencer<String> resequencer = resequencer(1000, 100);
+        resequencer.offer("7", 100, 1, "7-1", 0);
+        resequencer.offer("7", 100, 2, "7-2", 0);
+        resequencer.offer("7", 100, 4, "7-4", 0);   // 7-3 was lost with the old publisher
+        resequencer.offer("7", 200, 2, "7-2'", 10); // the restarted publisher numbers from 1 again
+        assertEquals(Arrays.asList("7-1", "7-2", "7-4"), released);
+        resequencer.offer("7", 200, 1, "7-1'", 20);
+        resequencer.offer("7", 100, 3, "7-3", 30);  // a straggler of the old numbering is not held
+        assertEquals(Arrays.asList("7-1", "7-2", "7-4", "7-1'", "7-2'", "7-3"), released);
+        assertEquals(0, resequencer.getHeld());
+    }
+
+    public void testStateKeepsTheEpoch() throws IOException {
+        File state = File.createTempFile("resequencer", ".state");
+        try {
+            CustomerResequencer<String> resequencer = resequencer(1000, 100);
+            resequencer.offer("7", 100, 1, "7-1", 0);
+            resequencer.offer("7", 100, 2, "7-2", 0);
+            resequencer.offer("7", 100, 3, "7-3", 0);
+            assertEquals(Arrays.asList("7-1", "7-2", "7-3"), released);
+
+            resequencer.saveState(state);
+            assertEquals(Arrays.asList("7,100,4"), Files.readAllLines(state.toPath()));
+            released.clear();
+            CustomerResequencer<String> restarted = resequencer(1000, 100);
+            restarted.loadState(state, System.currentTimeMillis());
+            restarted.offer("7", 100, 4, "7-4", 0);
+            restarted.offer("7", 50, 9, "7-9", 0); // an earlier epoch than the saved one
+            assertEquals(Arrays.asList("7-4", "7-9"), released);
+            assertEquals(0, restarted.getHeld());
+        } finally {
+            state.delete();
+        }
+    }
+
+    public void testIdleCustomersAreDropped() {
+        CustomerResequencer<String> resequencer = new CustomerResequencer<>(1000, 100, 5000, released::add);
+        resequencer.offer("7", 1, "7-1", 0);
+        resequencer.offer("8", 2, "8-2", 0);
+        resequencer.expire(6000); // 8-2 timed out first, then both are idle
+        resequencer.expire(12000);
+        assertEquals(0, resequencer.getCustomers());
+    }
+
+    public void testConcurrentCustomersKeepTheirOrder() throws InterruptedException {
+        CustomerResequencer<String> resequencer = resequencer(60000, 100000);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int parity = t % 2;
+            int customerOffset = t / 2 * 50;
+            Thread thread = new Thread(() -> {
+                // two threads per customer group, one with the odd and one with the even orders
+                for (int seq = 1 + parity; seq <= 200; seq += 2) {
+                    for (int c = 0; c < 50; c++) {
+                        String customer = String.valueOf(customerOffset + c);
+                        resequencer.offer(customer, seq, customer + "-" + seq, 0);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100 * 200, released.size());
+        int[] last = new int[100];
+        for (String order : released) {
+            String[] parts = order.split("-");
+            int customer = Integer.parseInt(parts[0]);
+            int seq = Integer.parseInt(parts[1]);
+            assertEquals(order, last[customer] + 1, seq);
+            last[customer] = seq;
+        }
+    }
+}
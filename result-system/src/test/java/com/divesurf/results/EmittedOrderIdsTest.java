@@ -0,0 +1,103 @@
+package com.divesurf.results;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Unit tests for the time-bucketed record of finalized order ids.
+ */
+public class EmittedOrderIdsTest extends TestCase {
+
+    private File directory;
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("emitted-orders").toFile();
+        file = new File(directory, "emitted-orders.idx");
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    public void testDuplicatesWithinTheWindowAreSuppressed() throws IOException {
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 3, 1000, 16)) {
+            assertTrue(emitted.tryClaim("1", true, 500));
+            assertTrue(emitted.tryClaim("2", true, 1500));
+            assertFalse(emitted.tryClaim("1", true, 1600));
+            assertFalse(emitted.tryClaim("2", true, 2900));
+            assertEquals(2, emitted.size(2900));
+            assertEquals(2, emitted.getSuppressed());
+        }
+    }
+
+    public void testIdsExpireWithTheirBucket() throws IOException {
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 3, 1000, 16)) {
+            assertTrue(emitted.tryClaim("1", true, 500));
+            // bucket 3 reuses the slot of bucket 0
+            assertTrue(emitted.tryClaim("2", true, 3100));
+            assertEquals(1, emitted.size(3100));
+            assertTrue(emitted.tryClaim("1", true, 3200));
+            assertEquals(0, emitted.getSuppressed());
+        }
+    }
+
+    public void testRecordSurvivesARestart() throws IOException {
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 3, 1000, 16)) {
+            assertTrue(emitted.tryClaim("42", true, 500));
+        }
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 3, 1000, 16)) {
+            assertFalse(emitted.tryClaim("42", true, 1500));
+        }
+        // another layout starts over
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 4, 1000, 16)) {
+            assertTrue(emitted.tryClaim("42", true, 1500));
+        }
+    }
+
+    public void testFullBucketDropsFurtherIds() throws IOException {
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 2, 1000, 8)) {
+            for (int i = 0; i < 8; i++) {
+                assertTrue(emitted.tryClaim(String.valueOf(i), true, 100));
+            }
+            assertEquals(6, emitted.size(100));
+            assertEquals(2, emitted.getDropped());
+            // dropped ids are not remembered, remembered ones are
+            assertTrue(emitted.tryClaim("7", true, 200));
+            assertFalse(emitted.tryClaim("0", true, 200));
+        }
+    }
+
+    public void testLateCompleteOrderIsSuppressed() throws IOException {
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 3, 1000, 16)) {
+            assertTrue(emitted.tryClaim("1", false, 100));
+            assertFalse(emitted.tryClaim("1", false, 200));
+            assertFalse(emitted.tryClaim("1", true, 300));
+            assertTrue(emitted.tryClaim("2", true, 300));
+            assertFalse(emitted.tryClaim("2", false, 400));
+            assertEquals(2, emitted.getSuppressed());
+            assertEquals(1, emitted.getLate());
+        }
+    }
+
+    public void testReleasedClaimIsClaimedAgain() throws IOException {
+        try (EmittedOrderIds emitted = new EmittedOrderIds(file, 3, 1000, 16)) {
+            assertTrue(emitted.tryClaim("1", true, 100));
+            assertTrue(emitted.tryClaim("2", true, 100));
+            // the send of order 1 failed
+            emitted.release("1", true, 200);
+            assertEquals(1, emitted.getReleased());
+            assertTrue(emitted.tryClaim("1", true, 1200));
+            assertFalse(emitted.tryClaim("1", true, 1300));
+            assertFalse(emitted.tryClaim("2", true, 1300));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.divesurf.results;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the sliding-window order analytics.
+ */
+public class OrderAnalyticsTest extends TestCase {
+
+    private static final String APPROVED =
+        "7,Anna,Meier,5,2,3,order-1,true,Credit score is good && Stock sufficient,80,97,48,145";
+    private static final String CREDIT_REJECTED =
+        "8,Ben,Roth,2,1,1,order-2,false,Credit score too low && Stock sufficient,20,97,48,145";
+    private static final String STOCK_REJECTED =
+        "9,Cem,Alt,30,0,30,order-3,false,Credit score is good && Insufficient stock,70,20,48,68";
+    private static final String INCOMPLETE = "10,Dora,Lind,1,1,0,order-4,true,Credit score is good";
+
+    public void testOrdersAreClassifiedByOutcome() {
+        OrderAnalytics analytics = new OrderAnalytics(0);
+        analytics.record(APPROVED, "small", 1000);
+        analytics.record(CREDIT_REJECTED, "small", 1000);
+        analytics.record(STOCK_REJECTED, "large", 2000);
+        analytics.record(INCOMPLETE, "small", 3000);
+
+        long[] c = analytics.counts(0, 3000);
+        assertEquals(4, c[OrderAnalytics.ORDERS]);
+        assertEquals(1, c[OrderAnalytics.APPROVED]);
+        assertEquals(1, c[OrderAnalytics.REJECTED_CREDIT]);
+        assertEquals(1, c[OrderAnalytics.REJECTED_STOCK]);
+        assertEquals(0, c[OrderAnalytics.REJECTED_OTHER]);
+        assertEquals(1, c[OrderAnalytics.INCOMPLETE]);
+        // only shipped items are counted
+        assertEquals(3, c[OrderAnalytics.SURFBOARDS]);
+        assertEquals(2, c[OrderAnalytics.DIVING_SUITS]);
+        assertEquals(1, c[OrderAnalytics.LARGE]);
+        assertEquals(3, c[OrderAnalytics.SMALL]);
+    }
+
+    public void testWindowsExpireIndependently() {
+        OrderAnalytics analytics = new OrderAnalytics(0);
+        analytics.record(APPROVED, "small", 1000);
+        long later = 2 * 60000; // two minutes later
+        assertEquals(0, analytics.counts(0, later)[OrderAnalytics.ORDERS]);
+        assertEquals(1, analytics.counts(1, later)[OrderAnalytics.ORDERS]);
+        assertEquals(1, analytics.counts(2, later)[OrderAnalytics.ORDERS]);
+        assertEquals(0, analytics.counts(2, 2 * 3600000)[OrderAnalytics.ORDERS]);
+    }
+
+    public void testThroughputDuringWarmUp() {
+        OrderAnalytics analytics = new OrderAnalytics(0);
+        for (int i = 0; i < 20; i++) {
+            analytics.record(APPROVED, "small", i * 500);
+        }
+        // 20 orders in the first 10 seconds, not spread over the whole hour
+        assertEquals(2.0, analytics.ordersPerSecond(2, 10000), 0.001);
+        assertEquals(2.0, analytics.ordersPerSecond(0, 10000), 0.001);
+    }
+
+    public void testSummaryHasOneLinePerWindow() {
+        OrderAnalytics analytics = new OrderAnalytics(0);
+        analytics.record(APPROVED, "large", 1000);
+        analytics.record(CREDIT_REJECTED, "small", 1000);
+        String[] lines = analytics.summary(2000).split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("window=1m orders=2 "));
+        assertTrue(lines[0], lines[0].contains("approvalRate=0.500 creditRejectionRate=0.500"));
+        assertTrue(lines[2], lines[2].contains("largeShare=0.500"));
+    }
+}
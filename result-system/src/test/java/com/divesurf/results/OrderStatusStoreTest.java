@@ -0,0 +1,128 @@
+package com.divesurf.results;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Unit tests for the two-tier order-status store.
+ */
+public class OrderStatusStoreTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("order-status").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static String order(int customer, int order, boolean valid) {
+        return customer + ",Anna,Meier,3,1,2," + order + "," + valid + ",Credit score is good && "
+            + (valid ? "Stock sufficient" : "Insufficient stock") + ",80,97,48,145";
+    }
+
+    public void testLookupsInMemoryAndOnDisk() throws IOException {
+        try (OrderStatusStore store = new OrderStatusStore(3, directory)) {
+            for (int i = 1; i <= 10; i++) {
+                store.put(order(i % 2, i, i != 4), "small", 1000L * i);
+            }
+            assertEquals(3, store.getMemorySize());
+            assertEquals(7, store.getDiskSize());
+
+            OrderStatusStore.Status recent = store.findByOrderId("10");
+            assertEquals(10000, recent.finalizedMillis);
+            OrderStatusStore.Status spilled = store.findByOrderId("4");
+            assertEquals("small", spilled.lane);
+            assertEquals(order(0, 4, false), spilled.csv);
+            assertNull(store.findByOrderId("11"));
+
+            // newest first, across both tiers
+            List<OrderStatusStore.Status> customer = store.findByCustomerId("0", 100);
+            assertEquals(5, customer.size());
+            String[] expected = {"10", "8", "6", "4", "2"};
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], customer.get(i).orderId);
+            }
+            assertEquals(2, store.findByCustomerId("1", 2).size());
+            assertTrue(store.findByCustomerId("7", 10).isEmpty());
+        }
+    }
+
+    public void testLatestResultOfAnOrderWins() throws IOException {
+        try (OrderStatusStore store = new OrderStatusStore(2, directory)) {
+            store.put(order(1, 5, false), "large", 1000);
+            store.put(order(1, 5, true), "large", 2000);
+            assertEquals(2000, store.findByOrderId("5").finalizedMillis);
+            store.put(order(2, 6, true), "small", 3000); // spills the first result of order 5
+            assertEquals(2000, store.findByOrderId("5").finalizedMillis);
+            store.put(order(2, 7, true), "small", 4000);
+            assertEquals(2000, store.findByOrderId("5").finalizedMillis);
+        }
+    }
+
+    public void testDiskIndexIsRebuiltAfterRestart() throws IOException {
+        try (OrderStatusStore store = new OrderStatusStore(1, directory)) {
+            for (int i = 1; i <= 4; i++) {
+                store.put(order(9, i, true), "small", 1000L * i);
+            }
+        }
+        // a line torn by a crash is skipped
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "order-status.csv"), true)) {
+            out.write("5000,small,9,Anna".getBytes(StandardCharsets.UTF_8));
+        }
+        try (OrderStatusStore store = new OrderStatusStore(1, directory)) {
+            assertEquals(3, store.getDiskSize());
+            assertEquals(2000, store.findByOrderId("2").finalizedMillis);
+            store.put(order(9, 6, true), "small", 6000);
+            store.put(order(9, 7, true), "small", 7000);
+            assertEquals(6000, store.findByOrderId("6").finalizedMillis);
+            assertEquals(5, store.findByCustomerId("9", 100).size());
+        }
+    }
+
+    public void testSpilledResultsSurviveARestart() throws IOException {
+        try (OrderStatusStore store = new OrderStatusStore(10, directory)) {
+            for (int i = 1; i <= 3; i++) {
+                store.put(order(5, i, true), "large", 1000L * i);
+            }
+            store.spillAll();
+            assertEquals(0, store.getMemorySize());
+            assertEquals(2000, store.findByOrderId("2").finalizedMillis);
+        }
+        try (OrderStatusStore store = new OrderStatusStore(10, directory)) {
+            assertEquals(3, store.getDiskSize());
+            assertEquals("large", store.findByOrderId("3").lane);
+            assertEquals(3, store.findByCustomerId("5", 10).size());
+        }
+    }
+
+    public void testQueryApiFormatsResults() throws IOException {
+        try (OrderStatusStore store = new OrderStatusStore(10, directory)) {
+            store.put(order(3, 42, true), "small", 0);
+            String text = ResultSystem.queryOrders(store, "orderId=42");
+            assertTrue(text, text.startsWith("finalizedAt=1970-01-01T00:00:00Z lane=small customerId=3 "));
+            assertTrue(text, text.contains(" validationResult=\"Credit score is good && Stock sufficient\" "));
+            assertEquals(text, ResultSystem.queryOrders(store, "customerId=3&limit=5"));
+            assertEquals("", ResultSystem.queryOrders(store, "orderId=43"));
+            try {
+                ResultSystem.queryOrders(store, null);
+                fail();
+            } catch (IllegalArgumentException expected) {
+                // reported as 400
+            }
+        }
+    }
+}
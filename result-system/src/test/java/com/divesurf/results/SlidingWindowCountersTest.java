@@ -0,0 +1,52 @@
+package com.divesurf.results;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the lock-free sliding-window counters.
+ */
+public class SlidingWindowCountersTest extends TestCase {
+
+    public void testOldBucketsLeaveTheWindow() {
+        SlidingWindowCounters counters = new SlidingWindowCounters(2, 1000, 10); // 10 seconds
+        counters.add(500, 0, 3);
+        counters.add(4500, 1, 2);
+        assertEquals(3, counters.sum(9999)[0]);
+        assertEquals(2, counters.sum(9999)[1]);
+        assertEquals(0, counters.sum(10000)[0]);  // first bucket expired
+        assertEquals(2, counters.sum(10000)[1]);
+        assertEquals(0, counters.sum(3600000)[1]);
+    }
+
+    public void testReusedSlotStartsFromZero() {
+        SlidingWindowCounters counters = new SlidingWindowCounters(1, 1000, 10);
+        counters.add(1000, 0, 5);
+        counters.add(11000, 0, 1); // same slot, ten seconds later
+        assertEquals(1, counters.sum(11000)[0]);
+    }
+
+    public void testConcurrentUpdatesAreNotLost() throws InterruptedException {
+        SlidingWindowCounters counters = new SlidingWindowCounters(2, 10, 1000);
+        long start = 100000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    // every thread walks through the same 100 buckets, so slots are swapped concurrently
+                    counters.add(start + i / 100 * 10, new long[] {1, 2});
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long[] sums = counters.sum(start + 990);
+        assertEquals(80000, sums[0]);
+        assertEquals(160000, sums[1]);
+    }
+}
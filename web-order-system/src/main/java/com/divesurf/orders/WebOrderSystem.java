@@ -8,35 +8,120 @@ import org.apache.camel.component.jms.JmsComponent;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 
+import com.divesurf.camel.QuarantineRoutes;
+import com.divesurf.camel.RouteMetrics;
+import com.divesurf.camel.TraceInterceptor;
+import com.divesurf.common.AdmissionGate;
+import com.divesurf.common.CustomerSequence;
+import com.divesurf.common.JvmMetrics;
+import com.divesurf.common.Lifecycle;
+import com.divesurf.common.MetricsRegistry;
+import com.divesurf.common.MetricsServer;
+import com.divesurf.common.OrderLog;
+import com.divesurf.common.Quarantine;
+import com.divesurf.common.StockSnapshot;
+import com.divesurf.common.Tracer;
+import com.divesurf.common.VirtualThreads;
+
 import javax.jms.ConnectionFactory;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import com.sun.net.httpserver.HttpServer;
 
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class WebOrderSystem {
 
+    private static final long ADMISSION_MAX_WAIT_MILLIS = Long.getLong("order.admission.maxWaitMillis", 2000L);
+    private static final String STOCK_CHECK = System.getProperty("order.stockCheck", "reject");
+
     public static void main(String[] args) throws Exception {
+        // Startup time, readiness and the drain on shutdown
+        Lifecycle lifecycle = Lifecycle.fromSystemProperties("web");
         CamelContext context = new DefaultCamelContext();
+        // Route, admission and JVM statistics for the metrics endpoint
+        MetricsRegistry metrics = new MetricsRegistry("web");
+        JvmMetrics.register(metrics);
+        lifecycle.registerMetrics(metrics);
+        context.addRoutePolicyFactory(new RouteMetrics(metrics));
 
         ConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://localhost:61616");
-        context.addComponent("jms", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        JmsComponent jms = JmsComponent.jmsComponentAutoAcknowledge(connectionFactory);
+        if (VirtualThreads.isEnabled()) {
+            // consumers wait in receive most of the time; on virtual threads they do not hold a platform thread each
+            jms.setTaskExecutor(new TaskExecutorAdapter(VirtualThreads.newPerTaskExecutor("JmsConsumer")));
+        }
+        context.addComponent("jms", jms);
+        // Orders being sent get most of the drain timeout to complete when the context stops
+        context.getShutdownStrategy().setTimeUnit(TimeUnit.MILLISECONDS);
+        context.getShutdownStrategy().setTimeout(lifecycle.getDrainTimeoutMillis() * 2 / 3);
+
+        // Credits for new orders, refreshed by the capacity the OrderPublisher announces
+        AdmissionGate admission = new AdmissionGate(Integer.getInteger("order.admission.initialCredits", 50));
+        admission.registerMetrics(metrics);
+        // Local copy of the inventory's stock levels, refreshed by its broadcasts
+        StockSnapshot stock = new StockSnapshot(Long.getLong("order.stockCheck.maxAgeMillis", 10000L));
+        stock.registerMetrics(metrics);
+        Quarantine quarantine = new Quarantine("web");
+        quarantine.registerMetrics(metrics);
+        context.addRoutes(new QuarantineRoutes(quarantine));
+        // Per-order events are sampled and written in the background
+        OrderLog log = OrderLog.fromSystemProperties("web");
+        log.registerMetrics(metrics);
+        OrderLog.Route orderLog = log.route("webOrderRoute");
+        // Sampled orders get a trace id that follows them through all systems
+        Tracer tracer = Tracer.fromSystemProperties("web");
+        if (tracer.isEnabled()) {
+            context.addInterceptStrategy(new TraceInterceptor(tracer));
+            tracer.registerMetrics(metrics);
+        }
 
         // Message Endpoint: Receives orders from the web (simulated by CLI input)
         context.addRoutes(new RouteBuilder() {
             @Override
             public void configure() {
+                // Publish-Subscribe Channel: capacity announcements of the processing pipeline
+                from("jms:topic:pipelineCapacity")
+                    .routeId("pipelineCapacity")
+                    .errorHandler(QuarantineRoutes.deadLetterChannel())
+                    // a malformed announcement is quarantined at once, the next one follows shortly
+                    .onException(NumberFormatException.class).maximumRedeliveries(0).end()
+                    // every entry system gets the announcement, each spends only its share
+                    .process(e -> admission.onCapacity(AdmissionGate.parseCapacity(e.getIn().getBody(String.class)),
+                        e.getIn().getHeader(AdmissionGate.ENTRY_SYSTEMS_HEADER, 1, Integer.class)));
+
+                // Publish-Subscribe Channel: stock snapshots of the inventory for early rejection
+                from("jms:topic:stockLevels")
+                    .routeId("stockLevels")
+                    .errorHandler(QuarantineRoutes.deadLetterChannel())
+                    // a malformed snapshot is quarantined at once, the next one follows shortly
+                    .onException(NumberFormatException.class).maximumRedeliveries(0).end()
+                    .process(e -> stock.update(e.getIn().getBody(String.class)));
+
                 // Point-to-Point Channel: Sending orders to a JMS queue (orders)
                 from("direct:start")
                     .routeId("webOrderRoute")
-                    .log("Received raw order: ${body}")
+                    .process(e -> orderLog.log("orderReceived", "body", e.getIn().getBody()))
                     // Message Translator: Transforms web order input to canonical order format
                     .process(new WebOrderProcessor())
                     .to("jms:queue:orders")
-                    .log("Sent to JMS queue: ${body}");
+                    .process(e -> orderLog.log("orderSent", "queue", "orders", "body", e.getIn().getBody()));
             }
         });
 
+        HttpServer server = MetricsServer.start(metrics, 9101);
+        if (server != null) {
+            lifecycle.serveProbes(server);
+        }
         context.start();
+        lifecycle.onDrain("camel", context::stop);
+        lifecycle.onDrain("logs", () -> {
+            log.close();
+            tracer.close();
+        });
+        lifecycle.ready();
 
         try (Scanner scanner = new Scanner(System.in)) {
             ProducerTemplate producer = context.createProducerTemplate();
@@ -45,15 +130,60 @@ public class WebOrderSystem {
             System.out.println("Type 'exit' to quit.");
             while (true) {
                 System.out.print("Order: ");
+                if (!scanner.hasNextLine()) {
+                    break;
+                }
                 String input = scanner.nextLine();
                 if ("exit".equalsIgnoreCase(input.trim())) {
+                    lifecycle.drain();
                     break;
                 }
-                producer.sendBody("direct:start", input);
+                if (!lifecycle.isReady()) {
+                    System.out.println("Rejected: the system is shutting down.");
+                    continue;
+                }
+                String[] parts = input.split(",");
+                try {
+                    if (parts.length == 5 && !passesStockCheck(stock,
+                            Integer.parseInt(parts[4].trim()), Integer.parseInt(parts[3].trim()))) {
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // reported by the WebOrderProcessor
+                }
+                // Flow control: wait briefly for pipeline capacity, reject the order if there is none
+                if (!admission.tryAcquire(ADMISSION_MAX_WAIT_MILLIS)) {
+                    System.out.println("Rejected: the order pipeline is saturated, please try again later.");
+                    continue;
+                }
+                String traceId = tracer.newTraceId();
+                if (traceId == null) {
+                    producer.sendBody("direct:start", input);
+                } else {
+                    producer.sendBodyAndHeader("direct:start", input, Tracer.TRACE_ID, traceId);
+                }
             }
         }
+        // Without a console (stdin closed) the system runs until it is terminated
+        lifecycle.awaitStopped();
+    }
 
-        context.stop();
+    /**
+     * Early rejection: an order asking for more items than the latest stock snapshot shows cannot be shipped,
+     * so with order.stockCheck=reject (default) it is refused before it takes pipeline capacity;
+     * with "flag" it is only pointed out, with "off" not checked at all.
+     */
+    static boolean passesStockCheck(StockSnapshot stock, int surfboards, int divingSuits) {
+        if ("off".equals(STOCK_CHECK) || stock.check(surfboards, divingSuits) != StockSnapshot.Verdict.EXCEEDS_STOCK) {
+            return true;
+        }
+        String available = stock.getSurfboards() + " surfboards and " + stock.getDivingSuits() + " diving suits";
+        if ("flag".equals(STOCK_CHECK)) {
+            System.out.println("Warning: only " + available + " in stock, the order will probably be rejected.");
+            return true;
+        }
+        System.out.println("Rejected: only " + available + " in stock.");
+        return false;
     }
 
     // Message Translator: Converts web order input to canonical order format
@@ -73,6 +203,8 @@ public class WebOrderSystem {
 
                 String orderLine = String.format("%s,%s,%s,%d,%d", customerId, firstName, lastName, divingSuits, surfboards);
                 exchange.getIn().setBody(orderLine);
+                // Message groups: a customer's orders are translated by one order publisher consumer, in order
+                exchange.getIn().setHeader(CustomerSequence.GROUP_HEADER, customerId.trim());
             } catch (Exception e) {
                 System.out.println("Error: Invalid input. Please use the format: Customer-ID,First Name,Last Name,Diving suits,Surfboards");
             }